@@ -42,8 +42,9 @@ include $(BUILD_STATIC_LIBRARY)
 include $(CLEAR_VARS)
 LOCAL_PATH				:= $(ROOT)/new
 LOCAL_MODULE			:= libnative
-LOCAL_SRC_FILES			:= hawtjni.c hawtjni_native.c hawtjni_native_stats.c hawtjni_native_structs.c
-LOCAL_CFLAGS			:= -I$(ROOT)/celt/libcelt -fvisibility=hidden
+LOCAL_SRC_FILES			:= hawtjni.c hawtjni_native.c hawtjni_native_stats.c hawtjni_native_structs.c \
+						   ../direct/native_direct.c
+LOCAL_CFLAGS			:= -I$(LOCAL_PATH) -I$(ROOT)/celt/libcelt -fvisibility=hidden
 LOCAL_STATIC_LIBRARIES	:= libcelt libspeex
 
 include $(BUILD_SHARED_LIBRARY)
@@ -0,0 +1,124 @@
+/*
+ * JNI entry points of org.pcgod.mumbleclient.jni.NativeDirect.
+ *
+ * Written by hand rather than generated by hawtjni: hawtjni passes arrays
+ * and structs by copying them in and out, while these functions work on
+ * direct ByteBuffers in place. Buffer positions are ignored, offsets are
+ * passed explicitly.
+ *
+ * Every offset and length is checked against the buffer's capacity, so a
+ * bad argument from Java fails with CELT_BAD_ARG (-1 for the jitter
+ * buffer) instead of writing outside the buffer. The decoder handles in a
+ * batch are trusted like all other handles.
+ */
+#include <string.h>
+#include "hawtjni_native.h"
+
+#undef JNIEXPORT
+#define JNIEXPORT __attribute__ ((visibility("default")))
+#define NativeDirect_NATIVE(func) Java_org_pcgod_mumbleclient_jni_NativeDirect_##func
+
+extern int jitter_buffer_get(JitterBuffer *jitter, JitterBufferPacket *packet, int desired_span, int *start_offset);
+extern int jitter_buffer_ctl(JitterBuffer *jitter, int request, void *ptr);
+extern int jitter_buffer_update_delay(JitterBuffer *jitter, JitterBufferPacket *packet, int *start_offset);
+extern void jitter_buffer_tick(JitterBuffer *jitter);
+
+#define JITTER_BUFFER_GET_AVAILABLE_COUNT 3
+
+/* Batch decode entries, see NativeDirect.STREAM_*. */
+#define STREAM_DECODER 0
+#define STREAM_OFFSET 8
+#define STREAM_LENGTH 12
+#define STREAM_SIZE 16
+
+/* Jitter buffer results, see NativeDirect.JITTER_*. */
+#define JITTER_AVAILABLE 0
+#define JITTER_LENGTH 1
+#define JITTER_TIMESTAMP 2
+#define JITTER_RESULT_SIZE 12
+
+/* Capacity of a direct buffer in bytes, -1 if it isn't one. */
+#define CAPACITY(buffer) ((*env)->GetDirectBufferCapacity(env, buffer))
+
+JNIEXPORT jint JNICALL NativeDirect_NATIVE(celtEncode)
+	(JNIEnv *env, jclass that, jlong st, jobject pcm, jobject compressed, jint nbCompressedBytes)
+{
+	jshort *lppcm = (*env)->GetDirectBufferAddress(env, pcm);
+	unsigned char *lpcompressed = (*env)->GetDirectBufferAddress(env, compressed);
+	if (lppcm == NULL || lpcompressed == NULL) return CELT_BAD_ARG;
+	if (nbCompressedBytes < 0 || nbCompressedBytes > CAPACITY(compressed)) return CELT_BAD_ARG;
+	return celt_encode((CELTEncoder *)(intptr_t)st, lppcm, NULL, lpcompressed, nbCompressedBytes);
+}
+
+JNIEXPORT jint JNICALL NativeDirect_NATIVE(celtDecodeFloat)
+	(JNIEnv *env, jclass that, jlong st, jobject data, jint len, jobject pcm)
+{
+	unsigned char *lpdata = NULL;
+	float *lppcm = (*env)->GetDirectBufferAddress(env, pcm);
+	if (len > 0) {
+		lpdata = (*env)->GetDirectBufferAddress(env, data);
+		if (lpdata == NULL || len > CAPACITY(data)) return CELT_BAD_ARG;
+	}
+	if (lppcm == NULL) return CELT_BAD_ARG;
+	return celt_decode_float((CELTDecoder *)(intptr_t)st, lpdata, len, lppcm);
+}
+
+JNIEXPORT jint JNICALL NativeDirect_NATIVE(celtDecodeFloatBatch)
+	(JNIEnv *env, jclass that, jobject streams, jint count, jobject data, jobject pcm, jint frameSize)
+{
+	char *lpstreams = (*env)->GetDirectBufferAddress(env, streams);
+	unsigned char *lpdata = (*env)->GetDirectBufferAddress(env, data);
+	float *lppcm = (*env)->GetDirectBufferAddress(env, pcm);
+	jlong dataCapacity = CAPACITY(data);
+	int i, failed = 0;
+	if (lpstreams == NULL || lpdata == NULL || lppcm == NULL) return CELT_BAD_ARG;
+	if (count < 0 || frameSize <= 0) return CELT_BAD_ARG;
+	if ((jlong)count * STREAM_SIZE > CAPACITY(streams)) return CELT_BAD_ARG;
+	if ((jlong)count * frameSize * (jlong)sizeof(float) > CAPACITY(pcm)) return CELT_BAD_ARG;
+	/* Check every entry before decoding any. */
+	for (i = 0; i < count; i++) {
+		char *stream = lpstreams + i * STREAM_SIZE;
+		jint offset = *(jint *)(stream + STREAM_OFFSET);
+		jint len = *(jint *)(stream + STREAM_LENGTH);
+		if (len > 0 && (offset < 0 || (jlong)offset + len > dataCapacity)) return CELT_BAD_ARG;
+	}
+	for (i = 0; i < count; i++) {
+		char *stream = lpstreams + i * STREAM_SIZE;
+		CELTDecoder *st = (CELTDecoder *)(intptr_t)*(jlong *)(stream + STREAM_DECODER);
+		jint offset = *(jint *)(stream + STREAM_OFFSET);
+		jint len = *(jint *)(stream + STREAM_LENGTH);
+		float *out = lppcm + (size_t)i * frameSize;
+		/* No data decodes a lost frame. */
+		if (celt_decode_float(st, len > 0 ? lpdata + offset : NULL, len, out) != CELT_OK) {
+			memset(out, 0, frameSize * sizeof(float));
+			failed++;
+		}
+	}
+	return failed;
+}
+
+JNIEXPORT jint JNICALL NativeDirect_NATIVE(jitterBufferGet)
+	(JNIEnv *env, jclass that, jlong jitter, jobject data, jint offset, jint capacity, jint desiredSpan, jobject result)
+{
+	JitterBuffer *jb = (JitterBuffer *)(intptr_t)jitter;
+	char *lpdata = (*env)->GetDirectBufferAddress(env, data);
+	jint *lpresult = (*env)->GetDirectBufferAddress(env, result);
+	JitterBufferPacket packet;
+	int available = 0, start_offset = 0, rc;
+	if (lpdata == NULL || lpresult == NULL) return -1;
+	if (offset < 0 || capacity < 0 || (jlong)offset + capacity > CAPACITY(data)) return -1;
+	if (CAPACITY(result) < JITTER_RESULT_SIZE) return -1;
+
+	jitter_buffer_ctl(jb, JITTER_BUFFER_GET_AVAILABLE_COUNT, &available);
+	memset(&packet, 0, sizeof(packet));
+	packet.data = lpdata + offset;
+	packet.len = capacity;
+	rc = jitter_buffer_get(jb, &packet, desiredSpan, &start_offset);
+	jitter_buffer_update_delay(jb, NULL, NULL);
+	jitter_buffer_tick(jb);
+
+	lpresult[JITTER_AVAILABLE] = available;
+	lpresult[JITTER_LENGTH] = rc == 0 ? (jint)packet.len : 0;
+	lpresult[JITTER_TIMESTAMP] = (jint)packet.timestamp;
+	return rc;
+}
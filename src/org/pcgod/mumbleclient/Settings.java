@@ -17,6 +17,10 @@ public class Settings {
 	public static final String PREF_QUALITY = "quality";
 	private static final String DEFAULT_QUALITY = "60000";
 
+	public static final String PREF_MIC_STANDBY = "micStandby";
+
+	public static final String PREF_REDUNDANCY = "redundancy";
+
 	private final SharedPreferences preferences;
 
 	public Settings(final Context ctx) {
@@ -37,4 +41,12 @@ public class Settings {
 		return preferences.getString(PREF_JITTER, ARRAY_JITTER_NONE).equals(
 			ARRAY_JITTER_SPEEX);
 	}
+
+	public boolean isMicStandby() {
+		return preferences.getBoolean(PREF_MIC_STANDBY, false);
+	}
+
+	public boolean isRedundancy() {
+		return preferences.getBoolean(PREF_REDUNDANCY, false);
+	}
 }
@@ -1,26 +1,35 @@
 package org.pcgod.mumbleclient.app;
 
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.pcgod.mumbleclient.R;
 import org.pcgod.mumbleclient.service.BaseServiceObserver;
+import org.pcgod.mumbleclient.service.ChatHistory;
 import org.pcgod.mumbleclient.service.IServiceObserver;
 import org.pcgod.mumbleclient.service.model.Channel;
 import org.pcgod.mumbleclient.service.model.Message;
 
+import android.content.Context;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.text.format.DateUtils;
-import android.text.method.ScrollingMovementMethod;
 import android.view.KeyEvent;
+import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.View.OnClickListener;
 import android.view.inputmethod.EditorInfo;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.AdapterView.OnItemSelectedListener;
@@ -44,19 +53,154 @@ public class ChatActivity extends ConnectedActivity {
 		}
 	}
 
+	/**
+	 * Windowed view over the chat history of the service.
+	 * <p>
+	 * Messages are read from the service a page at a time when the ListView
+	 * asks for a row and only the few most recently used pages are kept. The
+	 * whole history is never held in memory or rendered at once.
+	 * <p>
+	 * Pages are read on the service's background thread. Rows of a page that
+	 * is still being read are shown empty and filled in once it arrives.
+	 */
+	private class ChatAdapter extends BaseAdapter {
+		private static final int PAGE_SIZE = 50;
+		private static final int MAX_PAGES = 4;
+
+		private final Context context;
+		private final Map<Integer, List<Message>> pages = new LinkedHashMap<Integer, List<Message>>(
+			MAX_PAGES + 1,
+			0.75f,
+			true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+				final Map.Entry<Integer, List<Message>> eldest) {
+				return size() > MAX_PAGES;
+			}
+		};
+		/** Pages being read by the service. */
+		private final Set<Integer> loading = new HashSet<Integer>();
+		/** Incremented by reset() to ignore pages requested before it. */
+		private int generation = 0;
+
+		/** History position of the first row. Moved forward by "Clear". */
+		private int firstMessage = 0;
+		private int messageCount = 0;
+
+		public ChatAdapter(final Context context_) {
+			context = context_;
+		}
+
+		public void clear() {
+			firstMessage = messageCount;
+			notifyDataSetChanged();
+		}
+
+		@Override
+		public int getCount() {
+			return messageCount - firstMessage;
+		}
+
+		@Override
+		public Message getItem(final int position) {
+			final int index = firstMessage + position;
+			final int page = index / PAGE_SIZE;
+
+			final List<Message> messages = pages.get(page);
+			if (messages == null || messages.size() <= index % PAGE_SIZE) {
+				load(page);
+				return null;
+			}
+			return messages.get(index % PAGE_SIZE);
+		}
+
+		@Override
+		public long getItemId(final int position) {
+			return firstMessage + position;
+		}
+
+		@Override
+		public View getView(
+			final int position,
+			View v,
+			final ViewGroup parent) {
+			if (v == null) {
+				final LayoutInflater inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+				v = inflater.inflate(R.layout.chat_row, null);
+			}
+
+			final Message msg = getItem(position);
+			((TextView) v.findViewById(R.id.chatRowText)).setText(msg == null ? ""
+				: formatMessage(msg));
+			return v;
+		}
+
+		@Override
+		public boolean hasStableIds() {
+			return true;
+		}
+
+		/**
+		 * Reloads the message count from the service. Only the last page can
+		 * have changed as the history is append only.
+		 */
+		public void refresh() {
+			messageCount = mService.getMessageCount();
+			if (messageCount > 0) {
+				pages.remove((messageCount - 1) / PAGE_SIZE);
+			}
+			notifyDataSetChanged();
+		}
+
+		public void reset() {
+			generation++;
+			pages.clear();
+			loading.clear();
+			firstMessage = 0;
+			refresh();
+		}
+
+		private void load(final int page) {
+			if (!loading.add(page)) {
+				return;
+			}
+
+			final int requested = generation;
+			mService.loadMessages(
+				page * PAGE_SIZE,
+				PAGE_SIZE,
+				new ChatHistory.Listener() {
+					@Override
+					public void onMessages(
+						final int offset,
+						final List<Message> messages) {
+						if (requested != generation) {
+							return;
+						}
+						loading.remove(page);
+						pages.put(page, messages);
+						notifyDataSetChanged();
+					}
+				});
+		}
+	}
+
 	private class ChatServiceObserver extends BaseServiceObserver {
 		@Override
 		public void onMessageReceived(final Message msg) throws RemoteException {
-			addMessage(msg);
+			chatAdapter.refresh();
 		}
 
 		@Override
 		public void onMessageSent(final Message msg) throws RemoteException {
-			addMessage(msg);
+			chatAdapter.refresh();
 		}
 	}
 
-	private TextView chatText;
+	private ListView chatList;
+	private ChatAdapter chatAdapter;
 	private EditText chatTextEdit;
 	private Spinner receiver;
 	private ArrayAdapter<ChannelItem> receiverAdapter;
@@ -109,7 +253,7 @@ public class ChatActivity extends ConnectedActivity {
 		final MenuItem item) {
 		switch (item.getItemId()) {
 		case MENU_CLEAR:
-			chatText.setText("");
+			chatAdapter.clear();
 			return true;
 		default:
 			return super.onMenuItemSelected(featureId, item);
@@ -123,11 +267,7 @@ public class ChatActivity extends ConnectedActivity {
 
 	@Override
 	protected void onConnected() {
-
-		final List<Message> messages = mService.getMessageList();
-		for (final Message m : messages) {
-			addMessage(m);
-		}
+		chatAdapter.reset();
 
 		this.receiverChannel = mService.getCurrentChannel();
 		this.receiverAdapter.clear();
@@ -148,8 +288,9 @@ public class ChatActivity extends ConnectedActivity {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.chat_view);
 
-		chatText = (TextView) findViewById(R.id.chatText);
-		chatText.setMovementMethod(ScrollingMovementMethod.getInstance());
+		chatList = (ListView) findViewById(R.id.chatList);
+		chatAdapter = new ChatAdapter(this);
+		chatList.setAdapter(chatAdapter);
 		chatTextEdit = (EditText) findViewById(R.id.chatTextEdit);
 		chatTextEdit.setOnEditorActionListener(chatTextEditActionEvent);
 		findViewById(R.id.send_button).setOnClickListener(sendOnClickEvent);
@@ -175,11 +316,9 @@ public class ChatActivity extends ConnectedActivity {
 				/* Nothing to do here */
 			}
 		});
-
-		updateText();
 	}
 
-	void addMessage(final Message msg) {
+	String formatMessage(final Message msg) {
 		final StringBuilder sb = new StringBuilder();
 		sb.append("[");
 		sb.append(DateUtils.formatDateTime(
@@ -190,7 +329,7 @@ public class ChatActivity extends ConnectedActivity {
 
 		if (msg.direction == Message.DIRECTION_SENT) {
 			sb.append("To ");
-			sb.append(msg.channel.name);
+			sb.append(msg.channel != null ? msg.channel.name : "?");
 		} else {
 			if (msg.channelIds > 0) {
 				sb.append("(C) ");
@@ -201,14 +340,15 @@ public class ChatActivity extends ConnectedActivity {
 
 			if (msg.actor != null) {
 				sb.append(msg.actor.name);
+			} else if (msg.sender != null) {
+				sb.append(msg.sender);
 			} else {
 				sb.append("Server");
 			}
 		}
 		sb.append(": ");
 		sb.append(msg.message);
-		sb.append("\n");
-		chatText.append(sb.toString());
+		return sb.toString();
 	}
 
 	void sendMessage(final TextView v) {
@@ -217,19 +357,4 @@ public class ChatActivity extends ConnectedActivity {
 			this.receiverChannel);
 		v.setText("");
 	}
-
-	void updateText() {
-		chatText.beginBatchEdit();
-		chatText.setText("");
-//		for (final String s : ServerList.client.chatList) {
-//			chatText.append(s);
-//		}
-//		chatText.endBatchEdit();
-//		chatText.post(new Runnable() {
-//			@Override
-//			public void run() {
-//				chatText.scrollTo(0, chatText.getHeight());
-//			}
-//		});
-	}
 }
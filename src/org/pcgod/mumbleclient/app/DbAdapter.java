@@ -1,5 +1,9 @@
 package org.pcgod.mumbleclient.app;
 
+import java.util.List;
+
+import org.pcgod.mumbleclient.service.model.Message;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -7,22 +11,17 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
-class DbAdapter {
+public class DbAdapter {
 	private static class DatabaseHelper extends SQLiteOpenHelper {
 		public DatabaseHelper(final Context context) {
-			super(context, DATABASE_NAME, null, 2);
+			super(context, DATABASE_NAME, null, 4);
 		}
 
 		@Override
 		public void onCreate(final SQLiteDatabase db) {
-			db.execSQL("CREATE TABLE `server` ("
-					   + "`_id` INTEGER PRIMARY KEY AUTOINCREMENT,"
-					   + "`name` TEXT NOT NULL,"
-					   + "`host` TEXT NOT NULL,"
-					   + "`port` INTEGER,"
-					   + "`username` TEXT NOT NULL,"
-					   + "`password` TEXT"
-					   + ");");
+			createServerTable(db);
+			createMessageTable(db);
+			createMessageIndex(db);
 		}
 
 		@Override
@@ -34,12 +33,60 @@ class DbAdapter {
 								  " to " + newVersion);
 			if (oldVersion == 1) {
 				db.execSQL("ALTER TABLE `server` RENAME TO `server_old`");
-				onCreate(db);
+				createServerTable(db);
 				db.execSQL("INSERT INTO `server` SELECT "
 						   + "`_id`, '', `host`, `port`, `username`, `password` "
 						   + "FROM `server_old`");
 				db.execSQL("DROP TABLE `server_old`");
 			}
+			if (oldVersion < 3) {
+				createMessageTable(db);
+			}
+			if (oldVersion < 4) {
+				createMessageIndex(db);
+				db.execSQL("INSERT INTO `message_fts` "
+						   + "(`docid`, `message`, `actor`, `channel`) "
+						   + "SELECT `_id`, `message`, `actor`, `channel` "
+						   + "FROM `message`");
+			}
+		}
+
+		/**
+		 * Full-text index over the message table. Rows share their docid with
+		 * the _id of the message they index.
+		 */
+		private void createMessageIndex(final SQLiteDatabase db) {
+			db.execSQL("CREATE VIRTUAL TABLE `message_fts` USING fts3 ("
+					   + "`message`, `actor`, `channel`"
+					   + ");");
+		}
+
+		private void createMessageTable(final SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE `message` ("
+					   + "`_id` INTEGER PRIMARY KEY AUTOINCREMENT,"
+					   + "`server` TEXT NOT NULL,"
+					   + "`direction` INTEGER NOT NULL,"
+					   + "`timestamp` INTEGER NOT NULL,"
+					   + "`actor` TEXT,"
+					   + "`channel_id` INTEGER,"
+					   + "`channel` TEXT,"
+					   + "`channel_ids` INTEGER,"
+					   + "`tree_ids` INTEGER,"
+					   + "`message` TEXT"
+					   + ");");
+			db.execSQL("CREATE INDEX `message_server` ON `message` "
+					   + "(`server`, `_id`);");
+		}
+
+		private void createServerTable(final SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE `server` ("
+					   + "`_id` INTEGER PRIMARY KEY AUTOINCREMENT,"
+					   + "`name` TEXT NOT NULL,"
+					   + "`host` TEXT NOT NULL,"
+					   + "`port` INTEGER,"
+					   + "`username` TEXT NOT NULL,"
+					   + "`password` TEXT"
+					   + ");");
 		}
 	}
 
@@ -51,6 +98,24 @@ class DbAdapter {
 	public static final String SERVER_COL_PORT = "port";
 	public static final String SERVER_COL_USERNAME = "username";
 	public static final String SERVER_COL_PASSWORD = "password";
+	public static final String MESSAGE_TABLE = "message";
+	public static final String MESSAGE_COL_ID = "_id";
+	public static final String MESSAGE_COL_SERVER = "server";
+	public static final String MESSAGE_COL_DIRECTION = "direction";
+	public static final String MESSAGE_COL_TIMESTAMP = "timestamp";
+	public static final String MESSAGE_COL_ACTOR = "actor";
+	public static final String MESSAGE_COL_CHANNEL_ID = "channel_id";
+	public static final String MESSAGE_COL_CHANNEL = "channel";
+	public static final String MESSAGE_COL_CHANNEL_IDS = "channel_ids";
+	public static final String MESSAGE_COL_TREE_IDS = "tree_ids";
+	public static final String MESSAGE_COL_MESSAGE = "message";
+	public static final String MESSAGE_FTS_TABLE = "message_fts";
+	public static final String MESSAGE_FTS_COL_DOCID = "docid";
+
+	private static final String[] MESSAGE_COLUMNS = { MESSAGE_COL_ID,
+			MESSAGE_COL_DIRECTION, MESSAGE_COL_TIMESTAMP, MESSAGE_COL_ACTOR,
+			MESSAGE_COL_CHANNEL_ID, MESSAGE_COL_CHANNEL,
+			MESSAGE_COL_CHANNEL_IDS, MESSAGE_COL_TREE_IDS, MESSAGE_COL_MESSAGE };
 
 	private final Context context;
 	private SQLiteDatabase db;
@@ -79,6 +144,62 @@ class DbAdapter {
 		return db.insert(SERVER_TABLE, null, values);
 	}
 
+	/**
+	 * Stores a batch of chat messages in a single transaction. Either all of
+	 * the messages are stored or, if SQLException is thrown, none.
+	 *
+	 * @param server Server key the messages belong to
+	 * @param messages Messages in the order they were sent or received
+	 * @return The id of the last message
+	 */
+	public final long createMessages(
+		final String server,
+		final List<Message> messages) {
+		final ContentValues values = new ContentValues();
+		final ContentValues index = new ContentValues();
+		long id = 0;
+		db.beginTransaction();
+		try {
+			for (final Message msg : messages) {
+				values.clear();
+				values.put(MESSAGE_COL_SERVER, server);
+				values.put(MESSAGE_COL_DIRECTION, msg.direction);
+				values.put(MESSAGE_COL_TIMESTAMP, msg.timestamp);
+				values.put(MESSAGE_COL_ACTOR, msg.actor != null ? msg.actor.name
+					: msg.sender);
+				if (msg.channel != null) {
+					values.put(MESSAGE_COL_CHANNEL_ID, msg.channel.id);
+					values.put(MESSAGE_COL_CHANNEL, msg.channel.name);
+				}
+				values.put(MESSAGE_COL_CHANNEL_IDS, msg.channelIds);
+				values.put(MESSAGE_COL_TREE_IDS, msg.treeIds);
+				values.put(MESSAGE_COL_MESSAGE, msg.message);
+				id = db.insertOrThrow(MESSAGE_TABLE, null, values);
+
+				index.clear();
+				index.put(MESSAGE_FTS_COL_DOCID, id);
+				index.put(MESSAGE_COL_MESSAGE, msg.message);
+				index.put(MESSAGE_COL_ACTOR, values.getAsString(MESSAGE_COL_ACTOR));
+				index.put(MESSAGE_COL_CHANNEL, values.getAsString(MESSAGE_COL_CHANNEL));
+				db.insertOrThrow(MESSAGE_FTS_TABLE, null, index);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return id;
+	}
+
+	public final int countMessages(final String server) {
+		final Cursor c = db.rawQuery("SELECT COUNT(*) FROM `message` "
+									 + "WHERE `server` = ?", new String[] { server });
+		try {
+			return c.moveToFirst() ? c.getInt(0) : 0;
+		} finally {
+			c.close();
+		}
+	}
+
 	public final boolean deleteServer(final long serverId) {
 		return db.delete(SERVER_TABLE, SERVER_COL_ID + " = " + serverId, null) > 0;
 	}
@@ -114,6 +235,126 @@ class DbAdapter {
 		return c;
 	}
 
+	/**
+	 * Fetches stored chat messages from a known message on, oldest first.
+	 * <p>
+	 * The rows are found by id through the (server, _id) index, so only the
+	 * skipped rows are read in addition to the returned ones.
+	 *
+	 * @param server Server key
+	 * @param fromId Only return messages with this or a higher id
+	 * @param skip Number of matching messages skipped
+	 * @param count Maximum number of messages returned
+	 */
+	public final Cursor fetchMessagesFrom(
+		final String server,
+		final long fromId,
+		final int skip,
+		final int count) {
+		return db.query(
+			MESSAGE_TABLE,
+			MESSAGE_COLUMNS,
+			MESSAGE_COL_SERVER + " = ? AND " + MESSAGE_COL_ID + " >= ?",
+			new String[] { server, Long.toString(fromId) },
+			null,
+			null,
+			MESSAGE_COL_ID + " ASC",
+			skip + "," + count);
+	}
+
+	/**
+	 * Fetches stored chat messages up to a known message, newest first.
+	 *
+	 * @param server Server key
+	 * @param toId Only return messages with this or a lower id
+	 * @param skip Number of matching messages skipped
+	 * @param count Maximum number of messages returned
+	 */
+	public final Cursor fetchMessagesUpTo(
+		final String server,
+		final long toId,
+		final int skip,
+		final int count) {
+		return db.query(
+			MESSAGE_TABLE,
+			MESSAGE_COLUMNS,
+			MESSAGE_COL_SERVER + " = ? AND " + MESSAGE_COL_ID + " <= ?",
+			new String[] { server, Long.toString(toId) },
+			null,
+			null,
+			MESSAGE_COL_ID + " DESC",
+			skip + "," + count);
+	}
+
+	/**
+	 * @return The id of the newest stored message of the server, or 0 if
+	 *         there is none.
+	 */
+	public final long lastMessageId(final String server) {
+		final Cursor c = db.rawQuery("SELECT MAX(`_id`) FROM `message` "
+									 + "WHERE `server` = ?", new String[] { server });
+		try {
+			return c.moveToFirst() ? c.getLong(0) : 0;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Fetches stored chat messages by id, newest first.
+	 *
+	 * @param ids Ids of the messages, at most 999 as SQLite limits the number
+	 *            of query parameters
+	 */
+	public final Cursor fetchMessagesById(final long[] ids) {
+		final StringBuilder where = new StringBuilder(MESSAGE_COL_ID + " IN (");
+		final String[] args = new String[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			where.append(i == 0 ? "?" : ",?");
+			args[i] = Long.toString(ids[i]);
+		}
+		where.append(")");
+
+		return db.query(
+			MESSAGE_TABLE,
+			MESSAGE_COLUMNS,
+			where.toString(),
+			args,
+			null,
+			null,
+			MESSAGE_COL_ID + " DESC");
+	}
+
+	/**
+	 * Searches the stored chat messages of a server and returns the ids of
+	 * the matches, newest first.
+	 * <p>
+	 * FTS3 can't return its matches in id order, so every query collects and
+	 * sorts all matching rows below beforeId before the first id is
+	 * returned. Read the ids in large chunks, each starting below the last
+	 * id of the previous one, and fetch the messages with
+	 * fetchMessagesById().
+	 *
+	 * @param server Server key
+	 * @param match FTS3 match expression
+	 * @param beforeId Only ids below this are returned
+	 * @param limit Maximum number of ids returned
+	 */
+	public final Cursor searchMessageIds(
+		final String server,
+		final String match,
+		final long beforeId,
+		final int limit) {
+		return db.rawQuery("SELECT m.`_id` "
+						   + "FROM `message_fts` f "
+						   + "JOIN `message` m ON m.`_id` = f.`docid` "
+						   + "WHERE `message_fts` MATCH ? AND f.`docid` < ? "
+						   + "AND m.`server` = ? "
+						   + "ORDER BY m.`_id` DESC LIMIT ?", new String[] {
+				match, Long.toString(beforeId), server,
+				Integer.toString(limit) });
+	}
+
 	public final DbAdapter open() {
 		dbHelper = new DatabaseHelper(context);
 		db = dbHelper.getWritableDatabase();
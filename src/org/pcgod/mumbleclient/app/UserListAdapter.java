@@ -1,8 +1,8 @@
 package org.pcgod.mumbleclient.app;
 
+import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,20 +21,23 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 public class UserListAdapter extends BaseAdapter {
-	Comparator<User> userComparator = new Comparator<User>() {
-		@Override
-		public int compare(final User object1, final User object2) {
-			return object1.name.compareTo(object2.name);
-		}
-	};
-
 	/**
 	 * Tracks the current row elements of a user.
 	 */
 	private final Context context;
 	private final Map<Integer, User> users = new HashMap<Integer, User>();
-	private final Map<Integer, String> visibleUserNames = new HashMap<Integer, String>();
 	private final List<User> visibleUserList = new ArrayList<User>();
+
+	/**
+	 * Session to row index for the users in visibleUserList. Kept in sync
+	 * with every insertion, removal and move so lookups don't need to scan
+	 * the list.
+	 */
+	private final Map<Integer, Integer> visiblePositions = new HashMap<Integer, Integer>();
+
+	/** Sort order of the visible users. */
+	private final UserSortKeys sortKeys = new UserSortKeys(
+		Collator.getInstance());
 	private final ListView stupidList;
 	private int visibleChannel = -1;
 
@@ -98,11 +101,7 @@ public class UserListAdapter extends BaseAdapter {
 			v = inflater.inflate(R.layout.channel_user_row, null);
 		}
 
-		// Tie the view to the current user.
-		final User u = this.visibleUserList.get(position);
-		v.setTag(u.session);
-
-		refreshElements(v, u);
+		bindElements(v, this.visibleUserList.get(position));
 		return v;
 	}
 
@@ -112,92 +111,83 @@ public class UserListAdapter extends BaseAdapter {
 	}
 
 	public final boolean hasUser(final User user) {
-		return visibleUserNames.containsValue(user.session);
-	}
-
-	@Override
-	public void notifyDataSetChanged() {
-		repopulateUsers();
-		super.notifyDataSetChanged();
+		return visiblePositions.containsKey(user.session);
 	}
 
 	public final void refreshUser(final User user) {
-		final boolean oldVisible = visibleUserNames.get(user.session) != null;
+		final Integer oldPosition = visiblePositions.get(user.session);
+		final boolean oldVisible = oldPosition != null;
 		final boolean newVisible = user.getChannel().id == visibleChannel;
 
 		users.put(user.session, user);
 
-		int oldLocation = -1;
-		if (oldVisible) {
-			for (int i = 0; i < visibleUserList.size(); i++) {
-				if (visibleUserList.get(i).session == user.session) {
-					oldLocation = i;
-					break;
-				}
-			}
+		if (!oldVisible && !newVisible) {
+			return;
 		}
 
-		int newLocation = 0;
-		if (newVisible) {
-			newLocation = Collections.binarySearch(
-				visibleUserList,
-				user,
-				userComparator);
+		// Take the user out of the list before updating its key. A renamed
+		// user would otherwise break the ordering the binary search relies on.
+		final int oldLocation = oldVisible ? oldPosition : -1;
+		if (oldVisible) {
+			visibleUserList.remove(oldLocation);
+			visiblePositions.remove(user.session);
 		}
 
-		int newInsertion = (newLocation < 0) ? (-newLocation - 1) : newLocation;
+		if (!newVisible) {
+			reindexFrom(oldLocation);
+			sortKeys.remove(user.session);
 
-		if (oldVisible && newVisible) {
-			// If the new would be inserted next to the old one, replace the old
-			// as it should be removed anyway.
-			if (oldLocation == newInsertion || oldLocation == newInsertion + 1) {
-				setVisibleUser(oldLocation, user);
+			// Row count changed so the ListView must be told about it.
+			notifyDataSetChanged();
+		} else {
+			sortKeys.update(user);
 
-				// Since we just replaced a user we can update view without
-				// full refresh.
-				refreshUserAtPosition(oldLocation, user);
+			final int searchResult = Collections.binarySearch(
+				visibleUserList,
+				user,
+				sortKeys);
+			final int newLocation = (searchResult < 0) ? (-searchResult - 1)
+				: searchResult;
+			visibleUserList.add(newLocation, user);
+
+			if (!oldVisible) {
+				reindexFrom(newLocation);
+				notifyDataSetChanged();
+			} else if (oldLocation == newLocation) {
+				// Same row, only its contents changed.
+				visiblePositions.put(user.session, newLocation);
+				refreshUserAtPosition(newLocation, user);
 			} else {
-				removeVisibleUser(oldLocation);
-
-				// If the old one was removed before the new one, move the
-				// new index to the left
-				if (oldLocation < newInsertion) {
-					newInsertion--;
-				}
-
-				addVisibleUser(newInsertion, user);
-
-				// Perform full refresh as order changed.
-				super.notifyDataSetChanged();
+				// The user moved. Only the rows between the old and the new
+				// position changed and the row count stayed the same so rebind
+				// those in place instead of invalidating the whole list.
+				final int first = Math.min(oldLocation, newLocation);
+				final int last = Math.max(oldLocation, newLocation);
+				reindexRange(first, last);
+				rebindRange(first, last);
 			}
-		} else if (oldVisible) {
-			removeVisibleUser(oldLocation);
-			super.notifyDataSetChanged();
-		} else if (newVisible) {
-			addVisibleUser(newInsertion, user);
-			super.notifyDataSetChanged();
 		}
 
-		if ((oldVisible || newVisible) && visibleUsersChangedCallback != null) {
+		if (visibleUsersChangedCallback != null) {
 			visibleUsersChangedCallback.run();
 		}
 	}
 
 	public void removeUser(final int id) {
 		final User user = users.remove(id);
+		final Integer userLocation = visiblePositions.remove(id);
+		sortKeys.remove(id);
 
-		if (user.getChannel().id == visibleChannel) {
-			final int userLocation = Collections.binarySearch(
-				visibleUserList,
-				user,
-				userComparator);
+		if (user == null || userLocation == null) {
+			return;
+		}
 
-			removeVisibleUser(userLocation);
-			super.notifyDataSetChanged();
+		visibleUserList.remove((int) userLocation);
+		reindexFrom(userLocation);
+		notifyDataSetChanged();
 
-			if (visibleUsersChangedCallback != null) {
-				visibleUsersChangedCallback.run();
-			}
+		if (visibleUsersChangedCallback != null) {
+			visibleUsersChangedCallback.run();
 		}
 	}
 
@@ -214,14 +204,12 @@ public class UserListAdapter extends BaseAdapter {
 		repopulateUsers();
 	}
 
-	private void addVisibleUser(final int position, final User user) {
-		visibleUserList.add(position, user);
-		visibleUserNames.put(user.session, user.name);
-	}
-
-	private void addVisibleUser(final User user) {
-		visibleUserList.add(user);
-		visibleUserNames.put(user.session, user.name);
+	/**
+	 * Ties the view to the user and refreshes its contents.
+	 */
+	private final void bindElements(final View view, final User user) {
+		view.setTag(user.session);
+		refreshElements(view, user);
 	}
 
 	private final void refreshElements(final View view, final User user) {
@@ -268,31 +256,52 @@ public class UserListAdapter extends BaseAdapter {
 		}
 	}
 
-	private void removeVisibleUser(final int position) {
-		final User u = visibleUserList.remove(position);
-		visibleUserNames.remove(u.session);
+	/**
+	 * Rebinds the rows in the given range that are currently on screen. Rows
+	 * outside the visible area are bound when the ListView scrolls to them.
+	 */
+	private void rebindRange(final int first, final int last) {
+		final int firstVisible = stupidList.getFirstVisiblePosition();
+		final int start = Math.max(first, firstVisible);
+		final int end = Math.min(last, firstVisible +
+										stupidList.getChildCount() - 1);
+
+		for (int position = start; position <= end; position++) {
+			final View v = stupidList.getChildAt(position - firstVisible);
+			if (v != null) {
+				bindElements(v, visibleUserList.get(position));
+			}
+		}
+	}
+
+	private void reindexFrom(final int first) {
+		reindexRange(first, visibleUserList.size() - 1);
+	}
+
+	private void reindexRange(final int first, final int last) {
+		for (int i = first; i <= last; i++) {
+			visiblePositions.put(visibleUserList.get(i).session, i);
+		}
 	}
 
 	private void repopulateUsers() {
 		visibleUserList.clear();
-		visibleUserNames.clear();
+		visiblePositions.clear();
+		sortKeys.clear();
 		for (final User user : users.values()) {
 			if (user.getChannel().id == visibleChannel) {
-				addVisibleUser(user);
+				sortKeys.update(user);
+				visibleUserList.add(user);
 			}
 		}
 
-		Collections.sort(visibleUserList, userComparator);
+		Collections.sort(visibleUserList, sortKeys);
+		reindexFrom(0);
 
 		if (visibleUsersChangedCallback != null) {
 			visibleUsersChangedCallback.run();
 		}
 
-		super.notifyDataSetChanged();
-	}
-
-	private void setVisibleUser(final int position, final User user) {
-		visibleUserList.set(position, user);
-		visibleUserNames.put(user.session, user.name);
+		notifyDataSetChanged();
 	}
 }
@@ -0,0 +1,54 @@
+package org.pcgod.mumbleclient.app;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.pcgod.mumbleclient.service.model.User;
+
+/**
+ * Orders users by name with cached collation keys. Ties are broken by
+ * session so the order is total and binary searches land on the exact user.
+ * <p>
+ * A key is computed once per name and only recomputed when the user is
+ * renamed. Users must have a key, see update(), before they're compared.
+ */
+class UserSortKeys implements Comparator<User> {
+	private final Map<Integer, CollationKey> keys = new HashMap<Integer, CollationKey>();
+	private final Collator collator;
+
+	UserSortKeys(final Collator collator) {
+		this.collator = collator;
+	}
+
+	void clear() {
+		keys.clear();
+	}
+
+	@Override
+	public int compare(final User object1, final User object2) {
+		final int result = keys.get(object1.session).compareTo(
+			keys.get(object2.session));
+		if (result != 0) {
+			return result;
+		}
+		return object1.session - object2.session;
+	}
+
+	void remove(final int session) {
+		keys.remove(session);
+	}
+
+	/**
+	 * Computes the user's key if the user is new or has been renamed.
+	 */
+	void update(final User user) {
+		final String name = (user.name == null) ? "" : user.name;
+		final CollationKey key = keys.get(user.session);
+		if (key == null || !key.getSourceString().equals(name)) {
+			keys.put(user.session, collator.getCollationKey(name));
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package org.pcgod.mumbleclient.jni;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CELT and jitter buffer entry points that take direct buffers.
+ * <p>
+ * The hawtjni methods in Native copy every array in and out of the native
+ * heap and turn a JitterBufferPacket into a malloc'd struct on each call.
+ * These are written by hand in jni/direct/native_direct.c and access
+ * direct ByteBuffers in place. Buffers must be allocated with
+ * ByteBuffer.allocateDirect() and use the native byte order. Buffer
+ * positions are ignored; offsets are passed explicitly. Offsets and
+ * lengths beyond a buffer's capacity fail with CELT_BAD_ARG, or -1 for
+ * jitterBufferGet, before anything is read or written.
+ * <p>
+ * Handles are the ones created through Native, both live in libnative.
+ */
+public class NativeDirect {
+	static {
+		System.loadLibrary("native");
+	}
+
+	/** Offset of the CELTDecoder handle in a batch decode entry, a long. */
+	public static final int STREAM_DECODER = 0;
+	/** Offset of the frame's offset in the data buffer, an int. */
+	public static final int STREAM_OFFSET = 8;
+	/** Offset of the frame's length, an int. 0 decodes a lost frame. */
+	public static final int STREAM_LENGTH = 12;
+	/** Size of a batch decode entry. */
+	public static final int STREAM_SIZE = 16;
+
+	/** Index of the buffered frame count in a jitterBufferGet result. */
+	public static final int JITTER_AVAILABLE = 0;
+	/** Index of the length of the frame, 0 if there was none. */
+	public static final int JITTER_LENGTH = 1;
+	/** Index of the timestamp of the frame. */
+	public static final int JITTER_TIMESTAMP = 2;
+	/** Size of a jitterBufferGet result in bytes. */
+	public static final int JITTER_RESULT_SIZE = 12;
+
+	/**
+	 * celt_encode() from 16-bit samples.
+	 *
+	 * @return Length of the compressed frame, negative on error
+	 */
+	public final static native int celtEncode(long st, ByteBuffer pcm, ByteBuffer compressed, int nbCompressedBytes);
+
+	/**
+	 * celt_decode_float() of one frame.
+	 *
+	 * @param len Length of the frame in data, 0 for a lost frame
+	 */
+	public final static native int celtDecodeFloat(long st, ByteBuffer data, int len, ByteBuffer pcm);
+
+	/**
+	 * Decodes a frame for each of count streams in one call. Entry i of
+	 * streams, STREAM_SIZE bytes, names the decoder and the frame in data;
+	 * its samples are written to pcm at float i * frameSize. A frame that
+	 * fails to decode is written as silence.
+	 *
+	 * @return Number of frames that failed to decode
+	 */
+	public final static native int celtDecodeFloatBatch(ByteBuffer streams, int count, ByteBuffer data, ByteBuffer pcm, int frameSize);
+
+	/**
+	 * Gets the next frame from a jitter buffer in one call: reads the
+	 * available count, jitter_buffer_get(), jitter_buffer_update_delay()
+	 * and jitter_buffer_tick(). The frame is copied to data at offset and
+	 * the JITTER_* values to result.
+	 *
+	 * @return Result of jitter_buffer_get(), 0 if a frame was copied
+	 */
+	public final static native int jitterBufferGet(long jitter, ByteBuffer data, int offset, int capacity, int desiredSpan, ByteBuffer result);
+}
@@ -0,0 +1,194 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
+/**
+ * Cache for the blobs the server refers to by hash: user comments, user
+ * textures and channel descriptions.
+ * <p>
+ * Blobs are kept in a size bounded in-memory LRU and in a content addressed
+ * directory on disk. The file name is the hex encoded SHA-1 of the content,
+ * which is the same hash the server sends in the *_hash fields. Disk entries
+ * therefore never go stale and survive across sessions and servers.
+ * <p>
+ * All methods are thread safe.
+ */
+public class BlobCache {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	public static String toHex(final byte[] hash) {
+		final char[] chars = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			chars[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+			chars[i * 2 + 1] = HEX[hash[i] & 0xF];
+		}
+		return new String(chars);
+	}
+
+	private final File directory;
+	private final int memoryLimit;
+	private int memoryUsed;
+
+	private final Map<String, byte[]> memory = new LinkedHashMap<String, byte[]>(
+		16,
+		0.75f,
+		true);
+
+	/**
+	 * @param directory Directory for the disk cache. Created if missing.
+	 * @param memoryLimit Maximum total size of the blobs kept in memory in
+	 *            bytes.
+	 */
+	public BlobCache(final File directory, final int memoryLimit) {
+		this.directory = directory;
+		this.memoryLimit = memoryLimit;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			Log.w(Globals.LOG_TAG, "Could not create blob cache directory " +
+								   directory);
+		}
+	}
+
+	/**
+	 * Looks up a blob from memory and then from disk.
+	 *
+	 * @param hash SHA-1 of the blob
+	 * @return The blob or null if it isn't cached
+	 */
+	public byte[] get(final byte[] hash) {
+		final String key = toHex(hash);
+		synchronized (memory) {
+			final byte[] data = memory.get(key);
+			if (data != null) {
+				return data;
+			}
+		}
+
+		final byte[] data = readFile(new File(directory, key));
+		if (data != null) {
+			remember(key, data);
+		}
+		return data;
+	}
+
+	/**
+	 * Stores a blob. The blob is only stored if its content matches the hash
+	 * so a bad entry can't shadow the real content later.
+	 *
+	 * @param hash Hash the server advertised for the blob
+	 * @param data Blob content
+	 */
+	public void put(final byte[] hash, final byte[] data) {
+		final String key = toHex(hash);
+		if (!Arrays.equals(hash, sha1(data))) {
+			Log.w(Globals.LOG_TAG, "Blob content doesn't match hash " + key);
+			return;
+		}
+
+		remember(key, data);
+
+		final File file = new File(directory, key);
+		if (file.exists()) {
+			return;
+		}
+
+		// Write to a temporary file first so a partially written file never
+		// appears under the content address.
+		final File tmp = new File(directory, key + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			out.write(data);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+			}
+		} catch (final IOException e) {
+			Log.w(Globals.LOG_TAG, "Failed to write blob " + key, e);
+			tmp.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (final IOException e) {
+					// Nothing to do.
+				}
+			}
+		}
+	}
+
+	private byte[] readFile(final File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			final byte[] data = new byte[(int) file.length()];
+			int read = 0;
+			while (read < data.length) {
+				final int r = in.read(data, read, data.length - read);
+				if (r < 0) {
+					return null;
+				}
+				read += r;
+			}
+			return data;
+		} catch (final IOException e) {
+			Log.w(Globals.LOG_TAG, "Failed to read blob " + file, e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException e) {
+					// Nothing to do.
+				}
+			}
+		}
+	}
+
+	private void remember(final String key, final byte[] data) {
+		// Blobs larger than the whole memory budget only live on disk.
+		if (data.length > memoryLimit) {
+			return;
+		}
+
+		synchronized (memory) {
+			final byte[] old = memory.put(key, data);
+			if (old != null) {
+				memoryUsed -= old.length;
+			}
+			memoryUsed += data.length;
+
+			final Iterator<byte[]> i = memory.values().iterator();
+			while (memoryUsed > memoryLimit && i.hasNext()) {
+				memoryUsed -= i.next().length;
+				i.remove();
+			}
+		}
+	}
+
+	private static byte[] sha1(final byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(data);
+		} catch (final NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Pool of byte arrays in power of two size classes.
+ * <p>
+ * Messages are received into the smallest pooled array that fits them
+ * instead of an array of the exact length, so a stream of messages of
+ * varying size reuses a handful of arrays. Users of the buffers must pass
+ * the actual length along with the array.
+ * <p>
+ * Classes range from MIN_SIZE to MAX_POOLED_SIZE. Larger requests get an
+ * exact array that isn't kept on release. At most PER_CLASS free arrays
+ * are kept per class, so the pool never holds on to more than the traffic
+ * of a short burst.
+ * <p>
+ * The methods are thread safe.
+ */
+public class BufferPool {
+	static final int MIN_SIZE = 64;
+	static final int MAX_POOLED_SIZE = 64 * 1024;
+	static final int PER_CLASS = 4;
+
+	private static final int MIN_SHIFT = 6;
+
+	private static int sizeClass(final int size) {
+		int sizeClass = 0;
+		while ((MIN_SIZE << sizeClass) < size) {
+			sizeClass++;
+		}
+		return sizeClass;
+	}
+
+	/** Free arrays by size class. */
+	private final List<LinkedList<byte[]>> free = new ArrayList<LinkedList<byte[]>>();
+
+	private int allocated;
+
+	public BufferPool() {
+		for (int i = 0; i <= sizeClass(MAX_POOLED_SIZE); i++) {
+			free.add(new LinkedList<byte[]>());
+		}
+	}
+
+	/**
+	 * Returns an array of at least the given size.
+	 */
+	public byte[] acquire(final int size) {
+		if (size > MAX_POOLED_SIZE) {
+			synchronized (this) {
+				allocated++;
+			}
+			return new byte[size];
+		}
+
+		final int sizeClass = sizeClass(size);
+		synchronized (this) {
+			final LinkedList<byte[]> arrays = free.get(sizeClass);
+			if (!arrays.isEmpty()) {
+				return arrays.removeFirst();
+			}
+			allocated++;
+		}
+		return new byte[MIN_SIZE << sizeClass];
+	}
+
+	/**
+	 * @return Number of arrays the pool had to allocate so far.
+	 */
+	public synchronized int getAllocated() {
+		return allocated;
+	}
+
+	/**
+	 * Returns an array from acquire() to the pool. The caller must not use
+	 * it afterwards.
+	 */
+	public void release(final byte[] buffer) {
+		final int length = buffer.length;
+		// Only arrays of an exact class size came from the pool.
+		if (length > MAX_POOLED_SIZE || length < MIN_SIZE ||
+			(length & (length - 1)) != 0) {
+			return;
+		}
+
+		final int sizeClass = Integer.numberOfTrailingZeros(length) -
+							  MIN_SHIFT;
+		synchronized (this) {
+			final LinkedList<byte[]> arrays = free.get(sizeClass);
+			if (arrays.size() < PER_CLASS) {
+				arrays.add(buffer);
+			}
+		}
+	}
+}
@@ -0,0 +1,388 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.app.DbAdapter;
+import org.pcgod.mumbleclient.service.model.Channel;
+import org.pcgod.mumbleclient.service.model.Message;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.util.Log;
+
+/**
+ * Chat history of a single server.
+ * <p>
+ * Keeps a fixed size ring of the most recent messages in memory and persists
+ * every message in the database. Writes are batched and done on a background
+ * thread so adding a message never waits for the disk. Older messages are
+ * read back a page at a time with getMessages().
+ * <p>
+ * Message positions are zero based indices into the complete history of the
+ * server, oldest first. Messages that haven't been written yet are served
+ * from the pending list so the positions stay stable while the writer works.
+ * A batch that fails to be written stays pending and is retried, as dropping
+ * it would shift the positions of every later message. Only while the
+ * database keeps failing and MAX_PENDING messages are waiting are the
+ * oldest of them dropped, see getDropped().
+ * <p>
+ * Pages are read by message id rather than by offset. The ids of the first
+ * and last message of every page read are remembered with their positions,
+ * and a page is read from the closest remembered id before or after it, so
+ * paging through the history only reads the rows that are returned.
+ */
+public class ChatHistory implements Runnable {
+	public interface Listener {
+		/**
+		 * Called on the main thread with messages read by
+		 * MumbleService.loadMessages().
+		 *
+		 * @param offset Position of the first message
+		 * @param messages The messages, oldest first
+		 */
+		public void onMessages(int offset, List<Message> messages);
+	}
+
+	/** Number of recent messages kept in memory. */
+	public static final int RECENT_CAPACITY = 100;
+
+	/** Maximum number of messages waiting to be written. */
+	static final int MAX_PENDING = 1000;
+
+	/** Maximum number of messages written in one transaction. */
+	private static final int BATCH_SIZE = 50;
+
+	/** Maximum time a message waits for its batch to fill up. */
+	private static final int FLUSH_INTERVAL = 2000;
+
+	/** Delay before retrying a failed write, doubled for every failure. */
+	private static final int MIN_RETRY_INTERVAL = 1000;
+	private static final int MAX_RETRY_INTERVAL = 60000;
+
+	/** Maximum number of remembered positions, see getMessages(). */
+	private static final int MAX_KEYS = 512;
+
+	private final DbAdapter db;
+	private final String server;
+	private final Thread writer;
+
+	private final Message[] recent = new Message[RECENT_CAPACITY];
+	private int recentNext;
+	private int recentSize;
+
+	/** Messages not yet committed to the database, oldest first. */
+	private final List<Message> pending = new ArrayList<Message>();
+	/** Number of pending messages the writer is storing. */
+	private int writing;
+	private int dropped;
+	private int persisted;
+	/** Id of the newest stored message. */
+	private long lastId;
+	/** Message ids by position. */
+	private final TreeMap<Integer, Long> keys = new TreeMap<Integer, Long>();
+	private boolean running = true;
+
+	/**
+	 * Opens the history for a server.
+	 *
+	 * @param db Open database, shared with the other histories and searches
+	 *            of the service and closed by it
+	 * @param server Key identifying the server, such as "host:port"
+	 */
+	public ChatHistory(final DbAdapter db, final String server) {
+		this.server = server;
+		this.db = db;
+		this.persisted = db.countMessages(server);
+		this.lastId = db.lastMessageId(server);
+		if (persisted > 0) {
+			keys.put(persisted - 1, lastId);
+		}
+
+		writer = new Thread(this, "ChatHistory");
+		writer.start();
+	}
+
+	public synchronized void add(final Message msg) {
+		recent[recentNext] = msg;
+		recentNext = (recentNext + 1) % RECENT_CAPACITY;
+		if (recentSize < RECENT_CAPACITY) {
+			recentSize++;
+		}
+
+		pending.add(msg);
+		if (pending.size() > MAX_PENDING) {
+			// The database keeps failing. Drop the oldest message that isn't
+			// being written, which moves the later ones down a position.
+			pending.remove(writing);
+			if (dropped++ == 0) {
+				Log.w(Globals.LOG_TAG, "Chat history full, dropping messages");
+			}
+		}
+		notify();
+	}
+
+	/**
+	 * Stops the writer after it has written the pending messages. The
+	 * database is left open.
+	 */
+	public void close() {
+		synchronized (this) {
+			running = false;
+			notify();
+		}
+
+		try {
+			writer.join();
+		} catch (final InterruptedException e) {
+			Log.w(Globals.LOG_TAG, "Interrupted while closing chat history", e);
+		}
+	}
+
+	public synchronized int getCount() {
+		return persisted + pending.size();
+	}
+
+	/**
+	 * @return Number of messages dropped because MAX_PENDING messages were
+	 *         waiting for the database already.
+	 */
+	public synchronized int getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Reads a window of the history. Reads from the database and must not be
+	 * called from the main thread, see MumbleService.loadMessages().
+	 *
+	 * @param offset Position of the first message
+	 * @param count Maximum number of messages returned
+	 * @return The messages, oldest first
+	 */
+	public List<Message> getMessages(final int offset, final int count) {
+		final int stored;
+		final List<Message> unwritten;
+		final Map.Entry<Integer, Long> from;
+		final Map.Entry<Integer, Long> upTo;
+		final int last;
+		synchronized (this) {
+			stored = persisted;
+			final int start = Math.max(0, offset - stored);
+			final int end = Math.min(pending.size(), offset + count - stored);
+			unwritten = (start < end) ? new ArrayList<Message>(pending.subList(
+				start,
+				end)) : new ArrayList<Message>(0);
+
+			last = Math.min(offset + count, stored) - 1;
+			from = keys.floorEntry(offset);
+			upTo = keys.ceilingEntry(last);
+		}
+
+		final List<Message> result = new ArrayList<Message>(count);
+		if (offset < stored) {
+			// Ids are never below 0, so id 0 always marks position 0.
+			final int fromPosition = (from == null) ? 0 : from.getKey();
+			final long fromId = (from == null) ? 0 : from.getValue();
+			final boolean backward = upTo != null &&
+									 upTo.getKey() - last < offset -
+															fromPosition;
+			final int n = last - offset + 1;
+
+			final Cursor c = backward ? db.fetchMessagesUpTo(
+				server,
+				upTo.getValue(),
+				upTo.getKey() - last,
+				n) : db.fetchMessagesFrom(server, fromId, offset - fromPosition, n);
+			long firstId = 0;
+			long lastReadId = 0;
+			try {
+				final int idColumn = c.getColumnIndex(DbAdapter.MESSAGE_COL_ID);
+				while (c.moveToNext()) {
+					result.add(readMessage(c));
+					if (result.size() == 1) {
+						firstId = c.getLong(idColumn);
+					}
+					lastReadId = c.getLong(idColumn);
+				}
+			} finally {
+				c.close();
+			}
+
+			if (backward) {
+				Collections.reverse(result);
+				final long swap = firstId;
+				firstId = lastReadId;
+				lastReadId = swap;
+			}
+			if (!result.isEmpty()) {
+				final int first = backward ? last - result.size() + 1 : offset;
+				rememberKeys(first, firstId, first + result.size() - 1, lastReadId);
+			}
+		}
+
+		result.addAll(unwritten);
+		return result;
+	}
+
+	/**
+	 * @return Number of messages waiting to be written.
+	 */
+	synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return The most recent messages held in memory, oldest first.
+	 */
+	public synchronized List<Message> getRecent() {
+		final List<Message> result = new ArrayList<Message>(recentSize);
+		final int first = (recentNext - recentSize + RECENT_CAPACITY) %
+						  RECENT_CAPACITY;
+		for (int i = 0; i < recentSize; i++) {
+			result.add(recent[(first + i) % RECENT_CAPACITY]);
+		}
+		return result;
+	}
+
+	public String getServer() {
+		return server;
+	}
+
+	/**
+	 * Starts a full-text search over the stored messages.
+	 *
+	 * @param query Words to search for
+	 */
+	public ChatSearch search(final String query) {
+		return new ChatSearch(db, server, query);
+	}
+
+	@Override
+	public void run() {
+		int retryInterval = MIN_RETRY_INTERVAL;
+		while (true) {
+			final List<Message> batch;
+			synchronized (this) {
+				try {
+					waitForBatch();
+				} catch (final InterruptedException e) {
+					running = false;
+				}
+
+				if (pending.isEmpty()) {
+					if (!running) {
+						return;
+					}
+					continue;
+				}
+
+				batch = new ArrayList<Message>(pending.subList(
+					0,
+					Math.min(pending.size(), BATCH_SIZE)));
+				writing = batch.size();
+			}
+
+			final long id;
+			try {
+				id = db.createMessages(server, batch);
+			} catch (final SQLException e) {
+				Log.e(Globals.LOG_TAG, "Failed to store chat messages", e);
+				synchronized (this) {
+					writing = 0;
+					if (!running) {
+						// Closing, give up on the messages that can't be
+						// written. Nobody reads their positions anymore.
+						return;
+					}
+					try {
+						waitForRetry(retryInterval);
+					} catch (final InterruptedException ie) {
+						running = false;
+					}
+				}
+				retryInterval = Math.min(MAX_RETRY_INTERVAL, retryInterval * 2);
+				continue;
+			}
+			retryInterval = MIN_RETRY_INTERVAL;
+
+			synchronized (this) {
+				writing = 0;
+				pending.subList(0, batch.size()).clear();
+				persisted += batch.size();
+				lastId = id;
+				rememberKeys(persisted - 1, id, persisted - 1, id);
+			}
+		}
+	}
+
+	static Message readMessage(final Cursor c) {
+		final Message msg = new Message();
+		msg.direction = c.getInt(c.getColumnIndex(DbAdapter.MESSAGE_COL_DIRECTION));
+		msg.timestamp = c.getLong(c.getColumnIndex(DbAdapter.MESSAGE_COL_TIMESTAMP));
+		msg.sender = c.getString(c.getColumnIndex(DbAdapter.MESSAGE_COL_ACTOR));
+		msg.channelIds = c.getInt(c.getColumnIndex(DbAdapter.MESSAGE_COL_CHANNEL_IDS));
+		msg.treeIds = c.getInt(c.getColumnIndex(DbAdapter.MESSAGE_COL_TREE_IDS));
+		msg.message = c.getString(c.getColumnIndex(DbAdapter.MESSAGE_COL_MESSAGE));
+
+		final int channelColumn = c.getColumnIndex(DbAdapter.MESSAGE_COL_CHANNEL_ID);
+		if (!c.isNull(channelColumn)) {
+			msg.channel = new Channel(
+				c.getInt(channelColumn),
+				c.getString(c.getColumnIndex(DbAdapter.MESSAGE_COL_CHANNEL)));
+		}
+		return msg;
+	}
+
+	/**
+	 * Remembers the ids of the messages at two positions. Must be called
+	 * while holding the lock.
+	 */
+	private void rememberKeys(
+		final int first,
+		final long firstId,
+		final int last,
+		final long lastId_) {
+		if (keys.size() + 2 > MAX_KEYS) {
+			keys.clear();
+			if (persisted > 0) {
+				keys.put(persisted - 1, lastId);
+			}
+		}
+		keys.put(first, firstId);
+		keys.put(last, lastId_);
+	}
+
+	/**
+	 * Waits until there is a full batch or the oldest pending message has
+	 * waited for FLUSH_INTERVAL. Must be called while holding the lock.
+	 */
+	private void waitForBatch() throws InterruptedException {
+		while (running && pending.isEmpty()) {
+			wait();
+		}
+
+		final long deadline = System.currentTimeMillis() + FLUSH_INTERVAL;
+		long remaining;
+		while (running && pending.size() < BATCH_SIZE &&
+			   (remaining = deadline - System.currentTimeMillis()) > 0) {
+			wait(remaining);
+		}
+	}
+
+	/**
+	 * Waits before retrying a failed write, or until the history is closed.
+	 * Must be called while holding the lock.
+	 */
+	private void waitForRetry(final int interval) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + interval;
+		long remaining;
+		while (running &&
+			   (remaining = deadline - System.currentTimeMillis()) > 0) {
+			wait(remaining);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pcgod.mumbleclient.app.DbAdapter;
+import org.pcgod.mumbleclient.service.model.Message;
+
+import android.database.Cursor;
+
+/**
+ * A full-text search over the stored chat history of one server.
+ * <p>
+ * Results are returned newest first, one page per nextPage() call. FTS3
+ * has to find and sort every match before it can return the newest, so
+ * the ids are read ID_CHUNK at a time, each chunk repeating the query
+ * below the last id of the previous one, and every page then fetches its
+ * messages by id. Only the pages that cross into a new chunk pay for the
+ * full-text match, the others only for the rows they return. Every match
+ * is returned, however many there are. Messages that are still waiting to
+ * be written by ChatHistory are not searched.
+ * <p>
+ * nextPage() reads from the database and must not be called from the main
+ * thread. MumbleService.loadSearchPage() does it on a background thread.
+ */
+public class ChatSearch {
+	/** Number of match ids read by one query. */
+	static final int ID_CHUNK = 1000;
+
+	/** Maximum number of messages fetched by id in one query. */
+	private static final int MAX_FETCH = 500;
+
+	public interface Listener {
+		/**
+		 * Called on the main thread with the next page of results.
+		 *
+		 * @param search The search the results belong to
+		 * @param page Matching messages, newest first
+		 */
+		public void onResults(ChatSearch search, List<Message> page);
+	}
+
+	/**
+	 * Turns user input into an FTS3 match expression. Every word is quoted so
+	 * query operators in the input can't produce a syntax error. The last word
+	 * is matched as a prefix to support searching while typing.
+	 */
+	static String toMatchExpression(final String query) {
+		final StringBuilder sb = new StringBuilder();
+		final String[] words = query.trim().split("\\s+");
+		for (int i = 0; i < words.length; i++) {
+			final String word = words[i].replace("\"", "");
+			if (word.length() == 0) {
+				continue;
+			}
+
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append('"').append(word);
+			if (i == words.length - 1) {
+				sb.append('*');
+			}
+			sb.append('"');
+		}
+		return sb.toString();
+	}
+
+	private final DbAdapter db;
+	private final String server;
+	private final String match;
+	private final String query;
+
+	/** Ids of the current chunk of matches, newest first. */
+	private long[] ids = new long[0];
+	private int next;
+	/** Whether the last chunk was full, so more matches may follow. */
+	private boolean more = true;
+	private volatile boolean done;
+	private volatile boolean cancelled;
+
+	ChatSearch(final DbAdapter db, final String server, final String query) {
+		this.db = db;
+		this.server = server;
+		this.query = query;
+		this.match = toMatchExpression(query);
+		this.done = match.length() == 0;
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return True once the last page has been returned.
+	 */
+	public boolean isDone() {
+		return done || cancelled;
+	}
+
+	/**
+	 * Reads the next page of results.
+	 *
+	 * @param count Maximum number of messages in the page
+	 * @return Matching messages, newest first. Empty when the search is done.
+	 */
+	public synchronized List<Message> nextPage(final int count) {
+		final List<Message> page = new ArrayList<Message>(count);
+		if (isDone()) {
+			return page;
+		}
+
+		while (page.size() < count) {
+			if (next == ids.length) {
+				if (!more) {
+					break;
+				}
+				readIds();
+				if (ids.length == 0) {
+					break;
+				}
+			}
+
+			final int n = Math.min(
+				Math.min(count - page.size(), ids.length - next),
+				MAX_FETCH);
+			final long[] chunk = new long[n];
+			System.arraycopy(ids, next, chunk, 0, n);
+			next += n;
+
+			final Cursor c = db.fetchMessagesById(chunk);
+			try {
+				while (c.moveToNext()) {
+					page.add(ChatHistory.readMessage(c));
+				}
+			} finally {
+				c.close();
+			}
+		}
+
+		if (next == ids.length && !more) {
+			done = true;
+		}
+		return page;
+	}
+
+	/**
+	 * Reads the chunk of ids following the current one.
+	 */
+	private void readIds() {
+		final long before = ids.length > 0 ? ids[ids.length - 1]
+			: Long.MAX_VALUE;
+		final Cursor c = db.searchMessageIds(server, match, before, ID_CHUNK);
+		try {
+			ids = new long[c.getCount()];
+			int i = 0;
+			while (i < ids.length && c.moveToNext()) {
+				ids[i++] = c.getLong(0);
+			}
+		} finally {
+			c.close();
+		}
+		next = 0;
+		more = ids.length == ID_CHUNK;
+	}
+}
@@ -0,0 +1,310 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
+/**
+ * Keeps the expensive parts of connecting between connections.
+ * <p>
+ * SSLContexts are built once per client identity and trust manager, which
+ * also parses the PKCS12 key material only once. Reusing the context reuses
+ * its client session cache, so reconnecting to the same server resumes the
+ * TLS session instead of doing a full handshake.
+ * <p>
+ * Host names are resolved to all their addresses through a DNS cache
+ * persisted to a file, so even a cold start can connect without waiting for
+ * a lookup. Java doesn't
+ * expose record TTLs, so entries are considered fresh for FRESH_TIME.
+ * Stale entries up to MAX_AGE old are still returned immediately while a
+ * background lookup refreshes them. If connecting to the cached addresses
+ * fails, the connection invalidates them.
+ * <p>
+ * All methods are thread safe.
+ */
+public class ConnectCache {
+	static final long FRESH_TIME = 5 * 60 * 1000L;
+	static final long MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+	private static class DnsEntry {
+		final InetAddress[] addresses;
+		final long resolved;
+
+		DnsEntry(final InetAddress[] addresses, final long resolved) {
+			this.addresses = addresses;
+			this.resolved = resolved;
+		}
+	}
+
+	private final File dnsFile;
+	private final Map<String, DnsEntry> dns = new HashMap<String, DnsEntry>();
+	private final Set<String> refreshing = new HashSet<String>();
+	private final Map<String, SSLContext> contexts = new HashMap<String, SSLContext>();
+
+	private final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread t = new Thread(r, "DnsRefresh");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * @param dnsFile File the DNS cache is persisted to. Read now if it
+	 *            exists.
+	 */
+	public ConnectCache(final File dnsFile) {
+		this.dnsFile = dnsFile;
+		load();
+	}
+
+	/**
+	 * Returns the SSLContext for a client identity, creating it on first
+	 * use. Contexts are kept per certificate, password and trust manager
+	 * class. The trust managers hold no state, so any instance of a class
+	 * can stand in for another.
+	 *
+	 * @param certificate PKCS12 client certificate, or null for none
+	 * @param password Password of the certificate
+	 * @param trustManager Trust manager used if the context is created
+	 */
+	public SSLContext getSslContext(
+		final byte[] certificate,
+		final char[] password,
+		final TrustManager trustManager) throws GeneralSecurityException,
+		IOException {
+		final String key = contextKey(certificate, password, trustManager);
+		synchronized (contexts) {
+			SSLContext context = contexts.get(key);
+			if (context == null) {
+				context = createSslContext(certificate, password, trustManager);
+				contexts.put(key, context);
+			}
+			return context;
+		}
+	}
+
+	/**
+	 * Forgets the cached addresses of a host, for example because connecting
+	 * to it failed.
+	 */
+	public void invalidate(final String host) {
+		synchronized (dns) {
+			if (dns.remove(host) == null) {
+				return;
+			}
+		}
+		save();
+	}
+
+	/**
+	 * Resolves a host name to all its addresses. Cached addresses are
+	 * returned without blocking; if they're stale a refresh is started in the
+	 * background. Only unknown hosts are resolved on the calling thread.
+	 */
+	public InetAddress[] resolve(final String host) throws UnknownHostException {
+		final long now = System.currentTimeMillis();
+		final DnsEntry entry;
+		synchronized (dns) {
+			entry = dns.get(host);
+		}
+
+		if (entry != null && now - entry.resolved < MAX_AGE) {
+			if (now - entry.resolved >= FRESH_TIME) {
+				refreshInBackground(host);
+			}
+			return entry.addresses;
+		}
+
+		return lookup(host);
+	}
+
+	/**
+	 * The certificate and password go into the key only as a digest, so the
+	 * password isn't kept in memory longer than the context needs it.
+	 */
+	private String contextKey(
+		final byte[] certificate,
+		final char[] password,
+		final TrustManager trustManager) throws GeneralSecurityException {
+		final String trust = trustManager.getClass().getName();
+		if (certificate == null) {
+			return trust;
+		}
+
+		final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		digest.update(certificate);
+		if (password != null) {
+			for (final char c : password) {
+				digest.update((byte) (c >> 8));
+				digest.update((byte) c);
+			}
+		}
+		return trust + ":" + BlobCache.toHex(digest.digest());
+	}
+
+	private SSLContext createSslContext(
+		final byte[] certificate,
+		final char[] password,
+		final TrustManager trustManager) throws GeneralSecurityException,
+		IOException {
+		KeyManager[] keyManagers = null;
+		if (certificate != null) {
+			final char[] pw = password != null ? password : new char[0];
+			final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+			keyStore.load(new ByteArrayInputStream(certificate), pw);
+
+			final KeyManagerFactory kmf = KeyManagerFactory.getInstance("X509");
+			kmf.init(keyStore, pw);
+			keyManagers = kmf.getKeyManagers();
+		}
+
+		final SSLContext context = SSLContext.getInstance("TLS");
+		context.init(
+			keyManagers,
+			new TrustManager[] { trustManager },
+			new SecureRandom());
+		return context;
+	}
+
+	private void load() {
+		if (!dnsFile.isFile()) {
+			return;
+		}
+
+		final Properties properties = new Properties();
+		try {
+			final FileInputStream in = new FileInputStream(dnsFile);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			Log.w(Globals.LOG_TAG, "Could not read DNS cache", e);
+			return;
+		}
+
+		for (final Object key : properties.keySet()) {
+			final String host = (String) key;
+			final String[] value = properties.getProperty(host).split(",");
+			if (value.length != 2) {
+				continue;
+			}
+			try {
+				final String[] literals = value[0].split(" ");
+				final InetAddress[] addresses = new InetAddress[literals.length];
+				for (int i = 0; i < literals.length; i++) {
+					// Literal addresses aren't looked up.
+					final InetAddress literal = InetAddress.getByName(literals[i]);
+					addresses[i] = InetAddress.getByAddress(
+						host,
+						literal.getAddress());
+				}
+				dns.put(host, new DnsEntry(
+					addresses,
+					Long.parseLong(value[1])));
+			} catch (final UnknownHostException e) {
+				// Skip the entry.
+			} catch (final NumberFormatException e) {
+				// Skip the entry.
+			}
+		}
+	}
+
+	private InetAddress[] lookup(final String host) throws UnknownHostException {
+		final InetAddress[] addresses = InetAddress.getAllByName(host);
+		final DnsEntry entry = new DnsEntry(
+			addresses,
+			System.currentTimeMillis());
+		synchronized (dns) {
+			dns.put(host, entry);
+		}
+		save();
+		return addresses;
+	}
+
+	private void refreshInBackground(final String host) {
+		synchronized (refreshing) {
+			if (!refreshing.add(host)) {
+				return;
+			}
+		}
+
+		refresher.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					lookup(host);
+				} catch (final UnknownHostException e) {
+					Log.w(Globals.LOG_TAG, "DNS refresh of " + host +
+										   " failed", e);
+				} finally {
+					synchronized (refreshing) {
+						refreshing.remove(host);
+					}
+				}
+			}
+		});
+	}
+
+	private void save() {
+		final Properties properties = new Properties();
+		synchronized (dns) {
+			for (final Map.Entry<String, DnsEntry> e : dns.entrySet()) {
+				final StringBuilder value = new StringBuilder();
+				for (final InetAddress address : e.getValue().addresses) {
+					if (value.length() > 0) {
+						value.append(' ');
+					}
+					value.append(address.getHostAddress());
+				}
+				value.append(',').append(e.getValue().resolved);
+				properties.setProperty(e.getKey(), value.toString());
+			}
+		}
+
+		synchronized (dnsFile) {
+			try {
+				final File tmp = new File(dnsFile.getPath() + ".tmp");
+				final FileOutputStream out = new FileOutputStream(tmp);
+				try {
+					properties.store(out, null);
+				} finally {
+					out.close();
+				}
+				if (!tmp.renameTo(dnsFile)) {
+					Log.w(Globals.LOG_TAG, "Could not replace DNS cache");
+				}
+			} catch (final IOException e) {
+				Log.w(Globals.LOG_TAG, "Could not write DNS cache", e);
+			}
+		}
+	}
+}
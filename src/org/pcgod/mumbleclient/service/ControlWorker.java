@@ -0,0 +1,209 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
+/**
+ * Processes received control messages on their own thread.
+ * <p>
+ * The TCP reader demultiplexes messages as soon as they're read: tunneled
+ * voice goes to the voice path on the reader thread while everything else
+ * is posted here. A burst of UserStates during a sync or a mass move then
+ * only delays other control messages, not the voice arriving between them.
+ * Messages are processed in the order they were posted. At most
+ * MAX_QUEUED messages wait; post() then blocks the reader until the worker
+ * catches up, so a server sending faster than we process is slowed down
+ * through TCP instead of filling memory.
+ * <p>
+ * Other threads can run tasks on the worker with execute() so they can use
+ * the protocol state it owns. Tasks run in order with the messages. They
+ * don't count towards the limit and never block, as they're posted from the
+ * main thread.
+ * <p>
+ * If processing a message or running a task throws, the worker stops,
+ * drops the queued messages and then calls processFailed().
+ * <p>
+ * Posted buffers come from the connection's BufferPool and are released
+ * back to it once processed or discarded.
+ */
+public abstract class ControlWorker implements Runnable {
+	/** Received messages that may wait before post() blocks. */
+	static final int MAX_QUEUED = 256;
+
+	private static class Message {
+		final short type;
+		final byte[] buffer;
+		final int length;
+		final Runnable task;
+
+		Message(
+			final short type,
+			final byte[] buffer,
+			final int length,
+			final Runnable task) {
+			this.type = type;
+			this.buffer = buffer;
+			this.length = length;
+			this.task = task;
+		}
+	}
+
+	private final BufferPool pool;
+	private final Metrics metrics;
+	private final Thread thread;
+
+	private final LinkedList<Message> queue = new LinkedList<Message>();
+	/** Messages in the queue, not counting tasks. */
+	private int messages;
+	private boolean stopped;
+
+	public ControlWorker(final BufferPool pool, final Metrics metrics) {
+		this.pool = pool;
+		this.metrics = metrics;
+		this.thread = new Thread(this, "ControlWorker");
+	}
+
+	/**
+	 * Queues a task to be run on the worker thread. Dropped if the worker
+	 * has stopped.
+	 */
+	public synchronized void execute(final Runnable task) {
+		if (!stopped) {
+			queue.add(new Message((short) 0, null, 0, task));
+			metrics.controlQueued.set(queue.size());
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Queues a message, waiting while MAX_QUEUED messages are queued. The
+	 * worker takes over the buffer. The message is dropped if the worker
+	 * has stopped.
+	 *
+	 * @param buffer Buffer from the pool holding the message
+	 * @param length Length of the message in the buffer
+	 */
+	public void post(final short type, final byte[] buffer, final int length)
+		throws InterruptedIOException {
+		synchronized (this) {
+			try {
+				while (!stopped && messages >= MAX_QUEUED) {
+					wait();
+				}
+			} catch (final InterruptedException e) {
+				pool.release(buffer);
+				throw new InterruptedIOException(
+					"Interrupted while the control queue was full");
+			}
+
+			if (!stopped) {
+				queue.add(new Message(type, buffer, length, null));
+				messages++;
+				metrics.controlQueued.set(queue.size());
+				notifyAll();
+				return;
+			}
+		}
+		pool.release(buffer);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				final Message message;
+				synchronized (this) {
+					while (!stopped && queue.isEmpty()) {
+						wait();
+					}
+					if (stopped) {
+						return;
+					}
+					message = queue.removeFirst();
+					if (message.task == null && messages-- == MAX_QUEUED) {
+						notifyAll();
+					}
+					metrics.controlQueued.set(queue.size());
+				}
+
+				if (message.task != null) {
+					message.task.run();
+					continue;
+				}
+
+				try {
+					process(message.type, message.buffer, message.length);
+				} finally {
+					pool.release(message.buffer);
+				}
+			}
+		} catch (final IOException e) {
+			fail(e);
+		} catch (final RuntimeException e) {
+			fail(e);
+		} catch (final InterruptedException e) {
+			Log.w(Globals.LOG_TAG, "ControlWorker interrupted", e);
+		} finally {
+			discard();
+		}
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stops the worker. Queued messages are discarded.
+	 */
+	public void stop() {
+		synchronized (this) {
+			stopped = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Handles a message on the worker thread. The buffer is only valid
+	 * during the call.
+	 */
+	protected abstract void process(short type, byte[] buffer, int length)
+		throws IOException;
+
+	/**
+	 * Called on the worker thread if processing a message or running a task
+	 * throws. The worker has already stopped and drops later messages.
+	 */
+	protected void processFailed(final Exception e) {
+		Log.e(Globals.LOG_TAG, "Error processing message", e);
+	}
+
+	/**
+	 * Stops taking messages before reporting the failure, so the reader
+	 * doesn't queue more or block on a full queue meanwhile.
+	 */
+	private void fail(final Exception e) {
+		discard();
+		processFailed(e);
+	}
+
+	private void discard() {
+		synchronized (this) {
+			stopped = true;
+			while (!queue.isEmpty()) {
+				final Message message = queue.removeFirst();
+				if (message.buffer != null) {
+					pool.release(message.buffer);
+				}
+			}
+			messages = 0;
+			metrics.controlQueued.set(0);
+			// Wake a reader waiting for room.
+			notifyAll();
+		}
+	}
+}
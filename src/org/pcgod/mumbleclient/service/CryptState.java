@@ -50,6 +50,7 @@ public class CryptState {
 	private int good;
 	private int late;
 	private int lost;
+	private int resync;
 
 	public synchronized byte[] decrypt(final byte[] source, final int length) {
 		if (length < 4) {
@@ -112,7 +113,7 @@ public class CryptState {
 				restore = true;
 			} else if ((ivbyte > (decryptIv[0] & 0xFF)) && (diff > 0)) {
 				// Lost a few packets, but beyond that we're good.
-				lost = ivbyte - decryptIv[0] - 1;
+				lost = ivbyte - (decryptIv[0] & 0xFF) - 1;
 				decryptIv[0] = (byte) ivbyte;
 			} else if ((ivbyte < (decryptIv[0] & 0xFF)) && (diff > 0)) {
 				// Lost a few packets, and wrapped around
@@ -202,6 +203,34 @@ public class CryptState {
 		return encryptIv;
 	}
 
+	/**
+	 * @return Number of packets decrypted successfully.
+	 */
+	public synchronized int getGood() {
+		return good;
+	}
+
+	/**
+	 * @return Number of packets that arrived after a later packet.
+	 */
+	public synchronized int getLate() {
+		return late;
+	}
+
+	/**
+	 * @return Number of packets presumed lost, judging by gaps in the nonce.
+	 */
+	public synchronized int getLost() {
+		return lost;
+	}
+
+	/**
+	 * @return Number of times the server resynchronized our decrypt nonce.
+	 */
+	public synchronized int getResync() {
+		return resync;
+	}
+
 	public synchronized byte[] getServerNonce() {
 		return decryptIv;
 	}
@@ -246,6 +275,7 @@ public class CryptState {
 
 	public synchronized void setServerNonce(final byte[] newNonce) {
 		decryptIv = newNonce;
+		resync++;
 	}
 
 	private synchronized void ocbDecrypt(
@@ -0,0 +1,71 @@
+package org.pcgod.mumbleclient.service;
+
+/**
+ * Watches UDP decrypt results for a lost nonce sync.
+ * <p>
+ * CryptState recovers from gaps of up to 30 packets by itself. After a
+ * longer gap, or if the server reset its side, every packet fails to
+ * decrypt until the server sends its nonce again, and until then UDP voice
+ * is silently dropped. The results of the last WINDOW packets are kept, and
+ * once FAILURE_THRESHOLD of them failed a resync should be requested with
+ * an empty CryptSetup.
+ * <p>
+ * Requests are at least MIN_INTERVAL apart. The interval doubles for every
+ * request that isn't followed by a good packet, up to MAX_INTERVAL, so
+ * packets that never decrypt, such as garbage from another host, don't
+ * make us flood the server.
+ * <p>
+ * Packets are recorded on the UDP reader thread and reset() is called on
+ * the control thread, so all methods are synchronized.
+ */
+public class DecryptMonitor {
+	static final int WINDOW = 16;
+	static final int FAILURE_THRESHOLD = 8;
+	static final long MIN_INTERVAL = 1000;
+	static final long MAX_INTERVAL = 16000;
+
+	/** Bit n is set if the nth last packet failed to decrypt. */
+	private int failures;
+	private boolean requested;
+	private long lastRequest;
+	private long interval = MIN_INTERVAL;
+
+	/**
+	 * Records a received UDP packet.
+	 *
+	 * @param decrypted Whether the packet decrypted
+	 * @param now Current time in milliseconds, from TransportSelector.now()
+	 * @return True if a resync should be requested now.
+	 */
+	public synchronized boolean packetReceived(
+		final boolean decrypted,
+		final long now) {
+		failures = (failures << 1 | (decrypted ? 0 : 1)) & ((1 << WINDOW) - 1);
+		if (decrypted) {
+			if (requested) {
+				requested = false;
+				interval = MIN_INTERVAL;
+			}
+			return false;
+		}
+
+		if (Integer.bitCount(failures) < FAILURE_THRESHOLD ||
+			(requested && now - lastRequest < interval)) {
+			return false;
+		}
+
+		if (requested) {
+			interval = Math.min(MAX_INTERVAL, interval * 2);
+		}
+		requested = true;
+		lastRequest = now;
+		return true;
+	}
+
+	/**
+	 * Forgets the failures once the server's nonce has been applied.
+	 */
+	public synchronized void reset() {
+		failures = 0;
+	}
+}
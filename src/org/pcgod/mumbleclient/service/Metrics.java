@@ -0,0 +1,301 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and histograms describing the health of a connection.
+ * <p>
+ * One instance belongs to each MumbleConnection. The well known metrics are
+ * fields so the network and audio threads record through a direct
+ * reference: recording is a few atomic operations and never allocates or
+ * locks. Reading, such as format(), may allocate.
+ */
+public class Metrics {
+	/**
+	 * Monotonically increasing count.
+	 */
+	public static class Counter {
+		private final String name;
+		private final AtomicLong value = new AtomicLong();
+
+		Counter(final String name) {
+			this.name = name;
+		}
+
+		public void add(final long delta) {
+			value.addAndGet(delta);
+		}
+
+		public long get() {
+			return value.get();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Last observed value.
+	 */
+	public static class Gauge {
+		private final String name;
+		private volatile long value;
+
+		Gauge(final String name) {
+			this.name = name;
+		}
+
+		public long get() {
+			return value;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void set(final long value_) {
+			value = value_;
+		}
+	}
+
+	/**
+	 * Distribution of values over fixed buckets. Bucket i counts values up
+	 * to and including bounds[i]; the last bucket counts everything larger.
+	 */
+	public static class Histogram {
+		private final String name;
+		private final long[] bounds;
+		private final AtomicLongArray buckets;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+
+		Histogram(final String name, final long[] bounds) {
+			this.name = name;
+			this.bounds = bounds;
+			this.buckets = new AtomicLongArray(bounds.length + 1);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getMean() {
+			final long n = count.get();
+			return n == 0 ? 0 : sum.get() / n;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @param p Fraction between 0 and 1
+		 * @return Upper bound of the bucket containing the percentile, or
+		 *         Long.MAX_VALUE if it falls in the overflow bucket.
+		 */
+		public long getPercentile(final double p) {
+			final long n = count.get();
+			if (n == 0) {
+				return 0;
+			}
+
+			final long target = (long) Math.ceil(p * n);
+			long seen = 0;
+			for (int i = 0; i < bounds.length; i++) {
+				seen += buckets.get(i);
+				if (seen >= target) {
+					return bounds[i];
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+
+		public void record(final long value) {
+			int i = 0;
+			while (i < bounds.length && value > bounds[i]) {
+				i++;
+			}
+			buckets.incrementAndGet(i);
+			count.incrementAndGet();
+			sum.addAndGet(value);
+		}
+	}
+
+	/** Round trip time buckets in milliseconds. */
+	private static final long[] RTT_BOUNDS = { 10, 20, 30, 50, 75, 100, 150,
+			200, 300, 500, 1000, 2000 };
+	/** Frame count buckets for buffer depths. */
+	private static final long[] DEPTH_BOUNDS = { 0, 1, 2, 3, 4, 5, 6, 8, 10,
+			15, 20 };
+	/** Send call buckets in microseconds. */
+	private static final long[] SEND_BOUNDS = { 10, 20, 50, 100, 200, 500,
+			1000, 5000, 20000, 100000 };
+	/** Codec time buckets in microseconds. */
+	private static final long[] CODEC_BOUNDS = { 50, 100, 200, 300, 500, 750,
+			1000, 2000, 5000 };
+
+	private final List<Counter> counters = new ArrayList<Counter>();
+	private final List<Gauge> gauges = new ArrayList<Gauge>();
+	private final List<Histogram> histograms = new ArrayList<Histogram>();
+
+	// Network
+	public final Counter tcpIn = counter("tcp.in");
+	public final Counter tcpOut = counter("tcp.out");
+	public final Counter udpIn = counter("udp.in");
+	public final Counter udpOut = counter("udp.out");
+	public final Counter udpTunneled = counter("udp.tunneled");
+	/** Received control messages waiting for the ControlWorker. */
+	public final Gauge controlQueued = gauge("tcp.control_queued");
+	/** Tunneled voice dropped because the TCP connection was backed up. */
+	public final Counter tunnelDropped = counter("udp.tunnel_dropped");
+	/** Voice packets longer than a UDP packet, never tunneled. */
+	public final Counter tunnelOversized = counter("udp.tunnel_oversized");
+	public final Counter decryptFailed = counter("udp.decrypt_failed");
+	/** Empty CryptSetups sent because UDP stopped decrypting. */
+	public final Counter resyncRequests = counter("crypt.resync_requests");
+	public final Counter switchesToUdp = counter("transport.to_udp");
+	public final Counter switchesToTcp = counter("transport.to_tcp");
+	public final Counter reconnects = counter("reconnect.count");
+	public final Counter tlsHandshakes = counter("tls.handshakes");
+	/** Handshakes that resumed an earlier TLS session. */
+	public final Counter tlsResumed = counter("tls.resumed");
+	/** 1 while voice goes over UDP, 0 while it's tunneled through TCP. */
+	public final Gauge udpMode = gauge("udp.mode");
+	public final Gauge cryptGood = gauge("crypt.good");
+	public final Gauge cryptLate = gauge("crypt.late");
+	public final Gauge cryptLost = gauge("crypt.lost");
+	public final Gauge cryptResync = gauge("crypt.resync");
+	/** Crypt statistics of our UDP stream as reported by the server. */
+	public final Gauge serverGood = gauge("server.good");
+	public final Gauge serverLate = gauge("server.late");
+	public final Gauge serverLost = gauge("server.lost");
+	public final Gauge serverResync = gauge("server.resync");
+	/** Smoothed loss of our UDP voice packets in per mille, from the above. */
+	public final Gauge uplinkLoss = gauge("server.loss_permille");
+	public final Histogram tcpRtt = histogram("rtt.tcp", RTT_BOUNDS);
+	public final Histogram udpRtt = histogram("rtt.udp", RTT_BOUNDS);
+	/** Smoothed RTT and jitter estimates in microseconds. */
+	public final Gauge tcpSrtt = gauge("rtt.tcp.srtt_us");
+	public final Gauge tcpJitter = gauge("rtt.tcp.jitter_us");
+	public final Gauge udpSrtt = gauge("rtt.udp.srtt_us");
+	public final Gauge udpJitter = gauge("rtt.udp.jitter_us");
+	/** Smoothed UDP ping loss in per mille. */
+	public final Gauge udpPingLoss = gauge("rtt.udp.loss_permille");
+	/** Duration of the last host lookup and TLS handshake. */
+	public final Gauge connectDns = gauge("connect.dns_ms");
+	public final Gauge connectTls = gauge("connect.tls_ms");
+	/** Time from losing the connection to ServerSync on the new one. */
+	public final Gauge reconnectSync = gauge("reconnect.sync_ms");
+	/** Time from losing the connection to the first voice packet after it. */
+	public final Gauge reconnectAudio = gauge("reconnect.audio_ms");
+
+	// Playback
+	public final Histogram jitterDepth = histogram("jb.depth", DEPTH_BOUNDS);
+	public final Histogram decodeTime = histogram("decode.us", CODEC_BOUNDS);
+	public final Counter framesDecoded = counter("decode.frames");
+	/** Frames a talking user had nothing to play for. */
+	public final Counter underruns = counter("mix.underruns");
+	public final Counter framesMixed = counter("mix.frames");
+	/** Redundant frames that replaced a lost packet's frames. */
+	public final Counter framesRecovered = counter("voice.recovered");
+	/** Redundant frames that had already been received. */
+	public final Counter framesDuplicate = counter("voice.duplicate");
+
+	// Recording
+	public final Histogram encodeTime = histogram("encode.us", CODEC_BOUNDS);
+	public final Counter framesEncoded = counter("encode.frames");
+	/** Time from a push-to-talk press to its first voice packet. */
+	public final Gauge pressToPacket = gauge("capture.press_to_packet_us");
+	/** Time the capture thread spends handing a packet to the connection. */
+	public final Histogram voiceSendTime = histogram("send.voice_us", SEND_BOUNDS);
+	/** Unencrypted size of the voice packets sent. */
+	public final Counter voiceBytes = counter("send.voice_bytes");
+	/** Part of send.voice_bytes repeating the previous packet's frames. */
+	public final Counter redundantBytes = counter("send.redundant_bytes");
+
+	public List<Counter> getCounters() {
+		return counters;
+	}
+
+	public List<Gauge> getGauges() {
+		return gauges;
+	}
+
+	public List<Histogram> getHistograms() {
+		return histograms;
+	}
+
+	/**
+	 * Copies the CryptState statistics into the crypt gauges.
+	 */
+	public void update(final CryptState cryptState) {
+		cryptGood.set(cryptState.getGood());
+		cryptLate.set(cryptState.getLate());
+		cryptLost.set(cryptState.getLost());
+		cryptResync.set(cryptState.getResync());
+	}
+
+	/**
+	 * Copies the ping estimates into the RTT gauges.
+	 */
+	public void update(final RttEstimator tcp, final RttEstimator udp) {
+		tcpSrtt.set((long) (tcp.getSmoothedRtt() * 1000));
+		tcpJitter.set((long) (tcp.getJitter() * 1000));
+		udpSrtt.set((long) (udp.getSmoothedRtt() * 1000));
+		udpJitter.set((long) (udp.getJitter() * 1000));
+		udpPingLoss.set((long) (udp.getLossRate() * 1000));
+	}
+
+	/**
+	 * @return All metrics on one line, histograms as mean/p50/p95/count.
+	 */
+	public String format() {
+		final StringBuilder sb = new StringBuilder();
+		for (final Counter c : counters) {
+			sb.append(c.getName()).append('=').append(c.get()).append(' ');
+		}
+		for (final Gauge g : gauges) {
+			sb.append(g.getName()).append('=').append(g.get()).append(' ');
+		}
+		for (final Histogram h : histograms) {
+			if (h.getCount() == 0) {
+				continue;
+			}
+			sb.append(h.getName()).append('=').append(h.getMean());
+			sb.append('/').append(formatBound(h.getPercentile(0.5)));
+			sb.append('/').append(formatBound(h.getPercentile(0.95)));
+			sb.append('/').append(h.getCount()).append(' ');
+		}
+		return sb.toString().trim();
+	}
+
+	private Counter counter(final String name) {
+		final Counter c = new Counter(name);
+		counters.add(c);
+		return c;
+	}
+
+	private String formatBound(final long bound) {
+		return bound == Long.MAX_VALUE ? "inf" : Long.toString(bound);
+	}
+
+	private Gauge gauge(final String name) {
+		final Gauge g = new Gauge(name);
+		gauges.add(g);
+		return g;
+	}
+
+	private Histogram histogram(final String name, final long[] bounds) {
+		final Histogram h = new Histogram(name, bounds);
+		histograms.add(h);
+		return h;
+	}
+}
@@ -7,6 +7,7 @@ import com.google.protobuf.MessageLite;
 import junit.framework.Assert;
 
 import net.sf.mumble.MumbleProto.Authenticate;
+import net.sf.mumble.MumbleProto.CryptSetup;
 import net.sf.mumble.MumbleProto.Version;
 
 import org.pcgod.mumbleclient.Globals;
@@ -14,28 +15,26 @@ import org.pcgod.mumbleclient.service.MumbleProtocol.MessageType;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.security.KeyManagementException;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
@@ -62,14 +61,20 @@ public class MumbleConnection implements Runnable {
 
     public static final int UDP_BUFFER_SIZE = 2048;
 
+    /**
+     * Largest TCP message accepted by default. The same limit the desktop
+     * client uses.
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 0x7fffff;
+
     private final MumbleConnectionHost connectionHost;
     private MumbleProtocol protocol;
 
     private Socket tcpSocket;
     private DataInputStream in;
-    private DataOutputStream out;
+    private volatile TcpWriter writer;
+    private volatile ControlWorker controlWorker;
     private DatagramSocket udpSocket;
-    private long useUdpUntil;
     boolean usingUdp = false;
 
     /**
@@ -85,6 +90,13 @@ public class MumbleConnection implements Runnable {
      */
     private volatile boolean suppressErrors = false;
 
+    /**
+     * All addresses of the host, tried in parallel when connecting.
+     */
+    private InetAddress[] hostAddresses;
+    /**
+     * The address the TCP connection was made to.
+     */
     private InetAddress hostAddress;
     private final String host;
     private final int port;
@@ -99,6 +111,22 @@ public class MumbleConnection implements Runnable {
 
     private final Object stateLock = new Object();
     final CryptState cryptState = new CryptState();
+    final DecryptMonitor decryptMonitor = new DecryptMonitor();
+    final Metrics metrics;
+    final VoiceTracer tracer;
+    final RttEstimator tcpPing;
+    final RttEstimator udpPing;
+    final TransportSelector transport;
+    final RedundancyControl redundancy;
+
+    private ConnectCache connectCache;
+    private final BufferPool bufferPool = new BufferPool();
+    private volatile int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    /**
+     * Inbound traffic log, null unless capturing.
+     */
+    private volatile ProtocolCapture capture;
 
     /**
      * Constructor for new connection thread.
@@ -124,25 +152,63 @@ public class MumbleConnection implements Runnable {
             final int port,
             final String username,
             final String password) {
-        this.connectionHost = connectionHost;
-        this.host = host;
-        this.port = port;
-        this.username = username;
-        this.password = password;
-
-        connectionHost.setConnectionState(MumbleConnectionHost.STATE_CONNECTING);
+        this(connectionHost, host, port, username, password, null, null,
+                new Metrics(), new VoiceTracer());
     }
 
     public MumbleConnection(MumbleConnectionHost connectionHost, String host, int port,
                             String username, String password, byte[] certificate,
                             char[] certPassword) {
-        this(connectionHost, host, port, username, password);
+        this(connectionHost, host, port, username, password, certificate,
+                certPassword, new Metrics(), new VoiceTracer());
+    }
 
+    /**
+     * Constructor for reconnecting to the server of a previous connection.
+     * <p/>
+     * The new connection shares the metrics and the voice tracer of the
+     * previous one so they cover the whole session, and so audio components
+     * kept across the reconnect keep recording into the right place.
+     *
+     * @param connectionHost Host interface for this Connection
+     * @param previous       Connection that was lost
+     */
+    MumbleConnection(
+            final MumbleConnectionHost connectionHost,
+            final MumbleConnection previous) {
+        this(connectionHost, previous.host, previous.port, previous.username,
+                previous.password, previous.certificate, previous.certPassword,
+                previous.metrics, previous.tracer);
+        this.connectCache = previous.connectCache;
+    }
+
+    private MumbleConnection(
+            final MumbleConnectionHost connectionHost,
+            final String host,
+            final int port,
+            final String username,
+            final String password,
+            final byte[] certificate,
+            final char[] certPassword,
+            final Metrics metrics,
+            final VoiceTracer tracer) {
+        this.connectionHost = connectionHost;
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
         this.certificate = certificate;
         this.certPassword = certPassword;
+        this.secure = certificate != null;
 
-        if (certificate != null)
-            secure = true;
+        this.metrics = metrics;
+        this.tracer = tracer;
+        tcpPing = new RttEstimator(metrics.tcpRtt);
+        udpPing = new RttEstimator(metrics.udpRtt);
+        transport = new TransportSelector(udpPing, metrics);
+        redundancy = new RedundancyControl(transport, metrics);
+
+        connectionHost.setConnectionState(MumbleConnectionHost.STATE_CONNECTING);
     }
 
     public final void disconnect() {
@@ -175,6 +241,30 @@ public class MumbleConnection implements Runnable {
         }
     }
 
+    public CryptState getCryptState() {
+        return cryptState;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public RedundancyControl getRedundancy() {
+        return redundancy;
+    }
+
+    public RttEstimator getTcpPing() {
+        return tcpPing;
+    }
+
+    public VoiceTracer getTracer() {
+        return tracer;
+    }
+
+    public RttEstimator getUdpPing() {
+        return udpPing;
+    }
+
     public final boolean isConnectionAlive() {
         return !disconnecting && udpSocket != null && tcpSocket != null &&
                 !tcpSocket.isClosed() && tcpSocket.isConnected() &&
@@ -190,8 +280,63 @@ public class MumbleConnection implements Runnable {
                 username.equals(username_) && password.equals(password_);
     }
 
-    public void refreshUdpLimit(final long limit) {
-        useUdpUntil = limit;
+    /**
+     * Sets the cache used to resolve the host and to reuse TLS sessions.
+     * Must be called before start(). Without one every connect does a
+     * full lookup and handshake.
+     */
+    public void setConnectCache(final ConnectCache cache) {
+        connectCache = cache;
+    }
+
+    /**
+     * Sets the size of the largest TCP message accepted from the server. A
+     * larger one closes the connection instead of being allocated.
+     */
+    public void setMaxMessageSize(final int size) {
+        maxMessageSize = size;
+    }
+
+    /**
+     * Starts logging every inbound TCP message and decrypted UDP packet to a
+     * file. See ProtocolCapture for the format and ProtocolReplay for
+     * playing it back. A previous capture is stopped.
+     */
+    public void startCapture(final File file) throws IOException {
+        final ProtocolCapture old = capture;
+        capture = new ProtocolCapture(file);
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    public void stopCapture() {
+        final ProtocolCapture old = capture;
+        capture = null;
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Runs a task on the thread that processes control messages, in order
+     * with them. State owned by MumbleProtocol must only be touched there.
+     * The task is dropped if the connection isn't processing messages.
+     */
+    public void postControlTask(final Runnable task) {
+        final ControlWorker worker = controlWorker;
+        if (worker != null) {
+            worker.execute(task);
+        }
+    }
+
+    /**
+     * Writes the current metrics to the log.
+     */
+    public void reportMetrics() {
+        metrics.update(cryptState);
+        metrics.update(tcpPing, udpPing);
+        Log.i(Globals.LOG_TAG, "Metrics: " + metrics.format());
     }
 
     @Override
@@ -206,10 +351,19 @@ public class MumbleConnection implements Runnable {
                         host,
                         port));
 
-                this.hostAddress = InetAddress.getByName(host);
+                final long resolveStart = System.nanoTime();
+                if (connectCache != null) {
+                    this.hostAddresses = connectCache.resolve(host);
+                } else {
+                    this.hostAddresses = InetAddress.getAllByName(host);
+                }
+                metrics.connectDns.set((System.nanoTime() - resolveStart) / 1000000);
 
                 if (secure) {
                     tcpSocket = connectTcp(certificate, new char[0]);
+                    if (tcpSocket == null) {
+                        throw new IOException("TLS connection failed");
+                    }
                 } else {
                     tcpSocket = connectTcp();
                 }
@@ -222,19 +376,16 @@ public class MumbleConnection implements Runnable {
                         host);
                 reportError(errorString, e);
             } catch (final ConnectException e) {
+                invalidateAddress();
                 final String errorString = "The host refused connection";
                 reportError(errorString, e);
-            } catch (final KeyManagementException e) {
-                reportError(String.format(
-                        "Could not connect to Mumble server \"%s:%s\"",
-                        host,
-                        port), e);
-            } catch (final NoSuchAlgorithmException e) {
+            } catch (final GeneralSecurityException e) {
                 reportError(String.format(
                         "Could not connect to Mumble server \"%s:%s\"",
                         host,
                         port), e);
             } catch (final IOException e) {
+                invalidateAddress();
                 reportError(String.format(
                         "Could not connect to Mumble server \"%s:%s\"",
                         host,
@@ -294,19 +445,16 @@ public class MumbleConnection implements Runnable {
             final MessageType t,
             final MessageLite.Builder b) {
         final MessageLite m = b.build();
-        final short type = (short) t.ordinal();
-        final int length = m.getSerializedSize();
 
-        if (disconnecting) {
+        // Not connected yet, or a connection that is only used for replaying
+        // a capture.
+        final TcpWriter w = writer;
+        if (disconnecting || w == null) {
             return;
         }
 
         try {
-            synchronized (out) {
-                out.writeShort(type);
-                out.writeInt(length);
-                m.writeTo(out);
-            }
+            w.send(t, m);
         } catch (final IOException e) {
             handleSendingException(e);
         }
@@ -328,12 +476,19 @@ public class MumbleConnection implements Runnable {
             final byte[] buffer,
             final int length,
             final boolean forceUdp) {
-        // FIXME: This would break things because we don't handle nonce resync messages
-//		if (!cryptState.isInitialized()) {
-//			return;
-//		}
+        // Nothing can be encrypted before the server's CryptSetup. Nonce
+        // resyncs after that are handled by the DecryptMonitor.
+        if (!cryptState.isInitialized()) {
+            return;
+        }
 
-        if (forceUdp || useUdpUntil > System.currentTimeMillis()) {
+        final TcpWriter w = writer;
+        if (w == null) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        if (forceUdp || transport.voiceSent(TransportSelector.now())) {
             if (!usingUdp && !forceUdp) {
                 Log.i(Globals.LOG_TAG, "MumbleConnection: UDP enabled");
                 usingUdp = true;
@@ -353,6 +508,7 @@ public class MumbleConnection implements Runnable {
 
             try {
                 udpSocket.send(outPacket);
+                metrics.udpOut.increment();
             } catch (final IOException e) {
                 handleSendingException(e);
             }
@@ -362,22 +518,14 @@ public class MumbleConnection implements Runnable {
                 usingUdp = false;
             }
 
-            final short type = (short) MessageType.UDPTunnel.ordinal();
-
             if (disconnecting) {
                 return;
             }
 
-            synchronized (out) {
-                try {
-                    out.writeShort(type);
-                    out.writeInt(length);
-                    out.write(buffer, 0, length);
-                } catch (final IOException e) {
-                    handleSendingException(e);
-                }
-            }
+            // Never blocks; the stalest frame is dropped if TCP is backed up.
+            w.sendVoice(buffer, length);
         }
+        metrics.voiceSendTime.record((System.nanoTime() - start) / 1000);
     }
 
     public Thread start(final MumbleProtocol protocol_) {
@@ -389,6 +537,17 @@ public class MumbleConnection implements Runnable {
     }
 
     private void cleanConnection() {
+        stopCapture();
+
+        final TcpWriter w = writer;
+        if (w != null) {
+            w.stop();
+        }
+        final ControlWorker worker = controlWorker;
+        if (worker != null) {
+            worker.stop();
+        }
+
         // FIXME: These throw exceptions for some reason.
         // Even with the checks in place
         if (tcpSocket != null && tcpSocket.isConnected()) {
@@ -411,8 +570,33 @@ public class MumbleConnection implements Runnable {
             return;
         }
 
-        out = new DataOutputStream(tcpSocket.getOutputStream());
         in = new DataInputStream(tcpSocket.getInputStream());
+        writer = new TcpWriter(tcpSocket.getOutputStream(), metrics) {
+            @Override
+            protected void writeFailed(final IOException e) {
+                handleSendingException(e);
+            }
+        };
+        writer.start();
+        controlWorker = new ControlWorker(bufferPool, metrics) {
+            @Override
+            protected void process(final short type, final byte[] buffer, final int length)
+                    throws IOException {
+                protocol.processTcp(type, buffer, length);
+            }
+
+            @Override
+            protected void processFailed(final Exception e) {
+                Log.e(Globals.LOG_TAG, "Error processing message", e);
+                // End the connection the same way a read error would.
+                try {
+                    tcpSocket.close();
+                } catch (final IOException closeError) {
+                    Log.e(TAG, "Error when closing tcp socket", closeError);
+                }
+            }
+        };
+        controlWorker.start();
 
         final Version.Builder v = Version.newBuilder();
         v.setVersion(Globals.PROTOCOL_VERSION);
@@ -481,6 +665,26 @@ public class MumbleConnection implements Runnable {
         udpReader.stop();
     }
 
+    /**
+     * Makes the next connection resolve the host again, in case the cached
+     * address is what failed.
+     */
+    private void invalidateAddress() {
+        if (connectCache != null) {
+            connectCache.invalidate(host);
+        }
+    }
+
+    /**
+     * Asks the server for its encrypt nonce with an empty CryptSetup. The
+     * reply is applied by MumbleProtocol like any other nonce resync.
+     */
+    private void requestResync() {
+        Log.i(Globals.LOG_TAG, "MumbleConnection: Requesting crypt resync");
+        metrics.resyncRequests.increment();
+        sendTcpMessage(MessageType.CryptSetup, CryptSetup.newBuilder());
+    }
+
     private boolean handleSendingException(final IOException e) {
         // If we are already disconnecting, just ignore this.
         if (disconnecting) {
@@ -517,45 +721,43 @@ public class MumbleConnection implements Runnable {
             /* setup keystore for secure connection */
             certPassword = certificatePassword != null ? certificatePassword : new char[0];
 
-            SSLContext cntxt = SSLContext.getInstance("TLS");
-            KeyStore keyStore = null;
-            KeyManagerFactory kmf = KeyManagerFactory.getInstance("X509");
-
-            if (certificate != null) {
+            final SSLContext cntxt;
+            if (connectCache != null) {
+                // Parsed key material and TLS sessions are kept per identity.
+                cntxt = connectCache.getSslContext(
+                        certificate,
+                        certPassword,
+                        new MumbleTrustManager());
+            } else {
+                cntxt = SSLContext.getInstance("TLS");
+                KeyStore keyStore = null;
+                KeyManagerFactory kmf = KeyManagerFactory.getInstance("X509");
+
+                if (certificate != null) {
+
+                    Log.d(TAG, "certificate.toString(): " + certificate.toString());
+
+                    keyStore = KeyStore.getInstance("PKCS12");
+                    ByteArrayInputStream in = new ByteArrayInputStream(certificate);
+                    keyStore.load(in, certPassword);
+                }
 
-                Log.d(TAG, "certificate.toString(): " + certificate.toString());
+                kmf.init(keyStore, certPassword);
 
-                keyStore = KeyStore.getInstance("PKCS12");
-                ByteArrayInputStream in = new ByteArrayInputStream(certificate);
-                keyStore.load(in, certPassword);
+                cntxt.init(kmf.getKeyManagers(), new TrustManager[] { new MumbleTrustManager() }, new SecureRandom());
             }
 
-            kmf.init(keyStore, certPassword);
-
-            cntxt.init(kmf.getKeyManagers(), new TrustManager[] { new MumbleTrustManager() }, new SecureRandom());
-
             /* connect */
-            SSLSocket sock = (SSLSocket) cntxt.getSocketFactory().createSocket(hostAddress, port);
-            sock.setUseClientMode(true);
-            sock.setEnabledProtocols(new String[] {"TLSv1"});
-            sock.startHandshake();
+            SSLSocket sock = handshake(cntxt);
 
             Log.d(TAG, "TCP/SSL socket opened [secure]");
 
             return sock;
 
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (KeyStoreException e) {
-            e.printStackTrace();
-        } catch (CertificateException e) {
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (UnrecoverableKeyException e) {
-            e.printStackTrace();
-        } catch (KeyManagementException e) {
-            e.printStackTrace();
         }
 
         Log.w(TAG, "TCP/SSL connection not opened");
@@ -563,25 +765,49 @@ public class MumbleConnection implements Runnable {
         return null;
     }
 
-    protected Socket connectTcp() throws NoSuchAlgorithmException,
-            KeyManagementException, IOException, UnknownHostException {
-        final SSLContext ctx_ = SSLContext.getInstance("TLS");
-        ctx_.init(null, new TrustManager[]{new LocalSSLTrustManager()}, null);
-        final SSLSocketFactory factory = ctx_.getSocketFactory();
-        final SSLSocket sslSocket = (SSLSocket) factory.createSocket(hostAddress, port);
-        sslSocket.setUseClientMode(true);
-        sslSocket.setEnabledProtocols(new String[]{"TLSv1"});
-        sslSocket.startHandshake();
+    protected Socket connectTcp() throws GeneralSecurityException, IOException {
+        final SSLContext ctx_;
+        if (connectCache != null) {
+            ctx_ = connectCache.getSslContext(null, null, new LocalSSLTrustManager());
+        } else {
+            ctx_ = SSLContext.getInstance("TLS");
+            ctx_.init(null, new TrustManager[]{new LocalSSLTrustManager()}, null);
+        }
+        final SSLSocket sslSocket = handshake(ctx_);
 
         Log.i(Globals.LOG_TAG, "TCP/SSL socket opened");
 
         return sslSocket;
     }
 
+    /**
+     * Opens the TLS connection to whichever host address completes the
+     * handshake first and records whether the handshake resumed a previous
+     * session.
+     */
+    private SSLSocket handshake(final SSLContext context) throws IOException {
+        final long start = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+
+        final SSLSocket sslSocket = new ParallelConnector(context, host, port).connect(hostAddresses);
+        hostAddress = sslSocket.getInetAddress();
+
+        metrics.connectTls.set((System.nanoTime() - startNanos) / 1000000);
+        metrics.tlsHandshakes.increment();
+        // A resumed session was created by an earlier handshake.
+        if (sslSocket.getSession().getCreationTime() < start) {
+            metrics.tlsResumed.increment();
+        }
+
+        return sslSocket;
+    }
 
     protected DatagramSocket connectUdp() throws SocketException,
             UnknownHostException {
-        udpSocket = new DatagramSocket();
+        // Bind to the family of the address the TCP connection won on.
+        final InetAddress any = InetAddress.getByName(
+                hostAddress instanceof Inet6Address ? "::" : "0.0.0.0");
+        udpSocket = new DatagramSocket(new InetSocketAddress(any, 0));
         udpSocket.connect(hostAddress, port);
 
         Log.i(Globals.LOG_TAG, "UDP Socket opened");
@@ -600,7 +826,6 @@ public class MumbleConnection implements Runnable {
      * @author Rantanen
      */
     private class TcpSocketReader extends MumbleSocketReader {
-        private byte[] msg = null;
 
         public TcpSocketReader(final Object monitor) {
             super(monitor, "TcpReader");
@@ -645,12 +870,42 @@ public class MumbleConnection implements Runnable {
         protected void process() throws IOException {
             final short type = in.readShort();
             final int length = in.readInt();
-            if (msg == null || msg.length != length) {
-                msg = new byte[length];
+            if (length < 0 || length > maxMessageSize) {
+                // Don't trust the length enough to skip the payload.
+                throw new IOException(String.format(
+                        "Message of %d bytes exceeds the limit of %d bytes",
+                        length & 0xffffffffL,
+                        maxMessageSize));
             }
-            in.readFully(msg);
 
-            protocol.processTcp(type, msg);
+            final byte[] msg = bufferPool.acquire(length);
+            final boolean voice = type == MessageType.UDPTunnel.ordinal();
+            try {
+                in.readFully(msg, 0, length);
+                metrics.tcpIn.increment();
+                if (voice) {
+                    tracer.packetReceived();
+                }
+
+                final ProtocolCapture c = capture;
+                if (c != null) {
+                    c.writeTcp(type, msg, length);
+                }
+            } catch (final IOException e) {
+                bufferPool.release(msg);
+                throw e;
+            }
+
+            if (voice) {
+                // Voice skips the control queue.
+                try {
+                    protocol.processUdp(msg, length);
+                } finally {
+                    bufferPool.release(msg);
+                }
+            } else {
+                controlWorker.post(type, msg, length);
+            }
         }
     }
 
@@ -683,15 +938,30 @@ public class MumbleConnection implements Runnable {
         @Override
         protected void process() throws IOException {
             udpSocket.receive(packet);
+            tracer.packetReceived();
 
             final byte[] buffer = cryptState.decrypt(
                     packet.getData(),
                     packet.getLength());
 
-            // Decrypt might return null if the buffer was total garbage.
+            // Decrypt might return null if the buffer was total garbage, or
+            // if our decrypt nonce is out of sync with the server.
+            if (decryptMonitor.packetReceived(
+                    buffer != null,
+                    TransportSelector.now())) {
+                requestResync();
+            }
             if (buffer == null) {
+                metrics.decryptFailed.increment();
                 return;
             }
+            metrics.udpIn.increment();
+            tracer.packetDecrypted();
+
+            final ProtocolCapture c = capture;
+            if (c != null) {
+                c.writeUdp(buffer, buffer.length);
+            }
 
             protocol.processUdp(buffer, buffer.length);
         }
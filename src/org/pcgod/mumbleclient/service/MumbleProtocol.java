@@ -1,35 +1,45 @@
 package org.pcgod.mumbleclient.service;
 
-import android.content.Context;
 import android.util.Log;
 
 import com.google.protobuf.ByteString;
-
-import junit.framework.Assert;
+import com.google.protobuf.CodedInputStream;
 
 import net.sf.mumble.MumbleProto;
 import net.sf.mumble.MumbleProto.ChannelRemove;
 import net.sf.mumble.MumbleProto.ChannelState;
 import net.sf.mumble.MumbleProto.CodecVersion;
 import net.sf.mumble.MumbleProto.CryptSetup;
+import net.sf.mumble.MumbleProto.PermissionQuery;
 import net.sf.mumble.MumbleProto.Reject;
+import net.sf.mumble.MumbleProto.RequestBlob;
 import net.sf.mumble.MumbleProto.ServerSync;
 import net.sf.mumble.MumbleProto.TextMessage;
 import net.sf.mumble.MumbleProto.UserRemove;
 import net.sf.mumble.MumbleProto.UserState;
 
 import org.pcgod.mumbleclient.Globals;
-import org.pcgod.mumbleclient.service.audio.AudioOutput;
 import org.pcgod.mumbleclient.service.audio.AudioOutputHost;
+import org.pcgod.mumbleclient.service.audio.VoiceOutput;
 import org.pcgod.mumbleclient.service.model.Channel;
 import org.pcgod.mumbleclient.service.model.Message;
 import org.pcgod.mumbleclient.service.model.User;
 import org.spongycastle.jce.provider.BouncyCastleProvider;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class MumbleProtocol {
 
@@ -46,47 +56,60 @@ public class MumbleProtocol {
     public static final int UDPMESSAGETYPE_UDPVOICECELTBETA = 3;
     public static final int CODEC_BETA = UDPMESSAGETYPE_UDPVOICECELTBETA;
     public static final int CODEC_NOCODEC = -1;
-    public int codec = CODEC_NOCODEC;
+    public volatile int codec = CODEC_NOCODEC;
     public static final int SAMPLE_RATE = 48000;
     public static final int FRAME_SIZE = SAMPLE_RATE / 100;
 
-    /**
-     * The time window during which the last successful UDP ping must have been
-     * transmitted. If the time since the last successful UDP ping is greater
-     * than this treshold the connection falls back on TCP tunneling.
-     * <p/>
-     * NOTE: This is the time when the last successfully received ping was SENT
-     * by the client.
-     * <p/>
-     * 6000 gives 1 second reply-time as the ping interval is 5000 seconds
-     * currently.
-     */
-    public static final int UDP_PING_TRESHOLD = 6000;
-
     private static final MessageType[] MT_CONSTANTS = MessageType.class.getEnumConstants();
     private final AudioOutputHost audioHost;
-    private final Context ctx;
+    private final BlobCache blobCache;
+    private final BlobRequests textureRequests = new BlobRequests();
+    private final BlobRequests commentRequests = new BlobRequests();
+    private final BlobRequests descriptionRequests = new BlobRequests();
+    private final VoiceOutput.Factory outputFactory;
     private final MumbleProtocolHost host;
-    private final MumbleConnection conn;
+    private volatile MumbleConnection conn;
     public Map<Integer, Channel> channels = new HashMap<Integer, Channel>();
-    public Map<Integer, User> users = new HashMap<Integer, User>();
+    /**
+     * Updated by the control messages and read by the voice path, which run
+     * on different threads.
+     */
+    public Map<Integer, User> users = new ConcurrentHashMap<Integer, User>();
+    public final PermissionCache permissions = new PermissionCache();
     public Channel currentChannel = null;
     public User currentUser = null;
     public boolean canSpeak = true;
-    private AudioOutput ao;
+    private volatile VoiceOutput ao;
     private Thread audioOutputThread;
     private Thread pingThread;
-    private boolean stopped = false;
+    private ScheduledExecutorService pingScheduler;
+    private ScheduledFuture<?> pingTask;
+    private volatile boolean stopped = false;
+    private boolean rejected = false;
+
+    // Reconnect state, see reattach().
+    private boolean resyncing = false;
+    private final Set<Integer> staleUsers = new HashSet<Integer>();
+    private final Set<Integer> staleChannels = new HashSet<Integer>();
+    private int rejoinChannel = -1;
+    private long droppedAt;
+    private volatile boolean awaitingAudio = false;
+
+    /** Decoders of the most frequent messages, reused for every message. */
+    private final UserStateDecoder userStateDecoder = new UserStateDecoder();
+    private final PingDecoder pingDecoder = new PingDecoder();
 
     public MumbleProtocol(
             final MumbleProtocolHost host,
             final AudioOutputHost audioHost,
             final MumbleConnection connection,
-            final Context ctx) {
+            final BlobCache blobCache,
+            final VoiceOutput.Factory outputFactory) {
         this.host = host;
         this.audioHost = audioHost;
         this.conn = connection;
-        this.ctx = ctx;
+        this.blobCache = blobCache;
+        this.outputFactory = outputFactory;
 
         this.host.setSynchronized(false);
 
@@ -120,34 +143,214 @@ public class MumbleProtocol {
         */
     }
 
-    public final void joinChannel(final int channelId) {
+    /**
+     * @return True if the server rejected the connection, in which case
+     *         reconnecting won't help.
+     */
+    public boolean isRejected() {
+        return rejected;
+    }
+
+    /**
+     * Continues the session on a new connection after the previous one was
+     * lost.
+     * <p/>
+     * The users, channels and audio output are kept. The state the server
+     * sends during the new handshake is applied as updates, and whatever it
+     * doesn't mention again is removed when ServerSync arrives. Then the
+     * current user is moved back to the channel it was in. Must be called
+     * before the new connection is started.
+     *
+     * @param connection New connection to the same server
+     * @param droppedAt  TransportSelector.now() when the old connection was
+     *                   lost, for the reconnect metrics
+     */
+    public void reattach(final MumbleConnection connection, final long droppedAt) {
+        stopPings();
+
+        conn = connection;
+        this.droppedAt = droppedAt;
+        resyncing = true;
+        awaitingAudio = false;
+
+        staleUsers.clear();
+        staleUsers.addAll(users.keySet());
+        staleChannels.clear();
+        staleChannels.addAll(channels.keySet());
+        rejoinChannel = currentChannel != null ? currentChannel.id : -1;
+
+        // Permissions are queried again on demand and blob requests sent on
+        // the old connection will never be answered.
+        permissions.clear();
+        textureRequests.clear();
+        commentRequests.clear();
+        descriptionRequests.clear();
+
+        host.setSynchronized(false);
+    }
+
+    /**
+     * Moves the current user to a channel.
+     *
+     * @return False if the channel is known to deny entering it, in which
+     *         case nothing is sent.
+     */
+    public final boolean joinChannel(final int channelId) {
+        if (permissions.isDenied(channelId, PermissionCache.ENTER)) {
+            Log.i(Globals.LOG_TAG, "Not allowed to enter channel " + channelId);
+            return false;
+        }
+        queryPermissions(channelId);
+
         final UserState.Builder us = UserState.newBuilder();
         us.setSession(currentUser.session);
         us.setChannelId(channelId);
         conn.sendTcpMessage(MessageType.UserState, us);
+        return true;
+    }
+
+    /**
+     * Asks the server for the permissions of the current user in a channel
+     * unless they are already cached or have been asked for. The reply
+     * updates the permission cache and signals channelUpdated.
+     */
+    public void queryPermissions(final int channelId) {
+        if (!permissions.markQueried(channelId)) {
+            return;
+        }
+
+        final PermissionQuery.Builder pq = PermissionQuery.newBuilder();
+        pq.setChannelId(channelId);
+        conn.sendTcpMessage(MessageType.PermissionQuery, pq);
     }
 
-    public void createChannel(Channel channel) {
+    /**
+     * Creates a temporary channel under the root channel unless the cached
+     * permissions deny it. Permissions that aren't known yet are queried
+     * and the server has the final say.
+     *
+     * @return False if the channel wasn't requested because it's denied.
+     */
+    public boolean createChannel(final Channel channel, final String description) {
+        if (permissions.isDenied(0, PermissionCache.MAKE_TEMP_CHANNEL)) {
+            Log.i(Globals.LOG_TAG, "Not allowed to create channel " + channel.name);
+            return false;
+        }
+        queryPermissions(0);
 
         ChannelState.Builder csb = ChannelState.newBuilder();
 
         csb.setParent(0);
         csb.setName(channel.name);
-        csb.setDescription("test channel");
+        csb.setDescription(description);
         csb.setPosition(channel.id); // test value
         csb.setTemporary(true);
 
         Log.d("MumbleProtocol", "creating channel");
 
         conn.sendTcpMessage(MumbleProtocol.MessageType.ChannelState, csb);
+        return true;
+    }
+
+    /**
+     * Sends the blob requests queued by the request* methods as a single
+     * RequestBlob message. Must be called on the control thread.
+     */
+    public void flushBlobRequests() {
+        final RequestBlob.Builder rb = RequestBlob.newBuilder();
+        rb.addAllSessionTexture(textureRequests.drain());
+        rb.addAllSessionComment(commentRequests.drain());
+        rb.addAllChannelDescription(descriptionRequests.drain());
+
+        if (rb.getSessionTextureCount() > 0 ||
+                rb.getSessionCommentCount() > 0 ||
+                rb.getChannelDescriptionCount() > 0) {
+            conn.sendTcpMessage(MessageType.RequestBlob, rb);
+        }
+    }
+
+    /**
+     * Makes the channel description available. The description is taken
+     * from the blob cache if possible. Otherwise a request is queued and
+     * channelUpdated is signaled once it arrives.
+     * <p>
+     * The blob cache may read from disk and the channel is owned by the
+     * control thread, so this must be called there, see
+     * MumbleConnection.postControlTask().
+     *
+     * @return True if a request was queued and flushBlobRequests() should be
+     *         called.
+     */
+    public boolean requestChannelDescription(final Channel channel) {
+        final byte[] hash = channel.descriptionHash;
+        if (channel.description != null || hash == null) {
+            return false;
+        }
+
+        final byte[] cached = blobCache.get(hash);
+        if (cached != null) {
+            channel.description = decodeString(cached);
+            host.channelUpdated(channel);
+            return false;
+        }
+
+        return descriptionRequests.add(channel.id);
     }
 
-    public void processTcp(final short type, final byte[] buffer)
+    /**
+     * Makes the user comment available. See requestChannelDescription.
+     */
+    public boolean requestUserComment(final User user) {
+        final byte[] hash = user.commentHash;
+        if (user.comment != null || hash == null) {
+            return false;
+        }
+
+        final byte[] cached = blobCache.get(hash);
+        if (cached != null) {
+            user.comment = decodeString(cached);
+            host.userUpdated(user);
+            return false;
+        }
+
+        return commentRequests.add(user.session);
+    }
+
+    /**
+     * Makes the user texture available. See requestChannelDescription.
+     */
+    public boolean requestUserTexture(final User user) {
+        final byte[] hash = user.textureHash;
+        if (user.texture != null || hash == null) {
+            return false;
+        }
+
+        final byte[] cached = blobCache.get(hash);
+        if (cached != null) {
+            user.texture = cached;
+            host.userUpdated(user);
+            return false;
+        }
+
+        return textureRequests.add(user.session);
+    }
+
+    /**
+     * Handles a TCP message. The buffer is only valid during the call and
+     * may be longer than the message.
+     *
+     * @param length Length of the message in the buffer
+     */
+    public void processTcp(final short type, final byte[] buffer, final int length)
             throws IOException {
         if (stopped) {
             return;
         }
 
+        if (type < 0 || type >= MT_CONSTANTS.length) {
+            Log.w(Globals.LOG_TAG, "unknown message type " + type);
+            return;
+        }
         final MessageType t = MT_CONSTANTS[type];
 
         Channel channel;
@@ -155,14 +358,28 @@ public class MumbleProtocol {
 
         switch (t) {
             case UDPTunnel:
-                processUdp(buffer, buffer.length);
+                processUdp(buffer, length);
                 break;
             case Ping:
-                // ignore
+                final PingDecoder ping = pingDecoder;
+                ping.decode(buffer, length);
+                if (ping.hasTimestamp()) {
+                    conn.tcpPing.pingReceived(
+                            ping.getTimestamp(),
+                            TransportSelector.now());
+                }
+                // The server reports how our UDP stream looks from its end.
+                if (ping.hasGood()) {
+                    conn.metrics.serverGood.set(ping.getGood());
+                    conn.metrics.serverLate.set(ping.getLate());
+                    conn.metrics.serverLost.set(ping.getLost());
+                    conn.metrics.serverResync.set(ping.getResync());
+                    conn.redundancy.serverStats(ping.getGood(), ping.getLost());
+                }
                 break;
             case CodecVersion:
                 final boolean oldCanSpeak = canSpeak;
-                final CodecVersion codecVersion = CodecVersion.parseFrom(buffer);
+                final CodecVersion codecVersion = CodecVersion.parseFrom(input(buffer, length));
                 codec = CODEC_NOCODEC;
                 if (codecVersion.hasAlpha() &&
                         codecVersion.getAlpha() == Globals.CELT_VERSION) {
@@ -179,7 +396,8 @@ public class MumbleProtocol {
 
                 break;
             case Reject:
-                final Reject reject = Reject.parseFrom(buffer);
+                final Reject reject = Reject.parseFrom(input(buffer, length));
+                rejected = true;
                 final String errorString = String.format(
                         "Connection rejected: %s",
                         reject.getReason());
@@ -190,23 +408,36 @@ public class MumbleProtocol {
                 break;
             case ServerSync:
 
-                final ServerSync ss = ServerSync.parseFrom(buffer);
+                final ServerSync ss = ServerSync.parseFrom(input(buffer, length));
 
-                // We do some things that depend on being executed only once here
-                // so for now assert that there won't be multiple ServerSyncs.
-                Assert.assertNull("A second ServerSync received.", currentUser);
+                if (resyncing) {
+                    removeStale();
+                    if (currentUser != null) {
+                        currentUser.isCurrent = false;
+                    }
+                }
 
                 currentUser = findUser(ss.getSession());
                 currentUser.isCurrent = true;
                 currentChannel = currentUser.getChannel();
 
-                pingThread = new Thread(new PingThread(conn), "Ping");
-                pingThread.start();
+                // ServerSync carries the permissions in the root channel.
+                if (ss.hasPermissions()) {
+                    permissions.put(0, (int) ss.getPermissions());
+                }
+
+                startPings();
                 Log.d(Globals.LOG_TAG, ">>> " + t);
 
-                ao = new AudioOutput(ctx, audioHost);
-                audioOutputThread = new Thread(ao, "audio output");
-                audioOutputThread.start();
+                // The audio output survives reconnects with its decoders.
+                if (ao == null) {
+                    ao = outputFactory.create(
+                            audioHost,
+                            conn.metrics,
+                            conn.tracer);
+                    audioOutputThread = new Thread(ao, "audio output");
+                    audioOutputThread.start();
+                }
 
                 final UserState.Builder usb = UserState.newBuilder();
                 usb.setSession(currentUser.session);
@@ -217,14 +448,24 @@ public class MumbleProtocol {
                 host.currentChannelChanged();
                 host.currentUserUpdated();
 
+                if (resyncing) {
+                    finishResync();
+                }
+
                 break;
             case ChannelState:
-                final ChannelState cs = ChannelState.parseFrom(buffer);
+                final ChannelState cs = ChannelState.parseFrom(input(buffer, length));
                 channel = findChannel(cs.getChannelId());
+                staleChannels.remove(cs.getChannelId());
                 if (channel != null) {
                     if (cs.hasName()) {
                         channel.name = cs.getName();
                     }
+                    if (cs.hasParent()) {
+                        // Moving a channel changes what it inherits.
+                        permissions.clear();
+                    }
+                    updateChannelDescription(channel, cs);
                     host.channelUpdated(channel);
                     break;
                 }
@@ -233,19 +474,19 @@ public class MumbleProtocol {
                 channel = new Channel();
                 channel.id = cs.getChannelId();
                 channel.name = cs.getName();
+                updateChannelDescription(channel, cs);
                 channels.put(channel.id, channel);
                 host.channelAdded(channel);
                 break;
             case ChannelRemove:
-                final ChannelRemove cr = ChannelRemove.parseFrom(buffer);
-                channel = findChannel(cr.getChannelId());
-                channel.removed = true;
-                channels.remove(channel.id);
-                host.channelRemoved(channel.id);
+                final ChannelRemove cr = ChannelRemove.parseFrom(input(buffer, length));
+                removeChannel(findChannel(cr.getChannelId()));
                 break;
             case UserState:
-                final UserState us = UserState.parseFrom(buffer);
+                final UserStateDecoder us = userStateDecoder;
+                us.decode(buffer, length);
                 user = findUser(us.getSession());
+                staleUsers.remove(us.getSession());
 
                 boolean added = false;
                 boolean currentUserUpdated = false;
@@ -291,6 +532,8 @@ public class MumbleProtocol {
                     user.name = us.getName();
                 }
 
+                updateUserBlobs(user, us);
+
                 if (added || us.hasChannelId()) {
                     user.setChannel(channels.get(us.getChannelId()));
                     channelUpdated = true;
@@ -335,21 +578,14 @@ public class MumbleProtocol {
                 // end UserState
                 break;
             case UserRemove:
-                final UserRemove ur = UserRemove.parseFrom(buffer);
-                user = findUser(ur.getSession());
-                users.remove(user.session);
-
-                // Remove the user from the channel as well.
-                user.getChannel().userCount--;
-
-                host.channelUpdated(user.getChannel());
-                host.userRemoved(user.session);
+                final UserRemove ur = UserRemove.parseFrom(input(buffer, length));
+                removeUser(findUser(ur.getSession()));
                 break;
             case TextMessage:
-                handleTextMessage(TextMessage.parseFrom(buffer));
+                handleTextMessage(TextMessage.parseFrom(input(buffer, length)));
                 break;
             case CryptSetup:
-                final CryptSetup cryptsetup = CryptSetup.parseFrom(buffer);
+                final CryptSetup cryptsetup = CryptSetup.parseFrom(input(buffer, length));
 
                 Log.d(Globals.LOG_TAG, "MumbleConnection: CryptSetup");
 
@@ -364,6 +600,7 @@ public class MumbleProtocol {
                     // Server syncing its nonce to us.
                     Log.d(Globals.LOG_TAG, "MumbleConnection: Server sending nonce");
                     conn.cryptState.setServerNonce(cryptsetup.getServerNonce().toByteArray());
+                    conn.decryptMonitor.reset();
                 } else {
                     // Server wants our nonce.
                     Log.d(
@@ -375,9 +612,27 @@ public class MumbleProtocol {
                 }
                 break;
 
+            case PermissionQuery:
+                final PermissionQuery pq = PermissionQuery.parseFrom(input(buffer, length));
+                if (pq.getFlush()) {
+                    permissions.clear();
+                }
+                if (pq.hasChannelId() && pq.hasPermissions()) {
+                    permissions.put(pq.getChannelId(), pq.getPermissions());
+                    channel = findChannel(pq.getChannelId());
+                    if (channel != null) {
+                        host.channelUpdated(channel);
+                    }
+                }
+                break;
+            case ACL:
+                // Our own ACL edits; inherited permissions may have changed
+                // anywhere below the channel.
+                permissions.clear();
+                break;
             case PermissionDenied:
 
-                MumbleProto.PermissionDenied pd = MumbleProto.PermissionDenied.parseFrom(buffer);
+                MumbleProto.PermissionDenied pd = MumbleProto.PermissionDenied.parseFrom(input(buffer, length));
 
                 Log.w("MumbleProtocol", "Permission Denied: Type=" + pd.getType());
 
@@ -404,7 +659,7 @@ public class MumbleProtocol {
 
                 break;
             case Version:
-                MumbleProto.Version version = MumbleProto.Version.parseFrom(buffer);
+                MumbleProto.Version version = MumbleProto.Version.parseFrom(input(buffer, length));
 
                 String msg = "version: " + version.getVersion();
                 msg += "   OS: " + version.getOs();
@@ -419,13 +674,23 @@ public class MumbleProtocol {
         }
     }
 
+    /**
+     * Handles a decrypted UDP packet, or one tunneled through TCP. The buffer
+     * is only valid during the call and may be longer than the packet.
+     *
+     * @param length Length of the packet in the buffer
+     */
     public void processUdp(final byte[] buffer, final int length) {
-        if (stopped) {
+        if (stopped || length == 0) {
             return;
         }
 
         final int type = buffer[0] >> 5 & 0x7;
         if (type == UDPMESSAGETYPE_UDPPING) {
+            if (length < 9) {
+                return;
+            }
+
             final long timestamp = ((long) (buffer[1] & 0xFF) << 56) |
                     ((long) (buffer[2] & 0xFF) << 48) |
                     ((long) (buffer[3] & 0xFF) << 40) |
@@ -435,9 +700,11 @@ public class MumbleProtocol {
                     ((long) (buffer[7] & 0xFF) << 8) |
                     ((buffer[8] & 0xFF));
 
-            conn.refreshUdpLimit(timestamp + UDP_PING_TRESHOLD);
+            final long now = TransportSelector.now();
+            conn.udpPing.pingReceived(timestamp, now);
+            conn.transport.probeReplied(timestamp, now);
         } else {
-            processVoicePacket(buffer);
+            processVoicePacket(buffer, length);
         }
     }
 
@@ -457,6 +724,15 @@ public class MumbleProtocol {
         host.messageSent(msg);
     }
 
+    /**
+     * Runs the pings of this connection on a scheduler shared with other
+     * connections instead of a thread of its own. Must be called before the
+     * connection is synchronized.
+     */
+    public void setPingScheduler(final ScheduledExecutorService scheduler) {
+        pingScheduler = scheduler;
+    }
+
     public void stop() {
         stopped = true;
         stopThreads();
@@ -470,6 +746,99 @@ public class MumbleProtocol {
         return users.get(session_);
     }
 
+    /**
+     * Parses a message straight from the receive buffer, which may be
+     * longer than the message.
+     */
+    private static CodedInputStream input(final byte[] buffer, final int length) {
+        return CodedInputStream.newInstance(buffer, 0, length);
+    }
+
+    private static String decodeString(final byte[] data) {
+        try {
+            return new String(data, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] encodeString(final String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Applies the description fields of a ChannelState. A new hash drops the
+     * old description; it is fetched again only when someone asks for it.
+     * A description sent with a known hash is the answer to a blob request
+     * and is stored in the blob cache.
+     */
+    private void updateChannelDescription(
+            final Channel channel,
+            final ChannelState cs) {
+        if (cs.hasDescriptionHash()) {
+            final byte[] hash = cs.getDescriptionHash().toByteArray();
+            if (!Arrays.equals(hash, channel.descriptionHash)) {
+                channel.descriptionHash = hash;
+                channel.description = null;
+                descriptionRequests.reset(channel.id);
+            }
+        }
+
+        if (cs.hasDescription()) {
+            channel.description = cs.getDescription();
+            descriptionRequests.received(channel.id);
+            if (channel.descriptionHash != null) {
+                blobCache.put(
+                        channel.descriptionHash,
+                        encodeString(channel.description));
+            }
+        }
+    }
+
+    /**
+     * Applies the comment and texture fields of a UserState the same way
+     * updateChannelDescription handles channel descriptions.
+     */
+    private void updateUserBlobs(final User user, final UserStateDecoder us) {
+        if (us.hasCommentHash()) {
+            final byte[] hash = us.getCommentHash();
+            if (!Arrays.equals(hash, user.commentHash)) {
+                user.commentHash = hash;
+                user.comment = null;
+                commentRequests.reset(user.session);
+            }
+        }
+
+        if (us.hasComment()) {
+            user.comment = us.getComment();
+            commentRequests.received(user.session);
+            if (user.commentHash != null) {
+                blobCache.put(user.commentHash, encodeString(user.comment));
+            }
+        }
+
+        if (us.hasTextureHash()) {
+            final byte[] hash = us.getTextureHash();
+            if (!Arrays.equals(hash, user.textureHash)) {
+                user.textureHash = hash;
+                user.texture = null;
+                textureRequests.reset(user.session);
+            }
+        }
+
+        if (us.hasTexture()) {
+            user.texture = us.getTexture();
+            textureRequests.received(user.session);
+            if (user.textureHash != null) {
+                blobCache.put(user.textureHash, user.texture);
+            }
+        }
+    }
+
     private void handleTextMessage(final TextMessage ts) {
         User u = null;
         if (ts.hasActor()) {
@@ -486,7 +855,7 @@ public class MumbleProtocol {
         host.messageReceived(msg);
     }
 
-    private void processVoicePacket(final byte[] buffer) {
+    private void processVoicePacket(final byte[] buffer, final int length) {
         final int type = buffer[0] >> 5 & 0x7;
         final int flags = buffer[0] & 0x1f;
 
@@ -501,7 +870,7 @@ public class MumbleProtocol {
             return;
         }
 
-        final PacketDataStream pds = new PacketDataStream(buffer);
+        final PacketDataStream pds = new PacketDataStream(buffer, length);
         // skip type / flags
         pds.skip(1);
         final long uiSession = pds.readLong();
@@ -516,9 +885,75 @@ public class MumbleProtocol {
             return;
         }
 
+        // Voice may arrive before ServerSync created the output.
+        final VoiceOutput output = ao;
+        if (output == null) {
+            return;
+        }
+
         // Rewind the packet. Otherwise consumers are confusing to implement.
         pds.rewind();
-        ao.addFrameToBuffer(u, pds, flags);
+        output.addFrameToBuffer(u, pds, flags);
+
+        if (awaitingAudio) {
+            awaitingAudio = false;
+            conn.metrics.reconnectAudio.set(TransportSelector.now() - droppedAt);
+        }
+    }
+
+    /**
+     * Completes a reconnect once ServerSync has been handled.
+     */
+    private void finishResync() {
+        resyncing = false;
+        awaitingAudio = true;
+        conn.metrics.reconnects.increment();
+        conn.metrics.reconnectSync.set(TransportSelector.now() - droppedAt);
+
+        if (rejoinChannel >= 0 && rejoinChannel != currentChannel.id &&
+                channels.containsKey(rejoinChannel)) {
+            Log.i(Globals.LOG_TAG, "Rejoining channel " + rejoinChannel);
+            joinChannel(rejoinChannel);
+        }
+    }
+
+    private void removeChannel(final Channel channel) {
+        channel.removed = true;
+        channels.remove(channel.id);
+        permissions.remove(channel.id);
+        host.channelRemoved(channel.id);
+    }
+
+    /**
+     * Removes the users and channels the server didn't announce again after
+     * a reconnect.
+     */
+    private void removeStale() {
+        for (final int session : staleUsers) {
+            final User user = findUser(session);
+            if (user != null) {
+                removeUser(user);
+            }
+        }
+        staleUsers.clear();
+
+        for (final int id : staleChannels) {
+            final Channel channel = findChannel(id);
+            if (channel != null) {
+                removeChannel(channel);
+            }
+        }
+        staleChannels.clear();
+    }
+
+    private void removeUser(final User user) {
+        users.remove(user.session);
+
+        // Remove the user from the channel as well.
+        user.getChannel().userCount--;
+
+        host.channelUpdated(user.getChannel());
+        host.userRemoved(user.session);
     }
 
     private void stopThreads() {
@@ -534,6 +969,35 @@ public class MumbleProtocol {
             }
         }
 
+        stopPings();
+    }
+
+    private void startPings() {
+        final PingThread ping = new PingThread(conn);
+        if (pingScheduler == null) {
+            pingThread = new Thread(ping, "Ping");
+            pingThread.start();
+            return;
+        }
+
+        // Once the connection is gone the ticks do nothing until stopPings().
+        pingTask = pingScheduler.scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        ping.tick();
+                    }
+                },
+                0,
+                PingThread.TICK,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void stopPings() {
+        if (pingTask != null) {
+            pingTask.cancel(false);
+            pingTask = null;
+        }
         if (pingThread != null) {
             pingThread.interrupt();
             try {
@@ -544,6 +1008,45 @@ public class MumbleProtocol {
                         "Interrupted while waiting for ping thread to end",
                         e);
             }
+            pingThread = null;
+        }
+    }
+
+    /**
+     * Tracks the blob requests of one kind. Ids are queued until the next
+     * flush and remembered as requested until the blob arrives so displaying
+     * the same item again doesn't request it twice.
+     */
+    private static class BlobRequests {
+        private final Set<Integer> pending = new HashSet<Integer>();
+        private final Set<Integer> requested = new HashSet<Integer>();
+
+        public synchronized boolean add(final int id) {
+            if (requested.contains(id)) {
+                return false;
+            }
+            return pending.add(id);
+        }
+
+        public synchronized List<Integer> drain() {
+            final List<Integer> ids = new ArrayList<Integer>(pending);
+            requested.addAll(pending);
+            pending.clear();
+            return ids;
+        }
+
+        public synchronized void clear() {
+            pending.clear();
+            requested.clear();
+        }
+
+        public synchronized void received(final int id) {
+            requested.remove(id);
+        }
+
+        public synchronized void reset(final int id) {
+            pending.remove(id);
+            requested.remove(id);
         }
     }
 
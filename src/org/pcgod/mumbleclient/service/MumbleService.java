@@ -3,6 +3,7 @@ package org.pcgod.mumbleclient.service;
 import android.app.Notification;
 import android.app.Service;
 import android.content.Intent;
+import android.database.SQLException;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
@@ -14,20 +15,31 @@ import junit.framework.Assert;
 import net.sf.mumble.MumbleProto;
 
 import org.pcgod.mumbleclient.R;
+import org.pcgod.mumbleclient.Settings;
+import org.pcgod.mumbleclient.app.DbAdapter;
+import org.pcgod.mumbleclient.service.audio.AudioOutput;
 import org.pcgod.mumbleclient.service.audio.AudioOutputHost;
-import org.pcgod.mumbleclient.service.audio.RecordThread;
+import org.pcgod.mumbleclient.service.audio.CaptureEngine;
+import org.pcgod.mumbleclient.service.audio.CeltFrameEncoder;
+import org.pcgod.mumbleclient.service.audio.MicrophoneSource;
 import org.pcgod.mumbleclient.service.model.Channel;
 import org.pcgod.mumbleclient.service.model.Message;
 import org.pcgod.mumbleclient.service.model.User;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Service for providing the client an access to the connection.
@@ -61,11 +73,24 @@ public class MumbleService extends Service {
     public static final String EXTRA_CERTIFICATE = "mumbleclient.extra.CERTIFICATE";
     public static final String EXTRA_USER = "mumbleclient.extra.USER";
 
+    /**
+     * Memory budget for cached comments, textures and descriptions.
+     */
+    private static final int BLOB_MEMORY_LIMIT = 1024 * 1024;
+    /**
+     * Delay in ms before a reconnect looks again whether the old connection
+     * thread has ended.
+     */
+    private static final long THREAD_END_POLL_INTERVAL = 50;
+
     private MumbleConnection mClient;
     private MumbleProtocol mProtocol;
 
     private Thread mClientThread;
-    private Thread mRecordThread;
+
+    /** Kept from the first press or sync until the final disconnect. */
+    private CaptureEngine captureEngine;
+    private boolean recording;
 
     Notification mNotification;
 
@@ -76,7 +101,27 @@ public class MumbleService extends Service {
     boolean synced;
     int serviceState;
     String errorString;
-    final List<Message> messages = new LinkedList<Message>();
+    DbAdapter db;
+    ChatHistory chatHistory;
+    BlobCache blobCache;
+    ConnectCache connectCache;
+    private boolean blobFlushPosted = false;
+    /** Voice trace sample interval, kept across reconnects. */
+    private int traceSampleInterval = 0;
+
+    // Reconnect supervisor, see scheduleReconnect().
+    private final ReconnectBackoff reconnectBackoff = new ReconnectBackoff();
+    private volatile boolean userDisconnected = false;
+    private volatile boolean reconnectPending = false;
+    private long connectionLostAt;
+    private final Runnable reconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            resumeConnection();
+        }
+    };
+    /** Reads chat history pages and search results off the main thread. */
+    private final ExecutorService historyExecutor = Executors.newSingleThreadExecutor();
     final List<Channel> channels = new ArrayList<Channel>();
     final List<User> users = new ArrayList<User>();
 
@@ -132,6 +177,11 @@ public class MumbleService extends Service {
             mStartForeground = mStopForeground = null;
         }
         serviceState = CONNECTION_STATE_DISCONNECTED;
+        blobCache = new BlobCache(
+                new File(getCacheDir(), "blobs"),
+                BLOB_MEMORY_LIMIT);
+        connectCache = new ConnectCache(new File(getCacheDir(), "dns"));
+        db = new DbAdapter(this).open();
     }
 
     @Override
@@ -145,6 +195,12 @@ public class MumbleService extends Service {
             @Override
             public void run() {
                 disconnect();
+
+                historyExecutor.shutdownNow();
+                if (chatHistory != null) {
+                    chatHistory.close();
+                }
+                db.close();
             }
         }).start();
 
@@ -179,10 +235,23 @@ public class MumbleService extends Service {
     public void disconnect() {
         // Call disconnect on the connection.
         // It'll notify us with DISCONNECTED when it's done.
+        userDisconnected = true;
         this.setRecording(false);
         if (mClient != null) {
             mClient.disconnect();
         }
+
+        // A reconnect waiting for its backoff has no connection that would
+        // report back.
+        if (reconnectPending) {
+            handler.removeCallbacks(reconnectTask);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    doConnectionDisconnect();
+                }
+            });
+        }
     }
 
     public List<Channel> getChannelList() {
@@ -216,8 +285,104 @@ public class MumbleService extends Service {
         return r;
     }
 
+    /**
+     * @return The most recent chat messages, oldest first. Use loadMessages()
+     *         to page through the complete history.
+     */
     public List<Message> getMessageList() {
-        return Collections.unmodifiableList(messages);
+        if (chatHistory == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(chatHistory.getRecent());
+    }
+
+    /**
+     * Reads a window of the chat history of the current server on a
+     * background thread and delivers it to the listener on the main thread.
+     *
+     * @param offset   Position of the first message, 0 being the oldest
+     * @param count    Maximum number of messages read
+     * @param listener Receives the messages, oldest first
+     */
+    public void loadMessages(
+            final int offset,
+            final int count,
+            final ChatHistory.Listener listener) {
+        final ChatHistory history = chatHistory;
+        if (history == null) {
+            return;
+        }
+
+        historyExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Message> messages;
+                try {
+                    messages = history.getMessages(offset, count);
+                } catch (final SQLException e) {
+                    Log.e(TAG, "Failed to read chat history", e);
+                    return;
+                } catch (final IllegalStateException e) {
+                    // Database was closed while reading.
+                    return;
+                }
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Positions belong to the history they were read
+                        // from. Drop them if the server changed meanwhile.
+                        if (history == chatHistory) {
+                            listener.onMessages(offset, messages);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Loads the next page of search results on a background thread and
+     * delivers it to the listener on the main thread.
+     *
+     * @param search   Search started with searchMessages()
+     * @param count    Maximum number of messages in the page
+     * @param listener Receives the page unless the search is cancelled first
+     */
+    public void loadSearchPage(
+            final ChatSearch search,
+            final int count,
+            final ChatSearch.Listener listener) {
+        historyExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Message> page;
+                try {
+                    page = search.nextPage(count);
+                } catch (final SQLException e) {
+                    Log.e(TAG, "Chat history search failed", e);
+                    search.cancel();
+                    return;
+                } catch (final IllegalStateException e) {
+                    // History was closed while the search was running.
+                    search.cancel();
+                    return;
+                }
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!search.isCancelled()) {
+                            listener.onResults(search, page);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    public int getMessageCount() {
+        return chatHistory == null ? 0 : chatHistory.getCount();
     }
 
     public List<User> getUserList() {
@@ -228,33 +393,216 @@ public class MumbleService extends Service {
         return handler;
     }
 
+    /**
+     * @return Metrics of the current connection, or null if there is none.
+     */
+    public Metrics getMetrics() {
+        return mClient != null ? mClient.getMetrics() : null;
+    }
+
     public boolean isConnected() {
         return serviceState == CONNECTION_STATE_CONNECTED;
     }
 
     public boolean isRecording() {
-        return (mRecordThread != null);
+        return recording;
+    }
+
+    /**
+     * @return False if the cached permissions deny entering the channel.
+     */
+    public boolean joinChannel(final int channelId) {
+        return mProtocol.joinChannel(channelId);
+    }
+
+    /**
+     * Checks a permission against the permission cache without waiting for
+     * the server. Unknown permissions are queried and reported as not
+     * allowed until the answer arrives; observers get onChannelUpdated then.
+     *
+     * @param perm PermissionCache bits
+     */
+    public boolean hasPermission(final int channelId, final int perm) {
+        if (mProtocol == null) {
+            return false;
+        }
+
+        if (!mProtocol.permissions.isKnown(channelId)) {
+            mProtocol.queryPermissions(channelId);
+        }
+        return mProtocol.permissions.isAllowed(channelId, perm);
+    }
+
+    /**
+     * @return False if not connected or the cached permissions deny creating
+     *         a temporary channel. See MumbleProtocol.createChannel.
+     */
+    public boolean createChannel(Channel channel) {
+        final MumbleProtocol protocol = mProtocol;
+        return protocol != null &&
+                protocol.createChannel(channel, channel.name + " team channel");
+    }
+
+    /**
+     * Starts capturing the inbound protocol traffic of the current
+     * connection. The capture stops on disconnect.
+     *
+     * @param file Capture file, overwritten if it exists
+     * @return False if there is no connection to capture
+     */
+    public boolean startCapture(final File file) throws IOException {
+        final MumbleConnection client = mClient;
+        if (client == null) {
+            return false;
+        }
+
+        client.startCapture(file);
+        return true;
+    }
+
+    public void stopCapture() {
+        if (mClient != null) {
+            mClient.stopCapture();
+        }
+    }
+
+    /**
+     * Enables voice latency tracing. See VoiceTracer.
+     *
+     * @param interval Trace every interval:th voice packet, 0 to disable
+     */
+    public void setTraceSampleInterval(final int interval) {
+        traceSampleInterval = interval;
+        if (mClient != null) {
+            mClient.getTracer().setSampleInterval(interval);
+        }
+    }
+
+    /**
+     * Writes the voice traces of the current connection as a Chrome trace
+     * event file.
+     *
+     * @param file Trace file, overwritten if it exists
+     * @return False if there is no connection to write the traces of
+     */
+    public boolean writeTrace(final File file) throws IOException {
+        final MumbleConnection client = mClient;
+        if (client == null) {
+            return false;
+        }
+
+        final Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            client.getTracer().writeTrace(out);
+        } finally {
+            out.close();
+        }
+        return true;
     }
 
-    public void joinChannel(final int channelId) {
-        mProtocol.joinChannel(channelId);
+    /**
+     * Starts a full-text search over the chat history of the current server.
+     * Use loadSearchPage() to read the results.
+     *
+     * @param query Words to search for
+     * @return The search, or null if there is no history
+     */
+    public ChatSearch searchMessages(final String query) {
+        if (chatHistory == null) {
+            return null;
+        }
+        return chatHistory.search(query);
     }
 
-    public void createChannel(Channel channel) {
+    /**
+     * Requests the description of a channel that is being displayed.
+     * Requests made during the same main loop iteration are sent to the
+     * server as one message. observer.onChannelUpdated is called once the
+     * description is available.
+     * <p>
+     * The cache lookup and the update of the channel are done on the
+     * connection's control thread, which owns the channel.
+     */
+    public void requestChannelDescription(final Channel channel) {
+        final MumbleProtocol protocol = mProtocol;
+        if (protocol == null) {
+            return;
+        }
+
+        mClient.postControlTask(new Runnable() {
+            @Override
+            public void run() {
+                protocol.requestChannelDescription(channel);
+            }
+        });
+        postBlobFlush();
+    }
+
+    /**
+     * Requests the comment of a user that is being displayed. See
+     * requestChannelDescription.
+     */
+    public void requestUserComment(final User user) {
+        final MumbleProtocol protocol = mProtocol;
+        if (protocol == null) {
+            return;
+        }
+
+        mClient.postControlTask(new Runnable() {
+            @Override
+            public void run() {
+                protocol.requestUserComment(user);
+            }
+        });
+        postBlobFlush();
+    }
 
-        MumbleProto.ChannelState.Builder csb = MumbleProto.ChannelState.newBuilder();
-        String description = channel.name + " team channel";
+    /**
+     * Requests the texture of a user that is being displayed. See
+     * requestChannelDescription.
+     */
+    public void requestUserTexture(final User user) {
+        final MumbleProtocol protocol = mProtocol;
+        if (protocol == null) {
+            return;
+        }
 
-        csb.setParent(0);
-        csb.setName(channel.name);
-        csb.setDescription(description);
-        csb.setPosition(channel.id); // test value
-        csb.setTemporary(true);
+        mClient.postControlTask(new Runnable() {
+            @Override
+            public void run() {
+                protocol.requestUserTexture(user);
+            }
+        });
+        postBlobFlush();
+    }
 
-        Log.d(TAG, "creating channel");
+    /**
+     * Sends the requests queued on the control thread during this main loop
+     * iteration. The flush is queued behind them, so it sees all of them.
+     */
+    private void postBlobFlush() {
+        if (blobFlushPosted) {
+            return;
+        }
 
-        mClient.sendTcpMessage(MumbleProtocol.MessageType.ChannelState, csb);
+        blobFlushPosted = true;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                blobFlushPosted = false;
+                final MumbleProtocol protocol = mProtocol;
+                if (protocol == null) {
+                    return;
+                }
 
+                mClient.postControlTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        protocol.flushBlobRequests();
+                    }
+                });
+            }
+        });
     }
 
     public void registerObserver(final IServiceObserver observer) {
@@ -271,21 +619,25 @@ public class MumbleService extends Service {
 
     public void setRecording(final boolean state) {
         if (mProtocol != null && mProtocol.currentUser != null &&
-                mRecordThread == null && state) {
+                !recording && state) {
             // start record
-            // TODO check initialized
-            mRecordThread = new Thread(new RecordThread(this), "record");
-            mRecordThread.start();
+            recording = true;
+            getCaptureEngine().setTransmitting(true);
             mAudioHost.setTalkState(
                     mProtocol.currentUser,
                     AudioOutputHost.STATE_TALKING);
-        } else if (mRecordThread != null && !state) {
+        } else if (recording && !state) {
             // stop record
-            mRecordThread.interrupt();
-            mRecordThread = null;
-            mAudioHost.setTalkState(
-                    mProtocol.currentUser,
-                    AudioOutputHost.STATE_PASSIVE);
+            recording = false;
+            // Gone if capture failed.
+            if (captureEngine != null) {
+                captureEngine.setTransmitting(false);
+            }
+            if (mProtocol != null) {
+                mAudioHost.setTalkState(
+                        mProtocol.currentUser,
+                        AudioOutputHost.STATE_PASSIVE);
+            }
         }
     }
 
@@ -376,6 +728,16 @@ public class MumbleService extends Service {
         }
 
         doConnectionDisconnect();
+        userDisconnected = false;
+        reconnectBackoff.reset();
+
+        final String historyKey = host + ":" + port;
+        if (chatHistory == null || !chatHistory.getServer().equals(historyKey)) {
+            if (chatHistory != null) {
+                chatHistory.close();
+            }
+            chatHistory = new ChatHistory(db, historyKey);
+        }
 
         mProtocolHost = new ServiceProtocolHost();
         mConnectionHost = new ServiceConnectionHost();
@@ -389,12 +751,15 @@ public class MumbleService extends Service {
                 password,
                 intent.getByteArrayExtra(EXTRA_CERTIFICATE),
                 new char[0]);
+        mClient.getTracer().setSampleInterval(traceSampleInterval);
+        mClient.setConnectCache(connectCache);
 
         mProtocol = new MumbleProtocol(
                 mProtocolHost,
                 mAudioHost,
                 mClient,
-                getApplicationContext());
+                blobCache,
+                AudioOutput.factory(getApplicationContext()));
 
         mClientThread = mClient.start(mProtocol);
 
@@ -413,13 +778,134 @@ public class MumbleService extends Service {
         mAudioHost = new ServiceAudioOutputHost();
 
         mClient = new MumbleConnection(mConnectionHost, host, port, username, password);
+        mClient.getTracer().setSampleInterval(traceSampleInterval);
+        mClient.setConnectCache(connectCache);
 
-        mProtocol = new MumbleProtocol(mProtocolHost, mAudioHost, mClient, getApplicationContext());
+        mProtocol = new MumbleProtocol(mProtocolHost, mAudioHost, mClient, blobCache, AudioOutput.factory(getApplicationContext()));
 
         mClientThread = mClient.start(mProtocol);
     }
 
+    /**
+     * Starts waiting for a reconnect after the connection was lost without
+     * the user asking for it. The protocol keeps the users, channels and
+     * audio output so the session continues where it left off.
+     *
+     * @return False if the session can't be resumed and should be torn
+     *         down instead.
+     */
+    private boolean scheduleReconnect() {
+        if (userDisconnected || mProtocol == null ||
+                mProtocol.currentUser == null || mProtocol.isRejected() ||
+                reconnectBackoff.isExhausted()) {
+            return false;
+        }
+
+        if (reconnectBackoff.getAttempts() == 0) {
+            connectionLostAt = TransportSelector.now();
+        }
+        final long delay = reconnectBackoff.nextDelay();
+        Log.i(TAG, "Connection lost, reconnect attempt " +
+                reconnectBackoff.getAttempts() + " in " + delay + " ms");
+
+        reconnectPending = true;
+        state = MumbleConnectionHost.STATE_CONNECTING;
+        updateConnectionState();
+        handler.postDelayed(reconnectTask, delay);
+        return true;
+    }
+
+    private void resumeConnection() {
+        reconnectPending = false;
+        if (userDisconnected || mProtocol == null) {
+            return;
+        }
+
+        // The old connection has already reported itself disconnected but
+        // its thread may still be winding down. Don't block the main thread
+        // on it; look again shortly.
+        if (mClientThread != null && mClientThread.isAlive()) {
+            reconnectPending = true;
+            handler.postDelayed(reconnectTask, THREAD_END_POLL_INTERVAL);
+            return;
+        }
+
+        if (mConnectionHost != null) {
+            mConnectionHost.disable();
+        }
+        mConnectionHost = new ServiceConnectionHost();
+
+        mClient = new MumbleConnection(mConnectionHost, mClient);
+        mProtocol.reattach(mClient, connectionLostAt);
+        mClientThread = mClient.start(mProtocol);
+    }
+
+    private CaptureEngine getCaptureEngine() {
+        if (captureEngine == null) {
+            final Settings settings = new Settings(this);
+            final MicrophoneSource source = new MicrophoneSource();
+            final boolean redundancy = settings.isRedundancy();
+            captureEngine = new CaptureEngine(
+                    source,
+                    new CeltFrameEncoder(
+                            source.getSampleRate(),
+                            settings.getAudioQuality()),
+                    new CaptureEngine.Transmitter() {
+                        @Override
+                        public void captureFailed(
+                                final CaptureEngine engine,
+                                final String error) {
+                            handler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (captureEngine != engine) {
+                                        return;
+                                    }
+                                    // The next press creates a new engine.
+                                    captureEngine = null;
+                                    errorString = error;
+                                    setRecording(false);
+                                }
+                            });
+                        }
+
+                        @Override
+                        public int getCodec() {
+                            final MumbleProtocol protocol = mProtocol;
+                            return protocol != null ? protocol.codec
+                                    : MumbleProtocol.CODEC_NOCODEC;
+                        }
+
+                        @Override
+                        public boolean isRedundant() {
+                            final MumbleConnection client = mClient;
+                            return redundancy && client != null &&
+                                   client.getRedundancy().isEnabled();
+                        }
+
+                        @Override
+                        public void sendPacket(final byte[] packet, final int length) {
+                            sendUdpMessage(packet, length);
+                        }
+                    },
+                    getMetrics());
+            captureEngine.setStandby(settings.isMicStandby());
+            captureEngine.start();
+        }
+        return captureEngine;
+    }
+
     private void doConnectionDisconnect() {
+        handler.removeCallbacks(reconnectTask);
+        reconnectPending = false;
+
+        // The capture engine outlives reconnects but not the connection.
+        recording = false;
+        if (captureEngine != null) {
+            captureEngine.shutdown();
+            captureEngine = null;
+        }
+
         // First disable all hosts to prevent old callbacks from being processed.
         if (mProtocolHost != null) {
             mProtocolHost.disable();
@@ -618,6 +1104,11 @@ public class MumbleService extends Service {
             handler.post(new ServiceProtocolMessage() {
                 @Override
                 public void process() {
+                    // Ignore connections that have been replaced.
+                    if (ServiceConnectionHost.this != mConnectionHost) {
+                        return;
+                    }
+
                     if (MumbleService.this.state == state) {
                         return;
                     }
@@ -629,7 +1120,9 @@ public class MumbleService extends Service {
 //                        showNotification();
                         updateConnectionState();
                     } else if (state == MumbleConnectionHost.STATE_DISCONNECTED) {
-                        doConnectionDisconnect();
+                        if (!scheduleReconnect()) {
+                            doConnectionDisconnect();
+                        }
                     } else {
                         updateConnectionState();
                     }
@@ -774,7 +1267,7 @@ public class MumbleService extends Service {
             handler.post(new ServiceProtocolMessage() {
                 @Override
                 public void process() {
-                    messages.add(msg);
+                    chatHistory.add(msg);
                 }
 
                 @Override
@@ -789,7 +1282,7 @@ public class MumbleService extends Service {
             handler.post(new ServiceProtocolMessage() {
                 @Override
                 public void process() {
-                    messages.add(msg);
+                    chatHistory.add(msg);
                 }
 
                 @Override
@@ -821,6 +1314,13 @@ public class MumbleService extends Service {
                 @Override
                 public void process() {
                     MumbleService.this.synced = synced;
+                    if (synced) {
+                        reconnectBackoff.reset();
+                        // Standby needs the engine before the first press.
+                        if (new Settings(MumbleService.this).isMicStandby()) {
+                            getCaptureEngine();
+                        }
+                    }
                     updateConnectionState();
                 }
 
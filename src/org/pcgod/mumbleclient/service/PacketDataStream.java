@@ -12,6 +12,14 @@ public class PacketDataStream {
 		setBuffer(d);
 	}
 
+	/**
+	 * @param length Number of bytes of d to read, for buffers that are
+	 *            longer than their content.
+	 */
+	public PacketDataStream(final byte[] d, final int length) {
+		setBuffer(d, length);
+	}
+
 	public final void append(final byte[] d) {
 		final int len = d.length;
 		if (left() >= len) {
@@ -26,7 +34,7 @@ public class PacketDataStream {
 	}
 
 	public final void append(final long v) {
-		if (offset < data.length) {
+		if (offset < capacity) {
 			data[offset] = (byte) v;
 			++offset;
 		} else {
@@ -35,7 +43,7 @@ public class PacketDataStream {
 	}
 
 	public final int capacity() {
-		return data.length;
+		return capacity;
 	}
 
 	public final boolean dataBlock(final byte[] buffer, final int len) {
@@ -152,10 +160,14 @@ public class PacketDataStream {
 	}
 
 	public void setBuffer(final byte[] d) {
+		setBuffer(d, d.length);
+	}
+
+	public void setBuffer(final byte[] d, final int length) {
 		data = d;
 		ok = true;
 		offset = 0;
-		capacity = d.length;
+		capacity = length;
 	}
 
 	public final int size() {
@@ -0,0 +1,216 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
+/**
+ * Connects to the first of several addresses of a host that completes a TLS
+ * handshake, in the spirit of RFC 8305 "happy eyeballs".
+ * <p>
+ * Addresses are tried in an order alternating between IPv6 and IPv4. A new
+ * attempt is started every ATTEMPT_DELAY, or as soon as the previous one
+ * fails, without cancelling the attempts already running. The first
+ * attempt to finish its handshake wins and all others are closed, so a
+ * broken address family or a dead record costs ATTEMPT_DELAY instead of
+ * the whole connect timeout.
+ * <p>
+ * Each attempt runs on its own thread. connect() blocks the calling thread
+ * until an attempt wins or all of them have failed.
+ */
+public class ParallelConnector {
+	static final long ATTEMPT_DELAY = 250;
+	static final int CONNECT_TIMEOUT = 10000;
+
+	private class Attempt implements Runnable {
+		final InetAddress address;
+		final Socket socket = new Socket();
+
+		Attempt(final InetAddress address) {
+			this.address = address;
+		}
+
+		public void cancel() {
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				Log.w(Globals.LOG_TAG, "Closing connection attempt failed", e);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				socket.connect(
+					new InetSocketAddress(address, port),
+					CONNECT_TIMEOUT);
+				socket.setTcpNoDelay(true);
+
+				// The host name keys the session cache, so sessions resume
+				// whichever address wins.
+				final SSLSocket sslSocket = (SSLSocket) context.getSocketFactory().createSocket(
+					socket,
+					host,
+					port,
+					true);
+				sslSocket.setUseClientMode(true);
+				sslSocket.setEnabledProtocols(new String[] { "TLSv1" });
+				sslSocket.startHandshake();
+
+				synchronized (lock) {
+					if (winner == null && !cancelled) {
+						winner = sslSocket;
+						winningAttempt = this;
+						lock.notifyAll();
+						return;
+					}
+				}
+				// Lost the race.
+				sslSocket.close();
+			} catch (final IOException e) {
+				synchronized (lock) {
+					failed++;
+					lastError = e;
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Orders addresses alternating between IPv6 and IPv4, starting with the
+	 * family of the first address. The relative order within a family is
+	 * kept.
+	 */
+	public static InetAddress[] interleave(final InetAddress[] addresses) {
+		final List<InetAddress> v6 = new ArrayList<InetAddress>();
+		final List<InetAddress> v4 = new ArrayList<InetAddress>();
+		for (final InetAddress address : addresses) {
+			(address instanceof Inet6Address ? v6 : v4).add(address);
+		}
+
+		final boolean v6First = addresses.length > 0 &&
+								addresses[0] instanceof Inet6Address;
+		final List<InetAddress> first = v6First ? v6 : v4;
+		final List<InetAddress> second = v6First ? v4 : v6;
+
+		final InetAddress[] ordered = new InetAddress[addresses.length];
+		int n = 0;
+		for (int i = 0; n < ordered.length; i++) {
+			if (i < first.size()) {
+				ordered[n++] = first.get(i);
+			}
+			if (i < second.size()) {
+				ordered[n++] = second.get(i);
+			}
+		}
+		return ordered;
+	}
+
+	private final SSLContext context;
+	private final String host;
+	private final int port;
+
+	private final Object lock = new Object();
+	private final List<Attempt> attempts = new ArrayList<Attempt>();
+	private SSLSocket winner;
+	private Attempt winningAttempt;
+	private IOException lastError;
+	private int failed;
+	private boolean cancelled;
+
+	/**
+	 * @param context Context the TLS sockets are created from
+	 * @param host Host name the addresses belong to
+	 * @param port Server port
+	 */
+	public ParallelConnector(
+		final SSLContext context,
+		final String host,
+		final int port) {
+		this.context = context;
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Connects to one of the addresses. A connector can only be used once.
+	 *
+	 * @return The handshaken socket of the winning attempt. Its
+	 *         getInetAddress() is the address that won.
+	 * @throws IOException The error of the last failed attempt if all of them
+	 *             failed.
+	 */
+	public SSLSocket connect(final InetAddress[] addresses) throws IOException {
+		if (addresses.length == 0) {
+			throw new IOException("No addresses to connect to");
+		}
+
+		final InetAddress[] ordered = interleave(addresses);
+		try {
+			synchronized (lock) {
+				for (int i = 0; i < ordered.length && winner == null; i++) {
+					start(ordered[i]);
+
+					// Give the attempt a head start unless it fails first.
+					final long deadline = TransportSelector.now() +
+										  ATTEMPT_DELAY;
+					final int failedBefore = failed;
+					long wait;
+					while (winner == null && failed == failedBefore &&
+						   (wait = deadline - TransportSelector.now()) > 0) {
+						lock.wait(wait);
+					}
+				}
+
+				while (winner == null && failed < attempts.size()) {
+					lock.wait();
+				}
+
+				if (winner == null) {
+					throw lastError;
+				}
+				return winner;
+			}
+		} catch (final InterruptedException e) {
+			throw new InterruptedIOException("Connecting interrupted");
+		} finally {
+			cancelLosers();
+		}
+	}
+
+	private void cancelLosers() {
+		final List<Attempt> losers;
+		synchronized (lock) {
+			cancelled = true;
+			losers = new ArrayList<Attempt>(attempts);
+		}
+
+		for (final Attempt attempt : losers) {
+			if (attempt != winningAttempt) {
+				attempt.cancel();
+			}
+		}
+	}
+
+	private void start(final InetAddress address) {
+		final Attempt attempt = new Attempt(address);
+		attempts.add(attempt);
+		final Thread thread = new Thread(attempt, "Connect " +
+												  address.getHostAddress());
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
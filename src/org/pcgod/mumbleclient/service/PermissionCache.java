@@ -0,0 +1,93 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Effective permissions of the current user per channel as reported by the
+ * server in PermissionQuery replies.
+ * <p>
+ * The cache lets the client decide locally whether an action is allowed
+ * instead of sending it blind and waiting for PermissionDenied. Entries are
+ * dropped when the server asks for a flush or when ACLs or the channel tree
+ * change, since inherited permissions may then differ.
+ * <p>
+ * All methods are thread safe.
+ */
+public class PermissionCache {
+	// Permission bits as defined by the Mumble ACL model.
+	public static final int NONE = 0x0;
+	public static final int WRITE = 0x1;
+	public static final int TRAVERSE = 0x2;
+	public static final int ENTER = 0x4;
+	public static final int SPEAK = 0x8;
+	public static final int MUTE_DEAFEN = 0x10;
+	public static final int MOVE = 0x20;
+	public static final int MAKE_CHANNEL = 0x40;
+	public static final int LINK_CHANNEL = 0x80;
+	public static final int WHISPER = 0x100;
+	public static final int TEXT_MESSAGE = 0x200;
+	public static final int MAKE_TEMP_CHANNEL = 0x400;
+	public static final int KICK = 0x10000;
+	public static final int BAN = 0x20000;
+	public static final int REGISTER = 0x40000;
+	public static final int SELF_REGISTER = 0x80000;
+
+	private final Map<Integer, Integer> permissions = new HashMap<Integer, Integer>();
+	private final Set<Integer> queried = new HashSet<Integer>();
+
+	public synchronized void clear() {
+		permissions.clear();
+		queried.clear();
+	}
+
+	/**
+	 * Checks a permission without contacting the server.
+	 *
+	 * @return True if the permissions of the channel are known and include
+	 *         all of the given bits.
+	 */
+	public synchronized boolean isAllowed(final int channelId, final int perm) {
+		final Integer granted = permissions.get(channelId);
+		return granted != null && (granted & perm) == perm;
+	}
+
+	/**
+	 * Checks whether the permissions of a channel are known to exclude some
+	 * of the given bits. Unknown channels are not considered denied; the
+	 * server has the final say on those.
+	 */
+	public synchronized boolean isDenied(final int channelId, final int perm) {
+		final Integer granted = permissions.get(channelId);
+		return granted != null && (granted & perm) != perm;
+	}
+
+	public synchronized boolean isKnown(final int channelId) {
+		return permissions.containsKey(channelId);
+	}
+
+	/**
+	 * Marks the channel as queried.
+	 *
+	 * @return True if a PermissionQuery should be sent, false if the
+	 *         permissions are known or a query is already outstanding.
+	 */
+	public synchronized boolean markQueried(final int channelId) {
+		if (permissions.containsKey(channelId)) {
+			return false;
+		}
+		return queried.add(channelId);
+	}
+
+	public synchronized void put(final int channelId, final int perm) {
+		permissions.put(channelId, perm);
+		queried.remove(channelId);
+	}
+
+	public synchronized void remove(final int channelId) {
+		permissions.remove(channelId);
+		queried.remove(channelId);
+	}
+}
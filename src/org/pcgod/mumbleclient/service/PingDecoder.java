@@ -0,0 +1,81 @@
+package org.pcgod.mumbleclient.service;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Decodes the fields of the server's Ping replies MumbleProtocol uses: the
+ * echoed timestamp and the server's view of our UDP crypt statistics.
+ * <p>
+ * The getters match the generated MumbleProto.Ping.
+ */
+public class PingDecoder extends WireDecoder {
+	private static final int TIMESTAMP = tag(1, WIRETYPE_VARINT);
+	private static final int GOOD = tag(2, WIRETYPE_VARINT);
+	private static final int LATE = tag(3, WIRETYPE_VARINT);
+	private static final int LOST = tag(4, WIRETYPE_VARINT);
+	private static final int RESYNC = tag(5, WIRETYPE_VARINT);
+
+	private boolean hasTimestamp;
+	private long timestamp;
+	private boolean hasGood;
+	private int good;
+	private int late;
+	private int lost;
+	private int resync;
+
+	public int getGood() {
+		return good;
+	}
+
+	public int getLate() {
+		return late;
+	}
+
+	public int getLost() {
+		return lost;
+	}
+
+	public int getResync() {
+		return resync;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public boolean hasGood() {
+		return hasGood;
+	}
+
+	public boolean hasTimestamp() {
+		return hasTimestamp;
+	}
+
+	@Override
+	protected void clear() {
+		hasTimestamp = hasGood = false;
+		timestamp = 0;
+		good = late = lost = resync = 0;
+	}
+
+	@Override
+	protected boolean readField(final int tag)
+		throws InvalidProtocolBufferException {
+		if (tag == TIMESTAMP) {
+			timestamp = readVarint64();
+			hasTimestamp = true;
+		} else if (tag == GOOD) {
+			good = readVarint32();
+			hasGood = true;
+		} else if (tag == LATE) {
+			late = readVarint32();
+		} else if (tag == LOST) {
+			lost = readVarint32();
+		} else if (tag == RESYNC) {
+			resync = readVarint32();
+		} else {
+			return false;
+		}
+		return true;
+	}
+}
@@ -3,12 +3,20 @@ package org.pcgod.mumbleclient.service;
 import net.sf.mumble.MumbleProto.Ping;
 
 class PingThread implements Runnable {
+	/** Number of pings between metrics log lines. */
+	private static final int METRICS_INTERVAL = 6;
+	/** Granularity of the probe schedule and timeout checks. */
+	static final long TICK = 250;
+
 	private boolean running = true;
+	private int pings = 0;
+	private long nextTcpPing;
 	private final MumbleConnection mc;
 	private final byte[] udpBuffer = new byte[9];
 
 	public PingThread(final MumbleConnection mc_) {
 		this.mc = mc_;
+		nextTcpPing = TransportSelector.now();
 
 		// Type: Ping
 		udpBuffer[0] = MumbleProtocol.UDPMESSAGETYPE_UDPPING << 5;
@@ -16,31 +24,87 @@ class PingThread implements Runnable {
 
 	@Override
 	public final void run() {
-		while (running && mc.isConnectionAlive()) {
+		while (running && tick()) {
 			try {
-				final long timestamp = System.currentTimeMillis();
-
-				// TCP
-				final Ping.Builder p = Ping.newBuilder();
-				p.setTimestamp(timestamp);
-				mc.sendTcpMessage(MumbleProtocol.MessageType.Ping, p);
-
-				// UDP
-				udpBuffer[1] = (byte) ((timestamp >> 56) & 0xFF);
-				udpBuffer[2] = (byte) ((timestamp >> 48) & 0xFF);
-				udpBuffer[3] = (byte) ((timestamp >> 40) & 0xFF);
-				udpBuffer[4] = (byte) ((timestamp >> 32) & 0xFF);
-				udpBuffer[5] = (byte) ((timestamp >> 24) & 0xFF);
-				udpBuffer[6] = (byte) ((timestamp >> 16) & 0xFF);
-				udpBuffer[7] = (byte) ((timestamp >> 8) & 0xFF);
-				udpBuffer[8] = (byte) ((timestamp) & 0xFF);
-
-				mc.sendUdpMessage(udpBuffer, udpBuffer.length, true);
-				Thread.sleep(5000);
+				Thread.sleep(TICK);
 			} catch (final InterruptedException e) {
 				e.printStackTrace();
 				running = false;
 			}
 		}
 	}
+
+	/**
+	 * Sends the pings and probes that are due. Called every TICK, by run()
+	 * or by a scheduler shared between connections.
+	 *
+	 * @return False once the connection is gone
+	 */
+	final boolean tick() {
+		if (!mc.isConnectionAlive()) {
+			return false;
+		}
+		final long now = TransportSelector.now();
+
+		if (now >= nextTcpPing) {
+			// TCP, carrying our view of the connection like the desktop
+			// client does.
+			final Ping.Builder p = Ping.newBuilder();
+			p.setTimestamp(now);
+			addStats(p);
+			mc.tcpPing.pingSent(now);
+			mc.sendTcpMessage(MumbleProtocol.MessageType.Ping, p);
+			nextTcpPing = now + TransportSelector.PING_INTERVAL;
+
+			if (++pings % METRICS_INTERVAL == 0) {
+				mc.reportMetrics();
+			}
+		}
+
+		// UDP probes run faster than the TCP pings while the path is in
+		// doubt. See TransportSelector.
+		if (mc.transport.isProbeDue(now)) {
+			sendUdpPing(now);
+		}
+		mc.transport.check(now);
+		return true;
+	}
+
+	private void addStats(final Ping.Builder p) {
+		final CryptState crypt = mc.cryptState;
+		p.setGood(crypt.getGood());
+		p.setLate(crypt.getLate());
+		p.setLost(crypt.getLost());
+		p.setResync(crypt.getResync());
+
+		// The counts are of the ping replies the averages are taken over.
+		final RttEstimator udp = mc.udpPing;
+		final RttEstimator tcp = mc.tcpPing;
+		p.setUdpPackets(udp.getSamples());
+		p.setTcpPackets(tcp.getSamples());
+
+		if (udp.getSamples() > 0) {
+			p.setUdpPingAvg((float) udp.getMean());
+			p.setUdpPingVar((float) udp.getVariance());
+		}
+		if (tcp.getSamples() > 0) {
+			p.setTcpPingAvg((float) tcp.getMean());
+			p.setTcpPingVar((float) tcp.getVariance());
+		}
+	}
+
+	private void sendUdpPing(final long timestamp) {
+		udpBuffer[1] = (byte) ((timestamp >> 56) & 0xFF);
+		udpBuffer[2] = (byte) ((timestamp >> 48) & 0xFF);
+		udpBuffer[3] = (byte) ((timestamp >> 40) & 0xFF);
+		udpBuffer[4] = (byte) ((timestamp >> 32) & 0xFF);
+		udpBuffer[5] = (byte) ((timestamp >> 24) & 0xFF);
+		udpBuffer[6] = (byte) ((timestamp >> 16) & 0xFF);
+		udpBuffer[7] = (byte) ((timestamp >> 8) & 0xFF);
+		udpBuffer[8] = (byte) ((timestamp) & 0xFF);
+
+		mc.udpPing.pingSent(timestamp);
+		mc.transport.probeSent(timestamp);
+		mc.sendUdpMessage(udpBuffer, udpBuffer.length, true);
+	}
 }
@@ -0,0 +1,125 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
+/**
+ * Append-only log of the inbound protocol traffic of a connection.
+ * <p>
+ * The file starts with the int MAGIC and the int VERSION, followed by one
+ * record per message:
+ *
+ * <pre>
+ * long  nanoseconds since the capture started (System.nanoTime based)
+ * short TCP message type, or TYPE_UDP for a decrypted UDP packet
+ * int   payload length
+ * byte[length] payload
+ * </pre>
+ *
+ * All values are big-endian. The file is written through memory mapped
+ * regions so appending is a memory copy. The file is truncated to its
+ * content on close; if the process dies first the unwritten tail reads as
+ * zero records, which ProtocolReplay treats as the end.
+ * <p>
+ * Records are appended from both socket reader threads so writes are
+ * synchronized.
+ */
+public class ProtocolCapture {
+	public static final int MAGIC = 0x4d434150; // "MCAP"
+	public static final int VERSION = 1;
+	public static final short TYPE_UDP = -1;
+
+	static final int RECORD_HEADER_SIZE = 8 + 2 + 4;
+
+	static final int REGION_SIZE = 1024 * 1024;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long startTime;
+	private MappedByteBuffer region;
+	private long regionStart;
+	private boolean closed;
+
+	public ProtocolCapture(final File path) throws IOException {
+		file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		startTime = System.nanoTime();
+
+		map(0, 8);
+		region.putInt(MAGIC);
+		region.putInt(VERSION);
+	}
+
+	/**
+	 * Stops capturing and truncates the file to the written records.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		final long size = regionStart + region.position();
+		region.force();
+		region = null;
+		try {
+			channel.truncate(size);
+			file.close();
+		} catch (final IOException e) {
+			Log.w(Globals.LOG_TAG, "Failed to close protocol capture", e);
+		}
+	}
+
+	public void writeTcp(final short type, final byte[] data, final int length) {
+		write(type, data, length);
+	}
+
+	public void writeUdp(final byte[] data, final int length) {
+		write(TYPE_UDP, data, length);
+	}
+
+	private void map(final long position, final int minimum) throws IOException {
+		regionStart = position;
+		region = channel.map(
+			MapMode.READ_WRITE,
+			position,
+			Math.max(REGION_SIZE, minimum));
+	}
+
+	private synchronized void write(
+		final short type,
+		final byte[] data,
+		final int length) {
+		if (closed) {
+			return;
+		}
+
+		final long timestamp = System.nanoTime() - startTime;
+		try {
+			if (region.remaining() < RECORD_HEADER_SIZE + length) {
+				map(regionStart + region.position(), RECORD_HEADER_SIZE +
+													 length);
+			}
+		} catch (final IOException e) {
+			// Capturing is best effort. Stop instead of failing the
+			// connection.
+			Log.e(Globals.LOG_TAG, "Protocol capture failed, stopping", e);
+			closed = true;
+			return;
+		}
+
+		region.putLong(timestamp);
+		region.putShort(type);
+		region.putInt(length);
+		region.put(data, 0, length);
+	}
+}
@@ -0,0 +1,119 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Feeds a ProtocolCapture log into a MumbleProtocol.
+ * <p>
+ * Records are passed to processTcp and processUdp in capture order. With a
+ * positive speed the original timing is reproduced, scaled by the speed
+ * factor; with speed 0 the records are replayed as fast as the protocol
+ * handles them, which makes for a deterministic benchmark of the receive
+ * path.
+ * <p>
+ * The protocol should be created with a MumbleConnection that hasn't been
+ * started. Replies the protocol tries to send are then dropped.
+ */
+public class ProtocolReplay {
+	private final File path;
+	private final MumbleProtocol protocol;
+	private final double speed;
+	private final BufferPool pool = new BufferPool();
+
+	private int records;
+	private long elapsed;
+
+	/**
+	 * @param path Capture file
+	 * @param protocol Protocol receiving the records
+	 * @param speed Playback speed, 1 for real time, 0 for no delays
+	 */
+	public ProtocolReplay(
+		final File path,
+		final MumbleProtocol protocol,
+		final double speed) {
+		this.path = path;
+		this.protocol = protocol;
+		this.speed = speed;
+	}
+
+	/**
+	 * @return Time spent in the last replay() in nanoseconds
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * @return Number of records replayed by the last replay()
+	 */
+	public int getRecords() {
+		return records;
+	}
+
+	/**
+	 * Replays the whole capture on the calling thread.
+	 */
+	public void replay() throws IOException, InterruptedException {
+		final RandomAccessFile file = new RandomAccessFile(path, "r");
+		final MappedByteBuffer buffer;
+		try {
+			buffer = file.getChannel().map(MapMode.READ_ONLY, 0, file.length());
+		} finally {
+			file.close();
+		}
+
+		if (buffer.remaining() < 8 || buffer.getInt() != ProtocolCapture.MAGIC) {
+			throw new IOException("Not a protocol capture: " + path);
+		}
+		final int version = buffer.getInt();
+		if (version != ProtocolCapture.VERSION) {
+			throw new IOException("Unsupported capture version " + version);
+		}
+
+		records = 0;
+		final long start = System.nanoTime();
+		while (buffer.remaining() >= ProtocolCapture.RECORD_HEADER_SIZE) {
+			final long timestamp = buffer.getLong();
+			final short type = buffer.getShort();
+			final int length = buffer.getInt();
+
+			// Zeroed tail of a capture that wasn't closed, possibly before
+			// its first record.
+			if (timestamp == 0 && type == 0 && length == 0) {
+				break;
+			}
+			if (length < 0 || length > buffer.remaining()) {
+				throw new IOException("Truncated capture record " + records);
+			}
+
+			final byte[] data = pool.acquire(length);
+			buffer.get(data, 0, length);
+
+			if (speed > 0) {
+				waitUntil(start + (long) (timestamp / speed));
+			}
+
+			if (type == ProtocolCapture.TYPE_UDP) {
+				protocol.processUdp(data, length);
+			} else {
+				protocol.processTcp(type, data, length);
+			}
+			pool.release(data);
+			records++;
+		}
+		elapsed = System.nanoTime() - start;
+	}
+
+	private static void waitUntil(final long deadline)
+		throws InterruptedException {
+		final long remaining = deadline - System.nanoTime();
+		if (remaining > 0) {
+			Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for reconnect attempts.
+ * <p>
+ * The nominal delay doubles from INITIAL_DELAY up to MAX_DELAY with each
+ * attempt. The actual delay is drawn uniformly from the upper half of the
+ * nominal delay so that clients dropped by the same server outage don't
+ * all come back at the same instant, while a retry is never much earlier
+ * than planned.
+ */
+public class ReconnectBackoff {
+	public static final long INITIAL_DELAY = 500;
+	public static final long MAX_DELAY = 30000;
+	public static final int MAX_ATTEMPTS = 15;
+
+	private final Random random;
+	private int attempts = 0;
+
+	public ReconnectBackoff() {
+		this(new Random());
+	}
+
+	public ReconnectBackoff(final Random random) {
+		this.random = random;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @return True if MAX_ATTEMPTS attempts have been made since the last
+	 *         reset().
+	 */
+	public boolean isExhausted() {
+		return attempts >= MAX_ATTEMPTS;
+	}
+
+	/**
+	 * Counts an attempt.
+	 *
+	 * @return Milliseconds to wait before the attempt.
+	 */
+	public long nextDelay() {
+		final long nominal = Math.min(MAX_DELAY, INITIAL_DELAY << Math.min(
+			attempts,
+			16));
+		attempts++;
+		return nominal / 2 + (long) (random.nextDouble() * (nominal / 2));
+	}
+
+	/**
+	 * Starts over after a successful connection.
+	 */
+	public void reset() {
+		attempts = 0;
+	}
+}
@@ -0,0 +1,86 @@
+package org.pcgod.mumbleclient.service;
+
+/**
+ * Decides whether outgoing voice packets should repeat the frames of the
+ * previous packet.
+ * <p>
+ * The server reports in its pings how many of our UDP packets it decrypted
+ * and how many it found missing. The loss between two reports is smoothed
+ * and redundancy turns on above ENABLE_LOSS and off again below
+ * DISABLE_LOSS. Reports are combined until they cover MIN_PACKETS packets,
+ * so the pings sent while not talking don't move the estimate. Tunneled
+ * voice isn't lost, so redundancy is only used while voice goes over UDP.
+ * <p>
+ * Reports arrive on the control thread and isEnabled() is called from the
+ * capture thread.
+ */
+public class RedundancyControl {
+	private static final double ENABLE_LOSS = 0.03;
+	private static final double DISABLE_LOSS = 0.01;
+	private static final double LOSS_GAIN = 1.0 / 4;
+	private static final int MIN_PACKETS = 50;
+
+	private final TransportSelector transport;
+	private final Metrics metrics;
+
+	private boolean started;
+	private long lastGood;
+	private long lastLost;
+	private double lossRate;
+	private volatile boolean enabled;
+
+	public RedundancyControl(
+		final TransportSelector transport,
+		final Metrics metrics) {
+		this.transport = transport;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return Smoothed fraction of our UDP voice packets the server missed.
+	 */
+	public synchronized double getLossRate() {
+		return lossRate;
+	}
+
+	/**
+	 * @return True if voice packets should carry redundant frames.
+	 */
+	public boolean isEnabled() {
+		return enabled && transport.isUdp();
+	}
+
+	/**
+	 * Records the server's statistics of our UDP stream.
+	 *
+	 * @param good Packets the server decrypted
+	 * @param lost Packets the server found missing
+	 */
+	public synchronized void serverStats(final long good, final long lost) {
+		if (!started || good < lastGood) {
+			// First report, or the server's crypt state was reset.
+			started = true;
+			lastGood = good;
+			lastLost = lost;
+			return;
+		}
+
+		final long received = good - lastGood;
+		// Late packets are taken off the lost count again.
+		final long missing = Math.max(0, lost - lastLost);
+		if (received + missing < MIN_PACKETS) {
+			return;
+		}
+		lastGood = good;
+		lastLost = lost;
+
+		final double loss = (double) missing / (received + missing);
+		lossRate += (loss - lossRate) * LOSS_GAIN;
+		if (lossRate > ENABLE_LOSS) {
+			enabled = true;
+		} else if (lossRate < DISABLE_LOSS) {
+			enabled = false;
+		}
+		metrics.uplinkLoss.set((long) (lossRate * 1000));
+	}
+}
@@ -0,0 +1,165 @@
+package org.pcgod.mumbleclient.service;
+
+/**
+ * Round trip time, jitter and loss estimation for one ping transport.
+ * <p>
+ * The smoothed RTT and RTT variation follow RFC 6298 (gains 1/8 and 1/4)
+ * and react quickly to changes. Jitter is the RFC 3550 interarrival jitter
+ * estimate applied to consecutive RTT samples. The plain mean and variance
+ * over all samples are kept as well since that is what the ping messages
+ * report to the server.
+ * <p>
+ * Loss is estimated from pings that haven't been answered by the time the
+ * next one is sent. Replies arriving after that still count as RTT samples.
+ * <p>
+ * Pings are sent from the PingThread and answered on the socket reader
+ * threads, so all methods are synchronized.
+ */
+public class RttEstimator {
+	private static final double RTT_GAIN = 1.0 / 8;
+	private static final double VARIATION_GAIN = 1.0 / 4;
+	private static final double JITTER_GAIN = 1.0 / 16;
+	private static final double LOSS_GAIN = 1.0 / 8;
+
+	private final Metrics.Histogram histogram;
+
+	private long outstanding;
+	private int sent;
+	private int received;
+	private int lost;
+
+	private double srtt;
+	private double rttvar;
+	private double jitter;
+	private double lossRate;
+	private double lastRtt = -1;
+
+	private int samples;
+	private double mean;
+	private double m2;
+
+	/**
+	 * @param histogram RTT histogram the samples are recorded to.
+	 */
+	public RttEstimator(final Metrics.Histogram histogram) {
+		this.histogram = histogram;
+	}
+
+	/**
+	 * @return Interarrival jitter estimate in milliseconds.
+	 */
+	public synchronized double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * @return Smoothed fraction of pings that went unanswered.
+	 */
+	public synchronized double getLossRate() {
+		return lossRate;
+	}
+
+	/**
+	 * @return Number of pings that weren't answered before the next one.
+	 */
+	public synchronized int getLost() {
+		return lost;
+	}
+
+	/**
+	 * @return Mean of all RTT samples in milliseconds.
+	 */
+	public synchronized double getMean() {
+		return mean;
+	}
+
+	public synchronized int getReceived() {
+		return received;
+	}
+
+	/**
+	 * @return RTT variation in milliseconds.
+	 */
+	public synchronized double getRttVariation() {
+		return rttvar;
+	}
+
+	public synchronized int getSamples() {
+		return samples;
+	}
+
+	public synchronized int getSent() {
+		return sent;
+	}
+
+	/**
+	 * @return Smoothed RTT in milliseconds, 0 before the first sample.
+	 */
+	public synchronized double getSmoothedRtt() {
+		return srtt;
+	}
+
+	/**
+	 * @return Variance of all RTT samples.
+	 */
+	public synchronized double getVariance() {
+		return samples > 1 ? m2 / (samples - 1) : 0;
+	}
+
+	/**
+	 * Records a ping reply.
+	 *
+	 * @param timestamp The timestamp echoed by the server
+	 * @param now Current time on the clock the timestamp came from
+	 * @return The RTT sample in milliseconds, or -1 if the timestamp is in the
+	 *         future and can't be trusted.
+	 */
+	public synchronized double pingReceived(final long timestamp, final long now) {
+		final double rtt = now - timestamp;
+		if (rtt < 0) {
+			return -1;
+		}
+
+		received++;
+		if (timestamp == outstanding) {
+			outstanding = 0;
+			lossRate += (0 - lossRate) * LOSS_GAIN;
+		}
+
+		if (samples == 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			rttvar += (Math.abs(srtt - rtt) - rttvar) * VARIATION_GAIN;
+			srtt += (rtt - srtt) * RTT_GAIN;
+		}
+
+		if (lastRtt >= 0) {
+			jitter += (Math.abs(rtt - lastRtt) - jitter) * JITTER_GAIN;
+		}
+		lastRtt = rtt;
+
+		samples++;
+		final double delta = rtt - mean;
+		mean += delta / samples;
+		m2 += delta * (rtt - mean);
+
+		histogram.record((long) rtt);
+		return rtt;
+	}
+
+	/**
+	 * Records a ping being sent. A previous ping that is still unanswered is
+	 * counted as lost.
+	 *
+	 * @param timestamp Timestamp carried by the ping
+	 */
+	public synchronized void pingSent(final long timestamp) {
+		if (outstanding != 0) {
+			lost++;
+			lossRate += (1 - lossRate) * LOSS_GAIN;
+		}
+		outstanding = timestamp;
+		sent++;
+	}
+}
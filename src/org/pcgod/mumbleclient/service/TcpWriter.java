@@ -0,0 +1,233 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.service.MumbleProtocol.MessageType;
+
+import android.util.Log;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+/**
+ * Writes the TCP stream on its own thread so senders never block on the
+ * socket.
+ * <p>
+ * Messages wait in three lanes which are drained in priority order:
+ * tunneled voice, then pings, then other control messages. Voice therefore
+ * never waits behind a large ChannelState or TextMessage that is still
+ * being written, only behind the one write in progress.
+ * <p>
+ * The voice lane holds VOICE_CAPACITY frames in preallocated slots. When
+ * the connection is backed up the stalest frame is dropped to make room,
+ * since late voice is worse than lost voice. A packet longer than
+ * UDP_BUFFER_SIZE is dropped as well, since cut short it would be garbage
+ * to the server. Enqueuing voice copies the frame and never allocates or
+ * waits on the socket, so it's safe from the capture thread.
+ * <p>
+ * Each message is framed into a single buffer, and queued messages are
+ * coalesced up to BATCH_SIZE, so a write produces one TLS record instead of
+ * one per header field.
+ */
+public class TcpWriter implements Runnable {
+	/** Tunneled voice kept while the connection is backed up, about 200ms. */
+	static final int VOICE_CAPACITY = 10;
+	/** Bytes of queued messages combined into one write. */
+	static final int BATCH_SIZE = 8192;
+
+	private static final int HEADER_SIZE = 6;
+
+	private static void writeHeader(
+		final byte[] buffer,
+		final int offset,
+		final short type,
+		final int length) {
+		buffer[offset] = (byte) (type >> 8);
+		buffer[offset + 1] = (byte) type;
+		buffer[offset + 2] = (byte) (length >> 24);
+		buffer[offset + 3] = (byte) (length >> 16);
+		buffer[offset + 4] = (byte) (length >> 8);
+		buffer[offset + 5] = (byte) length;
+	}
+
+	private final OutputStream out;
+	private final Metrics metrics;
+	private final Thread thread;
+
+	private final byte[][] voiceSlots = new byte[VOICE_CAPACITY][HEADER_SIZE +
+																 MumbleConnection.UDP_BUFFER_SIZE];
+	private final int[] voiceLengths = new int[VOICE_CAPACITY];
+	private int voiceHead;
+	private int voiceCount;
+
+	private final LinkedList<byte[]> pings = new LinkedList<byte[]>();
+	private final LinkedList<byte[]> control = new LinkedList<byte[]>();
+
+	/** Grows for an oversized message, shrinks back after writing it. */
+	byte[] batch = new byte[BATCH_SIZE];
+	private boolean stopped;
+
+	/**
+	 * @param out Stream of the connected TCP socket
+	 */
+	public TcpWriter(final OutputStream out, final Metrics metrics) {
+		this.out = out;
+		this.metrics = metrics;
+		this.thread = new Thread(this, "TcpWriter");
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				final int length;
+				synchronized (this) {
+					while (!stopped && voiceCount == 0 && pings.isEmpty() &&
+						   control.isEmpty()) {
+						wait();
+					}
+					if (stopped) {
+						return;
+					}
+					length = fillBatch();
+				}
+				out.write(batch, 0, length);
+				if (batch.length > BATCH_SIZE) {
+					batch = new byte[BATCH_SIZE];
+				}
+			}
+		} catch (final IOException e) {
+			if (!isStopped()) {
+				writeFailed(e);
+			}
+		} catch (final InterruptedException e) {
+			Log.w(Globals.LOG_TAG, "TcpWriter interrupted", e);
+		}
+	}
+
+	/**
+	 * Queues a message. The message is serialized on the calling thread.
+	 */
+	public void send(final MessageType t, final MessageLite m)
+		throws IOException {
+		final int length = m.getSerializedSize();
+		final byte[] framed = new byte[HEADER_SIZE + length];
+		writeHeader(framed, 0, (short) t.ordinal(), length);
+		final CodedOutputStream coded = CodedOutputStream.newInstance(
+			framed,
+			HEADER_SIZE,
+			length);
+		m.writeTo(coded);
+		coded.checkNoSpaceLeft();
+
+		synchronized (this) {
+			(t == MessageType.Ping ? pings : control).add(framed);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Queues a voice packet to be tunneled. Never blocks on the socket.
+	 *
+	 * @return False if the packet was too long, or if an older frame had to
+	 *         be dropped to make room.
+	 */
+	public boolean sendVoice(final byte[] buffer, final int length) {
+		if (length > MumbleConnection.UDP_BUFFER_SIZE) {
+			metrics.tunnelOversized.increment();
+			return false;
+		}
+
+		synchronized (this) {
+			boolean dropped = false;
+			if (voiceCount == VOICE_CAPACITY) {
+				voiceHead = (voiceHead + 1) % VOICE_CAPACITY;
+				voiceCount--;
+				metrics.tunnelDropped.increment();
+				dropped = true;
+			}
+
+			final int slot = (voiceHead + voiceCount) % VOICE_CAPACITY;
+			writeHeader(
+				voiceSlots[slot],
+				0,
+				(short) MessageType.UDPTunnel.ordinal(),
+				length);
+			System.arraycopy(buffer, 0, voiceSlots[slot], HEADER_SIZE, length);
+			voiceLengths[slot] = HEADER_SIZE + length;
+			voiceCount++;
+			notifyAll();
+			return !dropped;
+		}
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stops the writer. Queued messages are discarded.
+	 */
+	public void stop() {
+		synchronized (this) {
+			stopped = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Called on the writer thread if writing fails. The writer stops
+	 * afterwards.
+	 */
+	protected void writeFailed(final IOException e) {
+		Log.e(Globals.LOG_TAG, "Error writing socket", e);
+	}
+
+	/**
+	 * Moves queued messages to the batch buffer in priority order.
+	 *
+	 * @return Number of bytes in the batch.
+	 */
+	private int fillBatch() {
+		int length = 0;
+		while (voiceCount > 0) {
+			final int size = voiceLengths[voiceHead];
+			if (length > 0 && length + size > batch.length) {
+				return length;
+			}
+			System.arraycopy(voiceSlots[voiceHead], 0, batch, length, size);
+			length += size;
+			voiceHead = (voiceHead + 1) % VOICE_CAPACITY;
+			voiceCount--;
+			metrics.udpTunneled.increment();
+		}
+
+		length = takeMessages(pings, length);
+		return takeMessages(control, length);
+	}
+
+	private synchronized boolean isStopped() {
+		return stopped;
+	}
+
+	private int takeMessages(final LinkedList<byte[]> lane, int length) {
+		while (!lane.isEmpty()) {
+			final byte[] framed = lane.getFirst();
+			if (length > 0 && length + framed.length > batch.length) {
+				break;
+			}
+			if (framed.length > batch.length) {
+				// Only an oversized message on its own gets here.
+				batch = new byte[framed.length];
+			}
+			System.arraycopy(framed, 0, batch, length, framed.length);
+			length += framed.length;
+			lane.removeFirst();
+			metrics.tcpOut.increment();
+		}
+		return length;
+	}
+}
@@ -0,0 +1,148 @@
+package org.pcgod.mumbleclient.service;
+
+/**
+ * Decides whether voice goes over UDP or is tunneled through TCP.
+ * <p>
+ * The decision is driven by UDP ping probes on a monotonic millisecond
+ * clock. A probe that isn't answered within a timeout derived from the
+ * smoothed RTT switches to TCP immediately. Switching back requires
+ * RECOVERY_REPLIES timely replies in a row, so a flaky path doesn't make
+ * the transport flap. Until UDP has worked once a single reply is enough.
+ * <p>
+ * Probes are sent every PING_INTERVAL while UDP is healthy and idle, and
+ * every PROBE_INTERVAL while on TCP, while a probe is overdue or while
+ * voice is being sent, so a dead path is noticed within about a second of
+ * audio.
+ * <p>
+ * All times are milliseconds from now(). The methods are synchronized as
+ * they're called from the sending threads, the reader threads and the
+ * PingThread.
+ */
+public class TransportSelector {
+	public static final long PING_INTERVAL = 5000;
+	public static final long PROBE_INTERVAL = 1000;
+
+	static final long MIN_TIMEOUT = 750;
+	static final long MAX_TIMEOUT = 3000;
+	static final int RECOVERY_REPLIES = 3;
+
+	/** Voice sent within this time counts as active use. */
+	private static final long ACTIVE_TIME = 2000;
+
+	/**
+	 * @return Monotonic time in milliseconds.
+	 */
+	public static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	private final RttEstimator udpPing;
+	private final Metrics metrics;
+
+	private boolean udp = false;
+	private boolean udpWorked = false;
+	private int replies = 0;
+
+	/** Send time of the oldest unanswered probe, -1 if none. */
+	private long pendingProbe = -1;
+	private long lastProbe = Long.MIN_VALUE / 2;
+	private long lastVoice = Long.MIN_VALUE / 2;
+
+	public TransportSelector(final RttEstimator udpPing, final Metrics metrics) {
+		this.udpPing = udpPing;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Switches to TCP if a probe has timed out.
+	 *
+	 * @return True if voice should go over UDP.
+	 */
+	public synchronized boolean check(final long now) {
+		if (pendingProbe >= 0 && now - pendingProbe > getTimeout()) {
+			pendingProbe = -1;
+			replies = 0;
+			if (udp) {
+				switchTransport(false);
+			}
+		}
+		return udp;
+	}
+
+	/**
+	 * @return Time a probe may go unanswered before UDP is considered
+	 *         broken.
+	 */
+	public synchronized long getTimeout() {
+		if (udpPing.getSamples() == 0) {
+			return MAX_TIMEOUT;
+		}
+		final long timeout = (long) (udpPing.getSmoothedRtt() + 4 *
+									 udpPing.getRttVariation());
+		return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+	}
+
+	public synchronized boolean isUdp() {
+		return udp;
+	}
+
+	/**
+	 * @return True if a UDP probe should be sent now.
+	 */
+	public synchronized boolean isProbeDue(final long now) {
+		final boolean degraded = !udp || pendingProbe >= 0 ||
+								 now - lastVoice < ACTIVE_TIME;
+		return now - lastProbe >= (degraded ? PROBE_INTERVAL : PING_INTERVAL);
+	}
+
+	/**
+	 * Records a UDP probe reply.
+	 *
+	 * @param sent Time the probe was sent, as echoed by the server
+	 */
+	public synchronized void probeReplied(final long sent, final long now) {
+		if (now - sent > getTimeout()) {
+			// Too late to count as the path working.
+			return;
+		}
+
+		if (pendingProbe >= 0 && sent >= pendingProbe) {
+			pendingProbe = -1;
+		}
+		replies++;
+		if (!udp && replies >= (udpWorked ? RECOVERY_REPLIES : 1)) {
+			switchTransport(true);
+		}
+	}
+
+	/**
+	 * Records a UDP probe being sent.
+	 */
+	public synchronized void probeSent(final long now) {
+		lastProbe = now;
+		if (pendingProbe < 0) {
+			pendingProbe = now;
+		}
+	}
+
+	/**
+	 * Picks the transport for an outgoing voice packet.
+	 *
+	 * @return True if the packet should go over UDP.
+	 */
+	public synchronized boolean voiceSent(final long now) {
+		lastVoice = now;
+		return check(now);
+	}
+
+	private void switchTransport(final boolean toUdp) {
+		udp = toUdp;
+		if (toUdp) {
+			udpWorked = true;
+			metrics.switchesToUdp.increment();
+		} else {
+			metrics.switchesToTcp.increment();
+		}
+		metrics.udpMode.set(toUdp ? 1 : 0);
+	}
+}
@@ -0,0 +1,208 @@
+package org.pcgod.mumbleclient.service;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Decodes the UserState fields MumbleProtocol uses. UserState is by far
+ * the most frequent control message and a server sync is mostly made of
+ * them.
+ * <p>
+ * The getters match the generated MumbleProto.UserState. Absent fields read
+ * as their defaults. Strings and byte arrays are decoded or copied from the
+ * buffer on every call. The texture and comment, which are the bulk of the
+ * message, are only touched if asked for.
+ */
+public class UserStateDecoder extends WireDecoder {
+	private static final int SESSION = tag(1, WIRETYPE_VARINT);
+	private static final int NAME = tag(3, WIRETYPE_LENGTH_DELIMITED);
+	private static final int CHANNEL_ID = tag(5, WIRETYPE_VARINT);
+	private static final int MUTE = tag(6, WIRETYPE_VARINT);
+	private static final int DEAF = tag(7, WIRETYPE_VARINT);
+	private static final int SUPPRESS = tag(8, WIRETYPE_VARINT);
+	private static final int SELF_MUTE = tag(9, WIRETYPE_VARINT);
+	private static final int SELF_DEAF = tag(10, WIRETYPE_VARINT);
+	private static final int TEXTURE = tag(11, WIRETYPE_LENGTH_DELIMITED);
+	private static final int COMMENT = tag(14, WIRETYPE_LENGTH_DELIMITED);
+	private static final int COMMENT_HASH = tag(16, WIRETYPE_LENGTH_DELIMITED);
+	private static final int TEXTURE_HASH = tag(17, WIRETYPE_LENGTH_DELIMITED);
+
+	private boolean hasSession;
+	private int session;
+	private boolean hasChannelId;
+	private int channelId;
+
+	private boolean hasMute;
+	private boolean mute;
+	private boolean hasDeaf;
+	private boolean deaf;
+	private boolean hasSuppress;
+	private boolean suppress;
+	private boolean hasSelfMute;
+	private boolean selfMute;
+	private boolean hasSelfDeaf;
+	private boolean selfDeaf;
+
+	/** Offsets of the length delimited fields in the buffer, -1 if absent. */
+	private int name, texture, comment, commentHash, textureHash;
+	private int nameLength, textureLength, commentLength, commentHashLength,
+			textureHashLength;
+
+	public int getChannelId() {
+		return channelId;
+	}
+
+	public String getComment() {
+		return comment < 0 ? "" : string(comment, commentLength);
+	}
+
+	public byte[] getCommentHash() {
+		return commentHash < 0 ? new byte[0] : copy(
+			commentHash,
+			commentHashLength);
+	}
+
+	public boolean getDeaf() {
+		return deaf;
+	}
+
+	public boolean getMute() {
+		return mute;
+	}
+
+	public String getName() {
+		return name < 0 ? "" : string(name, nameLength);
+	}
+
+	public boolean getSelfDeaf() {
+		return selfDeaf;
+	}
+
+	public boolean getSelfMute() {
+		return selfMute;
+	}
+
+	public int getSession() {
+		return session;
+	}
+
+	public boolean getSuppress() {
+		return suppress;
+	}
+
+	public byte[] getTexture() {
+		return texture < 0 ? new byte[0] : copy(texture, textureLength);
+	}
+
+	public byte[] getTextureHash() {
+		return textureHash < 0 ? new byte[0] : copy(
+			textureHash,
+			textureHashLength);
+	}
+
+	public boolean hasChannelId() {
+		return hasChannelId;
+	}
+
+	public boolean hasComment() {
+		return comment >= 0;
+	}
+
+	public boolean hasCommentHash() {
+		return commentHash >= 0;
+	}
+
+	public boolean hasDeaf() {
+		return hasDeaf;
+	}
+
+	public boolean hasMute() {
+		return hasMute;
+	}
+
+	public boolean hasName() {
+		return name >= 0;
+	}
+
+	public boolean hasSelfDeaf() {
+		return hasSelfDeaf;
+	}
+
+	public boolean hasSelfMute() {
+		return hasSelfMute;
+	}
+
+	public boolean hasSession() {
+		return hasSession;
+	}
+
+	public boolean hasSuppress() {
+		return hasSuppress;
+	}
+
+	public boolean hasTexture() {
+		return texture >= 0;
+	}
+
+	public boolean hasTextureHash() {
+		return textureHash >= 0;
+	}
+
+	@Override
+	protected void clear() {
+		hasSession = hasChannelId = false;
+		session = channelId = 0;
+		hasMute = hasDeaf = hasSuppress = hasSelfMute = hasSelfDeaf = false;
+		mute = deaf = suppress = selfMute = selfDeaf = false;
+		name = texture = comment = commentHash = textureHash = -1;
+	}
+
+	@Override
+	protected boolean readField(final int tag)
+		throws InvalidProtocolBufferException {
+		if (tag == SESSION) {
+			session = readVarint32();
+			hasSession = true;
+		} else if (tag == CHANNEL_ID) {
+			channelId = readVarint32();
+			hasChannelId = true;
+		} else if (tag == MUTE) {
+			mute = readBool();
+			hasMute = true;
+		} else if (tag == DEAF) {
+			deaf = readBool();
+			hasDeaf = true;
+		} else if (tag == SUPPRESS) {
+			suppress = readBool();
+			hasSuppress = true;
+		} else if (tag == SELF_MUTE) {
+			selfMute = readBool();
+			hasSelfMute = true;
+		} else if (tag == SELF_DEAF) {
+			selfDeaf = readBool();
+			hasSelfDeaf = true;
+		} else if (tag == NAME) {
+			nameLength = readLength();
+			name = position;
+			position += nameLength;
+		} else if (tag == TEXTURE) {
+			textureLength = readLength();
+			texture = position;
+			position += textureLength;
+		} else if (tag == COMMENT) {
+			commentLength = readLength();
+			comment = position;
+			position += commentLength;
+		} else if (tag == COMMENT_HASH) {
+			commentHashLength = readLength();
+			commentHash = position;
+			position += commentHashLength;
+		} else if (tag == TEXTURE_HASH) {
+			textureHashLength = readLength();
+			textureHash = position;
+			position += textureHashLength;
+		} else {
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,332 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.pcgod.mumbleclient.service.Metrics.Histogram;
+
+/**
+ * Sampled tracing of voice frames through the receive path.
+ * <p>
+ * Every Nth voice packet is stamped when it is read from the socket, after
+ * decryption, when its first frame is put into the jitter buffer, when that
+ * frame is taken out, after decoding and after it has been written to the
+ * AudioTrack. Completed traces feed per-stage latency histograms and are
+ * kept in a ring for export with writeTrace().
+ * <p>
+ * Tracing is disabled with a sample interval of 0, the default. The hooks
+ * then cost a single volatile read. When enabled, unsampled frames cost an
+ * atomic increment and sampled frames take a slot from a fixed table, so
+ * nothing on the audio or network threads allocates.
+ */
+public class VoiceTracer {
+	public static final int STAGE_RECEIVE = 0;
+	public static final int STAGE_DECRYPT = 1;
+	public static final int STAGE_PUT = 2;
+	public static final int STAGE_GET = 3;
+	public static final int STAGE_DECODE = 4;
+	public static final int STAGE_WRITE = 5;
+	public static final int STAGE_COUNT = 6;
+
+	static final String[] STAGE_NAMES = { "receive", "decrypt", "jitter_put",
+			"jitter_get", "decode", "write" };
+
+	/** Latency buckets in microseconds. */
+	private static final long[] LATENCY_BOUNDS = { 100, 250, 500, 1000, 2500,
+			5000, 10000, 20000, 40000, 60000, 80000, 100000, 150000, 200000,
+			300000, 500000 };
+
+	private static final int SLOTS = 64;
+	private static final int COMPLETED_CAPACITY = 1024;
+
+	/** Frames the jitter buffer dropped never complete; reuse their slots. */
+	private static final long SLOT_TIMEOUT = 2000 * 1000 * 1000L;
+
+	private static final int SLOT_FREE = 0;
+	private static final int SLOT_CLAIMED = 1;
+	private static final int SLOT_ACTIVE = 2;
+
+	private volatile int sampleInterval = 0;
+	private final AtomicInteger packets = new AtomicInteger();
+
+	/** Stamps of the packet being processed by the calling reader thread. */
+	private final ThreadLocal<long[]> pending = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[2];
+		}
+	};
+
+	private final AtomicIntegerArray slotState = new AtomicIntegerArray(SLOTS);
+	private final AtomicInteger activeSlots = new AtomicInteger();
+	private final int[] slotSession = new int[SLOTS];
+	private final int[] slotTimestamp = new int[SLOTS];
+	private final long[][] slotStamps = new long[SLOTS][STAGE_COUNT];
+
+	private final Histogram[] stageLatency = new Histogram[STAGE_COUNT];
+	private final Histogram totalLatency = new Histogram(
+		"trace.total",
+		LATENCY_BOUNDS);
+
+	private final long[][] completed = new long[COMPLETED_CAPACITY][STAGE_COUNT];
+	private final int[] completedSession = new int[COMPLETED_CAPACITY];
+	private int completedNext;
+	private int completedCount;
+
+	public VoiceTracer() {
+		for (int i = 1; i < STAGE_COUNT; i++) {
+			stageLatency[i] = new Histogram(
+				"trace." + STAGE_NAMES[i],
+				LATENCY_BOUNDS);
+		}
+	}
+
+	/**
+	 * Records that a frame of a traced packet has been decoded.
+	 *
+	 * @param slot Value returned by frameGot()
+	 */
+	public void frameDecoded(final int slot) {
+		if (slot >= 0) {
+			slotStamps[slot][STAGE_DECODE] = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Records that a frame was taken out of the jitter buffer.
+	 *
+	 * @return Slot to pass to the later stages, or -1 if the frame isn't
+	 *         traced.
+	 */
+	public int frameGot(final int session, final int timestamp) {
+		if (sampleInterval == 0 || activeSlots.get() == 0) {
+			return -1;
+		}
+
+		for (int i = 0; i < SLOTS; i++) {
+			if (slotState.get(i) == SLOT_ACTIVE &&
+				slotSession[i] == session && slotTimestamp[i] == timestamp) {
+				slotStamps[i][STAGE_GET] = System.nanoTime();
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Records that a frame was put into the jitter buffer. Only the first
+	 * frame of a sampled packet is traced.
+	 *
+	 * @return Slot of the trace, or -1 if the frame isn't traced.
+	 */
+	public int framePut(final int session, final int timestamp) {
+		if (sampleInterval == 0) {
+			return -1;
+		}
+
+		final long[] stamps = pending.get();
+		if (stamps[0] == 0) {
+			return -1;
+		}
+
+		final long now = System.nanoTime();
+		final int slot = claimSlot(now);
+		if (slot >= 0) {
+			slotSession[slot] = session;
+			slotTimestamp[slot] = timestamp;
+			final long[] s = slotStamps[slot];
+			s[STAGE_RECEIVE] = stamps[0];
+			s[STAGE_DECRYPT] = stamps[1] != 0 ? stamps[1] : stamps[0];
+			s[STAGE_PUT] = now;
+			s[STAGE_GET] = 0;
+			s[STAGE_DECODE] = 0;
+			s[STAGE_WRITE] = 0;
+			slotState.set(slot, SLOT_ACTIVE);
+			activeSlots.incrementAndGet();
+		}
+
+		stamps[0] = 0;
+		return slot;
+	}
+
+	/**
+	 * Completes a trace once its frame has been written to the AudioTrack.
+	 *
+	 * @param slot Value returned by frameGot()
+	 */
+	public void frameWritten(final int slot) {
+		if (slot < 0) {
+			return;
+		}
+
+		final long[] s = slotStamps[slot];
+		s[STAGE_WRITE] = System.nanoTime();
+		for (int i = 1; i < STAGE_COUNT; i++) {
+			stageLatency[i].record((s[i] - s[i - 1]) / 1000);
+		}
+		totalLatency.record((s[STAGE_WRITE] - s[STAGE_RECEIVE]) / 1000);
+
+		synchronized (completed) {
+			System.arraycopy(s, 0, completed[completedNext], 0, STAGE_COUNT);
+			completedSession[completedNext] = slotSession[slot];
+			completedNext = (completedNext + 1) % COMPLETED_CAPACITY;
+			if (completedCount < COMPLETED_CAPACITY) {
+				completedCount++;
+			}
+		}
+
+		release(slot);
+	}
+
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/**
+	 * @param stage One of the STAGE constants except STAGE_RECEIVE
+	 * @return Latency from the previous stage in microseconds
+	 */
+	public Histogram getStageLatency(final int stage) {
+		return stageLatency[stage];
+	}
+
+	/**
+	 * @return Latency from socket read to AudioTrack write in microseconds
+	 */
+	public Histogram getTotalLatency() {
+		return totalLatency;
+	}
+
+	public boolean isEnabled() {
+		return sampleInterval != 0;
+	}
+
+	/**
+	 * Records that the calling thread decrypted the packet it received last.
+	 */
+	public void packetDecrypted() {
+		if (sampleInterval == 0) {
+			return;
+		}
+
+		final long[] stamps = pending.get();
+		if (stamps[0] != 0) {
+			stamps[1] = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Records that the calling thread read a voice packet from a socket and
+	 * decides whether it is sampled.
+	 */
+	public void packetReceived() {
+		final int interval = sampleInterval;
+		if (interval == 0) {
+			return;
+		}
+
+		final long[] stamps = pending.get();
+		if (packets.incrementAndGet() % interval == 0) {
+			stamps[0] = System.nanoTime();
+		} else {
+			stamps[0] = 0;
+		}
+		stamps[1] = 0;
+	}
+
+	/**
+	 * @param interval Trace every interval:th voice packet, 0 to disable
+	 */
+	public void setSampleInterval(final int interval) {
+		sampleInterval = interval;
+	}
+
+	/**
+	 * Writes the completed traces in the Chrome trace event format, one
+	 * complete ("X") event per stage with the session as the thread id,
+	 * followed by the per-stage latency percentiles. The file can be opened
+	 * in chrome://tracing.
+	 */
+	public void writeTrace(final Writer out) throws IOException {
+		final long[][] traces;
+		final int[] sessions;
+		synchronized (completed) {
+			traces = new long[completedCount][];
+			sessions = new int[completedCount];
+			final int first = (completedNext - completedCount + COMPLETED_CAPACITY) %
+							  COMPLETED_CAPACITY;
+			for (int i = 0; i < completedCount; i++) {
+				final int index = (first + i) % COMPLETED_CAPACITY;
+				traces[i] = completed[index].clone();
+				sessions[i] = completedSession[index];
+			}
+		}
+
+		out.write("{\"traceEvents\":[");
+		boolean firstEvent = true;
+		for (int i = 0; i < traces.length; i++) {
+			final long[] s = traces[i];
+			for (int stage = 1; stage < STAGE_COUNT; stage++) {
+				if (!firstEvent) {
+					out.write(',');
+				}
+				firstEvent = false;
+				out.write(String.format(
+					"\n{\"name\":\"%s\",\"cat\":\"voice\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%d,\"dur\":%d,\"args\":{\"trace\":%d}}",
+					STAGE_NAMES[stage],
+					sessions[i],
+					s[stage - 1] / 1000,
+					(s[stage] - s[stage - 1]) / 1000,
+					i));
+			}
+		}
+		out.write("\n],\"displayTimeUnit\":\"ms\",\"stageLatency\":{");
+		for (int stage = 1; stage < STAGE_COUNT; stage++) {
+			writeHistogram(out, STAGE_NAMES[stage], stageLatency[stage]);
+			out.write(',');
+		}
+		writeHistogram(out, "total", totalLatency);
+		out.write("}}\n");
+		out.flush();
+	}
+
+	private int claimSlot(final long now) {
+		for (int i = 0; i < SLOTS; i++) {
+			if (slotState.compareAndSet(i, SLOT_FREE, SLOT_CLAIMED)) {
+				return i;
+			}
+		}
+
+		// Table full. Take over a slot whose frame was apparently dropped.
+		for (int i = 0; i < SLOTS; i++) {
+			if (now - slotStamps[i][STAGE_PUT] > SLOT_TIMEOUT &&
+				slotState.compareAndSet(i, SLOT_ACTIVE, SLOT_CLAIMED)) {
+				activeSlots.decrementAndGet();
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void release(final int slot) {
+		if (slotState.compareAndSet(slot, SLOT_ACTIVE, SLOT_FREE)) {
+			activeSlots.decrementAndGet();
+		}
+	}
+
+	private void writeHistogram(
+		final Writer out,
+		final String name,
+		final Histogram h) throws IOException {
+		out.write(String.format(
+			"\n\"%s\":{\"count\":%d,\"mean_us\":%d,\"p50_us\":%d,\"p95_us\":%d,\"p99_us\":%d}",
+			name,
+			h.getCount(),
+			h.getMean(),
+			h.getPercentile(0.5),
+			h.getPercentile(0.95),
+			h.getPercentile(0.99)));
+	}
+}
@@ -0,0 +1,229 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.UnsupportedEncodingException;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Base of the hand-written decoders for the most frequent protobuf messages.
+ * <p>
+ * A decoder reads the fields a subclass asks for straight from the receive
+ * buffer and skips everything else. Length delimited fields are only
+ * located; their content is copied or decoded when a getter asks for it.
+ * Decoding a message therefore allocates nothing, while the generated
+ * parser materializes every field, including comments and textures that
+ * are usually discarded right away.
+ * <p>
+ * Decoding follows protobuf-java 2.5 CodedInputStream: the last occurrence
+ * of a field wins, a known field number with an unexpected wire type is
+ * skipped like an unknown field, groups are skipped and an end group tag at
+ * the top level ends the message. Malformed input throws the same
+ * InvalidProtocolBufferException the generated parser does.
+ * <p>
+ * A decoder is reused for every message and is only valid until the next
+ * decode() or until its buffer is reused. It isn't thread safe.
+ */
+public abstract class WireDecoder {
+	protected static final int WIRETYPE_VARINT = 0;
+	protected static final int WIRETYPE_FIXED64 = 1;
+	protected static final int WIRETYPE_LENGTH_DELIMITED = 2;
+	protected static final int WIRETYPE_START_GROUP = 3;
+	protected static final int WIRETYPE_END_GROUP = 4;
+	protected static final int WIRETYPE_FIXED32 = 5;
+
+	protected static int tag(final int field, final int wireType) {
+		return field << 3 | wireType;
+	}
+
+	private static InvalidProtocolBufferException truncated() {
+		return new InvalidProtocolBufferException(
+			"While parsing a protocol message, the input ended unexpectedly " +
+				"in the middle of a field.");
+	}
+
+	protected byte[] buffer;
+	protected int position;
+	private int limit;
+
+	/** Field numbers of the groups being skipped. */
+	private int[] groups = new int[4];
+
+	/**
+	 * Decodes a message, replacing the fields of the previous one.
+	 *
+	 * @param length Length of the message at the start of buffer
+	 */
+	public void decode(final byte[] buffer_, final int length)
+		throws InvalidProtocolBufferException {
+		this.buffer = buffer_;
+		this.position = 0;
+		this.limit = length;
+		clear();
+
+		int depth = 0;
+		while (true) {
+			if (position >= limit) {
+				if (depth > 0) {
+					throw invalidEndTag();
+				}
+				return;
+			}
+
+			final int tag = readVarint32();
+			if (tag >>> 3 == 0) {
+				throw new InvalidProtocolBufferException(
+					"Protocol message contained an invalid tag (zero).");
+			}
+
+			if (depth == 0 && readField(tag)) {
+				continue;
+			}
+
+			switch (tag & 7) {
+			case WIRETYPE_VARINT:
+				readVarint32();
+				break;
+			case WIRETYPE_FIXED64:
+				skip(8);
+				break;
+			case WIRETYPE_LENGTH_DELIMITED:
+				skip(readLength());
+				break;
+			case WIRETYPE_START_GROUP:
+				if (depth == groups.length) {
+					final int[] grown = new int[depth * 2];
+					System.arraycopy(groups, 0, grown, 0, depth);
+					groups = grown;
+				}
+				groups[depth++] = tag >>> 3;
+				break;
+			case WIRETYPE_END_GROUP:
+				if (depth == 0) {
+					// Ends the message like it does in the generated parser.
+					return;
+				}
+				if (groups[--depth] != tag >>> 3) {
+					throw invalidEndTag();
+				}
+				break;
+			case WIRETYPE_FIXED32:
+				skip(4);
+				break;
+			default:
+				throw new InvalidProtocolBufferException(
+					"Protocol message tag had invalid wire type.");
+			}
+		}
+	}
+
+	/**
+	 * Forgets the fields of the previous message.
+	 */
+	protected abstract void clear();
+
+	/**
+	 * Copies a length delimited field out of the buffer.
+	 */
+	protected byte[] copy(final int offset, final int length) {
+		final byte[] bytes = new byte[length];
+		System.arraycopy(buffer, offset, bytes, 0, length);
+		return bytes;
+	}
+
+	/**
+	 * Reads a varint field as a boolean.
+	 */
+	protected boolean readBool() throws InvalidProtocolBufferException {
+		return readVarint32() != 0;
+	}
+
+	/**
+	 * Reads a field the decoder is interested in.
+	 *
+	 * @param tag Field number and wire type
+	 * @return False if the field should be skipped
+	 */
+	protected abstract boolean readField(int tag)
+		throws InvalidProtocolBufferException;
+
+	/**
+	 * Reads the length of a length delimited field and checks it fits the
+	 * message. The content starts at position.
+	 */
+	protected int readLength() throws InvalidProtocolBufferException {
+		final int length = readVarint32();
+		if (length < 0) {
+			throw new InvalidProtocolBufferException(
+				"CodedInputStream encountered an embedded string or message " +
+					"which claimed to have negative size.");
+		}
+		if (length > limit - position) {
+			throw truncated();
+		}
+		return length;
+	}
+
+	/**
+	 * Reads a varint keeping the low 32 bits, like readRawVarint32().
+	 */
+	protected int readVarint32() throws InvalidProtocolBufferException {
+		int result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final byte b = readByte();
+			if (shift < 32) {
+				result |= (b & 0x7f) << shift;
+			}
+			if (b >= 0) {
+				return result;
+			}
+		}
+		throw malformedVarint();
+	}
+
+	protected long readVarint64() throws InvalidProtocolBufferException {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final byte b = readByte();
+			result |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return result;
+			}
+		}
+		throw malformedVarint();
+	}
+
+	/**
+	 * Decodes a length delimited field as UTF-8.
+	 */
+	protected String string(final int offset, final int length) {
+		try {
+			return new String(buffer, offset, length, "UTF-8");
+		} catch (final UnsupportedEncodingException e) {
+			throw new RuntimeException("UTF-8 not supported", e);
+		}
+	}
+
+	private InvalidProtocolBufferException invalidEndTag() {
+		return new InvalidProtocolBufferException(
+			"Protocol message end-group tag did not match expected tag.");
+	}
+
+	private InvalidProtocolBufferException malformedVarint() {
+		return new InvalidProtocolBufferException(
+			"CodedInputStream encountered a malformed varint.");
+	}
+
+	private byte readByte() throws InvalidProtocolBufferException {
+		if (position >= limit) {
+			throw truncated();
+		}
+		return buffer[position++];
+	}
+
+	private void skip(final int length) throws InvalidProtocolBufferException {
+		if (length > limit - position) {
+			throw truncated();
+		}
+		position += length;
+	}
+}
@@ -9,8 +9,10 @@ import java.util.Map;
 
 import org.pcgod.mumbleclient.Globals;
 import org.pcgod.mumbleclient.Settings;
+import org.pcgod.mumbleclient.service.Metrics;
 import org.pcgod.mumbleclient.service.MumbleProtocol;
 import org.pcgod.mumbleclient.service.PacketDataStream;
+import org.pcgod.mumbleclient.service.VoiceTracer;
 import org.pcgod.mumbleclient.service.audio.AudioUser.PacketReadyHandler;
 import org.pcgod.mumbleclient.service.model.User;
 
@@ -25,7 +27,23 @@ import android.util.Log;
  *
  * @author pcgod, Rantanen
  */
-public class AudioOutput implements Runnable {
+public class AudioOutput implements VoiceOutput {
+	/**
+	 * @return Factory for outputs that play through an AudioTrack with the
+	 *         settings stored in ctx
+	 */
+	public static VoiceOutput.Factory factory(final Context ctx) {
+		return new VoiceOutput.Factory() {
+			@Override
+			public VoiceOutput create(
+				final AudioOutputHost host,
+				final Metrics metrics,
+				final VoiceTracer tracer) {
+				return new AudioOutput(ctx, host, metrics, tracer);
+			}
+		};
+	}
+
 	private final PacketReadyHandler packetReadyHandler = new PacketReadyHandler() {
 		@Override
 		public void packetReady(final AudioUser user) {
@@ -58,11 +76,22 @@ public class AudioOutput implements Runnable {
 	 */
 	final float[] tempMix = new float[MumbleProtocol.FRAME_SIZE];
 
-	private final AudioOutputHost host;
+	/** Decodes the frames of all talking users in one JNI call. */
+	private final BatchDecoder batchDecoder = new BatchDecoder(4);
 
-	public AudioOutput(final Context ctx, final AudioOutputHost host) {
+	private final AudioOutputHost host;
+	private final Metrics metrics;
+	private final VoiceTracer tracer;
+
+	public AudioOutput(
+		final Context ctx,
+		final AudioOutputHost host,
+		final Metrics metrics,
+		final VoiceTracer tracer) {
 		this.settings = new Settings(ctx);
 		this.host = host;
+		this.metrics = metrics;
+		this.tracer = tracer;
 
 		minBufferSize = AudioTrack.getMinBufferSize(
 			MumbleProtocol.SAMPLE_RATE,
@@ -92,23 +121,31 @@ public class AudioOutput implements Runnable {
 		shouldRun = true;
 	}
 
+	@Override
 	public void addFrameToBuffer(
 		final User u,
 		final PacketDataStream pds,
 		final int flags) {
-		AudioUser user = users.get(u);
-		if (user == null) {
-			user = new AudioUser(u, settings.isJitterBuffer());
-			users.put(u, user);
-			// Don't add the user to userPackets yet. The collection should
-			// have only users with ready frames. Since this method is
-			// called only from the TCP connection thread it will never
-			// create a new AudioUser while a previous one is still decoding.
+		// Called from both the UDP and the TCP reader thread.
+		AudioUser user;
+		synchronized (users) {
+			user = users.get(u);
+			if (user == null) {
+				user = new AudioUser(
+					u,
+					settings.isJitterBuffer(),
+					metrics,
+					tracer);
+				users.put(u, user);
+				// Don't add the user to userPackets yet. The collection
+				// should have only users with ready frames.
+			}
 		}
 
 		user.addFrameToBuffer(pds, packetReadyHandler);
 	}
 
+	@Override
 	public void run() {
 		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
 		try {
@@ -119,6 +156,7 @@ public class AudioOutput implements Runnable {
 		}
 	}
 
+	@Override
 	public void stop() {
 		shouldRun = false;
 		synchronized (userPackets) {
@@ -145,6 +183,12 @@ public class AudioOutput implements Runnable {
 				mix(out, mix);
 
 				at.write(out, 0, MumbleProtocol.FRAME_SIZE);
+				metrics.framesMixed.increment();
+				if (tracer.isEnabled()) {
+					for (final AudioUser user : mix) {
+						tracer.frameWritten(user.takeTraceSlot());
+					}
+				}
 
 				// Make sure we are playing when there are enough samples
 				// buffered.
@@ -180,19 +224,45 @@ public class AudioOutput implements Runnable {
 		at.stop();
 	}
 
+	private void decodeBatch() {
+		final int frames = batchDecoder.size();
+		final long decodeStart = System.nanoTime();
+		batchDecoder.decode();
+		final long perFrame = (System.nanoTime() - decodeStart) / 1000 / frames;
+		for (int i = 0; i < frames; i++) {
+			metrics.decodeTime.record(perFrame);
+		}
+		metrics.framesDecoded.add(frames);
+	}
+
 	private void fillMixFrames(final List<AudioUser> mix) {
 		synchronized (userPackets) {
-			final Iterator<AudioUser> i = userPackets.values().iterator();
-			while (i.hasNext()) {
-				final AudioUser user = i.next();
-				if (user.hasFrame()) {
-					mix.add(user);
-				} else {
-					i.remove();
-					host.setTalkState(
-						user.getUser(),
-						AudioOutputHost.STATE_PASSIVE);
+			// Users that got a shortened frame may need a second one.
+			for (int round = 0; round < 2; round++) {
+				batchDecoder.clear();
+				final Iterator<AudioUser> i = userPackets.values().iterator();
+				while (i.hasNext()) {
+					final AudioUser user = i.next();
+					if (user.needsFrame() && !user.fetchFrame(batchDecoder)) {
+						i.remove();
+						host.setTalkState(
+							user.getUser(),
+							AudioOutputHost.STATE_PASSIVE);
+					}
 				}
+				if (batchDecoder.size() == 0) {
+					break;
+				}
+
+				decodeBatch();
+				for (final AudioUser user : userPackets.values()) {
+					user.frameDecoded(batchDecoder);
+				}
+			}
+
+			for (final AudioUser user : userPackets.values()) {
+				user.readFrame();
+				mix.add(user);
 			}
 		}
 	}
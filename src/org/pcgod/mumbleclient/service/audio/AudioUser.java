@@ -1,12 +1,17 @@
 package org.pcgod.mumbleclient.service.audio;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.pcgod.mumbleclient.Globals;
 import org.pcgod.mumbleclient.jni.Native;
+import org.pcgod.mumbleclient.jni.NativeDirect;
+import org.pcgod.mumbleclient.service.Metrics;
 import org.pcgod.mumbleclient.service.MumbleProtocol;
 import org.pcgod.mumbleclient.service.PacketDataStream;
+import org.pcgod.mumbleclient.service.VoiceTracer;
 import org.pcgod.mumbleclient.service.model.User;
 
 import android.util.Log;
@@ -14,6 +19,12 @@ import android.util.Log;
 /**
  * Thread safe buffer for audio data.
  * Implements audio queue and decoding.
+ * <p>
+ * Voice arrives on the UDP reader thread and, tunneled, on the TCP reader
+ * thread; both can deliver the same sender's packets around a transport
+ * switch. addFrameToBuffer() is synchronized so the estimator and the
+ * received frames window see one packet at a time. The mixer thread only
+ * takes frames, through the jitter buffer lock or the concurrent queue.
  *
  * @author pcgod, Rantanen
  */
@@ -22,24 +33,52 @@ public class AudioUser {
 		public void packetReady(AudioUser user);
 	}
 
+	/** Speex JITTER_BUFFER_SET_MARGIN request. */
+	private static final int JITTER_BUFFER_SET_MARGIN = 0;
+	/** Gain of the published average buffer depth, per played frame. */
+	private static final float AVAILABLE_GAIN = 1.0f / 16;
+
 	private final boolean useJitterBuffer;
+	private final Metrics metrics;
+	private final VoiceTracer tracer;
 
 	private final Object jbLock;
 	private final long jitterBuffer;
-	private final int[] currentTimestamp;
+	/** NativeDirect.jitterBufferGet() result. */
+	private final ByteBuffer jitterResult;
+	private final JitterEstimator jitterEstimator = new JitterEstimator();
+	/** Frames received from the sender, to drop the repeated ones. */
+	private final SequenceWindow receivedFrames = new SequenceWindow();
+	private final DriftCompensator driftCompensator;
+	/** Margin set on the jitter buffer, in samples. */
+	private final int[] jitterMargin = new int[1];
 	private final Queue<Native.JitterBufferPacket> normalBuffer;
 
 	private final long celtMode;
 	private final long celtDecoder;
 	private final Queue<byte[]> dataArrayPool = new ConcurrentLinkedQueue<byte[]>();
 	float[] lastFrame = new float[MumbleProtocol.FRAME_SIZE];
+	private final float[] decodedFrame = new float[MumbleProtocol.FRAME_SIZE];
 	private final User user;
 
 	private int missedFrames = 0;
-
-	public AudioUser(final User user, final boolean useJitterBuffer) {
+	/** VoiceTracer slot of the frame in lastFrame, or -1. */
+	private int traceSlot = -1;
+	/** BatchDecoder slot of the frame being decoded, or -1. */
+	private int batchSlot = -1;
+	/** Frames buffered when the frame being decoded was taken. */
+	private int available;
+
+	public AudioUser(
+		final User user,
+		final boolean useJitterBuffer,
+		final Metrics metrics,
+		final VoiceTracer tracer) {
 		this.user = user;
 		this.useJitterBuffer = useJitterBuffer;
+		this.metrics = metrics;
+		this.tracer = tracer;
+		this.driftCompensator = new DriftCompensator(!useJitterBuffer);
 
 		celtMode = Native.celt_mode_create(
 			MumbleProtocol.SAMPLE_RATE,
@@ -49,26 +88,28 @@ public class AudioUser {
 		// Initialize one of the buffers.
 		if (useJitterBuffer) {
 			jbLock = new Object();
-			currentTimestamp = new int[1];
+			jitterResult = ByteBuffer.allocateDirect(
+				NativeDirect.JITTER_RESULT_SIZE).order(ByteOrder.nativeOrder());
 			jitterBuffer = Native.jitter_buffer_init(MumbleProtocol.FRAME_SIZE);
+			jitterMargin[0] = marginSamples();
 			Native.jitter_buffer_ctl(
 				jitterBuffer,
-				0,
-				new int[] { 5 * MumbleProtocol.FRAME_SIZE });
+				JITTER_BUFFER_SET_MARGIN,
+				jitterMargin);
 
 			normalBuffer = null;
 		} else {
 			normalBuffer = new ConcurrentLinkedQueue<Native.JitterBufferPacket>();
 
 			jitterBuffer = 0;
-			currentTimestamp = null;
+			jitterResult = null;
 			jbLock = null;
 		}
 
 		Log.i(Globals.LOG_TAG, "AudioUser created");
 	}
 
-	public boolean addFrameToBuffer(
+	public synchronized boolean addFrameToBuffer(
 		final PacketDataStream pds,
 		final PacketReadyHandler readyHandler) {
 
@@ -91,6 +132,8 @@ public class AudioUser {
 
 		int dataHeader;
 		int frameCount = 0;
+		int newFrames = 0;
+		final int stride = jitterEstimator.getStride();
 
 		byte[] data = null;
 		// Jitter buffer can use one data array to pass all the packets to the buffer.
@@ -101,6 +144,14 @@ public class AudioUser {
 			dataHeader = pds.next();
 			final int dataLength = dataHeader & 0x7f;
 			if (dataLength > 0) {
+				// Senders with redundancy repeat the previous packet's frames
+				// first. Those are new only if the previous packet was lost.
+				final long frame = sequence + frameCount++;
+				if (!receivedFrames.add(frame)) {
+					metrics.framesDuplicate.increment();
+					pds.skip(dataLength);
+					continue;
+				}
 
 				// If not using jitter buffer acquire data array for each packet.
 				// They are released when dequeueing them fromt he buffer.
@@ -112,10 +163,13 @@ public class AudioUser {
 				final Native.JitterBufferPacket jbp = new Native.JitterBufferPacket();
 				jbp.data = data;
 				jbp.len = dataLength;
+				jbp.timestamp = (int) (frame * MumbleProtocol.FRAME_SIZE);
+
+				if (newFrames++ == 0) {
+					tracer.framePut(user.session, jbp.timestamp);
+				}
 
 				if (useJitterBuffer) {
-					jbp.timestamp = (short) (sequence + frameCount) *
-									MumbleProtocol.FRAME_SIZE;
 					jbp.span = MumbleProtocol.FRAME_SIZE;
 
 					synchronized (jbLock) {
@@ -126,13 +180,36 @@ public class AudioUser {
 				}
 
 				readyHandler.packetReady(this);
-				frameCount++;
-
 			}
 		} while ((dataHeader & 0x80) > 0 && pds.isValid());
 
+		// The new frames beyond the sender's stride replace a lost packet.
+		if (stride > 0 && newFrames > stride) {
+			metrics.framesRecovered.add(newFrames - stride);
+		}
+		if (frameCount > 0) {
+			jitterEstimator.packetArrived(
+				sequence,
+				frameCount,
+				newFrames,
+				System.nanoTime() / 1000000.0);
+		}
+
 		if (useJitterBuffer) {
 			freeDataArray(data);
+
+			// Follow the sender's jitter, a frame at a time so the buffer
+			// isn't resized on every packet.
+			final int margin = marginSamples();
+			if (Math.abs(margin - jitterMargin[0]) >= MumbleProtocol.FRAME_SIZE) {
+				synchronized (jbLock) {
+					jitterMargin[0] = margin;
+					Native.jitter_buffer_ctl(
+						jitterBuffer,
+						JITTER_BUFFER_SET_MARGIN,
+						jitterMargin);
+				}
+			}
 		}
 		return true;
 	}
@@ -146,62 +223,104 @@ public class AudioUser {
 	}
 
 	/**
-	 * Checks if this user has frames and sets lastFrame.
+	 * @return True if another frame must be decoded before readFrame().
+	 */
+	public boolean needsFrame() {
+		return driftCompensator.needsFrame();
+	}
+
+	/**
+	 * Sets lastFrame to the next frame to mix.
+	 */
+	public void readFrame() {
+		driftCompensator.read(lastFrame);
+	}
+
+	/**
+	 * Returns the VoiceTracer slot of the frame in lastFrame and forgets it,
+	 * so the frame is reported as written only once.
 	 *
-	 * @return
+	 * @return Slot for VoiceTracer.frameWritten, or -1 if not traced.
 	 */
-	public boolean hasFrame() {
-		byte[] data = null;
-		int dataLength = 0;
+	public int takeTraceSlot() {
+		final int slot = traceSlot;
+		traceSlot = -1;
+		return slot;
+	}
 
-		Native.JitterBufferPacket jbp;
+	/**
+	 * Takes the frame fetchFrame() added to a batch once the batch is
+	 * decoded. Does nothing if no frame was added.
+	 */
+	public void frameDecoded(final BatchDecoder batch) {
+		if (batchSlot < 0) {
+			return;
+		}
+		batch.getFrame(batchSlot, decodedFrame);
+		batchSlot = -1;
+		driftCompensator.addFrame(
+			decodedFrame,
+			jitterEstimator.getSkew(),
+			available);
+		tracer.frameDecoded(traceSlot);
+	}
 
-		if (useJitterBuffer) {
-			jbp = new Native.JitterBufferPacket();
-			jbp.data = acquireDataArray();
-			jbp.len = jbp.data.length;
+	/**
+	 * Takes the next frame of this user and adds it to a batch for decoding.
+	 * A missing frame is added as lost so the decoder conceals it.
+	 *
+	 * @return False if the user has been missing frames long enough to stop
+	 *         playing.
+	 */
+	public boolean fetchFrame(final BatchDecoder batch) {
+		traceSlot = -1;
+		batchSlot = batch.add(celtDecoder);
 
+		if (useJitterBuffer) {
+			final int result;
 			synchronized (jbLock) {
-				if (Native.jitter_buffer_get(
+				result = NativeDirect.jitterBufferGet(
 					jitterBuffer,
-					jbp,
+					batch.getData(),
+					batch.getDataOffset(batchSlot),
+					BatchDecoder.MAX_FRAME_LENGTH,
 					MumbleProtocol.FRAME_SIZE,
-					currentTimestamp) == 0) {
-
-					data = jbp.data;
-					dataLength = jbp.len;
-					missedFrames = 0;
-				} else {
-					missedFrames++;
-				}
-
-				Native.jitter_buffer_update_delay(jitterBuffer, null, null);
+					jitterResult);
 			}
+			updateAvailable(jitterResult.getInt(4 * NativeDirect.JITTER_AVAILABLE));
 
+			if (result == 0) {
+				batch.setLength(
+					batchSlot,
+					jitterResult.getInt(4 * NativeDirect.JITTER_LENGTH));
+				missedFrames = 0;
+				traceSlot = tracer.frameGot(
+					user.session,
+					jitterResult.getInt(4 * NativeDirect.JITTER_TIMESTAMP));
+			} else {
+				missedFrames++;
+				metrics.underruns.increment();
+			}
 		} else {
-			jbp = normalBuffer.poll();
+			updateAvailable(normalBuffer.size());
+			final Native.JitterBufferPacket jbp = normalBuffer.poll();
 			if (jbp != null) {
-				data = jbp.data;
-				dataLength = jbp.len;
+				batch.setFrame(batchSlot, jbp.data, jbp.len);
+				freeDataArray(jbp.data);
 				missedFrames = 0;
+				traceSlot = tracer.frameGot(user.session, jbp.timestamp);
 			} else {
 				missedFrames++;
+				metrics.underruns.increment();
 			}
 		}
 
-		Native.celt_decode_float(celtDecoder, data, dataLength, lastFrame);
-
-		if (data != null) {
-			freeDataArray(data);
-		}
-
-		if (useJitterBuffer) {
-			synchronized (jbLock) {
-				Native.jitter_buffer_tick(jitterBuffer);
-			}
+		if (missedFrames >= 10) {
+			driftCompensator.reset();
+			batchSlot = -1;
+			return false;
 		}
-
-		return (missedFrames < 10);
+		return true;
 	}
 
 	private byte[] acquireDataArray() {
@@ -214,6 +333,22 @@ public class AudioUser {
 		return data;
 	}
 
+	private int marginSamples() {
+		return (int) Math.round(jitterEstimator.getMargin() *
+								MumbleProtocol.SAMPLE_RATE / 1000);
+	}
+
+	/**
+	 * Records the buffer depth before taking a frame and publishes its
+	 * average in User.averageAvailable.
+	 */
+	private void updateAvailable(final int available_) {
+		available = available_;
+		metrics.jitterDepth.record(available);
+		user.averageAvailable += (available - user.averageAvailable) *
+								 AVAILABLE_GAIN;
+	}
+
 	@Override
 	protected final void finalize() {
 		Native.celt_decoder_destroy(celtDecoder);
@@ -0,0 +1,131 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import org.pcgod.mumbleclient.jni.NativeDirect;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+/**
+ * Collects one frame per talking user and decodes them all in a single JNI
+ * call into one contiguous buffer.
+ * <p>
+ * Every entry has a fixed MAX_FRAME_LENGTH region in the data buffer that
+ * frames are copied or read into, so the jitter buffer can fill it without
+ * going through a Java array. Not thread safe; used by the mixer thread.
+ */
+class BatchDecoder {
+	/** Largest CELT frame the voice packets can carry. */
+	static final int MAX_FRAME_LENGTH = 128;
+
+	private static final int FRAME_BYTES = MumbleProtocol.FRAME_SIZE * 4;
+
+	private ByteBuffer streams;
+	private ByteBuffer data;
+	private ByteBuffer pcm;
+	private FloatBuffer pcmFloats;
+	private int capacity;
+	private int count;
+
+	BatchDecoder(final int capacity_) {
+		allocate(capacity_);
+	}
+
+	/**
+	 * Adds a lost frame for a decoder. setFrame() or setLength() turn it
+	 * into a received one.
+	 *
+	 * @return Slot of the frame
+	 */
+	int add(final long decoder) {
+		if (count == capacity) {
+			grow();
+		}
+		final int entry = count * NativeDirect.STREAM_SIZE;
+		streams.putLong(entry + NativeDirect.STREAM_DECODER, decoder);
+		streams.putInt(entry + NativeDirect.STREAM_OFFSET, getDataOffset(count));
+		streams.putInt(entry + NativeDirect.STREAM_LENGTH, 0);
+		return count++;
+	}
+
+	void clear() {
+		count = 0;
+	}
+
+	/**
+	 * Decodes all frames added since clear().
+	 *
+	 * @return Number of frames that failed to decode
+	 */
+	int decode() {
+		if (count == 0) {
+			return 0;
+		}
+		return NativeDirect.celtDecodeFloatBatch(
+			streams,
+			count,
+			data,
+			pcm,
+			MumbleProtocol.FRAME_SIZE);
+	}
+
+	ByteBuffer getData() {
+		return data;
+	}
+
+	int getDataOffset(final int slot) {
+		return slot * MAX_FRAME_LENGTH;
+	}
+
+	/**
+	 * Copies the decoded samples of a slot.
+	 */
+	void getFrame(final int slot, final float[] frame) {
+		pcmFloats.position(slot * MumbleProtocol.FRAME_SIZE);
+		pcmFloats.get(frame, 0, MumbleProtocol.FRAME_SIZE);
+	}
+
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Copies a received frame into a slot.
+	 */
+	void setFrame(final int slot, final byte[] frame, final int length) {
+		data.position(getDataOffset(slot));
+		data.put(frame, 0, length);
+		setLength(slot, length);
+	}
+
+	/**
+	 * Sets the length of a frame read into the slot's data region.
+	 */
+	void setLength(final int slot, final int length) {
+		streams.putInt(
+			slot * NativeDirect.STREAM_SIZE + NativeDirect.STREAM_LENGTH,
+			length);
+	}
+
+	private void allocate(final int capacity_) {
+		capacity = capacity_;
+		streams = ByteBuffer.allocateDirect(capacity * NativeDirect.STREAM_SIZE).order(
+			ByteOrder.nativeOrder());
+		data = ByteBuffer.allocateDirect(capacity * MAX_FRAME_LENGTH);
+		pcm = ByteBuffer.allocateDirect(capacity * FRAME_BYTES).order(
+			ByteOrder.nativeOrder());
+		pcmFloats = pcm.asFloatBuffer();
+	}
+
+	private void grow() {
+		final ByteBuffer oldStreams = streams;
+		final ByteBuffer oldData = data;
+		allocate(capacity * 2);
+
+		oldStreams.clear();
+		streams.put(oldStreams);
+		oldData.clear();
+		data.put(oldData);
+	}
+}
@@ -0,0 +1,240 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.service.Metrics;
+
+import android.util.Log;
+
+/**
+ * Long-lived capture thread that records voice and sends it to the server.
+ * <p>
+ * The source and encoder are created once and kept between push-to-talk
+ * presses, so a press costs no setup. The engine has three modes:
+ * <ul>
+ * <li>Idle: the source is stopped and the thread waits.</li>
+ * <li>Standby: the source runs and the last PRE_ROLL_FRAMES frames are
+ * kept in a ring without being encoded.</li>
+ * <li>Transmitting: every frame is encoded and sent.</li>
+ * </ul>
+ * When transmitting starts from standby the frames in the ring are sent
+ * first, so speech that started just before the press isn't clipped. When
+ * it stops, frames still waiting for a full packet are sent right away.
+ * While the transmitter asks for redundancy each frame is also encoded at
+ * a low bit rate and repeated in the next packet.
+ * <p>
+ * The engine has no Android dependencies of its own; the microphone and
+ * codec are behind CaptureSource and FrameEncoder.
+ * <p>
+ * If the source fails the engine stops for good and reports it through
+ * Transmitter.captureFailed(); a new engine is needed to record again.
+ */
+public class CaptureEngine implements Runnable {
+	/**
+	 * Sends packets and tells the codec they're encoded with.
+	 */
+	public interface Transmitter extends VoicePacketizer.PacketSink {
+		/**
+		 * Called on the capture thread if the source fails. The engine has
+		 * stopped and released the source and encoder.
+		 *
+		 * @param engine The engine that stopped
+		 * @param error Description of the failure
+		 */
+		void captureFailed(CaptureEngine engine, String error);
+
+		/**
+		 * @return UDP message type of the codec, negative if voice can't be
+		 *         sent right now.
+		 */
+		int getCodec();
+
+		/**
+		 * @return True if packets should repeat the previous packet's frames.
+		 */
+		boolean isRedundant();
+	}
+
+	/** Frames kept in standby, 100ms. */
+	public static final int PRE_ROLL_FRAMES = 10;
+
+	private static final int FRAMES_PER_PACKET = 6;
+
+	private final CaptureSource source;
+	private final FrameEncoder encoder;
+	private final Transmitter transmitter;
+	private final Metrics metrics;
+	private final VoicePacketizer packetizer;
+	private final Thread thread;
+
+	private final short[][] ring;
+	private int ringNext;
+	private int ringCount;
+
+	private boolean transmitting;
+	private boolean standby;
+	private boolean shutdown;
+	/** System.nanoTime() of the press not answered by a packet yet, or 0. */
+	private volatile long pressedAt;
+
+	public CaptureEngine(
+		final CaptureSource source,
+		final FrameEncoder encoder,
+		final Transmitter transmitter,
+		final Metrics metrics) {
+		this.source = source;
+		this.encoder = encoder;
+		this.transmitter = transmitter;
+		this.metrics = metrics;
+		this.packetizer = new VoicePacketizer(
+			FRAMES_PER_PACKET,
+			new VoicePacketizer.PacketSink() {
+				@Override
+				public void sendPacket(final byte[] packet, final int length) {
+					final long pressed = pressedAt;
+					if (pressed != 0) {
+						pressedAt = 0;
+						metrics.pressToPacket.set((System.nanoTime() - pressed) / 1000);
+					}
+					metrics.voiceBytes.add(length);
+					metrics.redundantBytes.add(packetizer.getRepeatedLength());
+					transmitter.sendPacket(packet, length);
+				}
+			});
+		this.ring = new short[PRE_ROLL_FRAMES + 1][source.getSampleRate() / 100];
+		this.thread = new Thread(this, "record");
+	}
+
+	public synchronized boolean isTransmitting() {
+		return transmitting;
+	}
+
+	@Override
+	public void run() {
+		boolean running = false;
+		boolean wasTransmitting = false;
+		String failure = null;
+		try {
+			source.open();
+			while (true) {
+				final boolean transmit;
+				final boolean capture;
+				synchronized (this) {
+					if (shutdown) {
+						return;
+					}
+					transmit = transmitting;
+					capture = transmitting || standby;
+					if (!capture && !running && !wasTransmitting) {
+						wait();
+						continue;
+					}
+				}
+
+				if (wasTransmitting && !transmit) {
+					// End of the transmission, don't hold back the last frames.
+					final int codec = transmitter.getCodec();
+					if (codec >= 0) {
+						packetizer.flush(codec);
+					}
+				}
+
+				if (!capture) {
+					if (running) {
+						source.stop();
+						running = false;
+						ringCount = 0;
+					}
+					wasTransmitting = false;
+					continue;
+				}
+
+				if (!running) {
+					source.start();
+					running = true;
+				}
+
+				final short[] frame = ring[ringNext];
+				final int read = source.read(frame, frame.length);
+				if (read < 0) {
+					throw new IllegalStateException("Capture source read failed: " + read);
+				}
+				ringNext = (ringNext + 1) % ring.length;
+				ringCount = Math.min(ringCount + 1, ring.length);
+
+				if (transmit) {
+					// On a press this sends the pre-roll, otherwise just the
+					// frame that was read.
+					final int codec = transmitter.getCodec();
+					for (int i = ringCount; i > 0 && codec >= 0; i--) {
+						encode(ring[(ringNext - i + ring.length) % ring.length], codec);
+					}
+					ringCount = 0;
+				}
+				wasTransmitting = transmit;
+			}
+		} catch (final InterruptedException e) {
+			Log.w(Globals.LOG_TAG, "Capture interrupted", e);
+		} catch (final RuntimeException e) {
+			Log.e(Globals.LOG_TAG, "Capture failed", e);
+			synchronized (this) {
+				shutdown = true;
+				transmitting = false;
+			}
+			failure = e.getMessage();
+		} finally {
+			if (running) {
+				source.stop();
+			}
+			source.release();
+			encoder.destroy();
+		}
+
+		if (failure != null) {
+			transmitter.captureFailed(this, failure);
+		}
+	}
+
+	/**
+	 * Keeps the source running while not transmitting so there is pre-roll
+	 * for the next press. Costs the power of an open microphone but no
+	 * encoding.
+	 */
+	public synchronized void setStandby(final boolean standby_) {
+		standby = standby_;
+		notifyAll();
+	}
+
+	/**
+	 * Starts or stops sending voice.
+	 */
+	public synchronized void setTransmitting(final boolean transmitting_) {
+		if (transmitting_ && !transmitting) {
+			pressedAt = System.nanoTime();
+		}
+		transmitting = transmitting_;
+		notifyAll();
+	}
+
+	/**
+	 * Stops the thread. The source and encoder are released once the frame
+	 * being read is done.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		notifyAll();
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	private void encode(final short[] frame, final int codec) {
+		final long encodeStart = System.nanoTime();
+		final byte[] compressed = encoder.encode(frame);
+		final byte[] copy = transmitter.isRedundant() ? encoder.encodeRedundant()
+			: null;
+		metrics.encodeTime.record((System.nanoTime() - encodeStart) / 1000);
+		metrics.framesEncoded.increment();
+		packetizer.addFrame(compressed, copy, codec);
+	}
+}
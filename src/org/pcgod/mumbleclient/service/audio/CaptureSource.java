@@ -0,0 +1,40 @@
+package org.pcgod.mumbleclient.service.audio;
+
+/**
+ * Source of 16 bit mono PCM for the CaptureEngine.
+ * <p>
+ * All methods are called on the capture thread.
+ */
+public interface CaptureSource {
+	/**
+	 * @return Samples per second delivered by read()
+	 */
+	int getSampleRate();
+
+	/**
+	 * Acquires the source. Called once before the first start().
+	 */
+	void open();
+
+	/**
+	 * Blocks until samples are available and reads them.
+	 *
+	 * @return Number of samples read, negative on error
+	 */
+	int read(short[] buffer, int length);
+
+	/**
+	 * Releases the source. Called once, last.
+	 */
+	void release();
+
+	/**
+	 * Starts delivering samples.
+	 */
+	void start();
+
+	/**
+	 * Stops delivering samples until the next start().
+	 */
+	void stop();
+}
@@ -0,0 +1,137 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import org.pcgod.mumbleclient.jni.Native;
+import org.pcgod.mumbleclient.jni.NativeDirect;
+import org.pcgod.mumbleclient.jni.celtConstants;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+/**
+ * Resamples captured frames to the protocol sample rate and encodes them
+ * with CELT.
+ * <p>
+ * The native state is created once and kept for as long as the encoder is
+ * used, so it stays warm between transmissions. Redundant copies of the
+ * frames are encoded with a second encoder at REDUNDANT_QUALITY, created
+ * when first needed. Prediction is off in both so each frame decodes on
+ * its own.
+ */
+public class CeltFrameEncoder implements FrameEncoder {
+	/** Bit rate of the redundant frames in bits per second. */
+	private static final int REDUNDANT_QUALITY = 16000;
+
+	private final int compressedSize;
+	private final int redundantSize;
+	private final long celtMode;
+	private final long celtEncoder;
+	private long redundantEncoder;
+	private final long speexResamplerState;
+
+	private final short[] resampleBuffer = new short[MumbleProtocol.FRAME_SIZE];
+	private final int[] inLength = new int[1];
+	private final int[] outLength = new int[1];
+
+	/** Direct buffers celt_encode() works on in place. */
+	private final ByteBuffer pcmBuffer = ByteBuffer.allocateDirect(
+		MumbleProtocol.FRAME_SIZE * 2).order(ByteOrder.nativeOrder());
+	private final ShortBuffer pcmShorts = pcmBuffer.asShortBuffer();
+	private final ByteBuffer compressedBuffer;
+	/** The resampled frame last encoded. */
+	private short[] lastFrame;
+
+	/**
+	 * @param sampleRate Sample rate of the captured frames
+	 * @param quality CELT bit rate in bits per second
+	 */
+	public CeltFrameEncoder(final int sampleRate, final int quality) {
+		compressedSize = Math.min(quality / (100 * 8), 127);
+		redundantSize = Math.min(REDUNDANT_QUALITY, quality) / (100 * 8);
+		compressedBuffer = ByteBuffer.allocateDirect(compressedSize);
+
+		celtMode = Native.celt_mode_create(
+			MumbleProtocol.SAMPLE_RATE,
+			MumbleProtocol.FRAME_SIZE);
+		celtEncoder = createEncoder(quality);
+
+		if (sampleRate != MumbleProtocol.SAMPLE_RATE) {
+			speexResamplerState = Native.speex_resampler_init(
+				1,
+				sampleRate,
+				MumbleProtocol.SAMPLE_RATE,
+				3);
+		} else {
+			speexResamplerState = 0;
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (speexResamplerState != 0) {
+			Native.speex_resampler_destroy(speexResamplerState);
+		}
+		Native.celt_encoder_destroy(celtEncoder);
+		if (redundantEncoder != 0) {
+			Native.celt_encoder_destroy(redundantEncoder);
+		}
+		Native.celt_mode_destroy(celtMode);
+	}
+
+	@Override
+	public byte[] encode(final short[] pcm) {
+		short[] out;
+		if (speexResamplerState != 0) {
+			out = resampleBuffer;
+			inLength[0] = pcm.length;
+			outLength[0] = out.length;
+			Native.speex_resampler_process_int(
+				speexResamplerState,
+				0,
+				pcm,
+				inLength,
+				out,
+				outLength);
+		} else {
+			out = pcm;
+		}
+
+		lastFrame = out;
+		return encode(out, celtEncoder, compressedSize);
+	}
+
+	@Override
+	public byte[] encodeRedundant() {
+		if (redundantEncoder == 0) {
+			redundantEncoder = createEncoder(redundantSize * 100 * 8);
+		}
+		return encode(lastFrame, redundantEncoder, redundantSize);
+	}
+
+	private long createEncoder(final int quality) {
+		final long encoder = Native.celt_encoder_create(celtMode, 1);
+		Native.celt_encoder_ctl(
+			encoder,
+			celtConstants.CELT_SET_PREDICTION_REQUEST,
+			0);
+		Native.celt_encoder_ctl(
+			encoder,
+			celtConstants.CELT_SET_VBR_RATE_REQUEST,
+			quality);
+		return encoder;
+	}
+
+	private byte[] encode(final short[] pcm, final long encoder, final int size) {
+		pcmShorts.clear();
+		pcmShorts.put(pcm, 0, MumbleProtocol.FRAME_SIZE);
+		synchronized (Native.class) {
+			NativeDirect.celtEncode(encoder, pcmBuffer, compressedBuffer, size);
+		}
+
+		final byte[] compressed = new byte[size];
+		compressedBuffer.clear();
+		compressedBuffer.get(compressed);
+		return compressed;
+	}
+}
@@ -0,0 +1,113 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+/**
+ * Keeps a sender's buffered audio at a steady depth although its capture
+ * clock and our playback clock drift apart.
+ * <p>
+ * Decoded frames are stretched by the sender's clock skew, as estimated by
+ * JitterEstimator. Without a jitter buffer nothing else controls the
+ * depth, so a correction of DEPTH_GAIN per frame the depth is off its
+ * target is added; the target is the average depth over the first
+ * SETTLE_FRAMES frames of a talk spurt. The speex jitter buffer sets its
+ * own depth and would fight the correction, so with it only the skew is
+ * compensated. The stretch is at most MAX_STRETCH and accumulates until
+ * it's worth a TimeStretcher splice, so most frames pass unchanged.
+ * <p>
+ * Stretched frames no longer line up with the mixer's frames and are
+ * queued here. needsFrame() tells when another decoded frame is needed to
+ * fill the next mixer frame. After a shortened frame that can take two
+ * frames, which is how a fast sender's frames are consumed faster.
+ */
+class DriftCompensator {
+	private static final double MAX_STRETCH = 0.02;
+	private static final double DEPTH_GAIN = 0.001;
+	private static final int SETTLE_FRAMES = 100;
+	private static final int FRAME_SIZE = MumbleProtocol.FRAME_SIZE;
+
+	private final boolean holdDepth;
+	private final TimeStretcher stretcher = new TimeStretcher(FRAME_SIZE);
+	private final float[] stretched = new float[FRAME_SIZE +
+												TimeStretcher.MAX_SPLICE];
+	private final float[] queue = new float[2 * FRAME_SIZE +
+											TimeStretcher.MAX_SPLICE];
+	private int queued;
+
+	/** Samples the frames still need to be lengthened by, or shortened. */
+	private double pending;
+	private int frames;
+	private double depthSum;
+	private double targetDepth;
+
+	/**
+	 * @param holdDepth Whether to hold the buffer depth at its target
+	 */
+	DriftCompensator(final boolean holdDepth) {
+		this.holdDepth = holdDepth;
+	}
+
+	/**
+	 * Queues a decoded frame, stretched as needed.
+	 *
+	 * @param skew Sender's clock skew from JitterEstimator.getSkew()
+	 * @param buffered Frames buffered for the sender before this one
+	 */
+	void addFrame(final float[] frame, final double skew, final int buffered) {
+		final double depth = buffered + (double) queued / FRAME_SIZE;
+		double stretch = skew;
+		if (holdDepth) {
+			if (frames < SETTLE_FRAMES) {
+				depthSum += depth;
+				if (++frames == SETTLE_FRAMES) {
+					targetDepth = depthSum / SETTLE_FRAMES;
+				}
+			} else {
+				stretch -= DEPTH_GAIN * (depth - targetDepth);
+			}
+		}
+		stretch = Math.max(-MAX_STRETCH, Math.min(MAX_STRETCH, stretch));
+		pending += stretch * FRAME_SIZE;
+
+		if (pending >= TimeStretcher.MAX_SPLICE) {
+			final int added = stretcher.lengthen(frame, stretched);
+			pending -= added;
+			enqueue(stretched, FRAME_SIZE + added);
+		} else if (pending <= -TimeStretcher.MAX_SPLICE) {
+			final int removed = stretcher.shorten(frame, stretched);
+			pending += removed;
+			enqueue(stretched, FRAME_SIZE - removed);
+		} else {
+			enqueue(frame, FRAME_SIZE);
+		}
+	}
+
+	boolean needsFrame() {
+		return queued < FRAME_SIZE;
+	}
+
+	/**
+	 * Takes the next mixer frame from the queue.
+	 */
+	void read(final float[] frame) {
+		System.arraycopy(queue, 0, frame, 0, FRAME_SIZE);
+		queued -= FRAME_SIZE;
+		System.arraycopy(queue, FRAME_SIZE, queue, 0, queued);
+	}
+
+	/**
+	 * Drops the queued audio at the end of a talk spurt. The next spurt
+	 * settles on a new target depth.
+	 */
+	void reset() {
+		queued = 0;
+		pending = 0;
+		frames = 0;
+		depthSum = 0;
+	}
+
+	private void enqueue(final float[] samples, final int length) {
+		System.arraycopy(samples, 0, queue, queued, length);
+		queued += length;
+	}
+}
@@ -0,0 +1,27 @@
+package org.pcgod.mumbleclient.service.audio;
+
+/**
+ * Encodes 10ms frames of captured PCM for the CaptureEngine.
+ * <p>
+ * All methods are called on the capture thread.
+ */
+public interface FrameEncoder {
+	/**
+	 * Releases the encoder. Called once, last.
+	 */
+	void destroy();
+
+	/**
+	 * @param pcm One 10ms frame at the capture sample rate
+	 * @return The encoded frame, at most 127 bytes
+	 */
+	byte[] encode(short[] pcm);
+
+	/**
+	 * Encodes the frame last passed to encode() again at a low bit rate, to
+	 * be repeated in the next packet.
+	 *
+	 * @return The encoded frame, at most 127 bytes
+	 */
+	byte[] encodeRedundant();
+}
@@ -0,0 +1,216 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+/**
+ * Estimates one sender's interarrival jitter, loss and clock skew from its
+ * voice packets and derives the jitter buffer margin for that sender.
+ * <p>
+ * Jitter is the RFC 3550 interarrival jitter of the packets' arrival times
+ * against the sequence numbers of their last frames. Loss is measured like
+ * RFC 3550 does for receiver reports: frames received against frames
+ * expected over an interval, so packets that are only reordered don't
+ * count as lost. The margin target is MIN_MARGIN plus JITTER_FACTOR times
+ * the jitter, plus LOSS_FACTOR per unit of loss since lossy links tend to
+ * deliver late as well, up to MAX_MARGIN. A sender with redundancy repeats
+ * the previous packet's frames, which only arrive in time to replace a
+ * lost packet if the margin covers them as well, so the length of the
+ * repeated frames is added to the target. The margin moves towards the
+ * target slowly, over some 64 packets: the speex buffer keeps the arrival
+ * timings it saw under the old margin, and frequent changes leave it
+ * buffering more than either margin needs.
+ * <p>
+ * The skew is the slope of the transit time, arrival time minus sequence
+ * time. Jitter only ever delays packets, so the minimum transit of each
+ * SKEW_WINDOW follows the clocks and the slope between consecutive minima
+ * is averaged. A step of more than MAX_TRANSIT_STEP means the sequence
+ * restarted and starts the windows over.
+ * <p>
+ * A gap of more than MAX_GAP frames in the sequence or of SPURT_GAP in the
+ * arrival times starts a new talk spurt. Neither is counted as jitter nor
+ * as loss.
+ * <p>
+ * Only used under the lock of the sender's AudioUser, except for
+ * getSkew().
+ */
+class JitterEstimator {
+	/** Margin before the first estimate, the former fixed 5 frames. */
+	static final double INITIAL_MARGIN = 50;
+	static final double MIN_MARGIN = 20;
+	static final double MAX_MARGIN = 200;
+
+	private static final double JITTER_FACTOR = 2;
+	private static final double LOSS_FACTOR = 200;
+	private static final double JITTER_GAIN = 1.0 / 16;
+	private static final double LOSS_GAIN = 1.0 / 4;
+	private static final double MARGIN_GAIN = 1.0 / 64;
+
+	private static final int MAX_GAP = 50;
+	/** Frames expected per loss measurement interval. */
+	private static final int LOSS_INTERVAL = 100;
+	private static final long SPURT_GAP = 1000;
+	private static final long SKEW_WINDOW = 10000;
+	private static final double SKEW_GAIN = 1.0 / 4;
+	private static final double MAX_TRANSIT_STEP = 500;
+	private static final int FRAME_MS = MumbleProtocol.FRAME_SIZE * 1000 /
+										MumbleProtocol.SAMPLE_RATE;
+
+	private double jitter;
+	private double lossRate;
+	private double margin = INITIAL_MARGIN;
+
+	private boolean started;
+	private long expectedSequence;
+	private long intervalStart;
+	private int intervalReceived;
+	private double lastTransit;
+	private double lastArrival;
+	/** Frames the last packet repeated from the one before it. */
+	private int repeated;
+	/** New frames per packet of the sender, 0 until known. */
+	private int stride;
+	/** Whether the sender's packets repeat their predecessors. */
+	private boolean repeating;
+
+	/** Read by the mixer thread. */
+	private volatile double skew;
+	private boolean windowStarted;
+	private double windowStart;
+	private double windowMin;
+	private boolean hasPreviousWindow;
+	private double previousStart;
+	private double previousMin;
+
+	/**
+	 * @return Interarrival jitter estimate in milliseconds.
+	 */
+	double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * @return Smoothed fraction of frames missing from the sequence.
+	 */
+	double getLossRate() {
+		return lossRate;
+	}
+
+	/**
+	 * @return Current jitter buffer margin in milliseconds.
+	 */
+	double getMargin() {
+		return margin;
+	}
+
+	/**
+	 * @return Frames per packet of the sender not counting the repeated
+	 *         ones, 0 until known. A packet bringing more new
+	 *         frames than this repeated those of a lost packet.
+	 */
+	int getStride() {
+		return stride;
+	}
+
+	/**
+	 * @return Change of the transit time per unit of time, negative if the
+	 *         sender's clock runs faster than ours.
+	 */
+	double getSkew() {
+		return skew;
+	}
+
+	/**
+	 * Updates the estimates with a received packet.
+	 *
+	 * @param sequence Sequence number of the packet's first frame
+	 * @param frames Number of frames in the packet
+	 * @param received Number of those frames not received before
+	 * @param arrival Arrival time in milliseconds
+	 */
+	void packetArrived(
+		final long sequence,
+		final int frames,
+		final int received,
+		final double arrival) {
+		final double transit = arrival - (sequence + frames) * FRAME_MS;
+		final long gap = sequence - expectedSequence;
+
+		if (started && Math.abs(transit - lastTransit) > MAX_TRANSIT_STEP) {
+			windowStarted = hasPreviousWindow = false;
+		}
+		updateSkew(transit, arrival);
+
+		if (!started || gap > MAX_GAP || gap < -MAX_GAP ||
+			arrival - lastArrival > SPURT_GAP) {
+			started = true;
+			expectedSequence = sequence + frames;
+			intervalStart = sequence;
+			intervalReceived = received;
+			repeated = 0;
+			stride = 0;
+			repeating = false;
+		} else {
+			jitter += (Math.abs(transit - lastTransit) - jitter) * JITTER_GAIN;
+
+			intervalReceived += received;
+			if (sequence + frames > expectedSequence) {
+				repeated = (int) Math.max(0, expectedSequence - sequence);
+				// A packet repeating its predecessor shows the stride, as
+				// does any packet of a sender that never repeats. The first
+				// packet after a lost one brings more new frames, a shorter
+				// one ends a transmission.
+				if (sequence < expectedSequence) {
+					if (!repeating) {
+						repeating = true;
+						stride = 0;
+					}
+					stride = Math.max(
+						stride,
+						(int) (sequence + frames - expectedSequence));
+				} else if (sequence == expectedSequence && !repeating) {
+					stride = Math.max(stride, frames);
+				}
+				expectedSequence = sequence + frames;
+			}
+			final long expected = expectedSequence - intervalStart;
+			if (expected >= LOSS_INTERVAL) {
+				final double loss = Math.max(
+					0,
+					1 - (double) intervalReceived / expected);
+				lossRate += (loss - lossRate) * LOSS_GAIN;
+				intervalStart = expectedSequence;
+				intervalReceived = 0;
+			}
+
+			final double target = Math.min(MAX_MARGIN, MIN_MARGIN +
+													   JITTER_FACTOR * jitter +
+													   LOSS_FACTOR * lossRate +
+													   repeated * FRAME_MS);
+			margin += (target - margin) * MARGIN_GAIN;
+		}
+		lastTransit = transit;
+		lastArrival = arrival;
+	}
+
+	private void updateSkew(final double transit, final double arrival) {
+		if (!windowStarted) {
+			windowStarted = true;
+			windowStart = arrival;
+			windowMin = transit;
+		} else {
+			windowMin = Math.min(windowMin, transit);
+		}
+
+		if (arrival - windowStart >= SKEW_WINDOW) {
+			if (hasPreviousWindow) {
+				final double slope = (windowMin - previousMin) /
+									 (windowStart - previousStart);
+				skew += (slope - skew) * SKEW_GAIN;
+			}
+			hasPreviousWindow = true;
+			previousStart = windowStart;
+			previousMin = windowMin;
+			windowStarted = false;
+		}
+	}
+}
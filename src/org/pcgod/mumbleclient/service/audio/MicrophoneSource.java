@@ -0,0 +1,88 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+/**
+ * Captures from the microphone with an AudioRecord.
+ * <p>
+ * The AudioRecord is created once and only stopped between transmissions,
+ * which is much cheaper than creating a new one for each.
+ */
+public class MicrophoneSource implements CaptureSource {
+	private static final int RECORD_BUFFER_SIZE = 64 * 1024;
+
+	private final int sampleRate;
+	private AudioRecord audioRecord;
+
+	/**
+	 * Picks the highest sample rate the device can record at.
+	 */
+	public MicrophoneSource() {
+		int rate = 0;
+		for (final int s : new int[] { 48000, 44100, 22050, 11025, 8000 }) {
+			final int bufferSize = AudioRecord.getMinBufferSize(
+				s,
+				AudioFormat.CHANNEL_CONFIGURATION_MONO,
+				AudioFormat.ENCODING_PCM_16BIT);
+			if (bufferSize > 0) {
+				rate = s;
+				break;
+			}
+		}
+
+		if (rate == 0) {
+			throw new RuntimeException("No recording sample rate found");
+		}
+
+		Log.i(Globals.LOG_TAG, "Selected recording sample rate: " + rate);
+		sampleRate = rate;
+	}
+
+	@Override
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public void open() {
+		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+		audioRecord = new AudioRecord(
+			MediaRecorder.AudioSource.MIC,
+			sampleRate,
+			AudioFormat.CHANNEL_CONFIGURATION_MONO,
+			AudioFormat.ENCODING_PCM_16BIT,
+			RECORD_BUFFER_SIZE);
+
+		if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+			throw new IllegalStateException("AudioRecord not initialized");
+		}
+	}
+
+	@Override
+	public int read(final short[] buffer, final int length) {
+		return audioRecord.read(buffer, 0, length);
+	}
+
+	@Override
+	public void release() {
+		if (audioRecord != null) {
+			audioRecord.release();
+		}
+	}
+
+	@Override
+	public void start() {
+		audioRecord.startRecording();
+	}
+
+	@Override
+	public void stop() {
+		audioRecord.stop();
+	}
+}
@@ -0,0 +1,48 @@
+package org.pcgod.mumbleclient.service.audio;
+
+/**
+ * Remembers which of a sender's recent frames have been received, so the
+ * frames senders repeat for redundancy are buffered only once.
+ * <p>
+ * The window covers the WINDOW frames up to the newest one received. A
+ * frame older than that is taken as the sequence restarting, as it does
+ * when the sender reconnects, and starts the window over.
+ */
+class SequenceWindow {
+	private static final int WINDOW = 64;
+
+	private boolean started;
+	private long newest;
+	/** Bit n is set if frame newest - n has been received. */
+	private long received;
+
+	/**
+	 * Marks a frame received.
+	 *
+	 * @param frame Sequence number of the frame
+	 * @return False if the frame had been received before.
+	 */
+	boolean add(final long frame) {
+		if (!started || frame > newest) {
+			final long shift = frame - newest;
+			received = !started || shift >= WINDOW ? 1 : received << shift | 1;
+			newest = frame;
+			started = true;
+			return true;
+		}
+
+		final long age = newest - frame;
+		if (age >= WINDOW) {
+			received = 1;
+			newest = frame;
+			return true;
+		}
+
+		final long bit = 1L << age;
+		if ((received & bit) != 0) {
+			return false;
+		}
+		received |= bit;
+		return true;
+	}
+}
@@ -0,0 +1,125 @@
+package org.pcgod.mumbleclient.service.audio;
+
+/**
+ * Shortens or lengthens a frame by splicing it with itself, a single step
+ * of WSOLA.
+ * <p>
+ * Shortening skips n samples and lengthening plays n samples again. n is
+ * chosen between MIN_SPLICE and MAX_SPLICE so the waveform at both ends of
+ * the splice matches best, which for voiced speech lands on a multiple of
+ * the pitch period. The two ends are crossfaded over OVERLAP samples.
+ * In silence the longest splice is used.
+ */
+class TimeStretcher {
+	/** Shortest splice, 2.5ms at 48kHz. */
+	static final int MIN_SPLICE = 120;
+	/** Longest splice, 5ms at 48kHz. */
+	static final int MAX_SPLICE = 240;
+
+	/** Crossfade length, 2ms at 48kHz. */
+	private static final int OVERLAP = 96;
+	/** Where the splice starts in the frame. */
+	private static final int START = 48;
+
+	private final float[] fadeIn = new float[OVERLAP];
+
+	/**
+	 * @param frameSize Length of the frames, at least
+	 *        START + MAX_SPLICE + OVERLAP
+	 */
+	TimeStretcher(final int frameSize) {
+		if (frameSize < START + MAX_SPLICE + OVERLAP) {
+			throw new IllegalArgumentException("Frame too short: " + frameSize);
+		}
+		for (int i = 0; i < OVERLAP; i++) {
+			fadeIn[i] = (float) (0.5 - 0.5 * Math.cos(Math.PI * (i + 0.5) /
+													 OVERLAP));
+		}
+	}
+
+	/**
+	 * Plays part of the frame twice.
+	 *
+	 * @param out Receives frame.length + MAX_SPLICE samples at most
+	 * @return Number of samples added
+	 */
+	int lengthen(final float[] frame, final float[] out) {
+		final int n = findSplice(frame);
+
+		// Play up to START + n, then jump back to START.
+		System.arraycopy(frame, 0, out, 0, START + n);
+		crossfade(frame, START + n, START, out, START + n);
+		System.arraycopy(
+			frame,
+			START + OVERLAP,
+			out,
+			START + n + OVERLAP,
+			frame.length - START - OVERLAP);
+		return n;
+	}
+
+	/**
+	 * Skips part of the frame.
+	 *
+	 * @param out Receives frame.length - MIN_SPLICE samples at most
+	 * @return Number of samples removed
+	 */
+	int shorten(final float[] frame, final float[] out) {
+		final int n = findSplice(frame);
+
+		// Play up to START, then jump ahead to START + n.
+		System.arraycopy(frame, 0, out, 0, START);
+		crossfade(frame, START, START + n, out, START);
+		System.arraycopy(
+			frame,
+			START + n + OVERLAP,
+			out,
+			START + OVERLAP,
+			frame.length - START - n - OVERLAP);
+		return n;
+	}
+
+	private void crossfade(
+		final float[] frame,
+		final int from,
+		final int to,
+		final float[] out,
+		final int offset) {
+		for (int i = 0; i < OVERLAP; i++) {
+			out[offset + i] = frame[from + i] * (1 - fadeIn[i]) +
+							  frame[to + i] * fadeIn[i];
+		}
+	}
+
+	/**
+	 * @return Splice length whose ends match best by normalized cross
+	 *         correlation.
+	 */
+	private int findSplice(final float[] frame) {
+		double energy = 0;
+		for (int i = 0; i < OVERLAP; i++) {
+			energy += frame[START + i] * frame[START + i];
+		}
+
+		int best = MAX_SPLICE;
+		double bestScore = 0;
+		for (int n = MAX_SPLICE; n >= MIN_SPLICE; n--) {
+			double cross = 0;
+			double shiftedEnergy = 0;
+			for (int i = 0; i < OVERLAP; i++) {
+				final float shifted = frame[START + n + i];
+				cross += frame[START + i] * shifted;
+				shiftedEnergy += shifted * shifted;
+			}
+			if (cross <= 0) {
+				continue;
+			}
+			final double score = cross * cross / (energy * shiftedEnergy);
+			if (score > bestScore) {
+				bestScore = score;
+				best = n;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,36 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import org.pcgod.mumbleclient.service.Metrics;
+import org.pcgod.mumbleclient.service.PacketDataStream;
+import org.pcgod.mumbleclient.service.VoiceTracer;
+import org.pcgod.mumbleclient.service.model.User;
+
+/**
+ * Receives the voice packets of the other users. MumbleProtocol runs it on
+ * its own thread once the connection is synchronized. AudioOutput plays the
+ * voice; an output without work of its own may return from run() at once.
+ */
+public interface VoiceOutput extends Runnable {
+	/**
+	 * Creates the output for a MumbleProtocol.
+	 */
+	public interface Factory {
+		public VoiceOutput create(
+			AudioOutputHost host,
+			Metrics metrics,
+			VoiceTracer tracer);
+	}
+
+	/**
+	 * Called by the UDP and the TCP reader threads.
+	 *
+	 * @param pds Rewound voice packet
+	 * @param flags Packet type and target
+	 */
+	public void addFrameToBuffer(User u, PacketDataStream pds, int flags);
+
+	/**
+	 * Ends run().
+	 */
+	public void stop();
+}
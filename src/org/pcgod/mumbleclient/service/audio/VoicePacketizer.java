@@ -0,0 +1,142 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import org.pcgod.mumbleclient.service.PacketDataStream;
+
+/**
+ * Bundles encoded voice frames into Mumble UDP voice packets.
+ * <p>
+ * Frames can come with a redundant copy, usually encoded at a lower bit
+ * rate. The copies of a packet's frames are sent again at the start of the
+ * next packet, whose sequence number starts that many frames earlier, so
+ * the receiver can fill in a lost packet from the one after it. Receivers
+ * that don't know about redundancy see repeated frames, which they drop as
+ * late or duplicate. A packet repeats the previous one only if all of its
+ * frames had a copy, and never across flush().
+ * <p>
+ * The packetizer has no Android or audio dependencies so the same code that
+ * sends voice from the microphone can be driven with synthetic frames.
+ */
+public class VoicePacketizer {
+	/**
+	 * Receives complete voice packets. The buffer is reused for the next
+	 * packet so it must be consumed before returning.
+	 */
+	public interface PacketSink {
+		void sendPacket(byte[] buffer, int length);
+	}
+
+	private final int framesPerPacket;
+	private final PacketSink sink;
+	private final byte[][] frames;
+	private byte[][] redundant;
+	/** Copies of the previous packet's frames. */
+	private byte[][] repeated;
+	private final byte[] outputBuffer = new byte[1024];
+	private int frameCount;
+	private int repeatedCount;
+	private int repeatedLength;
+	private int seq;
+
+	public VoicePacketizer(final int framesPerPacket, final PacketSink sink) {
+		this.framesPerPacket = framesPerPacket;
+		this.sink = sink;
+		this.frames = new byte[framesPerPacket][];
+		this.redundant = new byte[framesPerPacket][];
+		this.repeated = new byte[framesPerPacket][];
+	}
+
+	/**
+	 * Queues an encoded frame and sends a packet once framesPerPacket frames
+	 * have been queued.
+	 *
+	 * @param frame Encoded frame, at most 127 bytes
+	 * @param codec UDP message type of the codec the frame was encoded with
+	 */
+	public void addFrame(final byte[] frame, final int codec) {
+		addFrame(frame, null, codec);
+	}
+
+	/**
+	 * Queues an encoded frame with a copy to send in the next packet.
+	 *
+	 * @param frame Encoded frame, at most 127 bytes
+	 * @param copy Redundant copy of the frame, at most 127 bytes, or null
+	 * @param codec UDP message type of the codec the frames were encoded with
+	 */
+	public void addFrame(final byte[] frame, final byte[] copy, final int codec) {
+		redundant[frameCount] = copy;
+		frames[frameCount++] = frame;
+		if (frameCount < framesPerPacket) {
+			return;
+		}
+
+		send(codec);
+	}
+
+	/**
+	 * Sends the queued frames as a shorter packet, for example at the end of
+	 * a transmission. Does nothing if no frames are queued.
+	 */
+	public void flush(final int codec) {
+		if (frameCount > 0) {
+			send(codec);
+		}
+		// The next transmission mustn't start by repeating this one.
+		repeatedCount = 0;
+	}
+
+	public int getFramesPerPacket() {
+		return framesPerPacket;
+	}
+
+	/**
+	 * @return Bytes of the packet being sent that repeat the previous one.
+	 */
+	public int getRepeatedLength() {
+		return repeatedLength;
+	}
+
+	private void appendFrame(
+		final PacketDataStream pds,
+		final byte[] frame,
+		final boolean more) {
+		int head = frame.length;
+		if (more) {
+			head |= 0x80;
+		}
+
+		pds.append(head);
+		pds.append(frame);
+	}
+
+	private void send(final int codec) {
+		outputBuffer[0] = (byte) (codec << 5);
+
+		final PacketDataStream pds = new PacketDataStream(outputBuffer);
+		// skip flags
+		pds.next();
+		pds.writeLong(seq - repeatedCount);
+		seq += frameCount;
+		final int repeatedStart = pds.size();
+		for (int i = 0; i < repeatedCount; ++i) {
+			appendFrame(pds, repeated[i], true);
+			repeated[i] = null;
+		}
+		repeatedLength = pds.size() - repeatedStart;
+		boolean complete = true;
+		for (int i = 0; i < frameCount; ++i) {
+			appendFrame(pds, frames[i], i < frameCount - 1);
+			frames[i] = null;
+			complete &= redundant[i] != null;
+		}
+
+		// This packet's copies are repeated in the next one.
+		final byte[][] copies = redundant;
+		redundant = repeated;
+		repeated = copies;
+		repeatedCount = complete ? frameCount : 0;
+		frameCount = 0;
+
+		sink.sendPacket(outputBuffer, pds.size());
+	}
+}
@@ -20,6 +20,13 @@ public class Channel implements Parcelable {
 	public String name;
 	public int userCount;
 
+	/**
+	 * Channel description. Null until it has been received either inline
+	 * or through a blob request for descriptionHash.
+	 */
+	public String description;
+	public byte[] descriptionHash;
+
 	/**
 	 * Value signaling whether this channel has just been removed.
 	 * Once this value is set the connection signals one last update for the
@@ -68,18 +75,24 @@ public class Channel implements Parcelable {
 
 	@Override
 	public void writeToParcel(final Parcel dest, final int flags) {
-		dest.writeInt(0); // Version
+		dest.writeInt(1); // Version
 
 		dest.writeInt(id);
 		dest.writeString(name);
 		dest.writeInt(userCount);
+		dest.writeString(description);
+		dest.writeByteArray(descriptionHash);
 	}
 
 	private void readFromParcel(final Parcel in) {
-		in.readInt(); // Version
+		final int version = in.readInt();
 
 		id = in.readInt();
 		name = in.readString();
 		userCount = in.readInt();
+		if (version >= 1) {
+			description = in.readString();
+			descriptionHash = in.createByteArray();
+		}
 	}
 }
@@ -40,6 +40,20 @@ public class User implements Parcelable {
 	public boolean muted;
 	public boolean deafened;
 
+	/**
+	 * User comment. Null until it has been received either inline or through
+	 * a blob request for commentHash.
+	 */
+	public String comment;
+	public byte[] commentHash;
+
+	/**
+	 * User texture. Not included in the parcel because of its size; use the
+	 * hash to look it up from the service instead.
+	 */
+	public byte[] texture;
+	public byte[] textureHash;
+
 	private Channel channel;
 
 	public User() {
@@ -110,7 +124,7 @@ public class User implements Parcelable {
 
 	@Override
 	public void writeToParcel(final Parcel dest, final int flags) {
-		dest.writeInt(0); // Version
+		dest.writeInt(1); // Version
 
 		dest.writeInt(session);
 		dest.writeString(name);
@@ -118,10 +132,13 @@ public class User implements Parcelable {
 		dest.writeInt(talkingState);
 		dest.writeBooleanArray(new boolean[] { isCurrent, muted, deafened });
 		dest.writeParcelable(channel, 0);
+		dest.writeString(comment);
+		dest.writeByteArray(commentHash);
+		dest.writeByteArray(textureHash);
 	}
 
 	private void readFromParcel(final Parcel in) {
-		in.readInt(); // Version
+		final int version = in.readInt();
 
 		session = in.readInt();
 		name = in.readString();
@@ -133,5 +150,10 @@ public class User implements Parcelable {
 		muted = boolArr[1];
 		deafened = boolArr[2];
 		channel = in.readParcelable(null);
+		if (version >= 1) {
+			comment = in.readString();
+			commentHash = in.createByteArray();
+			textureHash = in.createByteArray();
+		}
 	}
 }
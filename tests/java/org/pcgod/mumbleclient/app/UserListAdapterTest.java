@@ -0,0 +1,176 @@
+package org.pcgod.mumbleclient.app;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.service.audio.AudioOutputHost;
+import org.pcgod.mumbleclient.service.model.Channel;
+import org.pcgod.mumbleclient.service.model.User;
+
+import android.database.DataSetObserver;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.widget.ListView;
+
+/**
+ * Applies the same 1,000 user updates to a channel of 500 users through
+ * UserListAdapter.refreshUser() and by rebuilding the whole list, which is
+ * what every update cost before the adapter updated single rows.
+ */
+public class UserListAdapterTest extends AndroidTestCase {
+	private static final int USERS = 500;
+	private static final int UPDATES = 1000;
+
+	private static final int TALK = 0;
+	private static final int RENAME = 1;
+	private static final int MOVE = 2;
+
+	private Channel visible;
+	private Channel other;
+	private List<User> users;
+	private UserListAdapter adapter;
+	private int changes;
+
+	/** Kind, user and new name of each update. */
+	private int[][] updates;
+
+	public void testBenchmarkUpdates() {
+		final int warmup = 5;
+		final int rounds = 15;
+		final long[] incremental = new long[rounds];
+		final long[] rebuilt = new long[rounds];
+		for (int round = -warmup; round < rounds; round++) {
+			reset();
+			final long start = System.nanoTime();
+			for (final int[] update : updates) {
+				adapter.refreshUser(apply(update));
+			}
+			final long middle = System.nanoTime();
+
+			reset();
+			for (final int[] update : updates) {
+				apply(update);
+				adapter.setUsers(users);
+			}
+			if (round >= 0) {
+				incremental[round] = middle - start;
+				rebuilt[round] = System.nanoTime() - middle;
+			}
+		}
+		Arrays.sort(incremental);
+		Arrays.sort(rebuilt);
+
+		Log.i(Globals.LOG_TAG, "UserListAdapter median of " + rounds +
+							   " rounds of " + UPDATES + " updates over " +
+							   USERS + " users: refreshUser " +
+							   incremental[rounds / 2] / UPDATES / 1000 +
+							   " us, rebuilding " + rebuilt[rounds / 2] /
+													UPDATES / 1000 +
+							   " us per update");
+	}
+
+	/**
+	 * The rows stay sorted, and only updates that add or remove a row tell
+	 * the ListView to reload.
+	 */
+	public void testUpdatesKeepOrder() {
+		reset();
+		int moves = 0;
+		for (final int[] update : updates) {
+			adapter.refreshUser(apply(update));
+			if (update[0] == MOVE) {
+				moves++;
+			}
+		}
+		assertEquals(moves, changes);
+
+		final UserSortKeys keys = new UserSortKeys(Collator.getInstance());
+		final List<User> expected = new ArrayList<User>();
+		for (final User user : users) {
+			if (user.getChannel() == visible) {
+				keys.update(user);
+				expected.add(user);
+			}
+		}
+		Collections.sort(expected, keys);
+
+		assertEquals(expected.size(), adapter.getCount());
+		for (int i = 0; i < expected.size(); i++) {
+			assertSame(expected.get(i), adapter.getItem(i));
+			assertTrue(adapter.hasUser(expected.get(i)));
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		visible = new Channel();
+		visible.id = 1;
+		other = new Channel();
+		other.id = 2;
+
+		// Mostly talk state changes, as in a busy channel.
+		final Random random = new Random(1);
+		updates = new int[UPDATES][];
+		for (int i = 0; i < UPDATES; i++) {
+			final int p = random.nextInt(100);
+			final int kind = p < 80 ? TALK : p < 95 ? RENAME : MOVE;
+			updates[i] = new int[] { kind, random.nextInt(USERS),
+				random.nextInt(USERS) };
+		}
+	}
+
+	/**
+	 * @return The updated user
+	 */
+	private User apply(final int[] update) {
+		final User user = users.get(update[1]);
+		switch (update[0]) {
+		case TALK:
+			user.talkingState = user.talkingState == AudioOutputHost.STATE_TALKING
+				? AudioOutputHost.STATE_PASSIVE : AudioOutputHost.STATE_TALKING;
+			break;
+		case RENAME:
+			user.name = "user" + update[2];
+			break;
+		case MOVE:
+			user.setChannel(user.getChannel() == visible ? other : visible);
+			break;
+		}
+		return user;
+	}
+
+	/**
+	 * Shows a fresh channel of USERS users in a new adapter.
+	 */
+	private void reset() {
+		users = new ArrayList<User>(USERS);
+		final Random random = new Random(2);
+		for (int i = 0; i < USERS; i++) {
+			final User user = new User();
+			user.session = i;
+			user.name = "user" + random.nextInt(USERS);
+			user.setChannel(visible);
+			users.add(user);
+		}
+
+		adapter = new UserListAdapter(
+			getContext(),
+			new ListView(getContext()),
+			null);
+		adapter.setVisibleChannel(visible.id);
+		adapter.setUsers(users);
+		changes = 0;
+		adapter.registerDataSetObserver(new DataSetObserver() {
+			@Override
+			public void onChanged() {
+				changes++;
+			}
+		});
+	}
+}
@@ -0,0 +1,86 @@
+package org.pcgod.mumbleclient.app;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.pcgod.mumbleclient.service.model.User;
+
+public class UserSortKeysTest extends TestCase {
+	private static User user(final int session, final String name) {
+		final User user = new User();
+		user.session = session;
+		user.name = name;
+		return user;
+	}
+
+	private UserSortKeys keys;
+
+	public void testBinarySearchFindsEachUser() {
+		final Random random = new Random(1);
+		final List<User> users = new ArrayList<User>();
+		for (int i = 0; i < 500; i++) {
+			// Few distinct names so most comparisons tie on the name.
+			final User user = user(i, "user" + random.nextInt(20));
+			keys.update(user);
+			users.add(user);
+		}
+		Collections.sort(users, keys);
+
+		for (int i = 0; i < users.size(); i++) {
+			assertEquals(i, Collections.binarySearch(users, users.get(i), keys));
+		}
+	}
+
+	public void testCollationIgnoresCase() {
+		final User lower = user(1, "alice");
+		final User upper = user(2, "Bob");
+		keys.update(lower);
+		keys.update(upper);
+
+		assertTrue(keys.compare(lower, upper) < 0);
+		assertTrue(keys.compare(upper, lower) > 0);
+	}
+
+	public void testMissingNameSortsFirst() {
+		final User unnamed = user(5, null);
+		final User named = user(1, "a");
+		keys.update(unnamed);
+		keys.update(named);
+
+		assertTrue(keys.compare(unnamed, named) < 0);
+	}
+
+	public void testRenameUpdatesKey() {
+		final User a = user(1, "a");
+		final User b = user(2, "b");
+		keys.update(a);
+		keys.update(b);
+		assertTrue(keys.compare(a, b) < 0);
+
+		a.name = "c";
+		keys.update(a);
+		assertTrue(keys.compare(a, b) > 0);
+	}
+
+	public void testSameNameOrderedBySession() {
+		final User first = user(3, "same");
+		final User second = user(7, "same");
+		keys.update(first);
+		keys.update(second);
+
+		assertTrue(keys.compare(first, second) < 0);
+		assertTrue(keys.compare(second, first) > 0);
+		assertEquals(0, keys.compare(first, first));
+	}
+
+	@Override
+	protected void setUp() {
+		keys = new UserSortKeys(Collator.getInstance(Locale.ENGLISH));
+	}
+}
@@ -0,0 +1,311 @@
+package org.pcgod.mumbleclient.loadtest;
+
+import java.io.File;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pcgod.mumbleclient.service.BlobCache;
+import org.pcgod.mumbleclient.service.CryptState;
+import org.pcgod.mumbleclient.service.Metrics;
+import org.pcgod.mumbleclient.service.MumbleConnection;
+import org.pcgod.mumbleclient.service.MumbleConnectionHost;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+import org.pcgod.mumbleclient.service.MumbleProtocolHost;
+import org.pcgod.mumbleclient.service.PacketDataStream;
+import org.pcgod.mumbleclient.service.VoiceTracer;
+import org.pcgod.mumbleclient.service.audio.AudioOutputHost;
+import org.pcgod.mumbleclient.service.audio.VoiceOutput;
+import org.pcgod.mumbleclient.service.audio.VoicePacketizer;
+import org.pcgod.mumbleclient.service.model.Channel;
+import org.pcgod.mumbleclient.service.model.Message;
+import org.pcgod.mumbleclient.service.model.User;
+
+/**
+ * One simulated client of the load generator.
+ * <p>
+ * Drives the real MumbleConnection and MumbleProtocol the way MumbleService
+ * does, so the handshake, pings, transport selection, crypt resyncs and
+ * reconnect state are the code paths the phones use. Only the Android ends
+ * are replaced: received voice is counted by a VoiceOutput instead of being
+ * played, and the microphone is a VoicePacketizer fed with random frames
+ * from the LoadGenerator scheduler, which also runs the pings.
+ */
+class LoadBot implements MumbleConnectionHost, MumbleProtocolHost,
+	AudioOutputHost, VoicePacketizer.PacketSink {
+	/**
+	 * Counts the voice packets MumbleProtocol would play.
+	 */
+	private class CountingOutput implements VoiceOutput {
+		@Override
+		public void addFrameToBuffer(
+			final User u,
+			final PacketDataStream pds,
+			final int flags) {
+			voiceReceived.incrementAndGet();
+		}
+
+		@Override
+		public void run() {
+			// Nothing to play.
+		}
+
+		@Override
+		public void stop() {
+		}
+	}
+
+	private static final long FRAME_NANOS = 10 * 1000 * 1000L;
+	/** Mean length of a talk spurt. */
+	private static final long TALK_SPURT = 2000 * 1000 * 1000L;
+
+	final int id;
+	private final LoadGenerator generator;
+	private final Random random;
+	private final byte[] frame;
+	private final VoicePacketizer packetizer;
+
+	private final MumbleConnection connection;
+	private final MumbleProtocol protocol;
+	private Thread thread;
+	private volatile boolean stopping;
+	private volatile int targetChannel = -1;
+
+	// Only used by the scheduler thread.
+	private boolean talking;
+	private long nextToggle;
+	private long nextFrame;
+
+	// Statistics, all times in nanoseconds.
+	volatile long startTime;
+	volatile long syncTime = -1;
+	volatile long joinTime = -1;
+	volatile String error;
+	int voiceSent;
+	final AtomicInteger voiceReceived = new AtomicInteger();
+
+	public LoadBot(
+		final int id,
+		final LoadGenerator generator,
+		final ScheduledExecutorService scheduler,
+		final File blobDir) {
+		this.id = id;
+		this.generator = generator;
+		this.random = new Random(id);
+		this.packetizer = new VoicePacketizer(generator.framesPerPacket, this);
+
+		frame = new byte[Math.min(generator.bitrate / (100 * 8), 127)];
+		random.nextBytes(frame);
+
+		connection = new MumbleConnection(
+			this,
+			generator.host,
+			generator.port,
+			generator.namePrefix + id,
+			generator.password);
+		protocol = new MumbleProtocol(
+			this,
+			this,
+			connection,
+			new BlobCache(blobDir, 64 * 1024),
+			new VoiceOutput.Factory() {
+				@Override
+				public VoiceOutput create(
+					final AudioOutputHost host,
+					final Metrics metrics,
+					final VoiceTracer tracer) {
+					return new CountingOutput();
+				}
+			});
+		protocol.setPingScheduler(scheduler);
+	}
+
+	@Override
+	public void channelAdded(final Channel channel) {
+	}
+
+	@Override
+	public void channelRemoved(final int channelId) {
+	}
+
+	@Override
+	public void channelUpdated(final Channel channel) {
+	}
+
+	public void connect() {
+		startTime = System.nanoTime();
+		thread = connection.start(protocol);
+	}
+
+	@Override
+	public void currentChannelChanged() {
+		final Channel current = protocol.currentChannel;
+		if (joinTime < 0 && current != null && current.id == targetChannel) {
+			joinTime = System.nanoTime();
+		}
+	}
+
+	@Override
+	public void currentUserUpdated() {
+	}
+
+	/**
+	 * Disconnects and waits for the connection thread to end.
+	 */
+	public void disconnect() throws InterruptedException {
+		stopping = true;
+		protocol.stop();
+		connection.disconnect();
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	public CryptState getCryptState() {
+		return connection.getCryptState();
+	}
+
+	public Metrics getMetrics() {
+		return connection.getMetrics();
+	}
+
+	/**
+	 * @return Mean TCP ping in milliseconds, -1 before the first reply
+	 */
+	public double getTcpRtt() {
+		return connection.getTcpPing().getSamples() > 0
+			? connection.getTcpPing().getMean() : -1;
+	}
+
+	/**
+	 * @return Mean UDP ping in milliseconds, -1 before the first reply
+	 */
+	public double getUdpRtt() {
+		return connection.getUdpPing().getSamples() > 0
+			? connection.getUdpPing().getMean() : -1;
+	}
+
+	public boolean isSynchronized() {
+		return syncTime >= 0;
+	}
+
+	@Override
+	public void messageReceived(final Message msg) {
+	}
+
+	@Override
+	public void messageSent(final Message msg) {
+	}
+
+	@Override
+	public void sendPacket(final byte[] buffer, final int length) {
+		voiceSent++;
+		connection.sendUdpMessage(buffer, length, false);
+	}
+
+	@Override
+	public void setConnectionState(final int state) {
+		if (state == STATE_DISCONNECTED && !stopping && error == null) {
+			error = "Disconnected";
+		}
+	}
+
+	@Override
+	public void setError(final String error_) {
+		if (error == null) {
+			error = error_;
+		}
+	}
+
+	@Override
+	public void setSynchronized(final boolean synced) {
+		if (!synced || syncTime >= 0) {
+			return;
+		}
+		syncTime = System.nanoTime();
+		nextToggle = syncTime;
+		joinChannel();
+	}
+
+	@Override
+	public void setTalkState(final User user, final int talkState) {
+	}
+
+	/**
+	 * Advances the talk spurts and sends the voice frames that are due.
+	 * Called by the LoadGenerator scheduler.
+	 */
+	public void tick(final long now) {
+		final int codec = protocol.codec;
+		if (!isSynchronized() || stopping ||
+			codec == MumbleProtocol.CODEC_NOCODEC) {
+			return;
+		}
+
+		final double ratio = generator.talkRatio;
+		if (ratio <= 0) {
+			return;
+		}
+
+		if (now >= nextToggle) {
+			if (talking && ratio < 1) {
+				packetizer.flush(codec);
+			}
+			talking = ratio >= 1 || !talking;
+			// Exponentially distributed spurts and pauses whose means give
+			// the configured talk ratio.
+			final double mean = talking ? TALK_SPURT : TALK_SPURT *
+													   (1 - ratio) / ratio;
+			nextToggle = now + (long) (-Math.log(1 - random.nextDouble()) * mean);
+			nextFrame = now;
+		}
+
+		if (!talking) {
+			return;
+		}
+
+		// Don't burst to catch up after a stall longer than a packet.
+		if (now - nextFrame > FRAME_NANOS * generator.framesPerPacket) {
+			nextFrame = now;
+		}
+		while (now >= nextFrame) {
+			packetizer.addFrame(frame, codec);
+			nextFrame += FRAME_NANOS;
+		}
+	}
+
+	@Override
+	public void userAdded(final User user) {
+	}
+
+	@Override
+	public void userRemoved(final int userId) {
+	}
+
+	@Override
+	public void userUpdated(final User user) {
+	}
+
+	/**
+	 * Moves to the configured channel, or spreads the bots over all
+	 * channels. Runs on the control thread handling ServerSync.
+	 */
+	private void joinChannel() {
+		if (generator.channel >= 0) {
+			targetChannel = generator.channel;
+		} else {
+			final TreeSet<Integer> ids = new TreeSet<Integer>(
+				protocol.channels.keySet());
+			final Integer[] sorted = ids.toArray(new Integer[ids.size()]);
+			targetChannel = sorted.length == 0 ? 0 : sorted[id % sorted.length];
+		}
+
+		if (protocol.currentChannel != null &&
+			protocol.currentChannel.id == targetChannel) {
+			joinTime = syncTime;
+		} else {
+			protocol.joinChannel(targetChannel);
+		}
+	}
+}
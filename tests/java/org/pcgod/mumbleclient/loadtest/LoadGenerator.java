@@ -0,0 +1,268 @@
+package org.pcgod.mumbleclient.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.pcgod.mumbleclient.service.CryptState;
+import org.pcgod.mumbleclient.service.Metrics;
+import org.pcgod.mumbleclient.service.StandInServer;
+
+/**
+ * Headless load generator that connects many simulated clients to a Mumble
+ * server.
+ * <p>
+ * Every bot is a real MumbleConnection and MumbleProtocol, see LoadBot. The
+ * pings and the voice of all bots run on one shared scheduler thread; each
+ * connection still has its own blocking TCP and UDP readers, TCP writer and
+ * control worker, so a few hundred bots take a few thousand threads.
+ * <p>
+ * Usage: LoadGenerator [--host=example.org] [--port=64738] [--bots=100]
+ * [--channel=-1] [--talk=0.2] [--duration=60] [--ramp=50]
+ * [--frames=6] [--bitrate=60000] [--password=] [--name=bot]
+ * <p>
+ * Without a host the bots connect to a StandInServer with a few channels
+ * started in the same JVM, which checks the generator itself.
+ * <p>
+ * A channel of -1 spreads the bots over all channels. The talk ratio is the
+ * fraction of time each bot is sending voice. The ramp is the number of
+ * new connections per second.
+ */
+public class LoadGenerator {
+	private static final long TICK_MILLIS = 10;
+	private static final long REPORT_NANOS = 10 * 1000 * 1000 * 1000L;
+	private static final int STANDIN_CHANNELS = 4;
+
+	public static void main(final String[] args) throws Exception {
+		final LoadGenerator generator = new LoadGenerator();
+		for (final String arg : args) {
+			final int split = arg.indexOf('=');
+			if (!arg.startsWith("--") || split < 0) {
+				throw new IllegalArgumentException("Bad argument " + arg);
+			}
+			generator.set(arg.substring(2, split), arg.substring(split + 1));
+		}
+
+		StandInServer server = null;
+		if (generator.host == null) {
+			server = new StandInServer();
+			for (int i = 1; i <= STANDIN_CHANNELS; i++) {
+				server.addChannel(i, 0, "Channel " + i);
+			}
+			server.start();
+			generator.host = "127.0.0.1";
+			generator.port = server.getPort();
+		}
+
+		try {
+			generator.run(System.out);
+		} finally {
+			if (server != null) {
+				server.stop();
+			}
+		}
+	}
+
+	private static long percentile(final long[] sorted, final double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[(int) Math.min(sorted.length - 1, p * sorted.length)];
+	}
+
+	private static double percentile(final double[] sorted, final double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[(int) Math.min(sorted.length - 1, p * sorted.length)];
+	}
+
+	String host;
+	int port = 64738;
+	int bots = 100;
+	int channel = -1;
+	double talkRatio = 0.2;
+	int duration = 60;
+	int rampRate = 50;
+	int framesPerPacket = 6;
+	int bitrate = 60000;
+	String password = "";
+	String namePrefix = "bot";
+
+	/** Read by the scheduler while the ramp adds to it. */
+	private final List<LoadBot> started = new CopyOnWriteArrayList<LoadBot>();
+
+	/**
+	 * Connects the bots and runs them for the configured duration, printing
+	 * a summary periodically and a per-bot report at the end.
+	 */
+	public void run(final PrintStream out) throws IOException,
+		InterruptedException {
+		final File blobDir = File.createTempFile("blobs", null);
+		blobDir.delete();
+
+		final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				final long now = System.nanoTime();
+				for (final LoadBot bot : started) {
+					bot.tick(now);
+				}
+			}
+		}, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+
+		final long start = System.nanoTime();
+		final long end = start + duration * 1000 * 1000 * 1000L;
+		long nextReport = start + REPORT_NANOS;
+
+		try {
+			long now = start;
+			while (now < end) {
+				final long due = Math.min(bots, 1 + (now - start) * rampRate /
+													1000000000L);
+				while (started.size() < due) {
+					final LoadBot bot = new LoadBot(
+						started.size(),
+						this,
+						scheduler,
+						blobDir);
+					started.add(bot);
+					bot.connect();
+				}
+
+				Thread.sleep(started.size() < bots ? TICK_MILLIS : 100);
+
+				now = System.nanoTime();
+				if (now >= nextReport) {
+					printSummary(out, now - start);
+					nextReport += REPORT_NANOS;
+				}
+			}
+		} finally {
+			scheduler.shutdown();
+			for (final LoadBot bot : started) {
+				bot.disconnect();
+			}
+			scheduler.awaitTermination(1, TimeUnit.SECONDS);
+
+			final File[] files = blobDir.listFiles();
+			if (files != null) {
+				for (final File file : files) {
+					file.delete();
+				}
+			}
+			blobDir.delete();
+		}
+
+		printBots(out);
+		printSummary(out, System.nanoTime() - start);
+	}
+
+	private void printBots(final PrintStream out) {
+		out.println("bot\tsync_ms\tjoin_ms\ttcp_rtt_ms\tudp_rtt_ms\tgood\tlate\tlost\tresync_req\tserver_lost\tsent\ttunneled\treceived\terror");
+		for (final LoadBot bot : started) {
+			final CryptState crypt = bot.getCryptState();
+			final Metrics metrics = bot.getMetrics();
+			out.println(String.format(
+				"%d\t%.1f\t%.1f\t%.2f\t%.2f\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%s",
+				bot.id,
+				bot.isSynchronized() ? (bot.syncTime - bot.startTime) / 1e6
+									: -1.0,
+				bot.joinTime >= 0 ? (bot.joinTime - bot.startTime) / 1e6 : -1.0,
+				bot.getTcpRtt(),
+				bot.getUdpRtt(),
+				crypt.getGood(),
+				crypt.getLate(),
+				crypt.getLost(),
+				metrics.resyncRequests.get(),
+				metrics.serverLost.get(),
+				bot.voiceSent,
+				metrics.udpTunneled.get(),
+				bot.voiceReceived.get(),
+				bot.error != null ? bot.error : ""));
+		}
+	}
+
+	private void printSummary(final PrintStream out, final long elapsed) {
+		int synced = 0;
+		int failed = 0;
+		int good = 0;
+		int lost = 0;
+		int sent = 0;
+		int received = 0;
+		final long[] syncTimes = new long[started.size()];
+		final double[] rtts = new double[started.size()];
+		int rttCount = 0;
+
+		for (final LoadBot bot : started) {
+			if (bot.error != null) {
+				failed++;
+			}
+			if (bot.isSynchronized()) {
+				syncTimes[synced++] = bot.syncTime - bot.startTime;
+			}
+			if (bot.getTcpRtt() >= 0) {
+				rtts[rttCount++] = bot.getTcpRtt();
+			}
+			good += bot.getCryptState().getGood();
+			lost += bot.getCryptState().getLost();
+			sent += bot.voiceSent;
+			received += bot.voiceReceived.get();
+		}
+
+		final long[] sortedSync = Arrays.copyOf(syncTimes, synced);
+		final double[] sortedRtt = Arrays.copyOf(rtts, rttCount);
+		Arrays.sort(sortedSync);
+		Arrays.sort(sortedRtt);
+
+		out.println(String.format(
+			"[%4ds] bots %d synced %d failed %d | sync p50 %.0fms p95 %.0fms max %.0fms | tcp rtt p50 %.1fms p95 %.1fms | udp loss %.2f%% | voice sent %d received %d",
+			elapsed / 1000000000L,
+			started.size(),
+			synced,
+			failed,
+			percentile(sortedSync, 0.5) / 1e6,
+			percentile(sortedSync, 0.95) / 1e6,
+			percentile(sortedSync, 1) / 1e6,
+			percentile(sortedRtt, 0.5),
+			percentile(sortedRtt, 0.95),
+			good + lost > 0 ? 100.0 * lost / (good + lost) : 0.0,
+			sent,
+			received));
+	}
+
+	private void set(final String key, final String value) {
+		if (key.equals("host")) {
+			host = value;
+		} else if (key.equals("port")) {
+			port = Integer.parseInt(value);
+		} else if (key.equals("bots")) {
+			bots = Integer.parseInt(value);
+		} else if (key.equals("channel")) {
+			channel = Integer.parseInt(value);
+		} else if (key.equals("talk")) {
+			talkRatio = Double.parseDouble(value);
+		} else if (key.equals("duration")) {
+			duration = Integer.parseInt(value);
+		} else if (key.equals("ramp")) {
+			rampRate = Integer.parseInt(value);
+		} else if (key.equals("frames")) {
+			framesPerPacket = Integer.parseInt(value);
+		} else if (key.equals("bitrate")) {
+			bitrate = Integer.parseInt(value);
+		} else if (key.equals("password")) {
+			password = value;
+		} else if (key.equals("name")) {
+			namePrefix = value;
+		} else {
+			throw new IllegalArgumentException("Unknown option --" + key);
+		}
+	}
+}
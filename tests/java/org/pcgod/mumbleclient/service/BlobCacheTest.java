@@ -0,0 +1,112 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the size bounded memory LRU of BlobCache, reads from the disk
+ * cache and that content not matching its hash is never stored.
+ */
+public class BlobCacheTest extends TestCase {
+	private static final int LIMIT = 1000;
+
+	private File directory;
+
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		final BlobCache cache = new BlobCache(directory, LIMIT);
+		final byte[] a = blob(400, 1);
+		final byte[] b = blob(400, 2);
+		final byte[] c = blob(400, 3);
+		cache.put(sha1(a), a);
+		cache.put(sha1(b), b);
+		// Touch a so b is the least recently used.
+		assertSame(a, cache.get(sha1(a)));
+		cache.put(sha1(c), c);
+
+		// Only the memory can answer now.
+		deleteFiles();
+		assertSame(a, cache.get(sha1(a)));
+		assertNull(cache.get(sha1(b)));
+		assertSame(c, cache.get(sha1(c)));
+	}
+
+	public void testOversizedBlobOnlyOnDisk() throws Exception {
+		final BlobCache cache = new BlobCache(directory, LIMIT);
+		final byte[] small = blob(400, 1);
+		final byte[] large = blob(LIMIT + 1, 2);
+		cache.put(sha1(small), small);
+		cache.put(sha1(large), large);
+
+		final byte[] read = cache.get(sha1(large));
+		assertNotSame(large, read);
+		assertTrue(Arrays.equals(large, read));
+		// The large blob didn't push the small one out.
+		deleteFiles();
+		assertSame(small, cache.get(sha1(small)));
+	}
+
+	public void testReadsFromDiskInNewInstance() throws Exception {
+		final byte[] data = blob(400, 1);
+		new BlobCache(directory, LIMIT).put(sha1(data), data);
+
+		final BlobCache cache = new BlobCache(directory, LIMIT);
+		final byte[] read = cache.get(sha1(data));
+		assertTrue(Arrays.equals(data, read));
+
+		// The disk read is kept in memory.
+		deleteFiles();
+		assertSame(read, cache.get(sha1(data)));
+	}
+
+	public void testRejectsMismatchedContent() throws Exception {
+		final BlobCache cache = new BlobCache(directory, LIMIT);
+		final byte[] real = blob(400, 1);
+		final byte[] bad = blob(400, 2);
+		cache.put(sha1(real), bad);
+
+		assertNull(cache.get(sha1(real)));
+		assertEquals(0, directory.list().length);
+		assertNull(new BlobCache(directory, LIMIT).get(sha1(real)));
+
+		// The real content is still accepted afterwards.
+		cache.put(sha1(real), real);
+		assertSame(real, cache.get(sha1(real)));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("blobs", null);
+		directory.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		deleteFiles();
+		directory.delete();
+		super.tearDown();
+	}
+
+	private byte[] blob(final int size, final int seed) {
+		final byte[] data = new byte[size];
+		Arrays.fill(data, (byte) seed);
+		return data;
+	}
+
+	private void deleteFiles() {
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (final File file : files) {
+			file.delete();
+		}
+	}
+
+	private byte[] sha1(final byte[] data) throws Exception {
+		return MessageDigest.getInstance("SHA-1").digest(data);
+	}
+}
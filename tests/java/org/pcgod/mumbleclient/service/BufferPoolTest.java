@@ -0,0 +1,71 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the size classes and limits of BufferPool.
+ */
+public class BufferPoolTest extends TestCase {
+	private BufferPool pool;
+
+	public void testForeignArraysNotKept() {
+		pool.release(new byte[100]);
+		pool.release(new byte[BufferPool.MIN_SIZE / 2]);
+		pool.release(new byte[BufferPool.MAX_POOLED_SIZE * 2]);
+
+		pool.acquire(100);
+		pool.acquire(BufferPool.MIN_SIZE / 2);
+		assertEquals(2, pool.getAllocated());
+	}
+
+	public void testKeepsAtMostPerClass() {
+		final List<byte[]> arrays = new ArrayList<byte[]>();
+		for (int i = 0; i < BufferPool.PER_CLASS + 2; i++) {
+			arrays.add(pool.acquire(1000));
+		}
+		for (final byte[] array : arrays) {
+			pool.release(array);
+		}
+		assertEquals(BufferPool.PER_CLASS + 2, pool.getAllocated());
+
+		for (int i = 0; i < BufferPool.PER_CLASS + 2; i++) {
+			pool.acquire(1000);
+		}
+		assertEquals(BufferPool.PER_CLASS + 2 + 2, pool.getAllocated());
+	}
+
+	public void testLargeArraysAreExact() {
+		final byte[] array = pool.acquire(BufferPool.MAX_POOLED_SIZE + 1);
+		assertEquals(BufferPool.MAX_POOLED_SIZE + 1, array.length);
+		pool.release(array);
+
+		pool.acquire(BufferPool.MAX_POOLED_SIZE + 1);
+		assertEquals(2, pool.getAllocated());
+	}
+
+	public void testReusesReleasedArrays() {
+		final byte[] array = pool.acquire(1000);
+		pool.release(array);
+		assertSame(array, pool.acquire(600));
+		assertEquals(1, pool.getAllocated());
+	}
+
+	public void testRoundsUpToSizeClass() {
+		assertEquals(BufferPool.MIN_SIZE, pool.acquire(1).length);
+		assertEquals(BufferPool.MIN_SIZE, pool.acquire(BufferPool.MIN_SIZE).length);
+		assertEquals(128, pool.acquire(BufferPool.MIN_SIZE + 1).length);
+		assertEquals(1024, pool.acquire(1000).length);
+		assertEquals(
+			BufferPool.MAX_POOLED_SIZE,
+			pool.acquire(BufferPool.MAX_POOLED_SIZE).length);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		pool = new BufferPool();
+	}
+}
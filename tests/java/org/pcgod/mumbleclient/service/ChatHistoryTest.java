@@ -0,0 +1,257 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.List;
+import java.util.Random;
+
+import org.pcgod.mumbleclient.app.DbAdapter;
+import org.pcgod.mumbleclient.service.model.Message;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Runs ChatHistory against a scratch copy of the real database. Every
+ * message carries its own position as text so a page read from the wrong
+ * place can't go unnoticed.
+ */
+public class ChatHistoryTest extends AndroidTestCase {
+	private static final String SERVER = "localhost:64738";
+	private static final int PAGE_SIZE = 50;
+
+	private static Message message(final int position) {
+		final Message msg = new Message();
+		msg.direction = Message.DIRECTION_RECEIVED;
+		msg.timestamp = position;
+		msg.sender = "sender";
+		msg.message = Integer.toString(position);
+		return msg;
+	}
+
+	private Context context;
+	private DbAdapter db;
+
+	public void testPagesBackwardFromNewest() {
+		fill(2000);
+
+		final ChatHistory history = new ChatHistory(db, SERVER);
+		try {
+			for (int offset = 2000 - PAGE_SIZE; offset >= 0; offset -= PAGE_SIZE) {
+				assertPage(offset, PAGE_SIZE, history.getMessages(
+					offset,
+					PAGE_SIZE));
+			}
+		} finally {
+			history.close();
+		}
+	}
+
+	public void testPagesForwardFromOldest() {
+		fill(2000);
+
+		final ChatHistory history = new ChatHistory(db, SERVER);
+		try {
+			assertEquals(2000, history.getCount());
+			for (int offset = 0; offset < 2000; offset += PAGE_SIZE) {
+				assertPage(offset, PAGE_SIZE, history.getMessages(
+					offset,
+					PAGE_SIZE));
+			}
+		} finally {
+			history.close();
+		}
+	}
+
+	public void testRandomPagesWithUnalignedOffsets() {
+		fill(3000);
+
+		final ChatHistory history = new ChatHistory(db, SERVER);
+		try {
+			final Random random = new Random(1);
+			for (int i = 0; i < 200; i++) {
+				final int offset = random.nextInt(3000);
+				final int count = 1 + random.nextInt(PAGE_SIZE);
+				assertPage(
+					offset,
+					Math.min(count, 3000 - offset),
+					history.getMessages(offset, count));
+			}
+		} finally {
+			history.close();
+		}
+	}
+
+	public void testSeparatesServers() {
+		fill(100);
+		final ChatHistory other = new ChatHistory(db, "otherhost:64738");
+		for (int i = 0; i < 10; i++) {
+			other.add(message(i));
+		}
+		other.close();
+
+		final ChatHistory history = new ChatHistory(db, SERVER);
+		try {
+			assertEquals(100, history.getCount());
+			assertPage(90, 10, history.getMessages(90, PAGE_SIZE));
+		} finally {
+			history.close();
+		}
+	}
+
+	/**
+	 * Drops the message table behind the history's back so every write
+	 * fails. The pending messages stop at MAX_PENDING and the oldest are
+	 * dropped.
+	 */
+	public void testFailingDatabaseBoundsPending() throws Exception {
+		final ChatHistory history = new ChatHistory(db, SERVER);
+		final SQLiteDatabase other = context.openOrCreateDatabase(
+			DbAdapter.DATABASE_NAME,
+			Context.MODE_PRIVATE,
+			null);
+		other.execSQL("DROP TABLE `message`");
+		other.close();
+
+		final int total = ChatHistory.MAX_PENDING + 200;
+		try {
+			for (int i = 0; i < total; i++) {
+				history.add(message(i));
+			}
+
+			assertEquals(ChatHistory.MAX_PENDING, history.getPendingCount());
+			assertEquals(ChatHistory.MAX_PENDING, history.getCount());
+			assertEquals(total - ChatHistory.MAX_PENDING, history.getDropped());
+			// The newest messages are kept.
+			final List<Message> newest = history.getMessages(
+				ChatHistory.MAX_PENDING - 1,
+				1);
+			assertEquals(Integer.toString(total - 1), newest.get(0).message);
+			assertEquals(
+				ChatHistory.RECENT_CAPACITY,
+				history.getRecent().size());
+		} finally {
+			history.close();
+		}
+	}
+
+	/**
+	 * Soak: adds messages from one thread while another keeps reading the
+	 * newest page and random older ones, as the chat view does while the
+	 * user scrolls during a busy conversation. Reads overlap the writer's
+	 * batches, so they span stored and pending messages alike. The sender
+	 * doesn't outrun the writer by more than MAX_PENDING, so nothing may be
+	 * dropped.
+	 */
+	public void testSoakReadWhileWriting() throws Exception {
+		final int total = 20000;
+		final ChatHistory history = new ChatHistory(db, SERVER);
+		final Throwable[] failure = new Throwable[1];
+		final Thread sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < total; i++) {
+					while (history.getPendingCount() >= ChatHistory.MAX_PENDING) {
+						Thread.yield();
+					}
+					history.add(message(i));
+					if (i % 100 == 0) {
+						Thread.yield();
+					}
+				}
+			}
+		});
+
+		sender.start();
+		try {
+			final Random random = new Random(1);
+			while (sender.isAlive() || history.getCount() < total) {
+				final int count = history.getCount();
+				if (count == 0) {
+					continue;
+				}
+				assertTrue(history.getRecent().size() <= ChatHistory.RECENT_CAPACITY);
+				assertTrue(history.getPendingCount() <= ChatHistory.MAX_PENDING);
+
+				// More messages can arrive before the page is read.
+				final int newest = Math.max(0, count - PAGE_SIZE);
+				final List<Message> tail = history.getMessages(
+					newest,
+					PAGE_SIZE);
+				assertTrue(tail.size() >= count - newest);
+				assertPositions(newest, tail);
+
+				final int offset = random.nextInt(count);
+				final List<Message> page = history.getMessages(
+					offset,
+					PAGE_SIZE);
+				assertTrue(page.size() >= Math.min(PAGE_SIZE, count - offset));
+				assertPositions(offset, page);
+			}
+		} catch (final Throwable t) {
+			failure[0] = t;
+		} finally {
+			sender.join();
+			history.close();
+		}
+		if (failure[0] != null) {
+			throw new Exception(failure[0]);
+		}
+
+		// Everything must have reached the database in order.
+		assertEquals(0, history.getDropped());
+		assertEquals(total, db.countMessages(SERVER));
+		final ChatHistory reopened = new ChatHistory(db, SERVER);
+		try {
+			for (int offset = 0; offset < total; offset += PAGE_SIZE * 10) {
+				assertPage(offset, PAGE_SIZE, reopened.getMessages(
+					offset,
+					PAGE_SIZE));
+			}
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		context = new RenamingDelegatingContext(getContext(), "test_");
+		context.deleteDatabase(DbAdapter.DATABASE_NAME);
+		db = new DbAdapter(context).open();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		context.deleteDatabase(DbAdapter.DATABASE_NAME);
+		super.tearDown();
+	}
+
+	private void assertPage(
+		final int offset,
+		final int count,
+		final List<Message> page) {
+		assertEquals("Size of page at " + offset, count, page.size());
+		assertPositions(offset, page);
+	}
+
+	private void assertPositions(final int offset, final List<Message> page) {
+		for (int i = 0; i < page.size(); i++) {
+			assertEquals(
+				Integer.toString(offset + i),
+				page.get(i).message);
+		}
+	}
+
+	/**
+	 * Stores messages 0 to count - 1 through a history of its own.
+	 */
+	private void fill(final int count) {
+		final ChatHistory history = new ChatHistory(db, SERVER);
+		for (int i = 0; i < count; i++) {
+			history.add(message(i));
+		}
+		history.close();
+	}
+}
@@ -0,0 +1,150 @@
+package org.pcgod.mumbleclient.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.app.DbAdapter;
+import org.pcgod.mumbleclient.service.model.Message;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+/**
+ * Runs ChatSearch against a scratch copy of the real database.
+ */
+public class ChatSearchTest extends AndroidTestCase {
+	private static final String SERVER = "localhost:64738";
+	private static final int PAGE_SIZE = 50;
+
+	private Context context;
+	private DbAdapter db;
+
+	/**
+	 * Times the pages of a search over 100k messages with every tenth one
+	 * matching. The pages that read a chunk of ids pay for the full-text
+	 * match; the others should only cost the rows they return.
+	 */
+	public void testBenchmark100kMessages() {
+		final List<Message> batch = new ArrayList<Message>(1000);
+		for (int i = 0; i < 100000; i++) {
+			batch.add(message(i, (i % 10 == 0) ? "needle " + i : "hay " + i));
+			if (batch.size() == 1000) {
+				db.createMessages(SERVER, batch);
+				batch.clear();
+			}
+		}
+
+		final ChatSearch search = new ChatSearch(db, SERVER, "needle");
+		long start = System.nanoTime();
+		List<Message> page = search.nextPage(PAGE_SIZE);
+		final long first = System.nanoTime() - start;
+		assertEquals("needle 99990", page.get(0).message);
+
+		int pages = 0;
+		int results = page.size();
+		Message last = null;
+		start = System.nanoTime();
+		while (!search.isDone()) {
+			page = search.nextPage(PAGE_SIZE);
+			pages++;
+			results += page.size();
+			if (!page.isEmpty()) {
+				last = page.get(page.size() - 1);
+			}
+		}
+		final long rest = System.nanoTime() - start;
+		// Every match, not only the newest.
+		assertEquals(10000, results);
+		assertEquals("needle 0", last.message);
+
+		Log.i(Globals.LOG_TAG, "ChatSearch over 100k messages: first page " +
+							   first / 1000000 + " ms, later pages " +
+							   rest / pages / 1000000 + " ms on average");
+	}
+
+	public void testPagesCrossIdChunks() {
+		final int count = ChatSearch.ID_CHUNK * 7;
+		fill(count);
+
+		// Pages that don't divide the chunks.
+		final ChatSearch search = new ChatSearch(db, SERVER, "three");
+		final List<Message> results = new ArrayList<Message>();
+		while (!search.isDone()) {
+			results.addAll(search.nextPage(ChatSearch.ID_CHUNK / 3));
+		}
+
+		assertEquals((count + 2) / 3, results.size());
+		for (int i = 0; i < results.size(); i++) {
+			assertEquals("three " + (count - 1 - i * 3), results.get(i).message);
+		}
+	}
+
+	public void testPagesReturnEveryMatchNewestFirst() {
+		fill(1000);
+
+		final ChatSearch search = new ChatSearch(db, SERVER, "three");
+		final List<Message> results = new ArrayList<Message>();
+		while (!search.isDone()) {
+			results.addAll(search.nextPage(7));
+		}
+
+		assertEquals(334, results.size());
+		for (int i = 0; i < results.size(); i++) {
+			assertEquals("three " + (999 - i * 3), results.get(i).message);
+		}
+	}
+
+	public void testPrefixMatchesLastWord() {
+		fill(30);
+
+		final ChatSearch search = new ChatSearch(db, SERVER, "thr");
+		assertEquals(10, search.nextPage(PAGE_SIZE).size());
+		assertTrue(search.isDone());
+	}
+
+	public void testQuotesWords() {
+		assertEquals("\"a\" \"b*\"", ChatSearch.toMatchExpression(" a  b "));
+		assertEquals("\"OR*\"", ChatSearch.toMatchExpression("\"OR\""));
+		assertEquals("", ChatSearch.toMatchExpression("  "));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		context = new RenamingDelegatingContext(getContext(), "test_");
+		context.deleteDatabase(DbAdapter.DATABASE_NAME);
+		db = new DbAdapter(context).open();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		context.deleteDatabase(DbAdapter.DATABASE_NAME);
+		super.tearDown();
+	}
+
+	/**
+	 * Stores count messages. Every third one, counting back from the newest,
+	 * is "three n", the others "other n".
+	 */
+	private void fill(final int count) {
+		final List<Message> batch = new ArrayList<Message>(count);
+		for (int i = 0; i < count; i++) {
+			batch.add(message(i, ((count - 1 - i) % 3 == 0) ? "three " + i
+				: "other " + i));
+		}
+		db.createMessages(SERVER, batch);
+	}
+
+	private Message message(final int position, final String text) {
+		final Message msg = new Message();
+		msg.direction = Message.DIRECTION_RECEIVED;
+		msg.timestamp = position;
+		msg.sender = "sender";
+		msg.message = text;
+		return msg;
+	}
+}
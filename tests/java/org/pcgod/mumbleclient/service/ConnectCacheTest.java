@@ -0,0 +1,198 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.cert.X509Certificate;
+import java.util.Properties;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.X509TrustManager;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks the SSLContext reuse and the persisted DNS cache of ConnectCache,
+ * and that a reconnect through the cache resumes the TLS session with a
+ * StandInServer.
+ */
+public class ConnectCacheTest extends AndroidTestCase {
+	private static class OtherTrustManager implements X509TrustManager {
+		@Override
+		public void checkClientTrusted(
+			final X509Certificate[] chain,
+			final String authType) {
+		}
+
+		@Override
+		public void checkServerTrusted(
+			final X509Certificate[] chain,
+			final String authType) {
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	}
+
+	private static final int TIMEOUT = 10000;
+	/** Resolves to 127.0.0.1 and ::1, never to this. */
+	private static final String STALE_ADDRESS = "10.1.2.3";
+
+	private File dnsFile;
+	private StandInServer server;
+	private TestClient client;
+
+	public void testExpiredEntryIsLookedUp() throws Exception {
+		writeEntry("localhost", STALE_ADDRESS, System.currentTimeMillis() -
+											   ConnectCache.MAX_AGE - 1);
+		final ConnectCache cache = new ConnectCache(dnsFile);
+
+		assertTrue(cache.resolve("localhost")[0].isLoopbackAddress());
+	}
+
+	public void testInvalidateForgetsEntry() throws Exception {
+		writeEntry("server.invalid", STALE_ADDRESS, System.currentTimeMillis());
+		final ConnectCache cache = new ConnectCache(dnsFile);
+		assertEquals(STALE_ADDRESS, cache.resolve("server.invalid")[0].getHostAddress());
+
+		cache.invalidate("server.invalid");
+		try {
+			new ConnectCache(dnsFile).resolve("server.invalid");
+			fail("Invalidated entry was persisted");
+		} catch (final UnknownHostException e) {
+			// Expected.
+		}
+	}
+
+	/**
+	 * A fresh entry in the file is served as it is, with the host name
+	 * attached, and a lookup is persisted for the next instance.
+	 */
+	public void testPersistsAcrossInstances() throws Exception {
+		final long resolved = System.currentTimeMillis();
+		writeEntry("server.invalid", STALE_ADDRESS + " ::1", resolved);
+
+		final ConnectCache cache = new ConnectCache(dnsFile);
+		final InetAddress[] addresses = cache.resolve("server.invalid");
+		assertEquals(2, addresses.length);
+		assertEquals(STALE_ADDRESS, addresses[0].getHostAddress());
+		assertEquals("server.invalid", addresses[0].getHostName());
+		assertEquals(InetAddress.getByName("::1"), addresses[1]);
+
+		final InetAddress[] looked = cache.resolve("localhost");
+		final ConnectCache reloaded = new ConnectCache(dnsFile);
+		assertEquals(STALE_ADDRESS, reloaded.resolve("server.invalid")[0].getHostAddress());
+		final InetAddress[] loaded = reloaded.resolve("localhost");
+		assertEquals(looked.length, loaded.length);
+		for (int i = 0; i < looked.length; i++) {
+			assertEquals(looked[i], loaded[i]);
+		}
+	}
+
+	/**
+	 * Connects twice to a StandInServer through the same cache. The second
+	 * handshake resumes the session of the first.
+	 */
+	public void testReconnectResumesTlsSession() throws Exception {
+		server = new StandInServer();
+		server.start();
+		client = new TestClient(getContext(), server.getPort());
+		client.getConnection().setConnectCache(new ConnectCache(dnsFile));
+		client.connect();
+		assertTrue(client.awaitSynchronized(TIMEOUT));
+
+		final Metrics metrics = client.getConnection().metrics;
+		assertEquals(1, metrics.tlsHandshakes.get());
+		assertEquals(0, metrics.tlsResumed.get());
+
+		server.dropClients();
+		assertTrue(client.awaitState(
+			MumbleConnectionHost.STATE_DISCONNECTED,
+			TIMEOUT));
+		client.reconnect(TransportSelector.now());
+		assertTrue(client.awaitSynchronized(TIMEOUT));
+
+		assertEquals(2, metrics.tlsHandshakes.get());
+		assertEquals(1, metrics.tlsResumed.get());
+	}
+
+	public void testSslContextReused() throws Exception {
+		final ConnectCache cache = new ConnectCache(dnsFile);
+		final SSLContext context = cache.getSslContext(
+			null,
+			null,
+			new LocalSSLTrustManager());
+
+		assertSame(context, cache.getSslContext(
+			null,
+			null,
+			new LocalSSLTrustManager()));
+		assertNotSame(context, cache.getSslContext(
+			null,
+			null,
+			new OtherTrustManager()));
+	}
+
+	/**
+	 * A stale entry is returned at once and replaced by a background
+	 * lookup.
+	 */
+	public void testStaleEntryServedThenRefreshed() throws Exception {
+		final long resolved = System.currentTimeMillis() -
+							  ConnectCache.FRESH_TIME - 1;
+		writeEntry("localhost", STALE_ADDRESS, resolved);
+		final ConnectCache cache = new ConnectCache(dnsFile);
+
+		assertEquals(STALE_ADDRESS, cache.resolve("localhost")[0].getHostAddress());
+
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!cache.resolve("localhost")[0].isLoopbackAddress()) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+
+		// The refresh is persisted too.
+		assertTrue(new ConnectCache(dnsFile).resolve("localhost")[0].isLoopbackAddress());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dnsFile = File.createTempFile("dns", null);
+		dnsFile.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (client != null) {
+			client.disconnect();
+		}
+		if (server != null) {
+			server.stop();
+		}
+		dnsFile.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * Writes a DNS cache file with one entry in ConnectCache's format.
+	 *
+	 * @param addresses Space separated address literals
+	 */
+	private void writeEntry(
+		final String host,
+		final String addresses,
+		final long resolved) throws Exception {
+		final Properties properties = new Properties();
+		properties.setProperty(host, addresses + "," + resolved);
+		final FileOutputStream out = new FileOutputStream(dnsFile);
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+}
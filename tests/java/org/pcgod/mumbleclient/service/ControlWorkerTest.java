@@ -0,0 +1,295 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs a ControlWorker whose processing can be held up, to check ordering,
+ * the queue limit and failure handling.
+ */
+public class ControlWorkerTest extends TestCase {
+	private static final int TIMEOUT = 5000;
+
+	private BufferPool pool;
+	private Metrics metrics;
+	private TestWorker worker;
+
+	public void testExecuteNeverBlocks() throws Exception {
+		worker.hold();
+		fill();
+
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			worker.execute(new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+
+	public void testFullQueueBlocksPost() throws Exception {
+		worker.hold();
+		fill();
+
+		final Thread reader = post(-1);
+		reader.join(200);
+		assertTrue("Post didn't block", reader.isAlive());
+
+		worker.release();
+		reader.join(TIMEOUT);
+		assertFalse(reader.isAlive());
+		assertTrue(worker.awaitProcessed(ControlWorker.MAX_QUEUED + 2));
+
+		// Everything arrived in order, the blocked message last.
+		final List<Short> types = worker.getProcessed();
+		for (int i = 0; i <= ControlWorker.MAX_QUEUED; i++) {
+			assertEquals(i, (int) types.get(i));
+		}
+		assertEquals(-1, (int) types.get(ControlWorker.MAX_QUEUED + 1));
+	}
+
+	public void testRuntimeExceptionStopsWorker() throws Exception {
+		worker.failOn((short) 1);
+		// The failure is still being handled while the reader goes on.
+		worker.holdFailure();
+		worker.post((short) 0, pool.acquire(10), 10);
+		worker.post((short) 1, pool.acquire(10), 10);
+
+		assertTrue(worker.awaitFailure());
+		assertTrue(worker.getFailure() instanceof IllegalStateException);
+
+		// Later messages are dropped without blocking and their buffers
+		// return to the pool.
+		final Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < ControlWorker.MAX_QUEUED + 10; i++) {
+						worker.post((short) 2, pool.acquire(10), 10);
+					}
+				} catch (final IOException e) {
+					// Ends the thread.
+				}
+			}
+		});
+		reader.start();
+		reader.join(TIMEOUT);
+		assertFalse("Post blocked after the failure", reader.isAlive());
+		assertEquals(0, metrics.controlQueued.get());
+		assertEquals(1, worker.getProcessed().size());
+		assertTrue(pool.getAllocated() <= 2);
+	}
+
+	public void testStopReleasesBlockedPost() throws Exception {
+		worker.hold();
+		fill();
+
+		final Thread reader = post(-1);
+		reader.join(200);
+		assertTrue(reader.isAlive());
+
+		worker.stop();
+		reader.join(TIMEOUT);
+		assertFalse(reader.isAlive());
+		worker.release();
+	}
+
+	public void testTasksRunInOrderWithMessages() throws Exception {
+		final List<Short> order = new ArrayList<Short>();
+		worker.hold();
+		worker.post((short) 0, pool.acquire(10), 10);
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (order) {
+					order.addAll(worker.getProcessed());
+					order.add((short) -1);
+				}
+			}
+		});
+		worker.post((short) 1, pool.acquire(10), 10);
+		worker.release();
+
+		assertTrue(worker.awaitProcessed(2));
+		synchronized (order) {
+			assertEquals(2, order.size());
+			assertEquals(0, (int) order.get(0));
+			assertEquals(-1, (int) order.get(1));
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		pool = new BufferPool();
+		metrics = new Metrics();
+		worker = new TestWorker(pool, metrics);
+		worker.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		worker.release();
+		worker.releaseFailure();
+		worker.stop();
+		super.tearDown();
+	}
+
+	/**
+	 * Posts messages 0 to MAX_QUEUED while the worker is held: the first is
+	 * taken and held in process(), the rest fill the queue.
+	 */
+	private void fill() throws Exception {
+		worker.post((short) 0, pool.acquire(10), 10);
+		assertTrue(worker.awaitHeld());
+		for (int i = 1; i <= ControlWorker.MAX_QUEUED; i++) {
+			worker.post((short) i, pool.acquire(10), 10);
+		}
+		assertEquals(ControlWorker.MAX_QUEUED, metrics.controlQueued.get());
+	}
+
+	/**
+	 * Posts a message from another thread, as the TCP reader does.
+	 */
+	private Thread post(final int type) {
+		final Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					worker.post((short) type, pool.acquire(10), 10);
+				} catch (final IOException e) {
+					// Ends the thread.
+				}
+			}
+		});
+		reader.start();
+		return reader;
+	}
+
+	private static class TestWorker extends ControlWorker {
+		private final List<Short> processed = new ArrayList<Short>();
+		private boolean holding;
+		private boolean held;
+		private boolean holdingFailure;
+		private short failingType = Short.MIN_VALUE;
+		private Exception failure;
+
+		TestWorker(final BufferPool pool, final Metrics metrics) {
+			super(pool, metrics);
+		}
+
+		public synchronized boolean awaitFailure() throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (failure == null) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+			return true;
+		}
+
+		public synchronized boolean awaitHeld() throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (!held) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+			return true;
+		}
+
+		public synchronized boolean awaitProcessed(final int count)
+			throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (processed.size() < count) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+			return true;
+		}
+
+		public synchronized void failOn(final short type) {
+			failingType = type;
+		}
+
+		public synchronized Exception getFailure() {
+			return failure;
+		}
+
+		public synchronized List<Short> getProcessed() {
+			return new ArrayList<Short>(processed);
+		}
+
+		/**
+		 * Makes process() wait before handling a message until release().
+		 */
+		public synchronized void hold() {
+			holding = true;
+		}
+
+		/**
+		 * Makes processFailed() wait after recording the failure until
+		 * releaseFailure().
+		 */
+		public synchronized void holdFailure() {
+			holdingFailure = true;
+		}
+
+		public synchronized void release() {
+			holding = false;
+			notifyAll();
+		}
+
+		public synchronized void releaseFailure() {
+			holdingFailure = false;
+			notifyAll();
+		}
+
+		@Override
+		protected synchronized void process(
+			final short type,
+			final byte[] buffer,
+			final int length) throws IOException {
+			held = true;
+			notifyAll();
+			try {
+				while (holding) {
+					wait();
+				}
+			} catch (final InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+
+			if (type == failingType) {
+				throw new IllegalStateException("Failing on " + type);
+			}
+			processed.add(type);
+			notifyAll();
+		}
+
+		@Override
+		protected synchronized void processFailed(final Exception e) {
+			failure = e;
+			notifyAll();
+			try {
+				while (holdingFailure) {
+					wait();
+				}
+			} catch (final InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package org.pcgod.mumbleclient.service;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks the failure window and the request backoff of DecryptMonitor, and
+ * that the real client gets UDP voice back after the StandInServer skipped
+ * its nonce ahead.
+ */
+public class DecryptMonitorTest extends AndroidTestCase {
+	private static final int TIMEOUT = 10000;
+
+	private DecryptMonitor monitor;
+
+	private StandInServer server;
+	private TestClient client;
+
+	public void testBackoffDoublesUpToMax() {
+		assertTrue(failPackets(DecryptMonitor.FAILURE_THRESHOLD, 0));
+
+		long request = 0;
+		long interval = DecryptMonitor.MIN_INTERVAL;
+		for (int i = 0; i < 8; i++) {
+			assertFalse(monitor.packetReceived(false, request + interval - 1));
+			assertTrue(monitor.packetReceived(false, request + interval));
+			request += interval;
+			interval = Math.min(DecryptMonitor.MAX_INTERVAL, interval * 2);
+		}
+		assertEquals(DecryptMonitor.MAX_INTERVAL, interval);
+	}
+
+	/**
+	 * After desyncUdp() nothing from the server decrypts. The client has to
+	 * ask for the nonce once and receive voice again without the TCP
+	 * tunnel.
+	 */
+	public void testDesyncedClientResyncs() throws Exception {
+		server = new StandInServer();
+		server.addUsers(1, 0);
+		server.start();
+		client = new TestClient(getContext(), server.getPort());
+		client.connect();
+		assertTrue(client.awaitSynchronized(TIMEOUT));
+
+		final MumbleConnection connection = client.getConnection();
+		final Metrics metrics = connection.metrics;
+		assertTrue(awaitUdp(connection));
+		server.startTalkers(1, 2);
+		assertTrue(awaitCount(metrics.udpIn, 10));
+		assertEquals(0, metrics.resyncRequests.get());
+
+		server.desyncUdp();
+		final long desynced = System.currentTimeMillis();
+		assertTrue(awaitCount(metrics.resyncRequests, 1));
+		final long resyncTime = System.currentTimeMillis() - desynced;
+		// FAILURE_THRESHOLD packets of 2 frames.
+		assertTrue(
+			"Requested after " + resyncTime + " ms",
+			resyncTime < 1000);
+		assertTrue(metrics.decryptFailed.get() >=
+				   DecryptMonitor.FAILURE_THRESHOLD);
+
+		final long received = metrics.udpIn.get();
+		assertTrue(awaitCount(metrics.udpIn, received + 10));
+		assertEquals(1, metrics.resyncRequests.get());
+		assertTrue(connection.transport.isUdp());
+		assertEquals(0, server.getTunnelPacketsReceived());
+	}
+
+	public void testGoodPacketEndsBackoff() {
+		assertTrue(failPackets(DecryptMonitor.FAILURE_THRESHOLD, 0));
+		assertTrue(monitor.packetReceived(false, DecryptMonitor.MIN_INTERVAL));
+
+		// The resync worked, the next desync is reported at once.
+		assertFalse(monitor.packetReceived(true, 1500));
+		assertTrue(monitor.packetReceived(false, 1500));
+		final long next = 1500 + DecryptMonitor.MIN_INTERVAL;
+		assertFalse(monitor.packetReceived(false, next - 1));
+		assertTrue(monitor.packetReceived(false, next));
+	}
+
+	public void testOldFailuresLeaveWindow() {
+		assertFalse(failPackets(DecryptMonitor.FAILURE_THRESHOLD - 1, 0));
+		for (int i = 0; i < DecryptMonitor.WINDOW; i++) {
+			assertFalse(monitor.packetReceived(true, 0));
+		}
+		assertFalse(failPackets(DecryptMonitor.FAILURE_THRESHOLD - 1, 0));
+		assertTrue(monitor.packetReceived(false, 0));
+	}
+
+	public void testResetForgetsFailures() {
+		assertTrue(failPackets(DecryptMonitor.FAILURE_THRESHOLD, 0));
+		monitor.reset();
+		final long later = DecryptMonitor.MIN_INTERVAL;
+		assertFalse(failPackets(DecryptMonitor.FAILURE_THRESHOLD - 1, later));
+		assertTrue(monitor.packetReceived(false, later));
+	}
+
+	public void testThresholdCountsFailuresInWindow() {
+		assertFalse(failPackets(DecryptMonitor.FAILURE_THRESHOLD - 1, 0));
+		assertTrue(monitor.packetReceived(false, 0));
+
+		// Every other packet failing is enough too.
+		monitor = new DecryptMonitor();
+		boolean requested = false;
+		for (int i = 0; i < DecryptMonitor.WINDOW - 1; i++) {
+			assertFalse(requested);
+			requested = monitor.packetReceived(i % 2 == 1, 0);
+		}
+		assertTrue(requested);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		monitor = new DecryptMonitor();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (client != null) {
+			client.disconnect();
+		}
+		if (server != null) {
+			server.stop();
+		}
+		super.tearDown();
+	}
+
+	/**
+	 * @return False if the counter didn't reach count within TIMEOUT
+	 */
+	private boolean awaitCount(final Metrics.Counter counter, final long count)
+		throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (counter.get() < count) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	private boolean awaitUdp(final MumbleConnection connection)
+		throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!connection.transport.isUdp()) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/**
+	 * Records count packets that failed to decrypt at now.
+	 *
+	 * @return Whether the last one asked for a resync
+	 */
+	private boolean failPackets(final int count, final long now) {
+		boolean requested = false;
+		for (int i = 0; i < count; i++) {
+			requested = monitor.packetReceived(false, now);
+		}
+		return requested;
+	}
+}
@@ -0,0 +1,160 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
+/**
+ * Datagram sender that simulates a bad network path.
+ * <p>
+ * Each packet is dropped with the configured loss probability, held back by
+ * the base delay plus a uniformly distributed jitter and, with the reorder
+ * probability, held back further so that it arrives after packets sent
+ * later. The random source is seeded so runs are repeatable.
+ */
+class ImpairedLink implements Runnable {
+	/**
+	 * Extra delay of a reordered packet. Long enough to let a few 10ms voice
+	 * packets overtake it.
+	 */
+	private static final int REORDER_DELAY = 35;
+
+	private static class Pending implements Delayed {
+		final DatagramPacket packet;
+		final long due;
+
+		public Pending(final DatagramPacket packet, final long due) {
+			this.packet = packet;
+			this.due = due;
+		}
+
+		@Override
+		public int compareTo(final Delayed another) {
+			final long other = ((Pending) another).due;
+			return due < other ? -1 : (due == other ? 0 : 1);
+		}
+
+		@Override
+		public long getDelay(final TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private final DelayQueue<Pending> queue = new DelayQueue<Pending>();
+	private final Random random;
+	private DatagramSocket socket;
+	private Thread thread;
+
+	private volatile double loss;
+	private volatile double reorder;
+	private volatile int delay;
+	private volatile int jitter;
+
+	private final AtomicInteger sent = new AtomicInteger();
+	private final AtomicInteger dropped = new AtomicInteger();
+
+	public ImpairedLink(final long seed) {
+		random = new Random(seed);
+	}
+
+	public int getDropped() {
+		return dropped.get();
+	}
+
+	public int getSent() {
+		return sent.get();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.interrupted()) {
+				transmit(queue.take().packet);
+			}
+		} catch (final InterruptedException e) {
+			// Stopped.
+		}
+	}
+
+	public void send(final byte[] data, final SocketAddress address) {
+		if (random.nextDouble() < loss) {
+			dropped.incrementAndGet();
+			return;
+		}
+
+		long wait = delay;
+		if (jitter > 0) {
+			wait += random.nextInt(jitter + 1);
+		}
+		if (random.nextDouble() < reorder) {
+			wait += REORDER_DELAY;
+		}
+
+		final DatagramPacket packet = new DatagramPacket(
+			data,
+			data.length,
+			address);
+		if (wait == 0) {
+			transmit(packet);
+			return;
+		}
+
+		queue.add(new Pending(packet, System.nanoTime() +
+									  TimeUnit.MILLISECONDS.toNanos(wait)));
+	}
+
+	/**
+	 * @param delay Base one-way delay in milliseconds
+	 * @param jitter Maximum additional random delay in milliseconds
+	 */
+	public void setDelay(final int delay, final int jitter) {
+		this.delay = delay;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * @param loss Probability of dropping a packet, 0 to 1
+	 */
+	public void setLoss(final double loss) {
+		this.loss = loss;
+	}
+
+	/**
+	 * @param reorder Probability of delivering a packet out of order, 0 to 1
+	 */
+	public void setReorder(final double reorder) {
+		this.reorder = reorder;
+	}
+
+	public void start(final DatagramSocket socket_) {
+		this.socket = socket_;
+		thread = new Thread(this, "ImpairedLink");
+		thread.start();
+	}
+
+	public void stop() {
+		if (thread != null) {
+			thread.interrupt();
+		}
+		queue.clear();
+	}
+
+	private void transmit(final DatagramPacket packet) {
+		try {
+			socket.send(packet);
+			sent.incrementAndGet();
+		} catch (final IOException e) {
+			Log.w(Globals.LOG_TAG, "ImpairedLink: send failed", e);
+		}
+	}
+}
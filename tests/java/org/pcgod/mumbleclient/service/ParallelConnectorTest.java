@@ -0,0 +1,231 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+
+import junit.framework.TestCase;
+
+/**
+ * Races ParallelConnector against TLS listeners on loopback addresses that
+ * share a port and hold each accepted connection for a set delay before
+ * the handshake.
+ */
+public class ParallelConnectorTest extends TestCase {
+	/**
+	 * Accepts one connection, waits, handshakes and then reads until the
+	 * client closes it.
+	 */
+	private class Listener implements Runnable {
+		final InetAddress address;
+		final long delay;
+		final ServerSocket serverSocket;
+		final Thread thread;
+
+		/** When the connection was accepted, -1 if it wasn't. */
+		volatile long acceptedAt = -1;
+		volatile boolean handshaken;
+		volatile boolean closed;
+
+		Listener(final String address_, final long delay_) throws Exception {
+			address = InetAddress.getByName(address_);
+			delay = delay_;
+			serverSocket = serverContext.getServerSocketFactory().createServerSocket(
+				port,
+				50,
+				address);
+			((SSLServerSocket) serverSocket).setEnabledProtocols(new String[] { "TLSv1" });
+			if (port == 0) {
+				port = serverSocket.getLocalPort();
+			}
+			thread = new Thread(this, "Listener " + address_);
+			thread.start();
+			listeners.add(this);
+		}
+
+		@Override
+		public void run() {
+			try {
+				final SSLSocket socket = (SSLSocket) serverSocket.accept();
+				acceptedAt = TransportSelector.now();
+				try {
+					Thread.sleep(delay);
+					socket.startHandshake();
+					handshaken = true;
+					while (socket.getInputStream().read() >= 0) {
+					}
+				} catch (final IOException e) {
+					// Closed before or after the handshake.
+				} finally {
+					closed = true;
+					socket.close();
+				}
+			} catch (final Exception e) {
+				// Closed by tearDown.
+			}
+		}
+	}
+
+	/** Scheduling slack on a loaded device. */
+	private static final long SLACK = 150;
+
+	private SSLContext serverContext;
+	private SSLContext clientContext;
+	private int port;
+	private final List<Listener> listeners = new ArrayList<Listener>();
+	private SSLSocket winner;
+
+	public void testAllFailing() throws Exception {
+		// Nothing listens on these.
+		final ServerSocket free = new ServerSocket(0);
+		port = free.getLocalPort();
+		free.close();
+
+		final long start = TransportSelector.now();
+		try {
+			connect("127.0.0.1", "127.0.0.2");
+			fail("Connected to nothing");
+		} catch (final IOException e) {
+			// Expected.
+		}
+		// Refused attempts don't wait for their head start.
+		assertTrue(TransportSelector.now() - start < ParallelConnector.ATTEMPT_DELAY);
+	}
+
+	public void testFailureStartsNextAttempt() throws Exception {
+		final Listener live = new Listener("127.0.0.2", 0);
+		final long start = TransportSelector.now();
+		// 127.0.0.1 refuses on the port only 127.0.0.2 listens on.
+		winner = connect("127.0.0.1", "127.0.0.2");
+
+		assertEquals(live.address, winner.getInetAddress());
+		assertTrue(live.acceptedAt - start < ParallelConnector.ATTEMPT_DELAY);
+	}
+
+	/**
+	 * The first address of each family is slow, the second IPv4 address
+	 * fast. It has to win even though it is tried last, and every other
+	 * attempt is closed.
+	 */
+	public void testFastestWinsAndLosersClose() throws Exception {
+		final Listener slow4 = new Listener("127.0.0.1", 1500);
+		final Listener slow6 = new Listener("::1", 1500);
+		final Listener fast4 = new Listener("127.0.0.2", 0);
+		winner = connect("127.0.0.1", "127.0.0.2", "::1");
+
+		assertEquals(fast4.address, winner.getInetAddress());
+		// Cancelled while they were held, not closed after losing.
+		assertTrue(awaitClosed(slow4));
+		assertTrue(awaitClosed(slow6));
+		assertFalse(slow4.handshaken);
+		assertFalse(slow6.handshaken);
+		assertFalse(fast4.closed);
+
+		winner.close();
+		assertTrue(awaitClosed(fast4));
+	}
+
+	public void testInterleave() throws Exception {
+		final InetAddress a4 = InetAddress.getByName("127.0.0.1");
+		final InetAddress b4 = InetAddress.getByName("127.0.0.2");
+		final InetAddress c4 = InetAddress.getByName("127.0.0.3");
+		final InetAddress a6 = InetAddress.getByName("::1");
+		final InetAddress b6 = InetAddress.getByName("::2");
+
+		assertEquals(
+			list(a4, a6, b4, b6, c4),
+			list(ParallelConnector.interleave(new InetAddress[] { a4, b4, c4, a6, b6 })));
+		assertEquals(
+			list(a6, a4, b6, b4, c4),
+			list(ParallelConnector.interleave(new InetAddress[] { a6, a4, b4, b6, c4 })));
+		assertEquals(
+			list(a4, b4),
+			list(ParallelConnector.interleave(new InetAddress[] { a4, b4 })));
+	}
+
+	/**
+	 * Attempts start ATTEMPT_DELAY apart while the earlier ones are still
+	 * handshaking, in the interleaved order.
+	 */
+	public void testStaggeredStarts() throws Exception {
+		final Listener first = new Listener("127.0.0.1", 2000);
+		final Listener second = new Listener("::1", 2000);
+		final Listener third = new Listener("127.0.0.2", 0);
+		final long start = TransportSelector.now();
+		winner = connect("127.0.0.1", "127.0.0.2", "::1");
+
+		assertEquals(third.address, winner.getInetAddress());
+		assertStarted(start, first.acceptedAt);
+		assertStarted(first.acceptedAt + ParallelConnector.ATTEMPT_DELAY, second.acceptedAt);
+		assertStarted(second.acceptedAt + ParallelConnector.ATTEMPT_DELAY, third.acceptedAt);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final KeyManager[] keyManagers = StandInServer.createKeyManagers();
+		serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(keyManagers, null, null);
+		clientContext = SSLContext.getInstance("TLS");
+		clientContext.init(
+			null,
+			new TrustManager[] { new LocalSSLTrustManager() },
+			null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (winner != null) {
+			winner.close();
+		}
+		for (final Listener listener : listeners) {
+			listener.serverSocket.close();
+			listener.thread.join();
+		}
+		super.tearDown();
+	}
+
+	private void assertStarted(final long expected, final long actual) {
+		assertTrue(actual >= 0);
+		final long late = actual - expected;
+		assertTrue("Started " + late + " ms late", late < SLACK);
+		assertTrue("Started " + -late + " ms early", -late < SLACK / 3);
+	}
+
+	private boolean awaitClosed(final Listener listener)
+		throws InterruptedException {
+		final long deadline = System.currentTimeMillis() +
+							  ParallelConnector.CONNECT_TIMEOUT;
+		while (!listener.closed) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	private SSLSocket connect(final String... addresses) throws Exception {
+		final InetAddress[] resolved = new InetAddress[addresses.length];
+		for (int i = 0; i < addresses.length; i++) {
+			resolved[i] = InetAddress.getByName(addresses[i]);
+		}
+		return new ParallelConnector(clientContext, "localhost", port).connect(resolved);
+	}
+
+	private List<InetAddress> list(final InetAddress... addresses) {
+		final List<InetAddress> list = new ArrayList<InetAddress>();
+		for (final InetAddress address : addresses) {
+			list.add(address);
+		}
+		return list;
+	}
+}
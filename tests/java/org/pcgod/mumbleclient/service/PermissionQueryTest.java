@@ -0,0 +1,96 @@
+package org.pcgod.mumbleclient.service;
+
+import org.pcgod.mumbleclient.service.MumbleProtocol.MessageType;
+import org.pcgod.mumbleclient.service.model.Channel;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks the client's permission cache against the PermissionQuery replies
+ * and ServerSync permissions of a StandInServer.
+ */
+public class PermissionQueryTest extends AndroidTestCase {
+	private static final int TIMEOUT = 10000;
+
+	private StandInServer server;
+	private TestClient client;
+
+	public void testCreateChannelDeniedBySyncPermissions() throws Exception {
+		server.setPermissions(0, StandInServer.DEFAULT_PERMISSIONS &
+								 ~PermissionCache.MAKE_TEMP_CHANNEL);
+		connect();
+
+		final Channel channel = new Channel();
+		channel.name = "temp";
+		assertFalse(client.getProtocol().createChannel(channel, "denied"));
+
+		// The root permissions came with ServerSync; nothing was asked.
+		Thread.sleep(200);
+		assertEquals(0, server.getMessagesReceived(MessageType.PermissionQuery));
+		assertEquals(0, server.getMessagesReceived(MessageType.ChannelState));
+	}
+
+	public void testJoinChannelDeniedAfterQuery() throws Exception {
+		server.addChannel(5, 0, "Locked");
+		server.setPermissions(5, PermissionCache.TRAVERSE);
+		connect();
+
+		final MumbleProtocol protocol = client.getProtocol();
+		protocol.queryPermissions(5);
+		assertTrue(awaitKnown(5));
+		assertTrue(protocol.permissions.isDenied(5, PermissionCache.ENTER));
+
+		final int userStates = server.getMessagesReceived(MessageType.UserState);
+		assertFalse(protocol.joinChannel(5));
+		Thread.sleep(200);
+		assertEquals(userStates, server.getMessagesReceived(MessageType.UserState));
+	}
+
+	public void testQueriesEachChannelOnce() throws Exception {
+		server.addChannel(5, 0, "Open");
+		connect();
+
+		final MumbleProtocol protocol = client.getProtocol();
+		protocol.queryPermissions(5);
+		protocol.queryPermissions(5);
+		assertTrue(awaitKnown(5));
+		protocol.queryPermissions(5);
+
+		Thread.sleep(200);
+		assertEquals(1, server.getMessagesReceived(MessageType.PermissionQuery));
+		assertTrue(protocol.permissions.isAllowed(5, PermissionCache.ENTER));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new StandInServer();
+		server.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (client != null) {
+			client.disconnect();
+		}
+		server.stop();
+		super.tearDown();
+	}
+
+	private boolean awaitKnown(final int channelId) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!client.getProtocol().permissions.isKnown(channelId)) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	private void connect() throws Exception {
+		client = new TestClient(getContext(), server.getPort());
+		client.connect();
+		assertTrue(client.awaitSynchronized(TIMEOUT));
+	}
+}
@@ -0,0 +1,141 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import net.sf.mumble.MumbleProto.ChannelState;
+
+import org.pcgod.mumbleclient.service.MumbleProtocol.MessageType;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Captures channel states and UDP pings with ProtocolCapture and replays
+ * them into a MumbleProtocol whose connection was never started.
+ */
+public class ProtocolReplayTest extends AndroidTestCase {
+	/** Long enough for the records to cross a region boundary. */
+	private static final int NAME_LENGTH = 500;
+	private static final int CHANNELS = ProtocolCapture.REGION_SIZE * 3 / 2 /
+										NAME_LENGTH;
+	private static final int PINGS = 10;
+	private static final int PING_INTERVAL = CHANNELS / PINGS + 1;
+
+	private static String name(final int id) {
+		final StringBuilder sb = new StringBuilder(NAME_LENGTH);
+		sb.append(id).append(' ');
+		while (sb.length() < NAME_LENGTH) {
+			sb.append('x');
+		}
+		return sb.toString();
+	}
+
+	private File file;
+	private TestClient client;
+
+	public void testClosedCapture() throws Exception {
+		final ProtocolCapture capture = new ProtocolCapture(file);
+		final long size = write(capture);
+		capture.close();
+		assertTrue(size > ProtocolCapture.REGION_SIZE);
+		assertEquals(size, file.length());
+
+		replayAndCheck();
+	}
+
+	public void testNotACapture() throws Exception {
+		final ProtocolCapture capture = new ProtocolCapture(file);
+		capture.close();
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.writeInt(0);
+		raf.close();
+
+		try {
+			new ProtocolReplay(file, client.getProtocol(), 0).replay();
+			fail("Replayed a file without the magic");
+		} catch (final IOException e) {
+			// Expected.
+		}
+	}
+
+	/**
+	 * The tail of an unclosed capture reads as zero headers, which end the
+	 * replay even before the first record.
+	 */
+	public void testUnclosedCapture() throws Exception {
+		final ProtocolCapture empty = new ProtocolCapture(file);
+		final ProtocolReplay replay = new ProtocolReplay(
+			file,
+			client.getProtocol(),
+			0);
+		replay.replay();
+		assertEquals(0, replay.getRecords());
+		empty.close();
+
+		final ProtocolCapture capture = new ProtocolCapture(file);
+		final long size = write(capture);
+		// Not closed, the file ends with the zeroed rest of a region.
+		assertTrue(file.length() > size);
+
+		replayAndCheck();
+		capture.close();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("capture", null);
+		client = new TestClient(getContext(), 0);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		client.disconnect();
+		file.delete();
+		super.tearDown();
+	}
+
+	private void replayAndCheck() throws Exception {
+		final ProtocolReplay replay = new ProtocolReplay(
+			file,
+			client.getProtocol(),
+			0);
+		replay.replay();
+
+		assertEquals(CHANNELS + PINGS, replay.getRecords());
+		final MumbleProtocol protocol = client.getProtocol();
+		assertEquals(CHANNELS, protocol.channels.size());
+		for (int id = 0; id < CHANNELS; id++) {
+			assertEquals(name(id), protocol.channels.get(id).name);
+		}
+		assertEquals(PINGS, client.getConnection().getUdpPing().getReceived());
+	}
+
+	/**
+	 * Writes CHANNELS channel states with a UDP ping after every
+	 * PING_INTERVAL of them.
+	 *
+	 * @return Size of the capture
+	 */
+	private long write(final ProtocolCapture capture) {
+		long size = 8;
+		final byte[] ping = new byte[9];
+		ping[0] = MumbleProtocol.UDPMESSAGETYPE_UDPPING << 5;
+
+		for (int id = 0; id < CHANNELS; id++) {
+			final byte[] state = ChannelState.newBuilder().setChannelId(id).setName(
+				name(id)).build().toByteArray();
+			capture.writeTcp(
+				(short) MessageType.ChannelState.ordinal(),
+				state,
+				state.length);
+			size += ProtocolCapture.RECORD_HEADER_SIZE + state.length;
+			if (id % PING_INTERVAL == 0) {
+				capture.writeUdp(ping, ping.length);
+				size += ProtocolCapture.RECORD_HEADER_SIZE + ping.length;
+			}
+		}
+		return size;
+	}
+}
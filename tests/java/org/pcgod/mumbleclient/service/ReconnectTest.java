@@ -0,0 +1,130 @@
+package org.pcgod.mumbleclient.service;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.service.model.User;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Drops the connection of the real client on the StandInServer mid-call and
+ * resumes the session on a new one, as MumbleService does.
+ */
+public class ReconnectTest extends AndroidTestCase {
+	private static final int TIMEOUT = 10000;
+	/** Loopback has no excuse for a slower return of the audio. */
+	private static final long MAX_AUDIO_MS = 2000;
+
+	private StandInServer server;
+	private TestClient client;
+
+	public void testAudioResumesAfterDrop() throws Exception {
+		final MumbleProtocol protocol = client.getProtocol();
+		final User user = protocol.currentUser;
+		final int users = protocol.users.size();
+
+		final long audioMs = dropAndResume();
+		Log.i(Globals.LOG_TAG, "Reconnect: sync " +
+							   client.getConnection().metrics.reconnectSync.get() +
+							   " ms, audio " + audioMs + " ms");
+
+		final Metrics metrics = client.getConnection().metrics;
+		assertEquals(1, metrics.reconnects.get());
+		assertTrue(metrics.reconnectSync.get() <= audioMs);
+		assertTrue("Audio after " + audioMs + " ms", audioMs <= MAX_AUDIO_MS);
+
+		// The session continued instead of starting over.
+		assertSame(protocol, client.getProtocol());
+		assertEquals(users, protocol.users.size());
+		assertNotNull(protocol.currentUser);
+		assertEquals(user.name, protocol.currentUser.name);
+	}
+
+	/**
+	 * The root channel is channel 0; a client that was there has to return
+	 * to it from wherever the server puts new clients.
+	 */
+	public void testRejoinsRootChannel() throws Exception {
+		final MumbleProtocol protocol = client.getProtocol();
+		assertEquals(0, protocol.currentChannel.id);
+
+		server.addChannel(1, 0, "Lobby");
+		server.setDefaultChannel(1);
+		dropAndResume();
+
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (protocol.currentChannel.id != 0 &&
+			   System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, protocol.currentChannel.id);
+	}
+
+	public void testRepeatedDrops() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			final long audioMs = dropAndResume();
+			assertTrue("Audio after " + audioMs + " ms", audioMs <= MAX_AUDIO_MS);
+		}
+		assertTrue(server.awaitClients(1, TIMEOUT));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new StandInServer();
+		server.addUsers(2, 0);
+		server.start();
+		server.startTalkers(1, 2);
+
+		client = new TestClient(getContext(), server.getPort());
+		client.connect();
+		assertTrue(client.awaitSynchronized(TIMEOUT));
+		assertTrue(awaitAudio(client.getConnection()));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		client.disconnect();
+		server.stop();
+		super.tearDown();
+	}
+
+	private boolean awaitAudio(final MumbleConnection connection)
+		throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (connection.metrics.framesDecoded.get() == 0) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/**
+	 * Drops the connection while a fake user is talking, reconnects at once
+	 * and waits for the voice to come back.
+	 *
+	 * @return Time from the drop to the first voice on the new connection,
+	 *         as measured by the client
+	 */
+	private long dropAndResume() throws Exception {
+		server.dropClients();
+		assertTrue(client.awaitState(
+			MumbleConnectionHost.STATE_DISCONNECTED,
+			TIMEOUT));
+		client.reconnect(TransportSelector.now());
+
+		assertTrue(client.awaitSynchronized(TIMEOUT));
+		final MumbleConnection connection = client.getConnection();
+		assertTrue(awaitAudio(connection));
+
+		// Set right before the frame reaches the output.
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (connection.metrics.reconnectAudio.get() == 0 &&
+			   System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		return connection.metrics.reconnectAudio.get();
+	}
+}
@@ -0,0 +1,128 @@
+package org.pcgod.mumbleclient.service;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds RttEstimator pings with fixed timestamps and checks its estimates
+ * against values worked out by hand.
+ */
+public class RttEstimatorTest extends TestCase {
+	private static final double DELTA = 1e-9;
+	/** Samples the estimates below are worked out for. */
+	private static final long[] RTTS = { 100, 140, 80, 120 };
+
+	private Metrics metrics;
+	private RttEstimator estimator;
+
+	public void testFutureTimestampIgnored() {
+		estimator.pingSent(1000);
+		assertEquals(-1.0, estimator.pingReceived(1000, 999), DELTA);
+		assertEquals(0, estimator.getReceived());
+		assertEquals(0, estimator.getSamples());
+		assertEquals(0, metrics.udpRtt.getCount());
+	}
+
+	/**
+	 * RFC 3550 jitter with gain 1/16 over the differences between
+	 * consecutive samples, 40, 60 and 40.
+	 */
+	public void testJitter() {
+		estimator.pingSent(0);
+		estimator.pingReceived(0, 100);
+		assertEquals(0.0, estimator.getJitter(), DELTA);
+		estimator.pingSent(1000);
+		estimator.pingReceived(1000, 1140);
+		assertEquals(2.5, estimator.getJitter(), DELTA);
+		estimator.pingSent(2000);
+		estimator.pingReceived(2000, 2080);
+		assertEquals(6.09375, estimator.getJitter(), DELTA);
+		estimator.pingSent(3000);
+		estimator.pingReceived(3000, 3120);
+		assertEquals(8.212890625, estimator.getJitter(), DELTA);
+	}
+
+	/**
+	 * Running mean and sample variance over all samples.
+	 */
+	public void testMeanAndVariance() {
+		feed();
+		assertEquals(4, estimator.getSamples());
+		assertEquals(110.0, estimator.getMean(), DELTA);
+		// Deviations -10, 30, -30 and 10.
+		assertEquals(2000.0 / 3, estimator.getVariance(), DELTA);
+		assertEquals(4, metrics.udpRtt.getCount());
+		assertEquals(110, metrics.udpRtt.getMean());
+	}
+
+	/**
+	 * RFC 6298: the first sample sets srtt to R and rttvar to R/2, later
+	 * ones update rttvar with gain 1/4 from the old srtt and then srtt with
+	 * gain 1/8.
+	 */
+	public void testSmoothedRttAndVariation() {
+		estimator.pingSent(0);
+		assertEquals(100.0, estimator.pingReceived(0, 100), DELTA);
+		assertEquals(100.0, estimator.getSmoothedRtt(), DELTA);
+		assertEquals(50.0, estimator.getRttVariation(), DELTA);
+
+		estimator.pingSent(1000);
+		estimator.pingReceived(1000, 1140);
+		// rttvar = 3/4 * 50 + 1/4 * |100 - 140|, srtt = 7/8 * 100 + 1/8 * 140
+		assertEquals(47.5, estimator.getRttVariation(), DELTA);
+		assertEquals(105.0, estimator.getSmoothedRtt(), DELTA);
+
+		estimator.pingSent(2000);
+		estimator.pingReceived(2000, 2080);
+		assertEquals(41.875, estimator.getRttVariation(), DELTA);
+		assertEquals(101.875, estimator.getSmoothedRtt(), DELTA);
+
+		estimator.pingSent(3000);
+		estimator.pingReceived(3000, 3120);
+		assertEquals(35.9375, estimator.getRttVariation(), DELTA);
+		assertEquals(104.140625, estimator.getSmoothedRtt(), DELTA);
+	}
+
+	/**
+	 * A ping is lost once the next one is sent unanswered. Its late reply
+	 * is still a sample but doesn't take the loss back.
+	 */
+	public void testUnansweredPingLostWhenNextSent() {
+		estimator.pingSent(1000);
+		assertEquals(0, estimator.getLost());
+
+		estimator.pingSent(2000);
+		assertEquals(1, estimator.getLost());
+		assertEquals(1.0 / 8, estimator.getLossRate(), DELTA);
+
+		assertEquals(1100.0, estimator.pingReceived(1000, 2100), DELTA);
+		assertEquals(1, estimator.getLost());
+		assertEquals(1.0 / 8, estimator.getLossRate(), DELTA);
+
+		estimator.pingReceived(2000, 2150);
+		assertEquals(7.0 / 64, estimator.getLossRate(), DELTA);
+
+		estimator.pingSent(3000);
+		assertEquals(1, estimator.getLost());
+		assertEquals(3, estimator.getSent());
+		assertEquals(2, estimator.getReceived());
+		assertEquals(2, estimator.getSamples());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		metrics = new Metrics();
+		estimator = new RttEstimator(metrics.udpRtt);
+	}
+
+	/**
+	 * Sends a ping every second, each answered after the next of RTTS.
+	 */
+	private void feed() {
+		for (int i = 0; i < RTTS.length; i++) {
+			final long sent = i * 1000;
+			estimator.pingSent(sent);
+			assertEquals((double) RTTS[i], estimator.pingReceived(sent, sent + RTTS[i]), DELTA);
+		}
+	}
+}
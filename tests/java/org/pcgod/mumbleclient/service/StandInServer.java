@@ -0,0 +1,872 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import net.sf.mumble.MumbleProto.Authenticate;
+import net.sf.mumble.MumbleProto.ChannelState;
+import net.sf.mumble.MumbleProto.CodecVersion;
+import net.sf.mumble.MumbleProto.CryptSetup;
+import net.sf.mumble.MumbleProto.PermissionDenied;
+import net.sf.mumble.MumbleProto.PermissionQuery;
+import net.sf.mumble.MumbleProto.Ping;
+import net.sf.mumble.MumbleProto.ServerSync;
+import net.sf.mumble.MumbleProto.UserState;
+import net.sf.mumble.MumbleProto.Version;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.service.MumbleProtocol.MessageType;
+import org.spongycastle.asn1.x500.X500Name;
+import org.spongycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.spongycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.spongycastle.operator.OperatorCreationException;
+import org.spongycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import android.util.Log;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+
+/**
+ * Minimal in-process Mumble server for integration and load tests.
+ * <p>
+ * Speaks the TLS control channel (type short, length int, protobuf body) and
+ * the OCB-AES UDP channel using the client's own CryptState and
+ * PacketDataStream, so a MumbleConnection can be pointed at 127.0.0.1 and
+ * getPort() without any real network.
+ * <p>
+ * The behavior is scripted by the test:
+ * <ul>
+ * <li>channels and a population of fake users, addChannel() and addUsers()</li>
+ * <li>the channel new clients start in, setDefaultChannel()</li>
+ * <li>voice from N of the fake users, startTalkers()</li>
+ * <li>loss, delay, jitter and reordering on the UDP path, setUdpLoss() etc.</li>
+ * <li>no UDP at all so the client falls back to the TCP tunnel,
+ * setForceTcp()</li>
+ * <li>a UDP nonce the client can't follow, desyncUdp()</li>
+ * <li>the permissions answered to PermissionQuery, setPermissions()</li>
+ * </ul>
+ * Only what the client needs is implemented. There are no ACLs, no
+ * registration and no blob storage.
+ */
+public class StandInServer implements Runnable {
+	public static final int DEFAULT_PERMISSIONS = PermissionCache.TRAVERSE |
+												  PermissionCache.ENTER |
+												  PermissionCache.SPEAK |
+												  PermissionCache.WHISPER |
+												  PermissionCache.TEXT_MESSAGE |
+												  PermissionCache.MAKE_TEMP_CHANNEL;
+
+	/** Duration of one voice frame in milliseconds. */
+	public static final int FRAME_DURATION = 1000 * MumbleProtocol.FRAME_SIZE /
+											 MumbleProtocol.SAMPLE_RATE;
+
+	private static final char[] KEY_PASSWORD = new char[0];
+	private static final int MAX_BANDWIDTH = 72000;
+	/**
+	 * Like murmur, a client whose UDP stops decrypting is asked for its
+	 * nonce at most this often, in milliseconds.
+	 */
+	private static final long RESYNC_INTERVAL = 5000;
+
+	/**
+	 * Creates key material for a self-signed server certificate. The client
+	 * accepts any certificate so nothing else is needed.
+	 */
+	public static KeyManager[] createKeyManagers()
+		throws GeneralSecurityException, IOException {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024, new SecureRandom());
+		final KeyPair keyPair = generator.generateKeyPair();
+
+		final X500Name name = new X500Name("CN=Stand-in Mumble Server");
+		final long now = System.currentTimeMillis();
+		final JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+			name,
+			BigInteger.ONE,
+			new Date(now - 60 * 1000L),
+			new Date(now + 24 * 60 * 60 * 1000L),
+			name,
+			keyPair.getPublic());
+
+		final X509Certificate certificate;
+		try {
+			certificate = new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder(
+				"SHA1withRSA").build(keyPair.getPrivate())));
+		} catch (final OperatorCreationException e) {
+			throw new GeneralSecurityException(e);
+		}
+
+		final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		keyStore.load(null, null);
+		keyStore.setKeyEntry(
+			"server",
+			keyPair.getPrivate(),
+			KEY_PASSWORD,
+			new Certificate[] { certificate });
+
+		final KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, KEY_PASSWORD);
+		return kmf.getKeyManagers();
+	}
+
+	private final KeyManager[] keyManagers;
+	private final SecureRandom random = new SecureRandom();
+	private final ImpairedLink link;
+
+	private SSLServerSocket serverSocket;
+	private DatagramSocket udpSocket;
+	private Thread acceptThread;
+	private Thread udpThread;
+	private ScheduledExecutorService talkerExecutor;
+
+	private final Map<Integer, ChannelState> channels = new LinkedHashMap<Integer, ChannelState>();
+	private final Map<Integer, UserState> fakeUsers = new LinkedHashMap<Integer, UserState>();
+	private final Map<Integer, Integer> permissions = new HashMap<Integer, Integer>();
+	private final List<ClientSession> clients = new CopyOnWriteArrayList<ClientSession>();
+	private int nextSession = 1;
+
+	private volatile int acceptDelay;
+	private volatile int defaultChannel;
+	private volatile boolean forceTcp;
+	private volatile boolean echo;
+	private volatile byte[] voiceFrame = new byte[38];
+
+	private final AtomicInteger voicePacketsReceived = new AtomicInteger();
+	private final AtomicInteger tunnelPacketsReceived = new AtomicInteger();
+	private final AtomicInteger[] messagesReceived = new AtomicInteger[MessageType.values().length];
+
+	public StandInServer() throws GeneralSecurityException, IOException {
+		this(createKeyManagers(), 0);
+	}
+
+	/**
+	 * @param keyManagers Server key material
+	 * @param seed Seed for the simulated UDP impairments
+	 */
+	public StandInServer(final KeyManager[] keyManagers, final long seed) {
+		this.keyManagers = keyManagers;
+		this.link = new ImpairedLink(seed);
+
+		for (int i = 0; i < messagesReceived.length; i++) {
+			messagesReceived[i] = new AtomicInteger();
+		}
+
+		addChannel(0, -1, "Root");
+	}
+
+	/**
+	 * @param parent Parent channel id, -1 for the root channel
+	 */
+	public synchronized void addChannel(
+		final int id,
+		final int parent,
+		final String name) {
+		final ChannelState.Builder cs = ChannelState.newBuilder();
+		cs.setChannelId(id);
+		if (parent >= 0) {
+			cs.setParent(parent);
+		}
+		cs.setName(name);
+		channels.put(id, cs.build());
+	}
+
+	/**
+	 * Adds fake users that are announced to clients during the handshake.
+	 *
+	 * @return Sessions of the new users
+	 */
+	public synchronized List<Integer> addUsers(
+		final int count,
+		final int channelId) {
+		final List<Integer> sessions = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++) {
+			final int session = nextSession++;
+			final UserState.Builder us = UserState.newBuilder();
+			us.setSession(session);
+			us.setName("user" + session);
+			us.setChannelId(channelId);
+			fakeUsers.put(session, us.build());
+			sessions.add(session);
+		}
+		return sessions;
+	}
+
+	/**
+	 * Waits until the given number of clients have received ServerSync.
+	 *
+	 * @return False on timeout
+	 */
+	public boolean awaitClients(final int count, final long timeout)
+		throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		synchronized (clients) {
+			while (countSynchronized() < count) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				clients.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the encrypt nonce of all clients 65536 packets ahead, as if that
+	 * many had been lost. The client can't decrypt anything after that
+	 * until it asks for the nonce with an empty CryptSetup.
+	 */
+	public void desyncUdp() {
+		for (final ClientSession client : clients) {
+			final byte[] nonce = client.crypt.getClientNonce().clone();
+			nonce[2]++;
+			client.crypt.setClientNonce(nonce);
+		}
+	}
+
+	/**
+	 * Closes the connections of all clients without a goodbye, as if the
+	 * network had failed. The server keeps accepting new connections, so
+	 * this exercises the client reconnect.
+	 */
+	public void dropClients() {
+		for (final ClientSession client : clients) {
+			client.close();
+		}
+	}
+
+	public int getMessagesReceived(final MessageType type) {
+		return messagesReceived[type.ordinal()].get();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public int getTunnelPacketsReceived() {
+		return tunnelPacketsReceived.get();
+	}
+
+	public int getUdpPacketsDropped() {
+		return link.getDropped();
+	}
+
+	public int getVoicePacketsReceived() {
+		return voicePacketsReceived.get();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!serverSocket.isClosed()) {
+				final SSLSocket socket = (SSLSocket) serverSocket.accept();
+				final ClientSession client = new ClientSession(socket);
+				clients.add(client);
+				new Thread(client, "StandInClient").start();
+			}
+		} catch (final IOException e) {
+			if (!serverSocket.isClosed()) {
+				Log.e(Globals.LOG_TAG, "StandInServer: accept failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Delays the TLS handshake of new clients, like a server that is slow to
+	 * accept connections.
+	 */
+	public void setAcceptDelay(final int delay) {
+		this.acceptDelay = delay;
+	}
+
+	/**
+	 * Sets the channel new clients are put in, the root channel by default.
+	 */
+	public void setDefaultChannel(final int channelId) {
+		this.defaultChannel = channelId;
+	}
+
+	/**
+	 * Relays voice received from a client back to it as if another user
+	 * with the client's own session spoke.
+	 */
+	public void setEcho(final boolean echo_) {
+		this.echo = echo_;
+	}
+
+	/**
+	 * Ignores all UDP traffic. Pings go unanswered so the client keeps
+	 * tunneling voice through TCP, and voice to the client is tunneled too.
+	 */
+	public void setForceTcp(final boolean forceTcp_) {
+		this.forceTcp = forceTcp_;
+	}
+
+	public synchronized void setPermissions(
+		final int channelId,
+		final int permissions_) {
+		permissions.put(channelId, permissions_);
+	}
+
+	public void setUdpDelay(final int delay, final int jitter) {
+		link.setDelay(delay, jitter);
+	}
+
+	public void setUdpLoss(final double loss) {
+		link.setLoss(loss);
+	}
+
+	public void setUdpReorder(final double reorder) {
+		link.setReorder(reorder);
+	}
+
+	/**
+	 * Sets the encoded frame the talkers send. Its content isn't checked;
+	 * a frame from the real encoder gives realistic decoder load.
+	 */
+	public void setVoiceFrame(final byte[] frame) {
+		this.voiceFrame = frame;
+	}
+
+	/**
+	 * Binds the TCP and UDP sockets to the same loopback port and starts
+	 * accepting clients.
+	 */
+	public void start() throws GeneralSecurityException, IOException {
+		start(InetAddress.getByName("127.0.0.1"), 0);
+	}
+
+	/**
+	 * Binds the TCP and UDP sockets to the same port of an address and
+	 * starts accepting clients. Several servers on different loopback
+	 * addresses can share a port to stand in for a host with several
+	 * addresses.
+	 *
+	 * @param port Port to bind, 0 for any free one
+	 */
+	public void start(final InetAddress address, final int port)
+		throws GeneralSecurityException, IOException {
+		final SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers, null, null);
+
+		// The client sends UDP to the TCP port so both must be bound to the
+		// same number. Retry if the UDP side of the port is taken.
+		while (udpSocket == null) {
+			serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(
+				port,
+				50,
+				address);
+			try {
+				udpSocket = new DatagramSocket(new InetSocketAddress(
+					address,
+					serverSocket.getLocalPort()));
+			} catch (final SocketException e) {
+				serverSocket.close();
+				if (port != 0) {
+					throw e;
+				}
+			}
+		}
+
+		link.start(udpSocket);
+
+		acceptThread = new Thread(this, "StandInServer");
+		acceptThread.start();
+
+		udpThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receiveUdp();
+			}
+		}, "StandInServerUdp");
+		udpThread.start();
+	}
+
+	/**
+	 * Starts sending voice on behalf of the first count fake users to every
+	 * connected client. Replaces previously started talkers.
+	 *
+	 * @param count Number of simultaneous talkers
+	 * @param framesPerPacket Frames bundled into each voice packet
+	 */
+	public synchronized void startTalkers(
+		final int count,
+		final int framesPerPacket) {
+		stopTalkers();
+
+		final List<Integer> sessions = new ArrayList<Integer>(fakeUsers.keySet());
+		final int[] talkers = new int[Math.min(count, sessions.size())];
+		for (int i = 0; i < talkers.length; i++) {
+			talkers[i] = sessions.get(i);
+		}
+
+		talkerExecutor = Executors.newSingleThreadScheduledExecutor();
+		talkerExecutor.scheduleAtFixedRate(new Runnable() {
+			private long sequence = 0;
+
+			@Override
+			public void run() {
+				for (final int session : talkers) {
+					final byte[] packet = buildVoicePacket(
+						session,
+						sequence,
+						framesPerPacket);
+					for (final ClientSession client : clients) {
+						if (client.synced) {
+							client.sendVoice(packet);
+						}
+					}
+				}
+				sequence += framesPerPacket;
+			}
+		}, 0, framesPerPacket * FRAME_DURATION, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		stopTalkers();
+		link.stop();
+
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		} catch (final IOException e) {
+			Log.w(Globals.LOG_TAG, "StandInServer: close failed", e);
+		}
+		if (udpSocket != null) {
+			udpSocket.close();
+		}
+
+		for (final ClientSession client : clients) {
+			client.close();
+		}
+	}
+
+	public synchronized void stopTalkers() {
+		if (talkerExecutor != null) {
+			talkerExecutor.shutdownNow();
+			talkerExecutor = null;
+		}
+	}
+
+	private byte[] buildVoicePacket(
+		final int session,
+		final long sequence,
+		final int frames) {
+		final byte[] frame = voiceFrame;
+		final byte[] buffer = new byte[16 + frames * (frame.length + 1)];
+		final PacketDataStream pds = new PacketDataStream(buffer);
+		pds.append(MumbleProtocol.UDPMESSAGETYPE_UDPVOICECELTALPHA << 5);
+		pds.writeLong(session);
+		pds.writeLong(sequence);
+		for (int i = 0; i < frames; i++) {
+			// Top bit of the frame header marks that more frames follow.
+			pds.append(frame.length | (i < frames - 1 ? 0x80 : 0));
+			pds.append(frame);
+		}
+
+		final byte[] packet = new byte[pds.size()];
+		System.arraycopy(buffer, 0, packet, 0, packet.length);
+		return packet;
+	}
+
+	private int countSynchronized() {
+		int count = 0;
+		for (final ClientSession client : clients) {
+			if (client.synced) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private synchronized int getPermissions(final int channelId) {
+		final Integer perm = permissions.get(channelId);
+		return perm != null ? perm : DEFAULT_PERMISSIONS;
+	}
+
+	private void handleVoice(
+		final ClientSession client,
+		final byte[] buffer,
+		final int length) {
+		if (!echo) {
+			return;
+		}
+
+		// Client voice has no session field. Insert the sender's session
+		// after the header byte as the server does when relaying.
+		final byte[] relayed = new byte[length + 9];
+		final PacketDataStream pds = new PacketDataStream(relayed);
+		pds.append(buffer[0]);
+		pds.writeLong(client.session);
+		final int header = pds.size();
+		System.arraycopy(buffer, 1, relayed, header, length - 1);
+
+		final byte[] packet = new byte[header + length - 1];
+		System.arraycopy(relayed, 0, packet, 0, packet.length);
+		client.sendVoice(packet);
+	}
+
+	private void receiveUdp() {
+		final DatagramPacket packet = new DatagramPacket(
+			new byte[MumbleConnection.UDP_BUFFER_SIZE],
+			MumbleConnection.UDP_BUFFER_SIZE);
+
+		while (!udpSocket.isClosed()) {
+			try {
+				udpSocket.receive(packet);
+			} catch (final IOException e) {
+				if (!udpSocket.isClosed()) {
+					Log.e(Globals.LOG_TAG, "StandInServer: receive failed", e);
+				}
+				return;
+			}
+
+			if (forceTcp) {
+				continue;
+			}
+
+			final SocketAddress address = packet.getSocketAddress();
+			byte[] plain = null;
+			ClientSession sender = null;
+			for (final ClientSession client : clients) {
+				if (address.equals(client.udpAddress)) {
+					plain = client.crypt.decrypt(
+						packet.getData(),
+						packet.getLength());
+					sender = client;
+					break;
+				}
+			}
+
+			// Unknown address. Find the client by trying the keys of the
+			// clients that haven't sent UDP yet.
+			if (sender == null) {
+				for (final ClientSession client : clients) {
+					if (client.udpAddress == null &&
+						client.crypt.isInitialized()) {
+						plain = client.crypt.decrypt(
+							packet.getData(),
+							packet.getLength());
+						if (plain != null) {
+							client.udpAddress = address;
+							sender = client;
+							break;
+						}
+					}
+				}
+			}
+
+			if (plain == null) {
+				if (sender != null) {
+					sender.requestResync();
+				}
+				continue;
+			}
+
+			final int type = plain[0] >> 5 & 0x7;
+			if (type == MumbleProtocol.UDPMESSAGETYPE_UDPPING) {
+				link.send(sender.crypt.encrypt(plain, plain.length), address);
+			} else {
+				voicePacketsReceived.incrementAndGet();
+				handleVoice(sender, plain, plain.length);
+			}
+		}
+	}
+
+	/**
+	 * One connected client. Reads the control channel on its own thread.
+	 */
+	private class ClientSession implements Runnable {
+		final SSLSocket socket;
+		final CryptState crypt = new CryptState();
+		volatile SocketAddress udpAddress;
+		volatile boolean synced;
+		/** Only used by the UDP thread. */
+		long lastResyncRequest = Long.MIN_VALUE / 2;
+		int session;
+		int channelId;
+		String name;
+
+		private DataOutputStream out;
+
+		public ClientSession(final SSLSocket socket_) {
+			this.socket = socket_;
+		}
+
+		public void close() {
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				Log.w(Globals.LOG_TAG, "StandInServer: close failed", e);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (acceptDelay > 0) {
+					Thread.sleep(acceptDelay);
+				}
+				out = new DataOutputStream(socket.getOutputStream());
+				final DataInputStream in = new DataInputStream(socket.getInputStream());
+				while (true) {
+					final short type = in.readShort();
+					final byte[] body = new byte[in.readInt()];
+					in.readFully(body);
+					process(type, body);
+				}
+			} catch (final IOException e) {
+				// Client went away.
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				clients.remove(this);
+				close();
+			}
+		}
+
+		/**
+		 * Asks the client for its nonce with an empty CryptSetup after its
+		 * UDP failed to decrypt, as murmur does.
+		 */
+		public void requestResync() {
+			final long now = System.currentTimeMillis();
+			if (now - lastResyncRequest >= RESYNC_INTERVAL) {
+				lastResyncRequest = now;
+				send(MessageType.CryptSetup, CryptSetup.newBuilder());
+			}
+		}
+
+		public void send(final MessageType t, final MessageLite.Builder b) {
+			send(t, b.build());
+		}
+
+		public void send(final MessageType t, final MessageLite m) {
+			try {
+				synchronized (out) {
+					out.writeShort(t.ordinal());
+					out.writeInt(m.getSerializedSize());
+					m.writeTo(out);
+				}
+			} catch (final IOException e) {
+				close();
+			}
+		}
+
+		public void sendVoice(final byte[] packet) {
+			final SocketAddress address = udpAddress;
+			if (!forceTcp && address != null) {
+				link.send(crypt.encrypt(packet, packet.length), address);
+				return;
+			}
+
+			try {
+				synchronized (out) {
+					out.writeShort(MessageType.UDPTunnel.ordinal());
+					out.writeInt(packet.length);
+					out.write(packet);
+				}
+			} catch (final IOException e) {
+				close();
+			}
+		}
+
+		private void broadcast(final MessageType t, final MessageLite m) {
+			for (final ClientSession client : clients) {
+				if (client.synced) {
+					client.send(t, m);
+				}
+			}
+		}
+
+		private void handleAuthenticate(final Authenticate auth) {
+			synchronized (StandInServer.this) {
+				session = nextSession++;
+			}
+			name = auth.getUsername();
+			channelId = defaultChannel;
+
+			// Our encrypt IV is the client's decrypt IV and the other way
+			// around, so the nonces are swapped compared to the client.
+			final byte[] key = randomBytes(16);
+			final byte[] clientNonce = randomBytes(16);
+			final byte[] serverNonce = randomBytes(16);
+			crypt.setKeys(key, serverNonce, clientNonce);
+
+			final CryptSetup.Builder cs = CryptSetup.newBuilder();
+			cs.setKey(ByteString.copyFrom(key));
+			cs.setClientNonce(ByteString.copyFrom(clientNonce));
+			cs.setServerNonce(ByteString.copyFrom(serverNonce));
+			send(MessageType.CryptSetup, cs);
+
+			final CodecVersion.Builder cv = CodecVersion.newBuilder();
+			cv.setAlpha(Globals.CELT_VERSION);
+			cv.setBeta(Globals.CELT_VERSION);
+			cv.setPreferAlpha(true);
+			send(MessageType.CodecVersion, cv);
+
+			final List<ChannelState> channelStates;
+			final List<UserState> userStates;
+			synchronized (StandInServer.this) {
+				channelStates = new ArrayList<ChannelState>(channels.values());
+				userStates = new ArrayList<UserState>(fakeUsers.values());
+			}
+			for (final ChannelState state : channelStates) {
+				send(MessageType.ChannelState, state);
+			}
+			for (final UserState state : userStates) {
+				send(MessageType.UserState, state);
+			}
+			for (final ClientSession client : clients) {
+				if (client.synced) {
+					send(MessageType.UserState, client.userState());
+				}
+			}
+
+			final UserState own = userState().build();
+			broadcast(MessageType.UserState, own);
+			send(MessageType.UserState, own);
+
+			final ServerSync.Builder ss = ServerSync.newBuilder();
+			ss.setSession(session);
+			ss.setMaxBandwidth(MAX_BANDWIDTH);
+			ss.setWelcomeText("Stand-in server");
+			ss.setPermissions(getPermissions(0));
+			send(MessageType.ServerSync, ss);
+
+			synchronized (clients) {
+				synced = true;
+				clients.notifyAll();
+			}
+		}
+
+		private void handleCryptSetup(final CryptSetup setup) {
+			if (setup.hasClientNonce()) {
+				// Client's encrypt IV is our decrypt IV.
+				crypt.setServerNonce(setup.getClientNonce().toByteArray());
+			} else {
+				final CryptSetup.Builder cs = CryptSetup.newBuilder();
+				cs.setServerNonce(ByteString.copyFrom(crypt.getClientNonce()));
+				send(MessageType.CryptSetup, cs);
+			}
+		}
+
+		private void handleUserState(final UserState us) {
+			if (!us.hasChannelId() || us.getSession() != session) {
+				return;
+			}
+
+			final int target = us.getChannelId();
+			if ((getPermissions(target) & PermissionCache.ENTER) == 0) {
+				final PermissionDenied.Builder pd = PermissionDenied.newBuilder();
+				pd.setType(PermissionDenied.DenyType.Permission);
+				pd.setPermission(PermissionCache.ENTER);
+				pd.setChannelId(target);
+				pd.setSession(session);
+				send(MessageType.PermissionDenied, pd);
+				return;
+			}
+
+			channelId = target;
+			final UserState.Builder moved = UserState.newBuilder();
+			moved.setSession(session);
+			moved.setActor(session);
+			moved.setChannelId(target);
+			broadcast(MessageType.UserState, moved.build());
+		}
+
+		private void process(final short type, final byte[] body)
+			throws IOException {
+			if (type < 0 || type >= messagesReceived.length) {
+				return;
+			}
+
+			final MessageType t = MessageType.values()[type];
+			messagesReceived[type].incrementAndGet();
+
+			switch (t) {
+			case Version:
+				final Version.Builder v = Version.newBuilder();
+				v.setVersion(Globals.PROTOCOL_VERSION);
+				v.setRelease("StandInServer");
+				send(MessageType.Version, v);
+				break;
+			case Authenticate:
+				handleAuthenticate(Authenticate.parseFrom(body));
+				break;
+			case Ping:
+				final Ping.Builder p = Ping.newBuilder();
+				p.setTimestamp(Ping.parseFrom(body).getTimestamp());
+				send(MessageType.Ping, p);
+				break;
+			case UDPTunnel:
+				tunnelPacketsReceived.incrementAndGet();
+				handleVoice(this, body, body.length);
+				break;
+			case CryptSetup:
+				handleCryptSetup(CryptSetup.parseFrom(body));
+				break;
+			case UserState:
+				handleUserState(UserState.parseFrom(body));
+				break;
+			case PermissionQuery:
+				final PermissionQuery query = PermissionQuery.parseFrom(body);
+				final PermissionQuery.Builder pq = PermissionQuery.newBuilder();
+				pq.setChannelId(query.getChannelId());
+				pq.setPermissions(getPermissions(query.getChannelId()));
+				send(MessageType.PermissionQuery, pq);
+				break;
+			default:
+				break;
+			}
+		}
+
+		private byte[] randomBytes(final int length) {
+			final byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			return bytes;
+		}
+
+		private UserState.Builder userState() {
+			final UserState.Builder us = UserState.newBuilder();
+			us.setSession(session);
+			us.setName(name);
+			us.setChannelId(channelId);
+			return us;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package org.pcgod.mumbleclient.service;
+
+import org.pcgod.mumbleclient.service.Metrics.Counter;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that the StandInServer behaves as its scripts promise when the real
+ * client is connected, so tests built on it test the client and not the
+ * fixture.
+ */
+public class StandInServerTest extends AndroidTestCase {
+	private static final int TIMEOUT = 10000;
+
+	/**
+	 * Builds a client voice packet: header, sequence and one frame.
+	 */
+	static byte[] voicePacket(final long sequence) {
+		final byte[] frame = new byte[38];
+		final byte[] buffer = new byte[64];
+		final PacketDataStream pds = new PacketDataStream(buffer);
+		pds.append(MumbleProtocol.UDPMESSAGETYPE_UDPVOICECELTALPHA << 5);
+		pds.writeLong(sequence);
+		pds.append(frame.length);
+		pds.append(frame);
+
+		final byte[] packet = new byte[pds.size()];
+		System.arraycopy(buffer, 0, packet, 0, packet.length);
+		return packet;
+	}
+
+	private StandInServer server;
+	private TestClient client;
+
+	public void testEchoRelaysClientVoice() throws Exception {
+		server.setEcho(true);
+		connect();
+		final MumbleConnection connection = client.getConnection();
+		assertTrue(awaitUdp(connection));
+
+		for (int i = 0; i < 50; i++) {
+			final byte[] packet = voicePacket(i);
+			connection.sendUdpMessage(packet, packet.length, false);
+			Thread.sleep(StandInServer.FRAME_DURATION);
+		}
+
+		assertTrue(await(connection.metrics.framesDecoded, 1));
+		assertEquals(50, server.getVoicePacketsReceived());
+		assertEquals(0, server.getTunnelPacketsReceived());
+	}
+
+	public void testForceTcpTunnelsVoice() throws Exception {
+		server.setForceTcp(true);
+		server.addUsers(1, 0);
+		connect();
+		final MumbleConnection connection = client.getConnection();
+		server.startTalkers(1, 2);
+
+		assertTrue(await(connection.metrics.framesDecoded, 10));
+		assertEquals(0, connection.metrics.udpIn.get());
+		assertFalse(connection.transport.isUdp());
+
+		for (int i = 0; i < 10; i++) {
+			final byte[] packet = voicePacket(i);
+			connection.sendUdpMessage(packet, packet.length, false);
+		}
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (server.getTunnelPacketsReceived() < 10 &&
+			   System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(10, server.getTunnelPacketsReceived());
+		assertEquals(0, server.getVoicePacketsReceived());
+	}
+
+	public void testTalkersReachClientOverUdp() throws Exception {
+		server.addUsers(3, 0);
+		connect();
+		final MumbleConnection connection = client.getConnection();
+		assertTrue(awaitUdp(connection));
+		server.startTalkers(3, 2);
+
+		assertTrue(await(connection.metrics.udpIn, 60));
+		assertTrue(await(connection.metrics.framesDecoded, 1));
+		assertEquals(0, connection.cryptState.getLost());
+	}
+
+	public void testUdpLossReachesCryptState() throws Exception {
+		server.setUdpLoss(0.2);
+		server.addUsers(1, 0);
+		connect();
+		final MumbleConnection connection = client.getConnection();
+		assertTrue(awaitUdp(connection));
+		server.startTalkers(1, 1);
+
+		assertTrue(await(connection.metrics.udpIn, 200));
+		assertTrue(server.getUdpPacketsDropped() > 0);
+		assertTrue(connection.cryptState.getLost() > 0);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new StandInServer();
+		server.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (client != null) {
+			client.disconnect();
+		}
+		server.stop();
+		super.tearDown();
+	}
+
+	private boolean await(final Counter counter, final long count)
+		throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (counter.get() < count) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	private boolean awaitUdp(final MumbleConnection connection)
+		throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!connection.transport.isUdp()) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	private void connect() throws Exception {
+		client = new TestClient(getContext(), server.getPort());
+		client.connect();
+		assertTrue(client.awaitSynchronized(TIMEOUT));
+	}
+}
@@ -0,0 +1,259 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.mumble.MumbleProto.Ping;
+import net.sf.mumble.MumbleProto.TextMessage;
+
+import org.pcgod.mumbleclient.service.MumbleProtocol.MessageType;
+
+/**
+ * Holds the TcpWriter in its first write while messages queue up, then
+ * checks what it writes once the socket drains.
+ */
+public class TcpWriterTest extends TestCase {
+	private static final int TIMEOUT = 5000;
+
+	private static TextMessage text(final int length) {
+		final StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append('x');
+		}
+		return TextMessage.newBuilder().setMessage(sb.toString()).build();
+	}
+
+	/**
+	 * Splits a write into its messages.
+	 *
+	 * @return Type and first body byte of each message
+	 */
+	private static List<int[]> messages(final byte[] write) {
+		final List<int[]> messages = new ArrayList<int[]>();
+		int offset = 0;
+		while (offset < write.length) {
+			final int type = (write[offset] & 0xFF) << 8 |
+							 (write[offset + 1] & 0xFF);
+			final int length = (write[offset + 2] & 0xFF) << 24 |
+							   (write[offset + 3] & 0xFF) << 16 |
+							   (write[offset + 4] & 0xFF) << 8 |
+							   (write[offset + 5] & 0xFF);
+			messages.add(new int[] { type, length > 0 ? write[offset + 6] : -1 });
+			offset += 6 + length;
+		}
+		assertEquals(write.length, offset);
+		return messages;
+	}
+
+	private Metrics metrics;
+	private GatedStream stream;
+	private TcpWriter writer;
+
+	public void testBatchesQueuedMessages() throws Exception {
+		block();
+		for (int i = 0; i < 20; i++) {
+			writer.send(MessageType.TextMessage, text(1000));
+		}
+		stream.open();
+
+		final List<byte[]> writes = stream.awaitMessages(21);
+		int messages = 0;
+		for (int i = 1; i < writes.size(); i++) {
+			assertTrue(writes.get(i).length <= TcpWriter.BATCH_SIZE);
+			messages += messages(writes.get(i)).size();
+		}
+		assertEquals(20, messages);
+		// 8 messages of 1006 bytes fit a batch.
+		assertEquals(1 + 3, writes.size());
+		assertEquals(21, metrics.tcpOut.get());
+	}
+
+	public void testDrainsLanesInPriorityOrder() throws Exception {
+		block();
+		writer.send(MessageType.TextMessage, text(10));
+		writer.send(MessageType.Ping, Ping.newBuilder().setTimestamp(1).build());
+		assertTrue(writer.sendVoice(new byte[] { 42 }, 1));
+		stream.open();
+
+		final List<int[]> messages = messages(stream.awaitMessages(4).get(1));
+		assertEquals(3, messages.size());
+		assertEquals(MessageType.UDPTunnel.ordinal(), messages.get(0)[0]);
+		assertEquals(42, messages.get(0)[1]);
+		assertEquals(MessageType.Ping.ordinal(), messages.get(1)[0]);
+		assertEquals(MessageType.TextMessage.ordinal(), messages.get(2)[0]);
+	}
+
+	public void testDropsStalestVoice() throws Exception {
+		block();
+		final int frames = TcpWriter.VOICE_CAPACITY + 2;
+		for (int i = 0; i < frames; i++) {
+			assertEquals(i < TcpWriter.VOICE_CAPACITY, writer.sendVoice(
+				new byte[] { (byte) i },
+				1));
+		}
+		stream.open();
+
+		final List<int[]> voice = messages(stream.awaitMessages(
+			1 + TcpWriter.VOICE_CAPACITY).get(1));
+		assertEquals(TcpWriter.VOICE_CAPACITY, voice.size());
+		for (int i = 0; i < voice.size(); i++) {
+			assertEquals(MessageType.UDPTunnel.ordinal(), voice.get(i)[0]);
+			assertEquals(i + 2, voice.get(i)[1]);
+		}
+		assertEquals(2, metrics.tunnelDropped.get());
+		assertEquals(TcpWriter.VOICE_CAPACITY, metrics.udpTunneled.get());
+	}
+
+	public void testOversizedMessageWrittenAlone() throws Exception {
+		block();
+		writer.send(MessageType.TextMessage, text(10));
+		writer.send(MessageType.TextMessage, text(3 * TcpWriter.BATCH_SIZE));
+		writer.send(MessageType.TextMessage, text(10));
+		stream.open();
+
+		final List<byte[]> writes = stream.awaitMessages(4);
+		assertEquals(4, writes.size());
+		assertEquals(1, messages(writes.get(1)).size());
+		assertTrue(writes.get(2).length > 3 * TcpWriter.BATCH_SIZE);
+		assertEquals(1, messages(writes.get(3)).size());
+
+		// The batch buffer doesn't stay at the oversized length.
+		writer.send(MessageType.TextMessage, text(10));
+		stream.awaitMessages(5);
+		assertEquals(TcpWriter.BATCH_SIZE, writer.batch.length);
+	}
+
+	public void testOversizedVoiceDropped() throws Exception {
+		block();
+		final byte[] packet = new byte[MumbleConnection.UDP_BUFFER_SIZE + 1];
+		packet[0] = 1;
+		assertFalse(writer.sendVoice(packet, packet.length));
+		packet[0] = 2;
+		assertTrue(writer.sendVoice(packet, MumbleConnection.UDP_BUFFER_SIZE));
+		stream.open();
+
+		final List<byte[]> writes = stream.awaitMessages(2);
+		final List<int[]> voice = messages(writes.get(1));
+		assertEquals(1, voice.size());
+		assertEquals(2, voice.get(0)[1]);
+		assertEquals(
+			6 + MumbleConnection.UDP_BUFFER_SIZE,
+			writes.get(1).length);
+		assertEquals(1, metrics.tunnelOversized.get());
+		assertEquals(0, metrics.tunnelDropped.get());
+	}
+
+	/**
+	 * Sends voice at far above the frame rate while the socket is stuck in
+	 * a write. No call may wait for the socket.
+	 */
+	public void testSendVoiceDoesntBlockOnSocket() throws Exception {
+		block();
+		final byte[] packet = new byte[MumbleConnection.UDP_BUFFER_SIZE];
+		final int frames = 10000;
+		long slowest = 0;
+		for (int i = 0; i < frames; i++) {
+			packet[0] = (byte) i;
+			final long start = System.nanoTime();
+			writer.sendVoice(packet, packet.length);
+			slowest = Math.max(slowest, System.nanoTime() - start);
+		}
+		// Far less than a frame even on a loaded device.
+		assertTrue(
+			"sendVoice took " + slowest / 1000 + " us",
+			slowest < StandInServer.FRAME_DURATION * 1000 * 1000L);
+		assertEquals(
+			frames - TcpWriter.VOICE_CAPACITY,
+			metrics.tunnelDropped.get());
+
+		stream.open();
+		final List<int[]> voice = messages(stream.awaitMessages(
+			1 + TcpWriter.VOICE_CAPACITY).get(1));
+		assertEquals(
+			(byte) (frames - TcpWriter.VOICE_CAPACITY),
+			(byte) voice.get(0)[1]);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		metrics = new Metrics();
+		stream = new GatedStream();
+		writer = new TcpWriter(stream, metrics);
+		writer.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		writer.stop();
+		stream.open();
+		super.tearDown();
+	}
+
+	/**
+	 * Has the writer start a write that doesn't return until the stream
+	 * is opened.
+	 */
+	private void block() throws Exception {
+		writer.send(MessageType.TextMessage, text(1));
+		stream.awaitMessages(1);
+	}
+
+	/**
+	 * Records every write. Writes block while the stream is closed, after
+	 * being recorded.
+	 */
+	private static class GatedStream extends OutputStream {
+		private final List<byte[]> writes = new ArrayList<byte[]>();
+		private int messages;
+		private boolean open;
+
+		/**
+		 * Waits until the writes hold count messages.
+		 *
+		 * @return The writes so far
+		 */
+		public synchronized List<byte[]> awaitMessages(final int count)
+			throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (messages < count) {
+				final long remaining = deadline - System.currentTimeMillis();
+				assertTrue("Got " + messages + " messages", remaining > 0);
+				wait(remaining);
+			}
+			return new ArrayList<byte[]>(writes);
+		}
+
+		public synchronized void open() {
+			open = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void write(
+			final byte[] buffer,
+			final int offset,
+			final int count) {
+			final byte[] copy = new byte[count];
+			System.arraycopy(buffer, offset, copy, 0, count);
+			writes.add(copy);
+			messages += messages(copy).size();
+			notifyAll();
+
+			while (!open) {
+				try {
+					wait();
+				} catch (final InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		@Override
+		public void write(final int oneByte) {
+			write(new byte[] { (byte) oneByte }, 0, 1);
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.pcgod.mumbleclient.service.audio.AudioOutput;
+import org.pcgod.mumbleclient.service.audio.AudioOutputHost;
+import org.pcgod.mumbleclient.service.model.Channel;
+import org.pcgod.mumbleclient.service.model.Message;
+import org.pcgod.mumbleclient.service.model.User;
+
+import android.content.Context;
+
+/**
+ * The real MumbleConnection and MumbleProtocol, driven the way MumbleService
+ * drives them, for tests against StandInServer.
+ * <p>
+ * The hosts only record the connection state, the synchronization and the
+ * last error; tests wait for those with the await methods and inspect the
+ * rest through getProtocol() and getConnection(). reconnect() resumes the
+ * session on a new connection like MumbleService.resumeConnection().
+ */
+class TestClient implements MumbleConnectionHost, MumbleProtocolHost,
+	AudioOutputHost {
+	private final MumbleProtocol protocol;
+	private final File blobDir;
+	private volatile MumbleConnection connection;
+	private Thread thread;
+
+	private int connectionState = STATE_DISCONNECTED;
+	private boolean synced;
+	private String error;
+
+	/**
+	 * @param ctx Context for the audio output settings
+	 * @param port Port of the StandInServer on 127.0.0.1
+	 */
+	TestClient(final Context ctx, final int port) throws IOException {
+		blobDir = File.createTempFile("blobs", null);
+		blobDir.delete();
+
+		connection = new MumbleConnection(this, "127.0.0.1", port, "test", "");
+		protocol = new MumbleProtocol(
+			this,
+			this,
+			connection,
+			new BlobCache(blobDir, 1024 * 1024),
+			AudioOutput.factory(ctx));
+	}
+
+	/**
+	 * Waits for the connection to report a state.
+	 *
+	 * @return False on timeout
+	 */
+	public synchronized boolean awaitState(final int state, final long timeout)
+		throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		while (connectionState != state) {
+			final long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until the protocol has handled ServerSync.
+	 *
+	 * @return False on timeout
+	 */
+	public synchronized boolean awaitSynchronized(final long timeout)
+		throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		while (!synced) {
+			final long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	@Override
+	public void channelAdded(final Channel channel) {
+	}
+
+	@Override
+	public void channelRemoved(final int channelId) {
+	}
+
+	@Override
+	public void channelUpdated(final Channel channel) {
+	}
+
+	public void connect() {
+		thread = connection.start(protocol);
+	}
+
+	@Override
+	public void currentChannelChanged() {
+	}
+
+	@Override
+	public void currentUserUpdated() {
+	}
+
+	/**
+	 * Disconnects and waits for the connection thread to end.
+	 */
+	public void disconnect() throws InterruptedException {
+		protocol.stop();
+		connection.disconnect();
+		if (thread != null) {
+			thread.join();
+		}
+
+		final File[] files = blobDir.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		blobDir.delete();
+	}
+
+	public MumbleConnection getConnection() {
+		return connection;
+	}
+
+	public synchronized String getError() {
+		return error;
+	}
+
+	public MumbleProtocol getProtocol() {
+		return protocol;
+	}
+
+	@Override
+	public void messageReceived(final Message msg) {
+	}
+
+	@Override
+	public void messageSent(final Message msg) {
+	}
+
+	/**
+	 * Resumes the session on a new connection after the current one was
+	 * lost, as MumbleService does once its backoff expires.
+	 *
+	 * @param droppedAt TransportSelector.now() when the connection was lost
+	 */
+	public void reconnect(final long droppedAt) throws InterruptedException {
+		thread.join();
+		synchronized (this) {
+			synced = false;
+		}
+
+		connection = new MumbleConnection(this, connection);
+		protocol.reattach(connection, droppedAt);
+		thread = connection.start(protocol);
+	}
+
+	@Override
+	public synchronized void setConnectionState(final int state) {
+		connectionState = state;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void setError(final String error_) {
+		error = error_;
+	}
+
+	@Override
+	public synchronized void setSynchronized(final boolean synced_) {
+		synced = synced_;
+		notifyAll();
+	}
+
+	@Override
+	public void setTalkState(final User user, final int talkState) {
+	}
+
+	@Override
+	public void userAdded(final User user) {
+	}
+
+	@Override
+	public void userRemoved(final int userId) {
+	}
+
+	@Override
+	public void userUpdated(final User user) {
+	}
+}
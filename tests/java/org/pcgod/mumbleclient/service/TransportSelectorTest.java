@@ -0,0 +1,233 @@
+package org.pcgod.mumbleclient.service;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Runs TransportSelector on a simulated clock, and the real client through
+ * a UDP blackhole on the StandInServer.
+ */
+public class TransportSelectorTest extends AndroidTestCase {
+	private static final int TIMEOUT = 10000;
+
+	private Metrics metrics;
+	private RttEstimator udpPing;
+	private TransportSelector selector;
+
+	private StandInServer server;
+	private TestClient client;
+
+	/**
+	 * Voice keeps flowing while the server stops answering UDP mid-call:
+	 * the client must fall back to the TCP tunnel within a probe interval
+	 * plus the probe timeout, and return to UDP once the path is back.
+	 */
+	public void testBlackholeFallsBackToTcp() throws Exception {
+		server = new StandInServer();
+		server.addUsers(1, 0);
+		server.start();
+		client = new TestClient(getContext(), server.getPort());
+		client.connect();
+		assertTrue(client.awaitSynchronized(TIMEOUT));
+
+		final MumbleConnection connection = client.getConnection();
+		assertTrue(awaitUdp(connection, true));
+		server.startTalkers(1, 2);
+
+		long sequence = 0;
+		sendVoice(connection, sequence, 10);
+		sequence += 10;
+		Thread.sleep(100);
+		assertEquals(10, server.getVoicePacketsReceived());
+		assertEquals(0, server.getTunnelPacketsReceived());
+
+		server.setForceTcp(true);
+		final long blackholed = System.currentTimeMillis();
+		while (connection.transport.isUdp()) {
+			assertTrue(
+				"Still on UDP",
+				System.currentTimeMillis() - blackholed < TIMEOUT);
+			sendVoice(connection, sequence++, 1);
+		}
+		final long switchTime = System.currentTimeMillis() - blackholed;
+		assertTrue(
+			"Switched after " + switchTime + " ms",
+			switchTime <= TransportSelector.PROBE_INTERVAL +
+						  TransportSelector.MAX_TIMEOUT + 500);
+		assertEquals(1, connection.metrics.switchesToTcp.get());
+		assertEquals(0, connection.metrics.udpMode.get());
+
+		// Voice goes both ways through the tunnel now.
+		final long tunneled = server.getTunnelPacketsReceived();
+		final long decoded = connection.metrics.framesDecoded.get();
+		sendVoice(connection, sequence, 10);
+		sequence += 10;
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (server.getTunnelPacketsReceived() < tunneled + 10 &&
+			   System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(tunneled + 10, server.getTunnelPacketsReceived());
+		assertTrue(connection.metrics.framesDecoded.get() > decoded);
+
+		server.setForceTcp(false);
+		final long restored = System.currentTimeMillis();
+		while (!connection.transport.isUdp()) {
+			assertTrue(
+				"Still on TCP",
+				System.currentTimeMillis() - restored < TIMEOUT);
+			sendVoice(connection, sequence++, 1);
+		}
+		assertEquals(2, connection.metrics.switchesToUdp.get());
+	}
+
+	public void testLateReplyDoesntCount() {
+		selector.probeSent(0);
+		selector.probeReplied(0, TransportSelector.MAX_TIMEOUT + 1);
+		assertFalse(selector.isUdp());
+		selector.probeSent(1000);
+		selector.probeReplied(1000, 1000 + TransportSelector.MAX_TIMEOUT);
+		assertTrue(selector.isUdp());
+	}
+
+	public void testProbesFasterWhileInDoubt() {
+		// On TCP.
+		assertTrue(selector.isProbeDue(0));
+		selector.probeSent(0);
+		assertFalse(selector.isProbeDue(TransportSelector.PROBE_INTERVAL - 1));
+		assertTrue(selector.isProbeDue(TransportSelector.PROBE_INTERVAL));
+
+		// Healthy and idle.
+		probe(TransportSelector.PROBE_INTERVAL, 10);
+		assertTrue(selector.isUdp());
+		assertFalse(selector.isProbeDue(2 * TransportSelector.PROBE_INTERVAL));
+		assertTrue(selector.isProbeDue(TransportSelector.PROBE_INTERVAL +
+									   TransportSelector.PING_INTERVAL));
+
+		// Sending voice.
+		selector.voiceSent(1100);
+		assertTrue(selector.isProbeDue(2 * TransportSelector.PROBE_INTERVAL));
+
+		// Probe overdue.
+		final long idle = 10000;
+		selector.probeSent(idle);
+		assertFalse(selector.isProbeDue(idle + TransportSelector.PROBE_INTERVAL -
+										1));
+		assertTrue(selector.isProbeDue(idle + TransportSelector.PROBE_INTERVAL));
+	}
+
+	public void testRecoveryNeedsRepliesInARow() {
+		probe(0, 10);
+		assertTrue(selector.isUdp());
+		selector.probeSent(1000);
+		assertFalse(selector.check(1000 + TransportSelector.MAX_TIMEOUT + 1));
+
+		// Two replies and a timeout don't bring UDP back.
+		long now = 5000;
+		probe(now, 10);
+		probe(now += 1000, 10);
+		selector.probeSent(now += 1000);
+		assertFalse(selector.check(now += TransportSelector.MAX_TIMEOUT + 1));
+		probe(now += 1000, 10);
+		probe(now += 1000, 10);
+		assertFalse(selector.isUdp());
+		probe(now += 1000, 10);
+		assertTrue(selector.isUdp());
+
+		assertEquals(2, metrics.switchesToUdp.get());
+		assertEquals(1, metrics.switchesToTcp.get());
+		assertEquals(1, metrics.udpMode.get());
+	}
+
+	public void testSingleReplyEnablesUdpFirst() {
+		assertFalse(selector.isUdp());
+		assertFalse(selector.voiceSent(0));
+		probe(0, 30);
+		assertTrue(selector.isUdp());
+		assertTrue(selector.voiceSent(30));
+		assertEquals(1, metrics.switchesToUdp.get());
+		assertEquals(1, metrics.udpMode.get());
+	}
+
+	public void testTimeoutFollowsRtt() {
+		assertEquals(TransportSelector.MAX_TIMEOUT, selector.getTimeout());
+
+		for (int i = 0; i < 20; i++) {
+			udpPing.pingSent(i * 1000);
+			udpPing.pingReceived(i * 1000, i * 1000 + 20);
+		}
+		assertEquals(TransportSelector.MIN_TIMEOUT, selector.getTimeout());
+
+		for (int i = 20; i < 40; i++) {
+			udpPing.pingSent(i * 1000);
+			udpPing.pingReceived(i * 1000, i * 1000 + 400 + (i % 2) * 400);
+		}
+		final long timeout = selector.getTimeout();
+		assertTrue(timeout > TransportSelector.MIN_TIMEOUT);
+		assertTrue(timeout <= TransportSelector.MAX_TIMEOUT);
+		assertEquals((long) (udpPing.getSmoothedRtt() + 4 *
+							 udpPing.getRttVariation()), timeout);
+	}
+
+	public void testUnansweredProbeSwitchesToTcp() {
+		probe(0, 10);
+		selector.probeSent(5000);
+		final long deadline = 5000 + selector.getTimeout();
+		assertTrue(selector.check(deadline));
+		assertFalse(selector.check(deadline + 1));
+		assertEquals(1, metrics.switchesToTcp.get());
+		assertEquals(0, metrics.udpMode.get());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		metrics = new Metrics();
+		udpPing = new RttEstimator(metrics.udpRtt);
+		selector = new TransportSelector(udpPing, metrics);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (client != null) {
+			client.disconnect();
+		}
+		if (server != null) {
+			server.stop();
+		}
+		super.tearDown();
+	}
+
+	private boolean awaitUdp(final MumbleConnection connection, final boolean udp)
+		throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (connection.transport.isUdp() != udp) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a probe at now that is answered after rtt.
+	 */
+	private void probe(final long now, final long rtt) {
+		selector.probeSent(now);
+		selector.probeReplied(now, now + rtt);
+	}
+
+	/**
+	 * Sends count voice packets at the frame rate.
+	 */
+	private void sendVoice(
+		final MumbleConnection connection,
+		final long sequence,
+		final int count) throws InterruptedException {
+		for (int i = 0; i < count; i++) {
+			final byte[] packet = StandInServerTest.voicePacket(sequence + i);
+			connection.sendUdpMessage(packet, packet.length, false);
+			Thread.sleep(StandInServer.FRAME_DURATION);
+		}
+	}
+}
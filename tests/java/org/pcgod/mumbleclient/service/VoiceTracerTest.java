@@ -0,0 +1,203 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks the Chrome trace event export of VoiceTracer, with the hooks
+ * called by hand and with voice from the StandInServer played by the real
+ * client.
+ */
+public class VoiceTracerTest extends AndroidTestCase {
+	private static final int SESSION = 5;
+	private static final int TIMEOUT = 10000;
+	/** Traces to wait for from the client. */
+	private static final int CLIENT_TRACES = 20;
+
+	private VoiceTracer tracer;
+
+	private StandInServer server;
+	private TestClient client;
+
+	/**
+	 * Stamps set by MumbleConnection, AudioUser and AudioOutput end up in
+	 * the export, in stage order and for the talking user.
+	 */
+	public void testClientTracesReceivedVoice() throws Exception {
+		server = new StandInServer();
+		final List<Integer> talkers = server.addUsers(1, 0);
+		server.start();
+		client = new TestClient(getContext(), server.getPort());
+		final VoiceTracer clientTracer = client.getConnection().getTracer();
+		clientTracer.setSampleInterval(2);
+		client.connect();
+		assertTrue(client.awaitSynchronized(TIMEOUT));
+		server.startTalkers(1, 2);
+
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (clientTracer.getTotalLatency().getCount() < CLIENT_TRACES) {
+			assertTrue(
+				"Only " + clientTracer.getTotalLatency().getCount() +
+						" traces",
+				System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		server.stopTalkers();
+
+		final JSONObject trace = export(clientTracer);
+		final JSONArray events = trace.getJSONArray("traceEvents");
+		final int stages = VoiceTracer.STAGE_COUNT - 1;
+		assertTrue(events.length() >= CLIENT_TRACES * stages);
+		assertEquals(0, events.length() % stages);
+		for (int t = 0; t < events.length() / stages; t++) {
+			long end = events.getJSONObject(t * stages).getLong("ts");
+			for (int stage = 1; stage <= stages; stage++) {
+				final JSONObject event = events.getJSONObject(t * stages +
+															  stage - 1);
+				assertEquals(VoiceTracer.STAGE_NAMES[stage], event.getString("name"));
+				assertEquals((int) talkers.get(0), event.getInt("tid"));
+				assertEquals(t, event.getJSONObject("args").getInt("trace"));
+				final long ts = event.getLong("ts");
+				assertTrue(Math.abs(ts - end) <= 1);
+				assertTrue(event.getLong("dur") >= 0);
+				end = ts + event.getLong("dur");
+			}
+		}
+
+		final JSONObject total = trace.getJSONObject("stageLatency").getJSONObject(
+			"total");
+		// Frames still playing may complete after the ring was copied.
+		assertTrue(total.getLong("count") >= events.length() / stages);
+		assertTrue(total.getLong("p50_us") > 0);
+	}
+
+	public void testDisabledTracerExportsNoEvents() throws Exception {
+		assertEquals(-1, trace(SESSION, 0));
+
+		final JSONObject trace = export();
+		assertEquals(0, trace.getJSONArray("traceEvents").length());
+		assertEquals(0, trace.getJSONObject("stageLatency").getJSONObject(
+			"total").getInt("count"));
+	}
+
+	public void testEventsFollowTheStages() throws Exception {
+		tracer.setSampleInterval(1);
+		assertTrue(trace(SESSION, 100) >= 0);
+
+		final JSONObject trace = export();
+		assertEquals("ms", trace.getString("displayTimeUnit"));
+
+		final JSONArray events = trace.getJSONArray("traceEvents");
+		assertEquals(VoiceTracer.STAGE_COUNT - 1, events.length());
+		long end = events.getJSONObject(0).getLong("ts");
+		for (int i = 0; i < events.length(); i++) {
+			final JSONObject event = events.getJSONObject(i);
+			assertEquals(VoiceTracer.STAGE_NAMES[i + 1], event.getString("name"));
+			assertEquals("voice", event.getString("cat"));
+			assertEquals("X", event.getString("ph"));
+			assertEquals(SESSION, event.getInt("tid"));
+			assertEquals(0, event.getJSONObject("args").getInt("trace"));
+
+			// Each stage starts where the previous one ended, give or take
+			// the rounding to microseconds.
+			final long ts = event.getLong("ts");
+			assertTrue(Math.abs(ts - end) <= 1);
+			assertTrue(event.getLong("dur") >= 0);
+			end = ts + event.getLong("dur");
+		}
+
+		final JSONObject latency = trace.getJSONObject("stageLatency");
+		for (int stage = 1; stage < VoiceTracer.STAGE_COUNT; stage++) {
+			assertEquals(1, latency.getJSONObject(
+				VoiceTracer.STAGE_NAMES[stage]).getInt("count"));
+		}
+		final JSONObject total = latency.getJSONObject("total");
+		assertEquals(1, total.getInt("count"));
+		assertTrue(total.has("mean_us"));
+		assertTrue(total.has("p50_us"));
+		assertTrue(total.has("p95_us"));
+		assertTrue(total.has("p99_us"));
+	}
+
+	public void testKeepsNewestTraces() throws Exception {
+		tracer.setSampleInterval(1);
+		for (int i = 0; i < 1100; i++) {
+			assertTrue(trace(i, i) >= 0);
+		}
+
+		final JSONArray events = export().getJSONArray("traceEvents");
+		final int stages = VoiceTracer.STAGE_COUNT - 1;
+		assertEquals(1024 * stages, events.length());
+		// Oldest first, renumbered from 0.
+		assertEquals(1100 - 1024, events.getJSONObject(0).getInt("tid"));
+		final JSONObject last = events.getJSONObject(events.length() - 1);
+		assertEquals(1099, last.getInt("tid"));
+		assertEquals(1023, last.getJSONObject("args").getInt("trace"));
+	}
+
+	public void testSamplesEveryIntervalthPacket() throws Exception {
+		tracer.setSampleInterval(3);
+		int traced = 0;
+		for (int i = 0; i < 9; i++) {
+			if (trace(SESSION, i) >= 0) {
+				traced++;
+			}
+		}
+
+		assertEquals(3, traced);
+		assertEquals(3 * (VoiceTracer.STAGE_COUNT - 1), export().getJSONArray(
+			"traceEvents").length());
+		assertEquals(3, tracer.getTotalLatency().getCount());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		tracer = new VoiceTracer();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (client != null) {
+			client.disconnect();
+		}
+		if (server != null) {
+			server.stop();
+		}
+		super.tearDown();
+	}
+
+	private JSONObject export() throws IOException, JSONException {
+		return export(tracer);
+	}
+
+	private JSONObject export(final VoiceTracer t) throws IOException,
+		JSONException {
+		final StringWriter out = new StringWriter();
+		t.writeTrace(out);
+		return new JSONObject(out.toString());
+	}
+
+	/**
+	 * Passes one single-frame packet through every stage, as the reader,
+	 * decoder and AudioTrack threads do.
+	 *
+	 * @return Slot of the trace, or -1 if it wasn't sampled
+	 */
+	private int trace(final int session, final int timestamp) {
+		tracer.packetReceived();
+		tracer.packetDecrypted();
+		tracer.framePut(session, timestamp);
+		final int slot = tracer.frameGot(session, timestamp);
+		tracer.frameDecoded(slot);
+		tracer.frameWritten(slot);
+		return slot;
+	}
+}
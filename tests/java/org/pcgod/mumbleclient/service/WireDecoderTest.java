@@ -0,0 +1,361 @@
+package org.pcgod.mumbleclient.service;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.mumble.MumbleProto.Ping;
+import net.sf.mumble.MumbleProto.UserState;
+
+import org.pcgod.mumbleclient.Globals;
+
+import android.util.Log;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Compares UserStateDecoder and PingDecoder with the generated parser on a
+ * seeded corpus of random messages, most of them mutated into malformed
+ * ones. Both must agree on every value and on which inputs are rejected.
+ * The generated parser reads from a CodedInputStream, as MumbleProtocol
+ * did, which unlike parseFrom(byte[]) accepts a top level end group tag.
+ */
+public class WireDecoderTest extends TestCase {
+	private static final int CASES = 50000;
+	private static final long SEED = 42;
+
+	private static CodedInputStream input(final byte[] message) {
+		return CodedInputStream.newInstance(message, 0, message.length);
+	}
+
+	private static String describe(final PingDecoder p) {
+		return p.hasTimestamp() + ":" + p.getTimestamp() + " " + p.hasGood() +
+			   ":" + p.getGood() + " " + p.getLate() + " " + p.getLost() + " " +
+			   p.getResync();
+	}
+
+	private static String describe(final UserStateDecoder u) {
+		return u.hasSession() + ":" + u.getSession() + " " + u.hasName() + ":" +
+			   u.getName() + " " + u.hasChannelId() + ":" + u.getChannelId() +
+			   " " + u.hasMute() + u.getMute() + u.hasDeaf() + u.getDeaf() +
+			   u.hasSuppress() + u.getSuppress() + u.hasSelfMute() +
+			   u.getSelfMute() + u.hasSelfDeaf() + u.getSelfDeaf() + " " +
+			   u.hasComment() + ":" + u.getComment() + " " +
+			   u.hasCommentHash() + Arrays.toString(u.getCommentHash()) + " " +
+			   u.hasTexture() + Arrays.hashCode(u.getTexture()) + " " +
+			   u.hasTextureHash() + Arrays.toString(u.getTextureHash());
+	}
+
+	private static String describe(final Ping p) {
+		return p.hasTimestamp() + ":" + p.getTimestamp() + " " + p.hasGood() +
+			   ":" + p.getGood() + " " + p.getLate() + " " + p.getLost() + " " +
+			   p.getResync();
+	}
+
+	private static String describe(final UserState u) {
+		return u.hasSession() + ":" + u.getSession() + " " + u.hasName() + ":" +
+			   u.getName() + " " + u.hasChannelId() + ":" + u.getChannelId() +
+			   " " + u.hasMute() + u.getMute() + u.hasDeaf() + u.getDeaf() +
+			   u.hasSuppress() + u.getSuppress() + u.hasSelfMute() +
+			   u.getSelfMute() + u.hasSelfDeaf() + u.getSelfDeaf() + " " +
+			   u.hasComment() + ":" + u.getComment() + " " +
+			   u.hasCommentHash() +
+			   Arrays.toString(u.getCommentHash().toByteArray()) + " " +
+			   u.hasTexture() + Arrays.hashCode(u.getTexture().toByteArray()) +
+			   " " + u.hasTextureHash() +
+			   Arrays.toString(u.getTextureHash().toByteArray());
+	}
+
+	private Random random;
+
+	/**
+	 * Times reading session, name and comment hash from a sync-like corpus
+	 * of 4000 UserStates, a tenth of them with textures and long comments.
+	 * The first rounds only warm up the JIT.
+	 */
+	public void testBenchmarkSyncCorpus() throws IOException {
+		final byte[][] corpus = new byte[4000][];
+		for (int i = 0; i < corpus.length; i++) {
+			corpus[i] = userState(i % 10 == 0).toByteArray();
+		}
+
+		final UserStateDecoder decoder = new UserStateDecoder();
+		final int warmup = 20;
+		final int rounds = 30;
+		final long[] generated = new long[rounds];
+		final long[] decoded = new long[rounds];
+		long sink = 0;
+		for (int round = -warmup; round < rounds; round++) {
+			final long start = System.nanoTime();
+			sink += readGenerated(corpus);
+			final long middle = System.nanoTime();
+			sink += readDecoded(decoder, corpus);
+			if (round >= 0) {
+				generated[round] = middle - start;
+				decoded[round] = System.nanoTime() - middle;
+			}
+		}
+		Arrays.sort(generated);
+		Arrays.sort(decoded);
+
+		Log.i(Globals.LOG_TAG, "UserState median of " + rounds +
+							   " rounds: generated parser " +
+							   generated[rounds / 2] / corpus.length +
+							   " ns, UserStateDecoder " +
+							   decoded[rounds / 2] / corpus.length +
+							   " ns per message (" + sink + ")");
+	}
+
+	public void testPingMatchesGeneratedParser() throws IOException {
+		final PingDecoder decoder = new PingDecoder();
+		for (int i = 0; i < CASES; i++) {
+			final Ping.Builder p = Ping.newBuilder();
+			if (random.nextBoolean()) {
+				p.setTimestamp(random.nextLong());
+			}
+			if (random.nextBoolean()) {
+				p.setGood(random.nextInt());
+			}
+			if (random.nextBoolean()) {
+				p.setLate(random.nextInt());
+			}
+			if (random.nextBoolean()) {
+				p.setLost(random.nextInt());
+			}
+			if (random.nextBoolean()) {
+				p.setResync(random.nextInt());
+			}
+			if (random.nextBoolean()) {
+				p.setTcpPingAvg(random.nextFloat());
+			}
+			if (random.nextBoolean()) {
+				p.setUdpPackets(random.nextInt());
+			}
+
+			byte[] message = p.build().toByteArray();
+			if (i % 2 == 0) {
+				message = mutate(message);
+			}
+
+			String expected;
+			try {
+				expected = describe(Ping.parseFrom(input(message)));
+			} catch (final InvalidProtocolBufferException e) {
+				expected = "malformed";
+			}
+			String actual;
+			try {
+				decoder.decode(message, message.length);
+				actual = describe(decoder);
+			} catch (final InvalidProtocolBufferException e) {
+				actual = "malformed";
+			}
+			assertEquals(
+				"Case " + i + ": " + Arrays.toString(message),
+				expected,
+				actual);
+		}
+	}
+
+	public void testUserStateMatchesGeneratedParser() throws IOException {
+		final UserStateDecoder decoder = new UserStateDecoder();
+		int malformed = 0;
+		for (int i = 0; i < CASES; i++) {
+			byte[] message = userState(false).toByteArray();
+			if (i % 4 != 0) {
+				message = mutate(message);
+			}
+			if (i % 16 == 0) {
+				message = mutate(message);
+			}
+
+			String expected;
+			try {
+				expected = describe(UserState.parseFrom(input(message)));
+			} catch (final InvalidProtocolBufferException e) {
+				expected = "malformed";
+				malformed++;
+			}
+
+			// The decoder must stop at the length, not at the buffer end.
+			final byte[] padded = Arrays.copyOf(message, message.length + 16);
+			Arrays.fill(padded, message.length, padded.length, (byte) 0x08);
+			String actual;
+			try {
+				decoder.decode(padded, message.length);
+				actual = describe(decoder);
+			} catch (final InvalidProtocolBufferException e) {
+				actual = "malformed";
+			}
+			assertEquals(
+				"Case " + i + ": " + Arrays.toString(message),
+				expected,
+				actual);
+		}
+
+		// The mutations must reach the error paths too.
+		assertTrue(malformed > CASES / 5);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		random = new Random(SEED);
+	}
+
+	/**
+	 * Damages a message: flips a bit, truncates it, inserts random bytes,
+	 * repeats all its fields, replaces it with random bytes or appends a
+	 * group, which may be unterminated.
+	 */
+	private byte[] mutate(final byte[] message) {
+		switch (random.nextInt(6)) {
+		case 0:
+			final byte[] flipped = message.clone();
+			if (flipped.length > 0) {
+				flipped[random.nextInt(flipped.length)] ^= 1 << random.nextInt(8);
+			}
+			return flipped;
+		case 1:
+			return Arrays.copyOf(message, message.length == 0 ? 0
+				: random.nextInt(message.length));
+		case 2:
+			final byte[] inserted = randomBytes(1 + random.nextInt(4));
+			final byte[] longer = new byte[message.length + inserted.length];
+			final int at = random.nextInt(message.length + 1);
+			System.arraycopy(message, 0, longer, 0, at);
+			System.arraycopy(inserted, 0, longer, at, inserted.length);
+			System.arraycopy(
+				message,
+				at,
+				longer,
+				at + inserted.length,
+				message.length - at);
+			return longer;
+		case 3:
+			final byte[] repeated = Arrays.copyOf(message, message.length * 2);
+			System.arraycopy(message, 0, repeated, message.length, message.length);
+			return repeated;
+		case 4:
+			return randomBytes(random.nextInt(40));
+		default:
+			final int field = 1 + random.nextInt(20);
+			final int endField = random.nextBoolean() ? field : field + 1;
+			final byte[] group = { (byte) (field << 3 | 3), 8, 1,
+					(byte) (endField << 3 | 4) };
+			final byte[] appended = Arrays.copyOf(message, message.length +
+														   group.length);
+			System.arraycopy(group, 0, appended, message.length, group.length);
+			return appended;
+		}
+	}
+
+	private long readDecoded(
+		final UserStateDecoder decoder,
+		final byte[][] corpus) throws IOException {
+		long sink = 0;
+		for (final byte[] message : corpus) {
+			decoder.decode(message, message.length);
+			sink += decoder.getSession() + decoder.getName().length();
+			if (decoder.hasCommentHash()) {
+				sink += decoder.getCommentHash().length;
+			}
+		}
+		return sink;
+	}
+
+	private long readGenerated(final byte[][] corpus) throws IOException {
+		long sink = 0;
+		for (final byte[] message : corpus) {
+			final UserState u = UserState.parseFrom(input(message));
+			sink += u.getSession() + u.getName().length();
+			if (u.hasCommentHash()) {
+				sink += u.getCommentHash().toByteArray().length;
+			}
+		}
+		return sink;
+	}
+
+	private byte[] randomBytes(final int length) {
+		final byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private String randomString(final int length) {
+		final StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append((char) ('a' + random.nextInt(26)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param big Whether the user has a texture and long comment, as some
+	 *            do during a sync
+	 */
+	private UserState userState(final boolean big) {
+		final UserState.Builder u = UserState.newBuilder();
+		if (random.nextBoolean()) {
+			u.setSession(random.nextInt());
+		}
+		if (random.nextBoolean()) {
+			u.setActor(random.nextInt(100));
+		}
+		if (random.nextBoolean()) {
+			u.setName("userä" + random.nextInt());
+		}
+		if (random.nextBoolean()) {
+			u.setUserId(random.nextInt());
+		}
+		if (random.nextBoolean()) {
+			u.setChannelId(random.nextInt(1000));
+		}
+		if (random.nextBoolean()) {
+			u.setMute(random.nextBoolean());
+		}
+		if (random.nextBoolean()) {
+			u.setDeaf(random.nextBoolean());
+		}
+		if (random.nextBoolean()) {
+			u.setSuppress(random.nextBoolean());
+		}
+		if (random.nextBoolean()) {
+			u.setSelfMute(random.nextBoolean());
+		}
+		if (random.nextBoolean()) {
+			u.setSelfDeaf(random.nextBoolean());
+		}
+		if (random.nextInt(big ? 3 : 8) == 0) {
+			u.setTexture(ByteString.copyFrom(randomBytes(big ? 4000 +
+															  random.nextInt(8000)
+				: random.nextInt(50))));
+		}
+		if (random.nextInt(4) == 0) {
+			u.setPluginContext(ByteString.copyFrom(randomBytes(random.nextInt(30))));
+		}
+		if (random.nextInt(4) == 0) {
+			u.setPluginIdentity("id" + random.nextInt());
+		}
+		if (random.nextInt(big ? 2 : 4) == 0) {
+			u.setComment(randomString(big ? 500 + random.nextInt(2000)
+				: random.nextInt(40)));
+		}
+		if (random.nextInt(3) == 0) {
+			u.setHash("h" + random.nextInt());
+		}
+		if (random.nextBoolean()) {
+			u.setCommentHash(ByteString.copyFrom(randomBytes(20)));
+		}
+		if (random.nextBoolean()) {
+			u.setTextureHash(ByteString.copyFrom(randomBytes(20)));
+		}
+		if (random.nextBoolean()) {
+			u.setPrioritySpeaker(random.nextBoolean());
+		}
+		return u.build();
+	}
+}
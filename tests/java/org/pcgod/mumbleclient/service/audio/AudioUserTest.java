@@ -0,0 +1,284 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.service.Metrics;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+import org.pcgod.mumbleclient.service.PacketDataStream;
+import org.pcgod.mumbleclient.service.VoiceTracer;
+import org.pcgod.mumbleclient.service.model.User;
+
+import android.util.Log;
+
+/**
+ * Feeds an AudioUser the same packets from two threads, as the UDP and TCP
+ * readers do around a transport switch, and packets from a VoicePacketizer
+ * over a lossy link, with and without redundancy.
+ */
+public class AudioUserTest extends TestCase {
+	/**
+	 * Packets sent by a VoicePacketizer and what they carry.
+	 */
+	private static class Transmission implements VoicePacketizer.PacketSink {
+		final List<byte[]> packets = new ArrayList<byte[]>();
+		/** Frames whose primary encoding each packet carries. */
+		final List<long[]> primaries = new ArrayList<long[]>();
+		/** Frames each packet carries a copy of. */
+		final List<long[]> copies = new ArrayList<long[]>();
+
+		@Override
+		public void sendPacket(final byte[] buffer, final int length) {
+			// Insert the session, as the server does.
+			final byte[] packet = new byte[length + 1];
+			packet[0] = buffer[0];
+			packet[1] = SESSION;
+			System.arraycopy(buffer, 1, packet, 2, length - 1);
+			packets.add(packet);
+
+			final PacketDataStream pds = new PacketDataStream(packet, packet.length);
+			pds.next();
+			pds.readLong();
+			final long sequence = pds.readLong();
+			final List<Long> primary = new ArrayList<Long>();
+			final List<Long> copy = new ArrayList<Long>();
+			int frame = 0;
+			int header;
+			do {
+				header = pds.next();
+				final int frameLength = header & 0x7f;
+				(frameLength == PRIMARY_LENGTH ? primary : copy).add(sequence +
+																	 frame++);
+				pds.skip(frameLength);
+			} while ((header & 0x80) > 0);
+			primaries.add(toArray(primary));
+			copies.add(toArray(copy));
+		}
+
+		private long[] toArray(final List<Long> list) {
+			final long[] array = new long[list.size()];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = list.get(i);
+			}
+			return array;
+		}
+	}
+
+	private static final byte SESSION = 1;
+	private static final int PACKETS = 5000;
+	private static final int FRAMES_PER_PACKET = 2;
+	/** Packets between the readers meeting up, well within the window. */
+	private static final int LOCKSTEP = 1;
+
+	/** Frames sent through the lossy link, 10 minutes. */
+	private static final int LOSSY_FRAMES = 60000;
+	private static final int LOSSY_FRAMES_PER_PACKET = 6;
+	/** Frames between the ends of transmissions. */
+	private static final int SPURT_FRAMES = 3000;
+	private static final int PRIMARY_LENGTH = 75;
+	private static final int COPY_LENGTH = 20;
+
+	private static byte[] voicePacket(final long sequence) {
+		final byte[] buffer = new byte[128];
+		final PacketDataStream pds = new PacketDataStream(buffer);
+		pds.append(MumbleProtocol.UDPMESSAGETYPE_UDPVOICECELTALPHA << 5);
+		pds.writeLong(SESSION);
+		pds.writeLong(sequence);
+		for (int i = 0; i < FRAMES_PER_PACKET; i++) {
+			final boolean last = i == FRAMES_PER_PACKET - 1;
+			pds.append(20 | (last ? 0 : 0x80));
+			pds.append(new byte[20]);
+		}
+
+		final byte[] packet = new byte[pds.size()];
+		System.arraycopy(buffer, 0, packet, 0, packet.length);
+		return packet;
+	}
+
+	private Metrics metrics;
+	private AudioUser audioUser;
+	private AtomicInteger ready;
+	private AudioUser.PacketReadyHandler handler;
+
+	public void testLossWithoutRedundancy() {
+		final Transmission transmission = transmit(false);
+		final Set<Long> received = new HashSet<Long>();
+		deliver(transmission, 0.10, false, received, new HashSet<Long>());
+
+		assertEquals(received.size(), ready.get());
+		assertEquals(0, metrics.framesRecovered.get());
+		assertEquals(0, metrics.framesDuplicate.get());
+	}
+
+	public void testRedundancyRecoversLostPackets() {
+		final Transmission transmission = transmit(true);
+		final StringBuilder sb = new StringBuilder(
+			"Frames missing without/with redundancy:");
+		for (final boolean bursts : new boolean[] { false, true }) {
+			for (final double loss : new double[] { 0.05, 0.10, 0.15, 0.20 }) {
+				setUp();
+				final Set<Long> primaries = new HashSet<Long>();
+				final Set<Long> copies = new HashSet<Long>();
+				deliver(transmission, loss, bursts, primaries, copies);
+
+				// Frames whose own packet was lost but arrived as a copy.
+				copies.removeAll(primaries);
+				final int recovered = copies.size();
+				final int missing = LOSSY_FRAMES - primaries.size() - recovered;
+				assertEquals(primaries.size() + recovered, ready.get());
+
+				// The first packet after a lost one brings more new frames
+				// than the sender's stride; only when that packet ends a
+				// transmission and is short are some taken for its own.
+				final long counted = metrics.framesRecovered.get();
+				assertTrue(counted <= recovered);
+				assertTrue(counted >= recovered - LOSSY_FRAMES / SPURT_FRAMES *
+											  LOSSY_FRAMES_PER_PACKET);
+				// A lost packet comes back if the next one arrives, only the
+				// last of a burst does.
+				assertTrue(recovered > LOSSY_FRAMES * loss *
+									   (bursts ? 0.35 : 0.7));
+
+				sb.append(String.format(
+					" %s %.0f%%: %.2f%%/%.2f%%",
+					bursts ? "bursts" : "random",
+					loss * 100,
+					100.0 * (LOSSY_FRAMES - primaries.size()) / LOSSY_FRAMES,
+					100.0 * missing / LOSSY_FRAMES));
+			}
+		}
+		Log.i(Globals.LOG_TAG, sb.toString());
+	}
+
+	public void testTwoReadersBufferEachFrameOnce() throws Exception {
+		final byte[][] packets = new byte[PACKETS][];
+		for (int p = 0; p < PACKETS; p++) {
+			packets[p] = voicePacket(p * FRAMES_PER_PACKET);
+		}
+
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		final Thread[] readers = new Thread[2];
+		final Throwable[] failure = new Throwable[1];
+		for (int r = 0; r < readers.length; r++) {
+			readers[r] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int p = 0; p < PACKETS; p++) {
+							if (p % LOCKSTEP == 0) {
+								barrier.await();
+							}
+							audioUser.addFrameToBuffer(new PacketDataStream(
+								packets[p],
+								packets[p].length), handler);
+						}
+					} catch (final Throwable t) {
+						synchronized (failure) {
+							failure[0] = t;
+						}
+					}
+				}
+			});
+			readers[r].start();
+		}
+		for (final Thread reader : readers) {
+			reader.join();
+		}
+		assertNull(failure[0]);
+
+		assertEquals(PACKETS * FRAMES_PER_PACKET, ready.get());
+		assertEquals(PACKETS * FRAMES_PER_PACKET, metrics.framesDuplicate.get());
+		assertEquals(0, metrics.framesRecovered.get());
+	}
+
+	@Override
+	protected void setUp() {
+		final User user = new User();
+		user.session = SESSION;
+		metrics = new Metrics();
+		audioUser = new AudioUser(user, false, metrics, new VoiceTracer());
+		ready = new AtomicInteger();
+		handler = new AudioUser.PacketReadyHandler() {
+			@Override
+			public void packetReady(final AudioUser u) {
+				ready.incrementAndGet();
+			}
+		};
+	}
+
+	/**
+	 * Delivers the packets that survive a lossy link to the AudioUser.
+	 *
+	 * @param bursts Whether losses come in bursts of 2 packets on average
+	 *        instead of independently
+	 * @param primaries Receives the frames that arrived with their packet
+	 * @param copies Receives the frames that arrived as copies
+	 */
+	private void deliver(
+		final Transmission transmission,
+		final double loss,
+		final boolean bursts,
+		final Set<Long> primaries,
+		final Set<Long> copies) {
+		final Random random = new Random(42);
+		final double leaveBurst = 0.5;
+		final double enterBurst = loss * leaveBurst / (1 - loss);
+		boolean inBurst = false;
+		for (int p = 0; p < transmission.packets.size(); p++) {
+			final boolean lost;
+			if (bursts) {
+				inBurst = inBurst ? random.nextDouble() >= leaveBurst
+					: random.nextDouble() < enterBurst;
+				lost = inBurst;
+			} else {
+				lost = random.nextDouble() < loss;
+			}
+			if (lost) {
+				continue;
+			}
+
+			final byte[] packet = transmission.packets.get(p);
+			assertTrue(audioUser.addFrameToBuffer(new PacketDataStream(
+				packet,
+				packet.length), handler));
+			for (final long frame : transmission.primaries.get(p)) {
+				primaries.add(frame);
+			}
+			for (final long frame : transmission.copies.get(p)) {
+				copies.add(frame);
+			}
+		}
+	}
+
+	/**
+	 * Packetizes LOSSY_FRAMES frames, ending a transmission every
+	 * SPURT_FRAMES.
+	 *
+	 * @param redundancy Whether every frame has a copy
+	 */
+	private Transmission transmit(final boolean redundancy) {
+		final Transmission transmission = new Transmission();
+		final VoicePacketizer packetizer = new VoicePacketizer(
+			LOSSY_FRAMES_PER_PACKET,
+			transmission);
+		final int codec = MumbleProtocol.UDPMESSAGETYPE_UDPVOICECELTALPHA;
+		for (int f = 0; f < LOSSY_FRAMES; f++) {
+			packetizer.addFrame(
+				new byte[PRIMARY_LENGTH],
+				redundancy ? new byte[COPY_LENGTH] : null,
+				codec);
+			if (f % SPURT_FRAMES == SPURT_FRAMES - 1) {
+				packetizer.flush(codec);
+			}
+		}
+		return transmission;
+	}
+}
@@ -0,0 +1,235 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import junit.framework.TestCase;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.jni.Native;
+import org.pcgod.mumbleclient.jni.NativeDirect;
+import org.pcgod.mumbleclient.jni.celtConstants;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+import android.util.Log;
+
+/**
+ * Checks the bounds checks of the batched JNI calls and compares the
+ * mixer's per-frame JNI cost through BatchDecoder with the old path of one
+ * hawtjni call per step, for 1 to 32 talking users.
+ */
+public class BatchDecoderTest extends TestCase {
+	private static final int MAX_STREAMS = 32;
+	private static final int BENCHMARK_FRAMES = 20000;
+	private static final int JITTER_BUFFER_GET_AVAILABLE_COUNT = 3;
+
+	private long celtMode;
+	private final long[] decoders = new long[MAX_STREAMS];
+	private final long[] jitterBuffers = new long[MAX_STREAMS];
+	private final float[][] output = new float[MAX_STREAMS][MumbleProtocol.FRAME_SIZE];
+	private long sink;
+
+	public void testBatchRejectsOutOfBounds() {
+		final BatchDecoder batch = new BatchDecoder(2);
+		batch.add(decoders[0]);
+		batch.add(decoders[1]);
+		assertEquals(0, batch.decode());
+
+		final ByteBuffer streams = ByteBuffer.allocateDirect(
+			2 * NativeDirect.STREAM_SIZE).order(ByteOrder.nativeOrder());
+		final ByteBuffer data = ByteBuffer.allocateDirect(64);
+		final ByteBuffer pcm = ByteBuffer.allocateDirect(
+			2 * MumbleProtocol.FRAME_SIZE * 4).order(ByteOrder.nativeOrder());
+		for (int i = 0; i < 2; i++) {
+			streams.putLong(
+				i * NativeDirect.STREAM_SIZE + NativeDirect.STREAM_DECODER,
+				decoders[i]);
+		}
+		assertEquals(0, NativeDirect.celtDecodeFloatBatch(
+			streams,
+			2,
+			data,
+			pcm,
+			MumbleProtocol.FRAME_SIZE));
+
+		// More entries than the streams buffer holds.
+		assertEquals(celtConstants.CELT_BAD_ARG, NativeDirect.celtDecodeFloatBatch(
+			streams,
+			3,
+			data,
+			pcm,
+			MumbleProtocol.FRAME_SIZE));
+		// More samples than the pcm buffer holds.
+		assertEquals(celtConstants.CELT_BAD_ARG, NativeDirect.celtDecodeFloatBatch(
+			streams,
+			2,
+			data,
+			pcm,
+			MumbleProtocol.FRAME_SIZE + 1));
+		// A frame reaching past the data buffer.
+		streams.putInt(NativeDirect.STREAM_SIZE + NativeDirect.STREAM_OFFSET, 60);
+		streams.putInt(NativeDirect.STREAM_SIZE + NativeDirect.STREAM_LENGTH, 5);
+		assertEquals(celtConstants.CELT_BAD_ARG, NativeDirect.celtDecodeFloatBatch(
+			streams,
+			2,
+			data,
+			pcm,
+			MumbleProtocol.FRAME_SIZE));
+		streams.putInt(NativeDirect.STREAM_SIZE + NativeDirect.STREAM_OFFSET, -1);
+		assertEquals(celtConstants.CELT_BAD_ARG, NativeDirect.celtDecodeFloatBatch(
+			streams,
+			2,
+			data,
+			pcm,
+			MumbleProtocol.FRAME_SIZE));
+	}
+
+	public void testBenchmarkStreams() {
+		final int[] streamCounts = { 1, 2, 4, 8, 16, 32 };
+		for (int round = 0; round < 3; round++) {
+			for (final int streams : streamCounts) {
+				readSeparately(streams);
+				readBatched(streams);
+			}
+		}
+
+		final StringBuilder sb = new StringBuilder(
+			"Mixer JNI ns per user and frame (streams separate/batched):");
+		for (final int streams : streamCounts) {
+			long separate = Long.MAX_VALUE;
+			long batched = Long.MAX_VALUE;
+			for (int round = 0; round < 5; round++) {
+				separate = Math.min(separate, readSeparately(streams));
+				batched = Math.min(batched, readBatched(streams));
+			}
+			final long frames = (long) BENCHMARK_FRAMES * streams;
+			sb.append(" " + streams + ": " + separate / frames + "/" +
+					  batched / frames);
+		}
+		Log.i(Globals.LOG_TAG, sb.toString() + " (" + sink + ")");
+	}
+
+	public void testJitterBufferGetRejectsOutOfBounds() {
+		final ByteBuffer data = ByteBuffer.allocateDirect(128);
+		final ByteBuffer result = ByteBuffer.allocateDirect(
+			NativeDirect.JITTER_RESULT_SIZE).order(ByteOrder.nativeOrder());
+		final int span = MumbleProtocol.FRAME_SIZE;
+
+		assertEquals(-1, NativeDirect.jitterBufferGet(
+			jitterBuffers[0],
+			data,
+			64,
+			65,
+			span,
+			result));
+		assertEquals(-1, NativeDirect.jitterBufferGet(
+			jitterBuffers[0],
+			data,
+			-1,
+			10,
+			span,
+			result));
+		assertEquals(-1, NativeDirect.jitterBufferGet(
+			jitterBuffers[0],
+			data,
+			0,
+			128,
+			span,
+			ByteBuffer.allocateDirect(NativeDirect.JITTER_RESULT_SIZE - 1)));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		celtMode = Native.celt_mode_create(
+			MumbleProtocol.SAMPLE_RATE,
+			MumbleProtocol.FRAME_SIZE);
+		for (int i = 0; i < MAX_STREAMS; i++) {
+			decoders[i] = Native.celt_decoder_create(celtMode, 1);
+			jitterBuffers[i] = Native.jitter_buffer_init(MumbleProtocol.FRAME_SIZE);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (int i = 0; i < MAX_STREAMS; i++) {
+			Native.celt_decoder_destroy(decoders[i]);
+			Native.jitter_buffer_destroy(jitterBuffers[i]);
+		}
+		Native.celt_mode_destroy(celtMode);
+		super.tearDown();
+	}
+
+	/**
+	 * Gets and decodes a frame per stream with BatchDecoder, as AudioOutput
+	 * does.
+	 *
+	 * @return Nanoseconds for BENCHMARK_FRAMES frames
+	 */
+	private long readBatched(final int streams) {
+		final BatchDecoder batch = new BatchDecoder(4);
+		final ByteBuffer result = ByteBuffer.allocateDirect(
+			NativeDirect.JITTER_RESULT_SIZE).order(ByteOrder.nativeOrder());
+		final long start = System.nanoTime();
+		for (int frame = 0; frame < BENCHMARK_FRAMES; frame++) {
+			batch.clear();
+			for (int i = 0; i < streams; i++) {
+				final int slot = batch.add(decoders[i]);
+				if (NativeDirect.jitterBufferGet(
+					jitterBuffers[i],
+					batch.getData(),
+					batch.getDataOffset(slot),
+					BatchDecoder.MAX_FRAME_LENGTH,
+					MumbleProtocol.FRAME_SIZE,
+					result) == 0) {
+					batch.setLength(slot, result.getInt(
+						NativeDirect.JITTER_LENGTH * 4));
+				}
+			}
+			batch.decode();
+			for (int i = 0; i < streams; i++) {
+				batch.getFrame(i, output[i]);
+				sink += (long) output[i][0];
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Gets and decodes a frame per stream with a hawtjni call for each step,
+	 * as AudioUser did before the batch calls.
+	 *
+	 * @return Nanoseconds for BENCHMARK_FRAMES frames
+	 */
+	private long readSeparately(final int streams) {
+		final int[] available = new int[1];
+		final int[] startOffset = new int[1];
+		final byte[] buffer = new byte[BatchDecoder.MAX_FRAME_LENGTH];
+		final long start = System.nanoTime();
+		for (int frame = 0; frame < BENCHMARK_FRAMES; frame++) {
+			for (int i = 0; i < streams; i++) {
+				Native.jitter_buffer_ctl(
+					jitterBuffers[i],
+					JITTER_BUFFER_GET_AVAILABLE_COUNT,
+					available);
+				final Native.JitterBufferPacket packet = new Native.JitterBufferPacket();
+				packet.data = buffer;
+				packet.len = buffer.length;
+				final int rc = Native.jitter_buffer_get(
+					jitterBuffers[i],
+					packet,
+					MumbleProtocol.FRAME_SIZE,
+					startOffset);
+				Native.jitter_buffer_update_delay(jitterBuffers[i], null, null);
+				Native.celt_decode_float(
+					decoders[i],
+					rc == 0 ? packet.data : null,
+					rc == 0 ? packet.len : 0,
+					output[i]);
+				Native.jitter_buffer_tick(jitterBuffers[i]);
+				sink += (long) output[i][0];
+			}
+		}
+		return System.nanoTime() - start;
+	}
+}
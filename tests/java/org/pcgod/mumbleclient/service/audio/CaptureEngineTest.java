@@ -0,0 +1,255 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import junit.framework.TestCase;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.service.Metrics;
+
+import android.util.Log;
+
+/**
+ * Drives the CaptureEngine with a synthetic source that delivers a 10ms
+ * frame every 10ms and an encoder that returns fixed frames.
+ */
+public class CaptureEngineTest extends TestCase {
+	private static final int TIMEOUT = 5000;
+	private static final int FRAME_MS = 10;
+	/** Frames in a full packet. */
+	private static final int PACKET_FRAMES = 6;
+
+	private Metrics metrics;
+	private TestSource source;
+	private TestEncoder encoder;
+	private TestTransmitter transmitter;
+	private CaptureEngine engine;
+
+	public void testOpenFailureReported() throws Exception {
+		source.failOpen = true;
+		engine.start();
+
+		assertTrue(transmitter.awaitFailure());
+		assertSame(engine, transmitter.failedEngine);
+		assertTrue(source.isReleased());
+		assertTrue(encoder.destroyed);
+	}
+
+	public void testPressToFirstPacket() throws Exception {
+		engine.start();
+		final long idleUs = press();
+		engine.shutdown();
+
+		setUp();
+		engine.setStandby(true);
+		engine.start();
+		Thread.sleep((CaptureEngine.PRE_ROLL_FRAMES + 5) * FRAME_MS);
+		final long standbyUs = press();
+
+		Log.i(Globals.LOG_TAG, "Press to first packet: idle " + idleUs +
+							   " us, standby " + standbyUs + " us");
+
+		// From idle the source starts and a packet's worth of frames is
+		// read, from standby the pre-roll goes out with the first frame.
+		assertTrue(idleUs >= (PACKET_FRAMES - 1) * FRAME_MS * 1000);
+		assertTrue(idleUs < (PACKET_FRAMES + 10) * FRAME_MS * 1000);
+		assertTrue(standbyUs < idleUs);
+		assertTrue(standbyUs < 5 * FRAME_MS * 1000);
+	}
+
+	public void testReadFailureStopsEngine() throws Exception {
+		source.failAfter = 20;
+		engine.start();
+		engine.setTransmitting(true);
+
+		assertTrue(transmitter.awaitFailure());
+		assertSame(engine, transmitter.failedEngine);
+		assertTrue(transmitter.error.contains("-3"));
+		assertFalse(engine.isTransmitting());
+		assertTrue(source.isReleased());
+		assertTrue(encoder.destroyed);
+	}
+
+	public void testReleaseFlushesPartialPacket() throws Exception {
+		engine.start();
+		engine.setTransmitting(true);
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (metrics.framesEncoded.get() < PACKET_FRAMES + 2) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		engine.setTransmitting(false);
+
+		// The frames after the first packet are sent at once instead of
+		// waiting for a full packet.
+		assertTrue(transmitter.awaitPackets(2));
+		Thread.sleep(PACKET_FRAMES * FRAME_MS);
+		assertEquals(2, transmitter.getPackets());
+		assertFalse(source.isRunning());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		metrics = new Metrics();
+		source = new TestSource();
+		encoder = new TestEncoder();
+		transmitter = new TestTransmitter();
+		engine = new CaptureEngine(source, encoder, transmitter, metrics);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		engine.shutdown();
+		super.tearDown();
+	}
+
+	/**
+	 * Presses, waits for the first packet and releases.
+	 *
+	 * @return Time from the press to the first packet in microseconds
+	 */
+	private long press() throws Exception {
+		engine.setTransmitting(true);
+		assertTrue(transmitter.awaitPackets(1));
+		engine.setTransmitting(false);
+		return metrics.pressToPacket.get();
+	}
+
+	private static class TestEncoder implements FrameEncoder {
+		volatile boolean destroyed;
+
+		@Override
+		public void destroy() {
+			destroyed = true;
+		}
+
+		@Override
+		public byte[] encode(final short[] pcm) {
+			return new byte[60];
+		}
+
+		@Override
+		public byte[] encodeRedundant() {
+			return new byte[20];
+		}
+	}
+
+	/**
+	 * Delivers a frame every FRAME_MS while started.
+	 */
+	private static class TestSource implements CaptureSource {
+		volatile boolean failOpen;
+		/** Frames read before read() fails, or 0. */
+		volatile int failAfter;
+		private int reads;
+		private boolean running;
+		private boolean released;
+
+		@Override
+		public int getSampleRate() {
+			return 48000;
+		}
+
+		public synchronized boolean isReleased() {
+			return released;
+		}
+
+		public synchronized boolean isRunning() {
+			return running;
+		}
+
+		@Override
+		public void open() {
+			if (failOpen) {
+				throw new IllegalStateException("Source not initialized");
+			}
+		}
+
+		@Override
+		public int read(final short[] buffer, final int length) {
+			try {
+				Thread.sleep(FRAME_MS);
+			} catch (final InterruptedException e) {
+				return -1;
+			}
+			if (failAfter > 0 && ++reads > failAfter) {
+				return -3;
+			}
+			return length;
+		}
+
+		@Override
+		public synchronized void release() {
+			released = true;
+		}
+
+		@Override
+		public synchronized void start() {
+			running = true;
+		}
+
+		@Override
+		public synchronized void stop() {
+			running = false;
+		}
+	}
+
+	private static class TestTransmitter implements CaptureEngine.Transmitter {
+		CaptureEngine failedEngine;
+		String error;
+		private int packets;
+
+		public synchronized boolean awaitFailure() throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (failedEngine == null) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+			return true;
+		}
+
+		public synchronized boolean awaitPackets(final int count)
+			throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (packets < count) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+			return true;
+		}
+
+		@Override
+		public synchronized void captureFailed(
+			final CaptureEngine engine,
+			final String error_) {
+			failedEngine = engine;
+			error = error_;
+			notifyAll();
+		}
+
+		@Override
+		public int getCodec() {
+			return 0;
+		}
+
+		public synchronized int getPackets() {
+			return packets;
+		}
+
+		@Override
+		public boolean isRedundant() {
+			return false;
+		}
+
+		@Override
+		public synchronized void sendPacket(final byte[] packet, final int length) {
+			packets++;
+			notifyAll();
+		}
+	}
+}
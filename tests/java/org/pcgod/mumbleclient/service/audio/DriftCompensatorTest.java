@@ -0,0 +1,152 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+import android.util.Log;
+
+/**
+ * Plays an hour of a sender whose clock drifts against ours, without a
+ * jitter buffer, once taking a frame per mixer frame and once through the
+ * DriftCompensator with JitterEstimator's skew.
+ */
+public class DriftCompensatorTest extends TestCase {
+	private static class Result {
+		int underruns;
+		/** Buffered audio after the first minute, milliseconds. */
+		double minDepth = Double.MAX_VALUE;
+		double maxDepth;
+		double skew;
+	}
+
+	private static final int FRAME_SIZE = MumbleProtocol.FRAME_SIZE;
+	private static final int FRAME_MS = 10;
+	private static final int FRAMES_PER_PACKET = 2;
+	private static final long HOUR_FRAMES = 3600 * 1000 / FRAME_MS;
+	/** Playback starts this long after the first frame was sent. */
+	private static final double START_DELAY = 200;
+
+	/**
+	 * @param ppm How much faster the sender's clock runs than ours
+	 * @param compensate Whether frames go through a DriftCompensator
+	 */
+	private static Result play(final double ppm, final boolean compensate) {
+		final Random random = new Random(1);
+		final JitterEstimator estimator = new JitterEstimator();
+		final DriftCompensator compensator = new DriftCompensator(true);
+		final double senderFrameMs = FRAME_MS * (1 - ppm / 1e6);
+		final PriorityQueue<double[]> inFlight = new PriorityQueue<double[]>(
+			16,
+			new Comparator<double[]>() {
+				@Override
+				public int compare(final double[] a, final double[] b) {
+					return Double.compare(a[0], b[0]);
+				}
+			});
+		final LinkedList<Long> buffered = new LinkedList<Long>();
+		final float[] frame = new float[FRAME_SIZE];
+		final float[] mixed = new float[FRAME_SIZE];
+		double phase = 0;
+		long nextPacket = 0;
+
+		final Result result = new Result();
+		for (long tick = 0; tick < HOUR_FRAMES; tick++) {
+			final double now = tick * FRAME_MS + START_DELAY;
+			while (nextPacket * FRAMES_PER_PACKET * senderFrameMs <= now + 1000) {
+				final double sent = (nextPacket + 1) * FRAMES_PER_PACKET *
+									senderFrameMs;
+				final double delay = 40 - Math.log(1 - random.nextDouble()) * 3;
+				inFlight.add(new double[] { sent + delay, nextPacket++ });
+			}
+			while (!inFlight.isEmpty() && inFlight.peek()[0] <= now) {
+				final double[] packet = inFlight.poll();
+				final long sequence = (long) packet[1] * FRAMES_PER_PACKET;
+				estimator.packetArrived(
+					sequence,
+					FRAMES_PER_PACKET,
+					FRAMES_PER_PACKET,
+					packet[0]);
+				for (int f = 0; f < FRAMES_PER_PACKET; f++) {
+					buffered.add(sequence + f);
+				}
+			}
+
+			if (compensate) {
+				while (compensator.needsFrame()) {
+					final int depth = buffered.size();
+					if (buffered.poll() == null) {
+						result.underruns++;
+					}
+					for (int i = 0; i < FRAME_SIZE; i++) {
+						frame[i] = (float) Math.sin(phase);
+						phase += 2 * Math.PI * 180 / MumbleProtocol.SAMPLE_RATE;
+					}
+					compensator.addFrame(frame, estimator.getSkew(), depth);
+				}
+				compensator.read(mixed);
+			} else if (buffered.poll() == null) {
+				result.underruns++;
+			}
+
+			if (tick > 60 * 1000 / FRAME_MS) {
+				final double depth = buffered.size() * FRAME_MS;
+				result.minDepth = Math.min(result.minDepth, depth);
+				result.maxDepth = Math.max(result.maxDepth, depth);
+			}
+		}
+		result.skew = estimator.getSkew();
+		return result;
+	}
+
+	private static void log(final double ppm, final String mode, final Result r) {
+		Log.i(Globals.LOG_TAG, String.format(
+			"%+.0f ppm %s: %d underruns, depth %.0f to %.0f ms, skew %+.0f ppm",
+			ppm,
+			mode,
+			r.underruns,
+			r.minDepth,
+			r.maxDepth,
+			r.skew * 1e6));
+	}
+
+	public void testFastSenderKeepsDepth() {
+		final Result fixed = play(200, false);
+		final Result compensated = play(200, true);
+		log(200, "fixed", fixed);
+		log(200, "compensated", compensated);
+
+		// 720ms pile up over the hour without compensation.
+		assertTrue(fixed.maxDepth - fixed.minDepth > 500);
+		assertTrue(compensated.maxDepth - compensated.minDepth < 100);
+		assertEquals(0, compensated.underruns);
+		assertEquals(-200e-6, compensated.skew, 40e-6);
+	}
+
+	public void testSlowSenderDoesntUnderrun() {
+		final Result fixed = play(-200, false);
+		final Result compensated = play(-200, true);
+		log(-200, "fixed", fixed);
+		log(-200, "compensated", compensated);
+
+		// Once the buffer ran dry a frame goes missing every 50 seconds.
+		assertTrue(fixed.underruns > 40);
+		assertEquals(0, compensated.underruns);
+		assertTrue(compensated.maxDepth - compensated.minDepth < 100);
+		assertEquals(200e-6, compensated.skew, 40e-6);
+	}
+
+	public void testSmallSkewKeepsDepth() {
+		final Result compensated = play(50, true);
+		log(50, "compensated", compensated);
+
+		assertEquals(0, compensated.underruns);
+		assertTrue(compensated.maxDepth - compensated.minDepth < 100);
+	}
+}
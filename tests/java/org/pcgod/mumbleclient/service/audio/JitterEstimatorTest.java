@@ -0,0 +1,269 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.pcgod.mumbleclient.Globals;
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+import android.util.Log;
+
+/**
+ * Plays seeded packet traces of four kinds of networks through the Java
+ * port of the speex jitter buffer, once with the former fixed margin of 5
+ * frames and once with the margin from JitterEstimator.
+ */
+public class JitterEstimatorTest extends TestCase {
+	/**
+	 * Delay and loss of a simulated network.
+	 */
+	private interface Network {
+		/**
+		 * @return One-way delay of a packet in milliseconds
+		 */
+		double delay(Random random);
+
+		double loss();
+	}
+
+	private static class Result {
+		/** Average time from sending to playing a frame, milliseconds. */
+		double latency;
+		/** Percentage of delivered frames that were never played. */
+		double lateLoss;
+		/** Average margin, milliseconds. */
+		double margin;
+		double jitter;
+		double lossRate;
+	}
+
+	private static final int FRAME_SIZE = MumbleProtocol.FRAME_SIZE;
+	private static final int FRAME_MS = 10;
+	private static final int FRAMES_PER_PACKET = 2;
+	private static final int SECONDS = 120;
+	private static final int SEEDS = 5;
+	/** Margin change that is applied to the buffer, as in AudioUser. */
+	private static final int MARGIN_STEP = FRAME_SIZE;
+
+	private static final Network WIRED = new Network() {
+		@Override
+		public double delay(final Random random) {
+			return 20 + exponential(random, 1);
+		}
+
+		@Override
+		public double loss() {
+			return 0.001;
+		}
+	};
+
+	private static final Network WIFI = new Network() {
+		@Override
+		public double delay(final Random random) {
+			return 30 + exponential(random, 5) +
+				   (random.nextDouble() < 0.01 ? 40 : 0);
+		}
+
+		@Override
+		public double loss() {
+			return 0.005;
+		}
+	};
+
+	private static final Network MOBILE = new Network() {
+		@Override
+		public double delay(final Random random) {
+			return 60 + exponential(random, 8) + exponential(random, 8) +
+				   exponential(random, 8) +
+				   (random.nextDouble() < 0.005 ? 150 : 0);
+		}
+
+		@Override
+		public double loss() {
+			return 0.03;
+		}
+	};
+
+	private static final Network BAD_3G = new Network() {
+		@Override
+		public double delay(final Random random) {
+			return 100 + exponential(random, 30) + exponential(random, 30) +
+				   (random.nextDouble() < 0.02 ? 200 : 0);
+		}
+
+		@Override
+		public double loss() {
+			return 0.06;
+		}
+	};
+
+	private static double exponential(final Random random, final double mean) {
+		return -Math.log(1 - random.nextDouble()) * mean;
+	}
+
+	/**
+	 * Averages play() over SEEDS traces.
+	 */
+	private static Result average(final Network network, final boolean adaptive) {
+		final Result average = new Result();
+		for (long seed = 1; seed <= SEEDS; seed++) {
+			final Result r = play(network, adaptive, seed);
+			average.latency += r.latency / SEEDS;
+			average.lateLoss += r.lateLoss / SEEDS;
+			average.margin += r.margin / SEEDS;
+			average.jitter += r.jitter / SEEDS;
+			average.lossRate += r.lossRate / SEEDS;
+		}
+		return average;
+	}
+
+	/**
+	 * Sends SECONDS of voice over a network and plays it out of a jitter
+	 * buffer, a frame every 10ms.
+	 *
+	 * @param adaptive Whether to follow JitterEstimator's margin
+	 */
+	private static Result play(
+		final Network network,
+		final boolean adaptive,
+		final long seed) {
+		final Random random = new Random(seed);
+		final int packets = SECONDS * 1000 / FRAME_MS / FRAMES_PER_PACKET;
+		final double[] arrivals = new double[packets];
+		int lost = 0;
+		for (int p = 0; p < packets; p++) {
+			if (random.nextDouble() < network.loss()) {
+				arrivals[p] = Double.MAX_VALUE;
+				lost++;
+			} else {
+				arrivals[p] = p * FRAMES_PER_PACKET * FRAME_MS +
+							  network.delay(random);
+			}
+		}
+		final Integer[] order = new Integer[packets];
+		for (int p = 0; p < packets; p++) {
+			order[p] = p;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				return Double.compare(arrivals[a], arrivals[b]);
+			}
+		});
+
+		final JitterBuffer buffer = new JitterBuffer(FRAME_SIZE);
+		final JitterEstimator estimator = new JitterEstimator();
+		int margin = (int) JitterEstimator.INITIAL_MARGIN / FRAME_MS *
+					 FRAME_SIZE;
+		buffer.setMargin(margin);
+
+		final boolean[] played = new boolean[packets * FRAMES_PER_PACKET];
+		int playedCount = 0;
+		double latency = 0;
+		double marginSum = 0;
+		int ticks = 0;
+		int next = 0;
+		for (double now = arrivals[order[0]]; now < (SECONDS + 2) * 1000; now += FRAME_MS) {
+			while (next < packets && arrivals[order[next]] <= now) {
+				final int p = order[next++];
+				final long sequence = p * FRAMES_PER_PACKET;
+				if (adaptive) {
+					estimator.packetArrived(
+						sequence,
+						FRAMES_PER_PACKET,
+						FRAMES_PER_PACKET,
+						arrivals[p]);
+					final int target = (int) Math.round(estimator.getMargin() *
+														FRAME_SIZE / FRAME_MS);
+					if (Math.abs(target - margin) >= MARGIN_STEP) {
+						margin = target;
+						buffer.setMargin(margin);
+					}
+				}
+				for (int f = 0; f < FRAMES_PER_PACKET; f++) {
+					final JitterBufferPacket packet = new JitterBufferPacket();
+					packet.timestamp = (int) (sequence + f) * FRAME_SIZE;
+					packet.span = FRAME_SIZE;
+					buffer.put(packet);
+				}
+			}
+
+			final JitterBufferPacket packet = buffer.get(FRAME_SIZE);
+			if (packet != null) {
+				final int frame = packet.timestamp / FRAME_SIZE;
+				if (!played[frame]) {
+					played[frame] = true;
+					playedCount++;
+					latency += now - frame * FRAME_MS;
+				}
+			}
+			buffer.updateDelay();
+			buffer.tick();
+			marginSum += margin * FRAME_MS / (double) FRAME_SIZE;
+			ticks++;
+		}
+
+		final int delivered = (packets - lost) * FRAMES_PER_PACKET;
+		final Result result = new Result();
+		result.latency = latency / playedCount;
+		result.lateLoss = 100.0 * (delivered - playedCount) /
+						  (packets * FRAMES_PER_PACKET);
+		result.margin = marginSum / ticks;
+		result.jitter = estimator.getJitter();
+		result.lossRate = estimator.getLossRate();
+		return result;
+	}
+
+	private static String describe(final String name, final Result r) {
+		return String.format(
+			"%s margin %.1f ms, latency %.1f ms, late %.2f%%, jitter %.1f ms, loss %.3f",
+			name,
+			r.margin,
+			r.latency,
+			r.lateLoss,
+			r.jitter,
+			r.lossRate);
+	}
+
+	public void testBadNetworksGetMoreMargin() {
+		final Result mobile = average(MOBILE, true);
+		final Result bad = average(BAD_3G, true);
+		final Result mobileFixed = average(MOBILE, false);
+		final Result badFixed = average(BAD_3G, false);
+		Log.i(Globals.LOG_TAG, describe("Mobile fixed", mobileFixed));
+		Log.i(Globals.LOG_TAG, describe("Mobile adaptive", mobile));
+		Log.i(Globals.LOG_TAG, describe("Bad 3G fixed", badFixed));
+		Log.i(Globals.LOG_TAG, describe("Bad 3G adaptive", bad));
+
+		assertTrue(mobile.margin > JitterEstimator.INITIAL_MARGIN);
+		assertTrue(bad.margin > mobile.margin);
+		assertTrue(bad.margin <= JitterEstimator.MAX_MARGIN);
+		// The fixed margin already suits the mobile network, the bad one
+		// buys fewer late frames with the extra latency.
+		assertTrue(mobile.lateLoss < mobileFixed.lateLoss + 0.5);
+		assertTrue(bad.lateLoss < badFixed.lateLoss / 1.5);
+		assertEquals(0.06, bad.lossRate, 0.03);
+	}
+
+	public void testGoodNetworksGetLessLatency() {
+		final Result wired = average(WIRED, true);
+		final Result wifi = average(WIFI, true);
+		final Result wiredFixed = average(WIRED, false);
+		final Result wifiFixed = average(WIFI, false);
+		Log.i(Globals.LOG_TAG, describe("Wired fixed", wiredFixed));
+		Log.i(Globals.LOG_TAG, describe("Wired adaptive", wired));
+		Log.i(Globals.LOG_TAG, describe("Wifi fixed", wifiFixed));
+		Log.i(Globals.LOG_TAG, describe("Wifi adaptive", wifi));
+
+		assertTrue(wired.margin < JitterEstimator.INITIAL_MARGIN);
+		assertTrue(wired.margin >= JitterEstimator.MIN_MARGIN);
+		assertTrue(wired.latency < wiredFixed.latency);
+		assertTrue(wifi.latency < wifiFixed.latency);
+		// Without losing noticeably more frames to lateness.
+		assertTrue(wired.lateLoss < wiredFixed.lateLoss + 0.5);
+		assertTrue(wifi.lateLoss < wifiFixed.lateLoss + 0.5);
+	}
+}
@@ -0,0 +1,121 @@
+package org.pcgod.mumbleclient.service.audio;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.pcgod.mumbleclient.service.MumbleProtocol;
+
+/**
+ * Checks the splice lengths and output bounds of TimeStretcher and that a
+ * splice doesn't add a click to a sine.
+ */
+public class TimeStretcherTest extends TestCase {
+	private static final int FRAME_SIZE = MumbleProtocol.FRAME_SIZE;
+	private static final int SENTINELS = 16;
+
+	private static float[] sine(final double frequency) {
+		final float[] frame = new float[FRAME_SIZE];
+		for (int i = 0; i < FRAME_SIZE; i++) {
+			frame[i] = (float) Math.sin(2 * Math.PI * frequency * i /
+										MumbleProtocol.SAMPLE_RATE);
+		}
+		return frame;
+	}
+
+	/**
+	 * @return Largest difference between neighbouring samples
+	 */
+	private static double maxStep(final float[] samples, final int length) {
+		double max = 0;
+		for (int i = 1; i < length; i++) {
+			max = Math.max(max, Math.abs(samples[i] - samples[i - 1]));
+		}
+		return max;
+	}
+
+	private TimeStretcher stretcher;
+
+	public void testLengthenStaysInBounds() {
+		final Random random = new Random(1);
+		final float[] frame = new float[FRAME_SIZE];
+		final float[] out = new float[FRAME_SIZE + TimeStretcher.MAX_SPLICE +
+									  SENTINELS];
+		for (int round = 0; round < 1000; round++) {
+			for (int i = 0; i < FRAME_SIZE; i++) {
+				frame[i] = random.nextFloat() * 2 - 1;
+			}
+			Arrays.fill(out, Float.NaN);
+			final int added = stretcher.lengthen(frame, out);
+			assertTrue(added >= TimeStretcher.MIN_SPLICE);
+			assertTrue(added <= TimeStretcher.MAX_SPLICE);
+			for (int i = 0; i < FRAME_SIZE + added; i++) {
+				assertFalse(Float.isNaN(out[i]));
+			}
+			for (int i = FRAME_SIZE + added; i < out.length; i++) {
+				assertTrue(Float.isNaN(out[i]));
+			}
+			// The frame ends as it did.
+			assertEquals(frame[FRAME_SIZE - 1], out[FRAME_SIZE + added - 1]);
+		}
+	}
+
+	public void testRejectsShortFrames() {
+		try {
+			new TimeStretcher(TimeStretcher.MAX_SPLICE);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	public void testShortenStaysInBounds() {
+		final Random random = new Random(1);
+		final float[] frame = new float[FRAME_SIZE];
+		final float[] out = new float[FRAME_SIZE + SENTINELS];
+		for (int round = 0; round < 1000; round++) {
+			for (int i = 0; i < FRAME_SIZE; i++) {
+				frame[i] = random.nextFloat() * 2 - 1;
+			}
+			Arrays.fill(out, Float.NaN);
+			final int removed = stretcher.shorten(frame, out);
+			assertTrue(removed >= TimeStretcher.MIN_SPLICE);
+			assertTrue(removed <= TimeStretcher.MAX_SPLICE);
+			for (int i = 0; i < FRAME_SIZE - removed; i++) {
+				assertFalse(Float.isNaN(out[i]));
+			}
+			for (int i = FRAME_SIZE - removed; i < out.length; i++) {
+				assertTrue(Float.isNaN(out[i]));
+			}
+			assertEquals(frame[FRAME_SIZE - 1], out[FRAME_SIZE - removed - 1]);
+		}
+	}
+
+	public void testSilenceUsesLongestSplice() {
+		final float[] silence = new float[FRAME_SIZE];
+		final float[] out = new float[FRAME_SIZE + TimeStretcher.MAX_SPLICE];
+		assertEquals(TimeStretcher.MAX_SPLICE, stretcher.lengthen(silence, out));
+		assertEquals(TimeStretcher.MAX_SPLICE, stretcher.shorten(silence, out));
+	}
+
+	public void testSpliceFollowsPitch() {
+		// 180Hz has a period of 266.7 samples, 200Hz one of 240.
+		final float[] frame = sine(200);
+		final float[] out = new float[FRAME_SIZE + TimeStretcher.MAX_SPLICE];
+		assertEquals(240, stretcher.lengthen(frame, out));
+
+		final float[] low = sine(180);
+		final double natural = 2 * Math.PI * 180 / MumbleProtocol.SAMPLE_RATE;
+		final int added = stretcher.lengthen(low, out);
+		assertTrue(maxStep(out, FRAME_SIZE + added) < 1.5 * natural);
+		final int removed = stretcher.shorten(low, out);
+		assertTrue(maxStep(out, FRAME_SIZE - removed) < 1.5 * natural);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		stretcher = new TimeStretcher(FRAME_SIZE);
+	}
+}